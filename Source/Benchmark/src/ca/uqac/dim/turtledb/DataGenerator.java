@@ -0,0 +1,111 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * Generates synthetic tables for benchmarks. The contents of a table
+ * only depend on the generator's seed and on the parameters passed to
+ * {@link #createTable(String, String, int, int)}, so that successive
+ * runs of a benchmark work on exactly the same data.
+ * <p>
+ * Values are drawn uniformly among a fixed number of distinct values
+ * per attribute; this number controls the selectivity of equalities
+ * (an equality with a value selects about 1/<i>distinct</i> of the
+ * tuples) and the size of joins.
+ * @author sylvain
+ *
+ */
+public class DataGenerator
+{
+  protected final Random m_random;
+  
+  /**
+   * Creates a generator
+   * @param seed The seed of the random number generator
+   */
+  public DataGenerator(long seed)
+  {
+    super();
+    m_random = new Random(seed);
+  }
+  
+  /**
+   * Creates a table with random contents
+   * @param name The table's name
+   * @param schema The declaration of the table's attributes, as in
+   *   {@link Schema#Schema(String, String)} (e.g. <tt>"a:int,b"</tt>)
+   * @param size The number of tuples to generate. The table may hold
+   *   fewer tuples, since duplicates are discarded.
+   * @param distinct The number of distinct values of each attribute
+   * @return The table
+   */
+  public Table createTable(String name, String schema, int size, int distinct)
+  {
+    Table tab = new Table(name);
+    tab.setSchema(new Schema(name, schema));
+    tab.putAll(createTuples(tab.getSchema(), size, distinct));
+    return tab;
+  }
+  
+  /**
+   * Creates random tuples
+   * @param sch The schema of the tuples
+   * @param size The number of tuples
+   * @param distinct The number of distinct values of each attribute
+   * @return The tuples
+   */
+  public List<Tuple> createTuples(Schema sch, int size, int distinct)
+  {
+    List<Tuple> tuples = new ArrayList<Tuple>(size);
+    for (int i = 0; i < size; i++)
+    {
+      Value[] values = new Value[sch.size()];
+      for (int j = 0; j < values.length; j++)
+      {
+        values[j] = createValue(sch.get(j).getType(), m_random.nextInt(distinct));
+      }
+      tuples.add(new Tuple(sch, values));
+    }
+    return tuples;
+  }
+  
+  /**
+   * Creates the <i>n</i>-th distinct value of a type
+   * @param type The type
+   * @param n The number of the value
+   * @return The value
+   */
+  protected static Value createValue(ValueType type, int n)
+  {
+    switch (type)
+    {
+    case INT:
+      return new IntValue(n);
+    case LONG:
+      return new LongValue(n);
+    case DOUBLE:
+      return new DoubleValue(n / 4d);
+    case DATE:
+      return new DateValue(n * 86400000L);
+    default:
+      return new Value("v" + n);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the evaluation of each relational operator over
+ * tables, in streaming and in cache mode. Each benchmark enumerates
+ * all the tuples of the result of a query made of a single operator.
+ * <p>
+ * The operands are tables of {@link #m_size} tuples, except for the
+ * product, whose operands have &radic;{@link #m_size} tuples so that
+ * its result has about the same size as the other ones.
+ * @author sylvain
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperatorBenchmark
+{
+  /**
+   * Whether queries are evaluated in streaming mode (true) or in
+   * cache mode (false)
+   */
+  @Param({"true", "false"})
+  public boolean m_streaming;
+  
+  /**
+   * The number of tuples of each operand
+   */
+  @Param({"1000", "10000"})
+  public int m_size;
+  
+  /**
+   * The number of distinct values of each attribute
+   */
+  @Param({"100"})
+  public int m_distinct;
+  
+  protected Relation m_selection;
+  protected Relation m_projection;
+  protected Relation m_join;
+  protected Relation m_product;
+  protected Relation m_union;
+  protected Relation m_intersection;
+  
+  @Setup
+  public void setup()
+  {
+    DataGenerator gen = new DataGenerator(1);
+    Table a = gen.createTable("A", "a:int,b:int,c", m_size, m_distinct);
+    // Many distinct values in B, so that each tuple of A matches
+    // about one tuple of B
+    Table b = gen.createTable("B", "d:int,e", m_size, m_size);
+    // Same schema as A, so that A and C can be combined by set operators;
+    // few distinct values, so that they have tuples in common
+    Table c = gen.createTable("C", "a:int,b:int,c", m_size, 10);
+    Table a_10 = gen.createTable("A", "a:int,b:int,c", m_size, 10);
+    int small = (int) Math.sqrt(m_size);
+    Table d = gen.createTable("D", "a:int,b", small, m_distinct);
+    Table e = gen.createTable("E", "c:int,d", small, m_distinct);
+    m_selection = new Selection(new Equality(new Attribute("A", "b"), new IntValue(1)), a);
+    Schema sch = new Schema();
+    sch.add(new Attribute("A", "a"));
+    sch.add(new Attribute("A", "c"));
+    m_projection = new Projection(sch, a);
+    Join j = new Join(new Equality(new Attribute("A", "a"), new Attribute("B", "d")));
+    j.addOperand(a);
+    j.addOperand(b);
+    m_join = j;
+    Product p = new Product();
+    p.addOperand(d);
+    p.addOperand(e);
+    m_product = p;
+    Union u = new Union();
+    u.addOperand(a);
+    u.addOperand(c);
+    m_union = u;
+    Intersection in = new Intersection();
+    in.addOperand(a_10);
+    in.addOperand(c);
+    m_intersection = in;
+    for (Relation r : new Relation[] {m_selection, m_projection, m_join, m_product, m_union, m_intersection})
+      r.setStreamingMode(m_streaming);
+  }
+  
+  /**
+   * Enumerates the tuples of a relation
+   * @param r The relation
+   * @param bh The blackhole that consumes the tuples
+   */
+  protected static void enumerate(Relation r, Blackhole bh)
+  {
+    Iterator<Tuple> it = r.iterator();
+    while (it.hasNext())
+      bh.consume(it.next());
+  }
+  
+  @Benchmark
+  public void selection(Blackhole bh)
+  {
+    enumerate(m_selection, bh);
+  }
+  
+  @Benchmark
+  public void projection(Blackhole bh)
+  {
+    enumerate(m_projection, bh);
+  }
+  
+  @Benchmark
+  public void join(Blackhole bh)
+  {
+    enumerate(m_join, bh);
+  }
+  
+  @Benchmark
+  public void product(Blackhole bh)
+  {
+    enumerate(m_product, bh);
+  }
+  
+  @Benchmark
+  public void union(Blackhole bh)
+  {
+    enumerate(m_union, bh);
+  }
+  
+  @Benchmark
+  public void intersection(Blackhole bh)
+  {
+    enumerate(m_intersection, bh);
+  }
+}
@@ -0,0 +1,125 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the construction of tables and of the access to
+ * the values of tuples
+ * @author sylvain
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TableBenchmark
+{
+  /**
+   * The number of tuples inserted
+   */
+  @Param({"1000", "10000"})
+  public int m_size;
+  
+  /**
+   * The number of distinct values of each attribute
+   */
+  @Param({"100"})
+  public int m_distinct;
+  
+  protected Schema m_schema;
+  
+  protected List<Tuple> m_tuples;
+  
+  @Setup
+  public void setup()
+  {
+    DataGenerator gen = new DataGenerator(1);
+    m_schema = new Schema("A", "a:int,b:int,c");
+    m_tuples = gen.createTuples(m_schema, m_size, m_distinct);
+  }
+  
+  @Benchmark
+  public Table put()
+  {
+    Table tab = new Table("A");
+    tab.setSchema(m_schema);
+    for (Tuple t : m_tuples)
+      tab.put(t);
+    return tab;
+  }
+  
+  @Benchmark
+  public Table putAll()
+  {
+    Table tab = new Table("A");
+    tab.setSchema(m_schema);
+    tab.putAll(m_tuples);
+    return tab;
+  }
+  
+  /**
+   * Inserts the tuples one by one in an indexed table, taking a
+   * snapshot of the table before each insertion, as the
+   * {@link Engine} does for every query evaluated while tuples
+   * arrive. Each insertion after a snapshot copies one segment of the
+   * list of tuples and the entries of the indexes it changes, rather
+   * than the whole table.
+   */
+  @Benchmark
+  public Table putAfterSnapshot()
+  {
+    Table tab = new Table("A");
+    tab.setSchema(m_schema);
+    tab.createIndex(m_schema.get(0));
+    tab.createIndex(m_schema.get(1));
+    for (Tuple t : m_tuples)
+    {
+      tab.getSnapshot();
+      tab.put(t);
+    }
+    return tab;
+  }
+  
+  @Benchmark
+  public void tupleGet(Blackhole bh)
+  {
+    for (Tuple t : m_tuples)
+    {
+      for (int i = 0; i < t.size(); i++)
+        bh.consume(t.get(i));
+    }
+  }
+  
+  @Benchmark
+  public void tupleGetByAttribute(Blackhole bh)
+  {
+    for (Tuple t : m_tuples)
+    {
+      for (Attribute a : m_schema)
+        bh.consume(t.get(a));
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the binary wire format of relations
+ * @author sylvain
+ *
+ */
+public class BinaryQueryFormatterTest
+{
+  @Test
+  public void testValues() throws IOException
+  {
+    List<Value> values = new ArrayList<Value>(Arrays.asList(ValueTest.sampleValues()));
+    values.add(new Value("\u00e9t\u00e9 \u6c34"));
+    values.add(null);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (Value v : values)
+      TupleCodec.writeValue(out, v);
+    out.flush();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    for (Value v : values)
+    {
+      Value back = TupleCodec.readValue(in);
+      if (v == null)
+      {
+        assertNull(back);
+        continue;
+      }
+      assertEquals(v, back);
+      assertEquals(v.getType(), back.getType());
+      assertEquals(v.toString(), back.toString());
+    }
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void testTable() throws XmlQueryParser.ParseException
+  {
+    Table t = new Table("T");
+    Schema sch = new Schema("T.i:int,T.l:long,T.d:double,T.s");
+    t.setSchema(sch);
+    for (int i = 0; i < 50; i++)
+    {
+      t.put(new Tuple(sch, new Value[] {new IntValue(i % 3), new LongValue(i * 100000000000L),
+          new DoubleValue(i / 4d), new Value("v" + i)}));
+    }
+    List<Relation> back = BinaryQueryParser.parse(BinaryQueryFormatter.toBytes(t));
+    assertEquals(1, back.size());
+    Relation r = back.get(0);
+    assertEquals(sch.toString(), r.getSchema().toString());
+    List<Tuple> expected = ValueTest.collect(t, false);
+    List<Tuple> actual = ValueTest.collect(r, false);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++)
+    {
+      Tuple e = expected.get(i);
+      Tuple a = actual.get(i);
+      assertEquals(e, a);
+      for (int j = 0; j < e.size(); j++)
+        assertEquals(e.get(j).getType(), a.get(j).getType());
+    }
+  }
+
+  @Test
+  public void testOperators() throws XmlQueryParser.ParseException
+  {
+    // A tree with every kind of operator and condition
+    Table a = TableParser.parseFromCsv("A", "a,b,c\n0,0,0\n1,3,4\n0,1,1\n0,2,3\n1,2,3");
+    Table b = TableParser.parseFromCsv("B", "a,b,c\n0,0,0\n1,3,4\n5,5,5");
+    Selection s = new Selection(new Equality(new Attribute("A.a"), new Value("0")), a);
+    LogicalOr or = new LogicalOr();
+    or.addCondition(new Equality(new Attribute("A.b"), new Value("1")));
+    LogicalNot not = new LogicalNot();
+    not.addCondition(new Equality(new Attribute("A.c"), new Value("3")));
+    or.addCondition(not);
+    Selection s2 = new Selection(or, s);
+    Union u = new Union();
+    u.addOperand(s2);
+    u.addOperand(new VariableTable("B", "Site 2"));
+    Join j = new Join(new Equality(new Attribute("A.a"), new Attribute("B.a")));
+    j.setLeft(a);
+    j.setRight(b);
+    Schema sch = new Schema();
+    sch.add(new Attribute("A.a"));
+    sch.add(new Attribute("B.c"));
+    Projection p = new Projection(sch, j);
+    Intersection in = new Intersection();
+    in.addOperand(a);
+    in.addOperand(b);
+    Product pr = new Product();
+    pr.addOperand(new VariableTable("x"));
+    pr.addOperand(b);
+    Renaming rn = new Renaming(b).rename(new Attribute("B.a"), new Attribute("B.z"));
+    VariableTable frag = new VariableTable("&f;", "Site 3");
+    frag.setRelation(p);
+    List<Relation> all = Arrays.<Relation>asList(u, frag, in, pr, rn, s2, b);
+    List<Relation> back = BinaryQueryParser.parse(BinaryQueryFormatter.toBytes(all));
+    assertEquals(all.size(), back.size());
+    for (int i = 0; i < all.size(); i++)
+    {
+      assertEquals(XmlQueryFormatter.toXmlString(all.get(i)),
+          XmlQueryFormatter.toXmlString(back.get(i)));
+    }
+    // The decoded tables can be evaluated
+    assertEquals(JoinTest.sorted(ValueTest.collect(s2, false)),
+        JoinTest.sorted(ValueTest.collect(back.get(5), false)));
+  }
+
+  @Test
+  public void testMalformed()
+  {
+    Table t = NAryRelationTest.pairs("R", "a", "b", 100, 1);
+    byte[] bytes = BinaryQueryFormatter.toBytes(t);
+    assertTrue(BinaryQueryParser.isBinary(bytes));
+    try
+    {
+      BinaryQueryParser.parse(Arrays.copyOf(bytes, bytes.length / 2));
+      fail("A truncated message should be rejected");
+    }
+    catch (XmlQueryParser.ParseException e)
+    {
+      // Expected
+    }
+    assertFalse(BinaryQueryParser.isBinary("<operand/>".getBytes()));
+  }
+}
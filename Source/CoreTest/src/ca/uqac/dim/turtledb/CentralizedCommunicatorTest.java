@@ -0,0 +1,59 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link CentralizedCommunicator}, where each site
+ * runs in its own thread
+ * @author sylvain
+ *
+ */
+public class CentralizedCommunicatorTest
+{
+  @Test(timeout = 20000)
+  public void testConcurrentSites()
+  {
+    Table a = NAryRelationTest.pairs("A", "a", "b", 50, 1);
+    Table b = NAryRelationTest.pairs("B", "b", "c", 200, 2);
+    Table c = NAryRelationTest.pairs("C", "c", "d", 20, 3);
+    Set<String> expected = NAryRelationTest.values(
+        ValueTest.collect(QueryPlannerTest.query(a, b, c), false));
+    CentralizedCommunicator cm = QueryPlannerTest.communicator(a, b, c, true);
+    try
+    {
+      for (int round = 0; round < 5; round++)
+      {
+        Relation q = QueryPlannerTest.query(new VariableTable("A"),
+            new VariableTable("B"), new VariableTable("C"));
+        QueryProcessor p = cm.getQueryProcessor(q, "Site 1");
+        p.run();
+        assertEquals(expected, NAryRelationTest.values(ValueTest.collect(p.getResult(), false)));
+      }
+    }
+    finally
+    {
+      cm.shutdown();
+    }
+  }
+}
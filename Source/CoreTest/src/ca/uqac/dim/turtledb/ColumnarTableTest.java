@@ -0,0 +1,111 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests checking that a {@link ColumnarTable} behaves like a
+ * {@link Table}
+ * @author sylvain
+ *
+ */
+public class ColumnarTableTest
+{
+  protected static final Schema SCHEMA = new Schema("T.i:int,T.l:long,T.d:double,T.s,T.t:date");
+
+  /**
+   * Builds random tuples with all types of values, and duplicates
+   */
+  protected static List<Tuple> tuples(int size, long seed)
+  {
+    Random r = new Random(seed);
+    List<Tuple> out = new ArrayList<Tuple>(size);
+    for (int i = 0; i < size; i++)
+    {
+      out.add(new Tuple(SCHEMA, new Value[] {new IntValue(r.nextInt(5)),
+          new LongValue(r.nextInt(3) * 10000000000L), new DoubleValue(r.nextInt(4) / 2d),
+          new Value("s" + r.nextInt(6)), new DateValue(r.nextInt(2) * 86400000L)}));
+    }
+    return out;
+  }
+
+  protected static Table fill(Table t, List<Tuple> tuples)
+  {
+    for (int i = 0; i < tuples.size(); i++)
+    {
+      // Half of the tuples are bulk-loaded
+      if (i % 2 == 0)
+        t.put(tuples.get(i));
+      else
+        t.append(tuples.get(i));
+    }
+    t.seal();
+    return t;
+  }
+
+  @Test
+  public void testSameAsTable()
+  {
+    List<Tuple> tuples = tuples(2000, 1);
+    Table expected = new Table("T");
+    expected.setSchema(SCHEMA);
+    fill(expected, tuples);
+    Table t = fill(new ColumnarTable("T", SCHEMA), tuples);
+    List<Tuple> contents = ValueTest.collect(expected, false);
+    assertEquals(contents, ValueTest.collect(t, false));
+    assertEquals(contents, ValueTest.collect(t, true));
+    assertEquals(contents.size(), t.tupleCount());
+    for (Tuple tup : tuples(100, 2))
+      assertEquals(expected.contains(tup), t.contains(tup));
+  }
+
+  @Test
+  public void testProjection()
+  {
+    List<Tuple> tuples = tuples(2000, 1);
+    Table expected = new Table("T");
+    expected.setSchema(SCHEMA);
+    fill(expected, tuples);
+    Table t = fill(new ColumnarTable("T", SCHEMA), tuples);
+    Schema sch = new Schema("T.s,T.d:double");
+    List<String> result = OperatorTest.assertSameResults(new Projection(sch, t));
+    assertEquals(JoinTest.sorted(ValueTest.collect(new Projection(sch, expected), false)), result);
+  }
+
+  @Test
+  public void testSnapshotAndIndex()
+  {
+    Table t = fill(new ColumnarTable("T", SCHEMA), tuples(500, 1));
+    t.createIndex(new Attribute("T", "s"));
+    Equality e = new Equality(new Attribute("T", "s"), new Value("s9"));
+    Table snapshot = t.getSnapshot();
+    List<Tuple> before = ValueTest.collect(snapshot, false);
+    Tuple added = new Tuple(SCHEMA, new Value[] {new IntValue(9), new LongValue(9),
+        new DoubleValue(9), new Value("s9"), new DateValue(0)});
+    t.put(added);
+    assertEquals(before, ValueTest.collect(snapshot, false));
+    assertTrue(snapshot.lookup(e).isEmpty());
+    assertEquals(before.size() + 1, t.tupleCount());
+    assertEquals(Arrays.asList(added), t.lookup(e));
+  }
+}
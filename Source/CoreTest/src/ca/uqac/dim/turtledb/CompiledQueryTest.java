@@ -0,0 +1,87 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests checking that a {@link CompiledQuery} gives the same
+ * result as the query it is compiled from
+ * @author sylvain
+ *
+ */
+public class CompiledQueryTest
+{
+  @Test
+  public void testJoin()
+  {
+    Table r = NAryRelationTest.pairs("R", "a", "b", 100, 1);
+    Table s = NAryRelationTest.pairs("S", "b", "c", 100, 2);
+    LogicalOr or = new LogicalOr();
+    or.addCondition(new Equality(new Attribute("S", "c"), new IntValue(4)));
+    or.addCondition(new Equality(new Attribute("R", "a"), new IntValue(7)));
+    Renaming ren = new Renaming(new Selection(or, NAryRelationTest.join(r, s)))
+        .rename(new Attribute("R", "a"), new Attribute("T", "x"));
+    Relation q = new Projection(new Schema("T.x:int,S.c:int"), ren);
+    CompiledQuery cq = assertSameResults(q);
+    assertEquals(0, cq.getInterpretedCount());
+    // The compiled query reads the current contents of the tables
+    r.put(new Tuple(r.getSchema(), new Value[] {new IntValue(99), new IntValue(0)}));
+    assertEquals(OperatorTest.assertSameResults(q), JoinTest.sorted(ValueTest.collect(cq.evaluate(), false)));
+  }
+
+  @Test
+  public void testInterpretedOperators()
+  {
+    Union u = new Union();
+    u.addOperand(NAryRelationTest.pairs("R", "a", "b", 100, 1));
+    u.addOperand(NAryRelationTest.pairs("R", "a", "b", 100, 2));
+    Relation q = new Selection(new Equality(new Attribute("R", "b"), new IntValue(3)), u);
+    assertTrue(assertSameResults(q).getInterpretedCount() > 0);
+  }
+
+  @Test
+  public void testKeysOfDifferentTypes()
+  {
+    // The string values must be converted to be compared to the numbers
+    Table r = TableParser.parseFromCsv("R", "a,b\n1,x\n2,y\n03,z");
+    Table s = NAryRelationTest.pairs("S", "a", "c", 50, 1);
+    Join j = new Join(new Equality(new Attribute("R", "a"), new Attribute("S", "a")));
+    j.addOperand(r);
+    j.addOperand(s);
+    assertSameResults(j);
+  }
+
+  /**
+   * Checks that a query gives the same tuples once compiled
+   * @return The compiled query
+   */
+  protected static CompiledQuery assertSameResults(Relation q)
+  {
+    CompiledQuery cq = CompiledQuery.compile(q);
+    assertEquals(q.getSchema().toString(), cq.getSchema().toString());
+    List<String> expected = OperatorTest.assertSameResults(q);
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, JoinTest.sorted(ValueTest.collect(cq.evaluate(), false)));
+    return cq;
+  }
+}
@@ -0,0 +1,209 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the evaluation of queries by an {@link Engine}
+ * @author sylvain
+ *
+ */
+public class EngineTest
+{
+  @Test(timeout = 20000)
+  public void testConcurrentEvaluation() throws InterruptedException
+  {
+    final Engine e = new Engine("Site 1");
+    final Table r = NAryRelationTest.pairs("R", "a", "b", 0, 1);
+    e.putRelation("R", r);
+    final Relation q = new Projection(new Schema("R.a:int"), new VariableTable("R"));
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    Thread[] readers = new Thread[4];
+    for (int i = 0; i < readers.length; i++)
+    {
+      readers[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            // The table only grows: no result can be smaller than the
+            // one before
+            int last = 0;
+            for (int j = 0; j < 200; j++)
+            {
+              int size = e.evaluate(q).tupleCount();
+              assertTrue(size >= last);
+              last = size;
+            }
+          }
+          catch (Throwable t)
+          {
+            failures.add(t);
+          }
+        }
+      };
+      readers[i].start();
+    }
+    for (int i = 0; i < 1000; i++)
+      r.put(new Tuple(r.getSchema(), new Value[] {new IntValue(i), new IntValue(i % 7)}));
+    for (Thread t : readers)
+      t.join();
+    assertEquals(Collections.emptyList(), failures);
+    assertEquals(1000, e.evaluate(q).tupleCount());
+  }
+
+  @Test(timeout = 20000)
+  public void testParallelProcessing()
+  {
+    Engine e = new Engine("Site 1");
+    Table r = NAryRelationTest.pairs("R", "a", "b", 300, 1);
+    e.putRelation("R", r);
+    e.setWorkerCount(4);
+    try
+    {
+      // Fragments sent to another site, computed from the local table
+      Map<String,Set<String>> expected = new HashMap<String,Set<String>>();
+      for (int i = 0; i < 20; i++)
+      {
+        Equality c = new Equality(new Attribute("R", "a"), new IntValue(i));
+        VariableTable f = new VariableTable("&f" + i + ";", "Site 2");
+        f.setRelation(new Selection(c, new VariableTable("R")));
+        expected.put(f.getName(), NAryRelationTest.values(ValueTest.collect(new Selection(c, r), false)));
+        e.addQuery(f);
+      }
+      Set<Relation> results = e.processPendingQueries();
+      assertEquals(20, results.size());
+      for (Relation result : results)
+      {
+        VariableTable f = (VariableTable) result;
+        assertEquals(expected.remove(f.getName()),
+            NAryRelationTest.values(ValueTest.collect(f.m_relation, false)));
+      }
+      assertTrue(expected.isEmpty());
+      assertTrue(e.processPendingQueries().isEmpty());
+    }
+    finally
+    {
+      e.shutdown();
+    }
+  }
+
+  @Test
+  public void testReadiness()
+  {
+    Table a = NAryRelationTest.pairs("A", "a", "b", 30, 1);
+    Table b = NAryRelationTest.pairs("B", "a", "b", 30, 2);
+    Table c = NAryRelationTest.pairs("C", "a", "b", 30, 3);
+    Union local = new Union();
+    local.addOperand(a);
+    local.addOperand(b);
+    local.addOperand(c);
+    Set<String> expected = NAryRelationTest.values(ValueTest.collect(local, false));
+    Engine e = new Engine("Site 2");
+    e.putRelation("B", b);
+    Union u = new Union();
+    u.addOperand(new VariableTable("&a;", "Site 1"));
+    u.addOperand(new VariableTable("B", "Site 2"));
+    u.addOperand(new VariableTable("&c;", "Site 3"));
+    // One fragment arrives before the query that needs it
+    e.addQuery(fragment("&a;", a));
+    assertTrue(e.processPendingQueries().isEmpty());
+    e.addQuery(u);
+    assertTrue(e.processPendingQueries().isEmpty());
+    e.addQuery(fragment("&c;", c));
+    Set<Relation> results = e.processPendingQueries();
+    assertEquals(1, results.size());
+    assertEquals(expected, NAryRelationTest.values(ValueTest.collect(results.iterator().next(), false)));
+    assertTrue(e.processPendingQueries().isEmpty());
+  }
+
+  @Test
+  public void testSamePlanTwice()
+  {
+    Table b = NAryRelationTest.pairs("B", "a", "b", 30, 2);
+    Engine e = new Engine("Site 2");
+    e.putRelation("B", b);
+    Union u = new Union();
+    u.addOperand(new VariableTable("&a;", "Site 1"));
+    u.addOperand(new VariableTable("B", "Site 2"));
+    u.addOperand(new VariableTable("&c;", "Site 3"));
+    Table[] a = new Table[2];
+    Table[] c = new Table[2];
+    Set<Set<String>> expected = new HashSet<Set<String>>();
+    for (int i = 0; i < 2; i++)
+    {
+      a[i] = NAryRelationTest.pairs("A", "a", "b", 30, 10 + i);
+      c[i] = NAryRelationTest.pairs("C", "a", "b", 30, 20 + i);
+      Union local = new Union();
+      local.addOperand(a[i]);
+      local.addOperand(b);
+      local.addOperand(c[i]);
+      expected.add(NAryRelationTest.values(ValueTest.collect(local, false)));
+    }
+    // The fragments of both runs arrive before and after the plans;
+    // each run must get one fragment of each name
+    e.addQuery(fragment("&a;", a[0]));
+    e.addQuery(fragment("&a;", a[1]));
+    e.addQuery(u);
+    e.addQuery(u);
+    e.addQuery(fragment("&c;", c[0]));
+    e.addQuery(fragment("&c;", c[1]));
+    Set<Set<String>> actual = new HashSet<Set<String>>();
+    for (Relation r : e.processPendingQueries())
+      actual.add(NAryRelationTest.values(ValueTest.collect(r, false)));
+    assertEquals(expected, actual);
+    // Nothing is left for a third run
+    e.addQuery(u);
+    assertTrue(e.processPendingQueries().isEmpty());
+  }
+
+  @Test
+  public void testEarlyFragmentLimits()
+  {
+    Engine e = new Engine("Site 2");
+    e.setEarlyFragmentLimits(2, 3600000);
+    Table a = NAryRelationTest.pairs("A", "a", "b", 30, 1);
+    for (int i = 0; i < 3; i++)
+      e.addQuery(fragment("&a;", a));
+    assertEquals(1, e.getDroppedFragmentCount());
+    // Fragments that no plan came for in time are dropped
+    e.setEarlyFragmentLimits(2, 0);
+    assertEquals(3, e.getDroppedFragmentCount());
+    Union u = new Union();
+    u.addOperand(new VariableTable("&a;", "Site 1"));
+    e.addQuery(u);
+    assertTrue(e.processPendingQueries().isEmpty());
+  }
+
+  /**
+   * Builds a fragment sent to site 2
+   */
+  protected static VariableTable fragment(String name, Relation r)
+  {
+    VariableTable f = new VariableTable(name, "Site 2");
+    f.setRelation(r);
+    return f;
+  }
+}
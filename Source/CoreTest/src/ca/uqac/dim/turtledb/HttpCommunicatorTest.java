@@ -0,0 +1,366 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the server of the HTTP communicator
+ * @author sylvain
+ *
+ */
+public class HttpCommunicatorTest
+{
+  /**
+   * Starts the server of a communicator on any free port
+   */
+  protected static HttpCommunicator start(Engine e) throws InterruptedException
+  {
+    HttpCommunicator c = new HttpCommunicator(e, 0);
+    new Thread(c).start();
+    while (c.m_selector == null || c.getPort() == 0)
+      Thread.sleep(10);
+    return c;
+  }
+  
+  /**
+   * Reads the status line of a response, and skips its headers
+   */
+  protected static String readResponse(BufferedReader in) throws IOException
+  {
+    String status = in.readLine();
+    String line;
+    while ((line = in.readLine()) != null && !line.isEmpty())
+      continue;
+    return status;
+  }
+  
+  protected static byte[] fragment(String name, String site) throws IOException
+  {
+    VariableTable f = new VariableTable(name, site);
+    f.setRelation(TableParser.parseFromCsv("T", "a,b\n0,1\n2,3"));
+    return XmlQueryFormatter.toXmlString(f).getBytes("UTF-8");
+  }
+  
+  @Test(timeout = 10000)
+  public void testBodyTooLarge() throws Exception
+  {
+    Engine e = new Engine("Site 1");
+    HttpCommunicator c = start(e);
+    c.setMaxBodySize(1000);
+    try
+    {
+      for (String length : new String[] {"2000000000", "2147483647", "1001"})
+      {
+        Socket s = new Socket("localhost", c.getPort());
+        OutputStream out = s.getOutputStream();
+        out.write(("POST / HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+        assertEquals("HTTP/1.1 413 Payload Too Large", readResponse(in));
+        assertNull(in.readLine()); // Closed
+        s.close();
+      }
+      // A body within the limit is accepted
+      byte[] body = fragment("frag", "Site 1");
+      assertTrue(body.length <= 1000);
+      Socket s = new Socket("localhost", c.getPort());
+      OutputStream out = s.getOutputStream();
+      out.write(("POST / HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+      out.write(body);
+      out.flush();
+      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+      assertEquals("HTTP/1.1 200 OK", readResponse(in));
+      s.close();
+    }
+    finally
+    {
+      c.shutdown();
+    }
+  }
+  
+  @Test(timeout = 10000)
+  public void testHandlerError() throws Exception
+  {
+    Engine e = new Engine("Site 1")
+    {
+      @Override
+      public void addQuery(Collection<Relation> queries)
+      {
+        throw new AssertionError("Failure in the engine");
+      }
+    };
+    HttpCommunicator c = start(e);
+    PrintStream err = System.err;
+    try
+    {
+      System.setErr(new PrintStream(new ByteArrayOutputStream()));
+      byte[] body = fragment("frag", "Site 1");
+      Socket s = new Socket("localhost", c.getPort());
+      OutputStream out = s.getOutputStream();
+      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+      // The connection goes on with the next request
+      for (int i = 0; i < 2; i++)
+      {
+        out.write(("POST / HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+        out.write(body);
+        out.flush();
+        assertEquals("HTTP/1.1 500 Internal Server Error", readResponse(in));
+      }
+      s.close();
+    }
+    finally
+    {
+      System.setErr(err);
+      c.shutdown();
+    }
+  }
+  
+  @Test(timeout = 10000)
+  public void testContentTypes() throws Exception
+  {
+    Engine e = new Engine("Site 1");
+    HttpCommunicator c = start(e);
+    try
+    {
+      byte[] body = fragment("frag", "Site 1");
+      Socket s = new Socket("localhost", c.getPort());
+      OutputStream out = s.getOutputStream();
+      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+      String[] types = {"text/plain", "application/xml; charset=UTF-8", null, "application/atom+xml"};
+      String[] expected = {"HTTP/1.1 415 Unsupported Media Type", "HTTP/1.1 200 OK",
+          "HTTP/1.1 200 OK", "HTTP/1.1 200 OK"};
+      for (int i = 0; i < types.length; i++)
+      {
+        String header = "POST / HTTP/1.1\r\nContent-Length: " + body.length + "\r\n";
+        if (types[i] != null)
+          header += "Content-Type: " + types[i] + "\r\n";
+        out.write((header + "\r\n").getBytes("ISO-8859-1"));
+        out.write(body);
+        out.flush();
+        assertEquals(types[i], expected[i], readResponse(in));
+      }
+      s.close();
+    }
+    finally
+    {
+      c.shutdown();
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testBinaryFallback() throws Exception
+  {
+    HttpConnectionPoolTest.ScriptedServer server = new HttpConnectionPoolTest.ScriptedServer();
+    // A malformed request, then a site that does not accept the
+    // binary form
+    server.setStatusCodes(400, 415);
+    HttpCommunicator c = new HttpCommunicator(new Engine("Site 1"), 0);
+    c.addSiteInfo("Site 2", server.getUrl());
+    VariableTable f = new VariableTable("frag", "Site 2");
+    f.setRelation(NAryRelationTest.pairs("R", "a", "b", 10, 1));
+    PrintStream err = System.err;
+    try
+    {
+      System.setErr(new PrintStream(new ByteArrayOutputStream()));
+      try
+      {
+        c.sendQuery("Site 2", f);
+        fail("The malformed request should be reported");
+      }
+      catch (Communicator.QueryExecutionException e)
+      {
+        // Expected
+      }
+      assertTrue(c.m_siteInfo.get("Site 2").m_binary);
+      c.sendQuery("Site 2", f);
+      assertFalse(c.m_siteInfo.get("Site 2").m_binary);
+      c.sendQuery("Site 2", f);
+    }
+    finally
+    {
+      System.setErr(err);
+      server.close();
+    }
+    List<String> types = server.getContentTypes();
+    assertEquals(4, types.size());
+    assertEquals(BinaryQueryFormatter.CONTENT_TYPE, types.get(0));
+    assertEquals(BinaryQueryFormatter.CONTENT_TYPE, types.get(1));
+    assertTrue(types.get(2).startsWith("application/xml"));
+    assertTrue(types.get(3).startsWith("application/xml"));
+  }
+
+  @Test(timeout = 20000)
+  public void testTwoSites() throws Exception
+  {
+    Table a = TableParser.parseFromCsv("A", "a,b,c\n0,0,0\n1,3,4\n0,1,1\n0,2,3\n1,2,3");
+    Table b = TableParser.parseFromCsv("B", "a,b,c\n0,0,0\n1,3,4\n0,1,1\n0,2,3\n1,2,3\n9,9,9");
+    Union local = new Union();
+    local.addOperand(a);
+    local.addOperand(b);
+    Set<String> expected = NAryRelationTest.values(ValueTest.collect(local, false));
+    Engine site_1 = new Engine("Site 1");
+    site_1.putRelation("A", a);
+    Engine site_2 = new Engine("Site 2");
+    site_2.putRelation("B", b);
+    HttpCommunicator c1 = start(site_1);
+    HttpCommunicator c2 = start(site_2);
+    try
+    {
+      c1.addSiteInfo("Site 2", "http://localhost:" + c2.getPort() + "/");
+      c2.addSiteInfo("Site 1", "http://localhost:" + c1.getPort() + "/");
+      // Each round sends the same fragment names: the results must
+      // not be mixed up between queries
+      for (int round = 0; round < 3; round++)
+      {
+        QueryPlan qp = new QueryPlan();
+        VariableTable alpha = new VariableTable("&alpha;", "Site 2");
+        alpha.setRelation(new VariableTable("A"));
+        qp.put("Site 1", alpha);
+        Union u = new Union();
+        u.addOperand(new VariableTable("&alpha;", "Site 1"));
+        u.addOperand(new VariableTable("B", "Site 2"));
+        qp.put("Site 2", u);
+        QueryProcessor p = c2.getQueryProcessor(qp);
+        p.run();
+        Relation r = p.getResult();
+        assertNotNull(r);
+        assertEquals(expected, NAryRelationTest.values(ValueTest.collect(r, false)));
+      }
+    }
+    finally
+    {
+      c1.shutdown();
+      c2.shutdown();
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testConcurrentRuns() throws Exception
+  {
+    Table a = NAryRelationTest.pairs("A", "a", "b", 40, 1);
+    Table b = NAryRelationTest.pairs("B", "a", "b", 40, 2);
+    Engine site_1 = new Engine("Site 1");
+    site_1.putRelation("A", a);
+    Engine site_2 = new Engine("Site 2");
+    site_2.putRelation("B", b);
+    HttpCommunicator c1 = start(site_1);
+    HttpCommunicator c2 = start(site_2);
+    try
+    {
+      c1.addSiteInfo("Site 2", "http://localhost:" + c2.getPort() + "/");
+      c2.addSiteInfo("Site 1", "http://localhost:" + c1.getPort() + "/");
+      // Plans that use the same fragment name for different
+      // intermediate results, all in flight at the same time
+      List<Set<String>> expected = new ArrayList<Set<String>>();
+      List<Future<Relation>> results = new ArrayList<Future<Relation>>();
+      for (int i = 0; i < 6; i++)
+      {
+        Relation filtered = new Selection(new Equality(new Attribute("A", "a"), new IntValue(i)), a);
+        Union local = new Union();
+        local.addOperand(filtered);
+        local.addOperand(b);
+        expected.add(NAryRelationTest.values(ValueTest.collect(local, false)));
+        QueryPlan qp = new QueryPlan();
+        VariableTable alpha = new VariableTable("&alpha;", "Site 2");
+        alpha.setRelation(new Selection(new Equality(new Attribute("A", "a"), new IntValue(i)),
+            new VariableTable("A")));
+        qp.put("Site 1", alpha);
+        Union u = new Union();
+        u.addOperand(new VariableTable("&alpha;", "Site 1"));
+        u.addOperand(new VariableTable("B", "Site 2"));
+        qp.put("Site 2", u);
+        HttpCommunicator.HttpQueryProcessor p = (HttpCommunicator.HttpQueryProcessor) c2.getQueryProcessor(qp);
+        // The fragment is renamed after the query
+        String xml = XmlQueryFormatter.toXmlString(p.getReturningPlan().get("Site 1").iterator().next());
+        assertTrue(xml.contains("@" + p.getQueryId()));
+        results.add(p.submit());
+      }
+      for (int i = 0; i < results.size(); i++)
+        assertEquals(expected.get(i), NAryRelationTest.values(ValueTest.collect(results.get(i).get(), false)));
+      // No fragment nor plan is left behind
+      for (Engine e : new Engine[] {site_1, site_2})
+      {
+        synchronized (e.m_waitingQueries)
+        {
+          assertTrue(e.m_waitingQueries.isEmpty());
+          assertTrue(e.m_earlyFragments.isEmpty());
+        }
+      }
+    }
+    finally
+    {
+      c1.shutdown();
+      c2.shutdown();
+    }
+  }
+
+  @Test(timeout = 20000)
+  public void testThreeSites() throws Exception
+  {
+    // The plan is dispatched to the three sites at once, and two of
+    // them send a fragment to the site that asked for the query
+    Table[] tables = new Table[3];
+    Engine[] engines = new Engine[3];
+    HttpCommunicator[] comms = new HttpCommunicator[3];
+    Union local = new Union();
+    for (int i = 0; i < 3; i++)
+    {
+      tables[i] = NAryRelationTest.pairs("T" + i, "a", "b", 40, i);
+      local.addOperand(tables[i]);
+      engines[i] = new Engine("Site " + (i + 1));
+      engines[i].putRelation("T" + i, tables[i]);
+      comms[i] = start(engines[i]);
+    }
+    Set<String> expected = NAryRelationTest.values(ValueTest.collect(local, false));
+    try
+    {
+      for (int i = 0; i < 3; i++)
+      {
+        for (int j = 0; j < 3; j++)
+          comms[i].addSiteInfo("Site " + (j + 1), "http://localhost:" + comms[j].getPort() + "/");
+      }
+      QueryPlan qp = new QueryPlan();
+      Union u = new Union();
+      u.addOperand(new VariableTable("T1", "Site 2"));
+      for (int i : new int[] {0, 2})
+      {
+        VariableTable f = new VariableTable("&f" + i + ";", "Site 2");
+        f.setRelation(new VariableTable("T" + i));
+        qp.put("Site " + (i + 1), f);
+        u.addOperand(new VariableTable("&f" + i + ";", "Site " + (i + 1)));
+      }
+      qp.put("Site 2", u);
+      QueryProcessor p = comms[1].getQueryProcessor(qp);
+      p.run();
+      assertEquals(expected, NAryRelationTest.values(ValueTest.collect(p.getResult(), false)));
+    }
+    finally
+    {
+      for (HttpCommunicator c : comms)
+        c.shutdown();
+    }
+  }
+}
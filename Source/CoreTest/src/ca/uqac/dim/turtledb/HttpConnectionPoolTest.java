@@ -0,0 +1,264 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link HttpConnectionPool}
+ * @author sylvain
+ *
+ */
+public class HttpConnectionPoolTest
+{
+  /**
+   * The server answers the request and keeps the connection open
+   */
+  protected static final int RESPOND = 0;
+
+  /**
+   * The server answers the request, then closes the connection
+   * without telling the client
+   */
+  protected static final int RESPOND_AND_CLOSE = 1;
+
+  /**
+   * The server reads the request, then closes the connection without
+   * answering it
+   */
+  protected static final int DROP = 2;
+
+  /**
+   * A server that handles the requests it receives according to a
+   * script, and records them
+   */
+  protected static class ScriptedServer implements Runnable
+  {
+    protected final ServerSocket m_server;
+
+    protected final int[] m_script;
+
+    protected int m_requests = 0;
+
+    protected boolean m_closed = false;
+
+    /**
+     * The status codes of the responses, 200 for the requests beyond
+     */
+    protected int[] m_codes = new int[0];
+
+    /**
+     * The content type of each request received
+     */
+    protected final List<String> m_contentTypes = new ArrayList<String>();
+
+    public ScriptedServer(int ... script) throws IOException
+    {
+      super();
+      m_server = new ServerSocket(0);
+      m_script = script;
+      new Thread(this).start();
+    }
+
+    public String getUrl()
+    {
+      return "http://localhost:" + m_server.getLocalPort() + "/";
+    }
+
+    public synchronized int getRequests()
+    {
+      return m_requests;
+    }
+
+    public synchronized boolean isClosed()
+    {
+      return m_closed;
+    }
+
+    public synchronized void setStatusCodes(int ... codes)
+    {
+      m_codes = codes;
+    }
+
+    public synchronized List<String> getContentTypes()
+    {
+      return new ArrayList<String>(m_contentTypes);
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        while (true)
+        {
+          Socket s = m_server.accept();
+          serve(s);
+        }
+      }
+      catch (IOException e)
+      {
+        // The server socket is closed
+      }
+    }
+
+    protected void serve(Socket s) throws IOException
+    {
+      InputStream in = new BufferedInputStream(s.getInputStream());
+      OutputStream out = s.getOutputStream();
+      try
+      {
+        while (readRequest(in))
+        {
+          int action, code;
+          synchronized (this)
+          {
+            action = m_requests < m_script.length ? m_script[m_requests] : RESPOND;
+            code = m_requests < m_codes.length ? m_codes[m_requests] : 200;
+            m_requests++;
+          }
+          if (action == DROP)
+            return;
+          out.write(("HTTP/1.1 " + code + " Status\r\nContent-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+          out.flush();
+          if (action == RESPOND_AND_CLOSE)
+            return;
+        }
+      }
+      finally
+      {
+        s.close();
+        synchronized (this)
+        {
+          m_closed = true;
+        }
+      }
+    }
+
+    /**
+     * Reads a request entirely
+     * @return False if the connection is closed
+     */
+    protected boolean readRequest(InputStream in) throws IOException
+    {
+      int length = 0;
+      String content_type = null;
+      String line;
+      while ((line = readLine(in)) != null && !line.isEmpty())
+      {
+        if (line.toLowerCase().startsWith("content-length:"))
+          length = Integer.parseInt(line.substring(15).trim());
+        if (line.toLowerCase().startsWith("content-type:"))
+          content_type = line.substring(13).trim();
+      }
+      if (line == null)
+        return false;
+      synchronized (this)
+      {
+        m_contentTypes.add(content_type);
+      }
+      for (int i = 0; i < length; i++)
+      {
+        if (in.read() < 0)
+          return false;
+      }
+      return true;
+    }
+
+    protected static String readLine(InputStream in) throws IOException
+    {
+      StringBuilder out = new StringBuilder();
+      int c;
+      while ((c = in.read()) >= 0 && c != '\n')
+      {
+        if (c != '\r')
+          out.append((char) c);
+      }
+      if (c < 0 && out.length() == 0)
+        return null;
+      return out.toString();
+    }
+
+    public void close() throws IOException
+    {
+      m_server.close();
+    }
+  }
+
+  protected static byte[] payload() throws UnsupportedEncodingException
+  {
+    return "<fragment/>".getBytes("UTF-8");
+  }
+
+  @Test
+  public void testReuse() throws IOException
+  {
+    ScriptedServer server = new ScriptedServer();
+    HttpConnectionPool pool = new HttpConnectionPool(server.getUrl());
+    for (int i = 0; i < 3; i++)
+      assertEquals(200, pool.post("application/xml", payload()));
+    assertEquals(3, server.getRequests());
+    assertEquals(1, pool.getMetrics().getConnectionsOpened());
+    pool.close();
+    server.close();
+  }
+
+  @Test
+  public void testStaleConnection() throws IOException, InterruptedException
+  {
+    ScriptedServer server = new ScriptedServer(RESPOND_AND_CLOSE);
+    HttpConnectionPool pool = new HttpConnectionPool(server.getUrl());
+    assertEquals(200, pool.post("application/xml", payload()));
+    while (!server.isClosed())
+      Thread.sleep(10);
+    // The idle connection is closed: the request goes on a new one
+    assertEquals(200, pool.post("application/xml", payload()));
+    assertEquals(2, server.getRequests());
+    assertEquals(1, pool.getMetrics().getStaleConnections());
+    pool.close();
+    server.close();
+  }
+
+  @Test
+  public void testNoResendAfterDelivery() throws IOException
+  {
+    ScriptedServer server = new ScriptedServer(RESPOND, DROP);
+    HttpConnectionPool pool = new HttpConnectionPool(server.getUrl());
+    assertEquals(200, pool.post("application/xml", payload()));
+    try
+    {
+      // The server received the request on the reused connection: it
+      // must not receive it a second time
+      pool.post("application/xml", payload());
+      fail("The lost response should be reported");
+    }
+    catch (IOException e)
+    {
+      // Expected
+    }
+    assertEquals(2, server.getRequests());
+    pool.close();
+    server.close();
+  }
+}
@@ -0,0 +1,124 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the join algorithms. Every algorithm, in both
+ * evaluation modes, must produce the same tuples as the condition
+ * evaluated on the product of both operands.
+ * @author sylvain
+ *
+ */
+public class JoinTest
+{
+  @Test
+  public void testStrategies()
+  {
+    Random r = new Random(1);
+    Table crew = new Table("Crew");
+    crew.setSchema(new Schema("Crew.Astronaut,Crew.Mission:int"));
+    Table astronaut = new Table("Astronaut");
+    astronaut.setSchema(new Schema("Astronaut.Age:int,Astronaut.Name"));
+    for (int i = 0; i < 300; i++)
+    {
+      crew.put(new Tuple(crew.getSchema(), new Value[] {
+          new Value("a" + r.nextInt(150)), new IntValue(i % 20)}));
+      astronaut.put(new Tuple(astronaut.getSchema(), new Value[] {
+          new IntValue(i % 60), new Value("a" + i)}));
+    }
+    // On an unsorted key, in both orders of the operands
+    assertSameResults(new Equality(new Attribute("Crew", "Astronaut"),
+        new Attribute("Astronaut", "Name")), crew, astronaut);
+    assertSameResults(new Equality(new Attribute("Astronaut", "Name"),
+        new Attribute("Crew", "Astronaut")), astronaut, crew);
+    // On a sorted key, with a residual condition
+    Condition c = new LogicalAnd();
+    ((LogicalAnd) c).addCondition(new Equality(new Attribute("Crew", "Mission"),
+        new Attribute("Astronaut", "Age")));
+    ((LogicalAnd) c).addCondition(new Equality(new Attribute("Crew", "Astronaut"),
+        new Value("a3")));
+    assertSameResults(c, crew, astronaut);
+  }
+  
+  @Test
+  public void testKeysOfDifferentTypes()
+  {
+    Table a = new Table("A");
+    a.setSchema(new Schema("A.k:int,A.x"));
+    Table b = new Table("B");
+    b.setSchema(new Schema("B.k,B.y"));
+    Table c = new Table("C");
+    c.setSchema(new Schema("C.k:double,C.z"));
+    for (int i = 0; i < 100; i++)
+    {
+      a.put(new Tuple(a.getSchema(), new Value[] {new IntValue(i), new Value("x" + i)}));
+      // Strings that sort in another order than the numbers they spell
+      b.put(new Tuple(b.getSchema(), new Value[] {
+          new Value(Integer.toString(i % 37)), new Value("y" + i)}));
+      c.put(new Tuple(c.getSchema(), new Value[] {
+          new DoubleValue((i % 50) / 2d), new Value("z" + i)}));
+    }
+    Condition ab = new Equality(new Attribute("A", "k"), new Attribute("B", "k"));
+    assertEquals(100, assertSameResults(ab, a, b));
+    assertEquals(100, assertSameResults(ab, b, a));
+    Condition ac = new Equality(new Attribute("A", "k"), new Attribute("C", "k"));
+    assertEquals(50, assertSameResults(ac, a, c));
+    Condition bc = new Equality(new Attribute("B", "k"), new Attribute("C", "k"));
+    assertEquals(150, assertSameResults(bc, b, c));
+  }
+  
+  /**
+   * Checks that all join algorithms produce the same tuples as
+   * the condition evaluated on the product of both operands
+   * @return The number of tuples
+   */
+  protected static int assertSameResults(Condition c, Relation left, Relation right)
+  {
+    Selection s = new Selection(c, ValueTest.product(left, right));
+    List<String> expected = sorted(ValueTest.collect(s, false));
+    for (Join.Strategy st : Join.Strategy.values())
+    {
+      for (boolean stream : new boolean[] {true, false})
+      {
+        Join j = new Join(c);
+        j.addOperand(left);
+        j.addOperand(right);
+        j.setStrategy(st);
+        j.setSortBufferSize(16); // The sorts use the disk
+        assertEquals(st + (stream ? " stream" : " cache"), expected,
+            sorted(ValueTest.collect(j, stream)));
+      }
+    }
+    return expected.size();
+  }
+  
+  protected static List<String> sorted(List<Tuple> tuples)
+  {
+    List<String> out = new ArrayList<String>(tuples.size());
+    for (Tuple t : tuples)
+      out.add(t.toString());
+    Collections.sort(out);
+    return out;
+  }
+}
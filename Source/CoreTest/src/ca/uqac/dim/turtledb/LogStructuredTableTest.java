@@ -0,0 +1,77 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for log-structured tables
+ * @author sylvain
+ *
+ */
+public class LogStructuredTableTest
+{
+  protected static LogStructuredTable newTable(int size)
+  {
+    Schema sch = new Schema("T", "a:int,b:int");
+    LogStructuredTable tab = new LogStructuredTable("T", sch, 16);
+    tab.setBackgroundCompaction(false);
+    for (int i = size - 1; i >= 0; i--)
+      tab.put(new Tuple(sch, new Value[] {new IntValue(i % 7), new IntValue(i)}));
+    return tab;
+  }
+  
+  @Test
+  public void testSortedAndDistinct()
+  {
+    LogStructuredTable tab = newTable(500);
+    for (int i = 0; i < 100; i++)
+      tab.put(new Tuple(tab.getSchema(), new Value[] {new IntValue(i % 7), new IntValue(i)}));
+    assertEquals(500, tab.tupleCount());
+    List<Tuple> tuples = ValueTest.collect(tab, true);
+    assertEquals(500, tuples.size());
+    for (int i = 1; i < tuples.size(); i++)
+      assertTrue(tuples.get(i - 1).compareTo(tuples.get(i)) < 0);
+  }
+  
+  @Test
+  public void testSnapshotKeepsIndexes()
+  {
+    LogStructuredTable tab = newTable(500);
+    tab.createIndex(new Attribute("T", "b"));
+    int[] positions = {1};
+    Table snapshot = tab.getSnapshot();
+    assertNotNull(snapshot.getIndex(positions));
+    Condition c = new Equality(new Attribute("T", "b"), new Value("600"));
+    assertTrue(snapshot.lookup(c).isEmpty());
+    // The table's index is updated, not the snapshot's
+    tab.put(new Tuple(tab.getSchema(), new Value[] {new IntValue(1), new IntValue(600)}));
+    assertEquals(1, tab.lookup(c).size());
+    assertTrue(snapshot.lookup(c).isEmpty());
+    assertEquals(1, tab.getSnapshot().lookup(c).size());
+    assertEquals(500, snapshot.tupleCount());
+    // A selection on the snapshot goes through the index
+    Selection s = new Selection(new Equality(new Attribute("T", "b"), new Value("42")), snapshot);
+    assertNotNull(s.indexLookup());
+    assertEquals(1, ValueTest.collect(s, true).size());
+  }
+}
@@ -0,0 +1,131 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the union and intersection of relations whose
+ * stream iterators do not produce their tuples in sorted order
+ * @author sylvain
+ *
+ */
+public class NAryRelationTest
+{
+  /**
+   * Builds a table of pairs of integers
+   */
+  protected static Table pairs(String name, String att_1, String att_2, int size, long seed)
+  {
+    Table t = new Table(name);
+    t.setSchema(new Schema(name + "." + att_1 + ":int," + name + "." + att_2 + ":int"));
+    Random r = new Random(seed);
+    for (int i = 0; i < size; i++)
+    {
+      t.put(new Tuple(t.getSchema(), new Value[] {
+          new IntValue(r.nextInt(20)), new IntValue(r.nextInt(20))}));
+    }
+    return t;
+  }
+  
+  /**
+   * Joins two tables on their attribute b, with a hash join
+   */
+  protected static Join join(Table left, Table right)
+  {
+    Join j = new Join(new Equality(new Attribute(left.getName(), "b"),
+        new Attribute(right.getName(), "b")));
+    j.addOperand(left);
+    j.addOperand(right);
+    j.setStrategy(Join.Strategy.HASH);
+    return j;
+  }
+  
+  @Test
+  public void testIntersectionOfJoins()
+  {
+    // The hash tables are built from the left operands, which are
+    // smaller: the joins produce their tuples in the order of
+    // the right operands, which is not sorted on the first attributes
+    Table r1 = pairs("R1", "a", "b", 30, 1);
+    Table r2 = pairs("R2", "b", "c", 90, 2);
+    Table r3 = pairs("R3", "a", "b", 30, 3);
+    Table r4 = pairs("R4", "a", "b", 40, 1);
+    Join j1 = join(r1, r2);
+    Join j2 = join(r3, r2);
+    Join j3 = join(r4, r2);
+    assertFalse(j1.isSortedOn(new int[] {0, 1, 2, 3}));
+    Set<String> expected = values(ValueTest.collect(j1, false));
+    expected.retainAll(values(ValueTest.collect(j2, false)));
+    assertFalse(expected.isEmpty());
+    Intersection in = new Intersection();
+    in.addOperand(j1);
+    in.addOperand(j2);
+    assertEquals(expected, values(ValueTest.collect(in, false)));
+    assertEquals(expected, values(ValueTest.collect(in, true)));
+    expected.retainAll(values(ValueTest.collect(j3, false)));
+    assertFalse(expected.isEmpty());
+    in.addOperand(j3);
+    assertEquals(expected, values(ValueTest.collect(in, false)));
+    assertEquals(expected, values(ValueTest.collect(in, true)));
+  }
+  
+  @Test
+  public void testUnionOfJoins()
+  {
+    Table r1 = pairs("R1", "a", "b", 30, 1);
+    Table r2 = pairs("R2", "b", "c", 90, 2);
+    Table r3 = pairs("R3", "a", "b", 30, 3);
+    Join j1 = join(r1, r2);
+    Join j2 = join(r3, r2);
+    Set<String> expected = values(ValueTest.collect(j1, false));
+    expected.addAll(values(ValueTest.collect(j2, false)));
+    Union u = new Union();
+    u.addOperand(j1);
+    u.addOperand(j2);
+    List<Tuple> cache = ValueTest.collect(u, false);
+    List<Tuple> stream = ValueTest.collect(u, true);
+    assertEquals(expected, values(cache));
+    assertEquals(expected, values(stream));
+    // No duplicates, and the stream is sorted
+    assertEquals(expected.size(), stream.size());
+    for (int i = 1; i < stream.size(); i++)
+      assertTrue(stream.get(i - 1).compareTo(stream.get(i)) < 0);
+  }
+  
+  /**
+   * Gives the values of tuples, regardless of the names of
+   * their attributes
+   */
+  protected static Set<String> values(List<Tuple> tuples)
+  {
+    Set<String> out = new TreeSet<String>();
+    for (Tuple t : tuples)
+    {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < t.size(); i++)
+        sb.append(t.get(i)).append(",");
+      out.add(sb.toString());
+    }
+    return out;
+  }
+}
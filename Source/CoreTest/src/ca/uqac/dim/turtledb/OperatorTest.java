@@ -0,0 +1,184 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests checking that each operator gives the same tuples in
+ * streaming and in cache mode, and that streams hold no duplicates
+ * @author sylvain
+ *
+ */
+public class OperatorTest
+{
+  @Test
+  public void testSelection()
+  {
+    Table r = NAryRelationTest.pairs("R", "a", "b", 200, 1);
+    LogicalOr c = new LogicalOr();
+    c.addCondition(new Equality(new Attribute("R", "a"), new IntValue(3)));
+    c.addCondition(new Equality(new Attribute("R", "b"), new IntValue(5)));
+    assertFalse(assertSameResults(new Selection(c, r)).isEmpty());
+  }
+
+  @Test
+  public void testProjection()
+  {
+    // The table has many tuples with the same first attribute
+    Table r = NAryRelationTest.pairs("R", "a", "b", 200, 1);
+    List<String> tuples = assertSameResults(new Projection(new Schema("R.a:int"), r));
+    assertEquals(20, tuples.size());
+  }
+
+  @Test
+  public void testRenaming()
+  {
+    Table r = NAryRelationTest.pairs("R", "a", "b", 200, 1);
+    Renaming ren = new Renaming(r).rename(new Attribute("R", "a"), new Attribute("S", "x"));
+    assertEquals(ValueTest.collect(r, false).size(), assertSameResults(ren).size());
+  }
+
+  @Test
+  public void testUnion()
+  {
+    Union u = new Union();
+    u.addOperand(NAryRelationTest.pairs("R", "a", "b", 200, 1));
+    u.addOperand(NAryRelationTest.pairs("R", "a", "b", 200, 2));
+    assertFalse(assertSameResults(u).isEmpty());
+  }
+
+  @Test
+  public void testIntersection()
+  {
+    Intersection in = new Intersection();
+    in.addOperand(NAryRelationTest.pairs("R", "a", "b", 200, 1));
+    in.addOperand(NAryRelationTest.pairs("R", "a", "b", 200, 2));
+    assertFalse(assertSameResults(in).isEmpty());
+  }
+
+  @Test
+  public void testProduct()
+  {
+    Table r = NAryRelationTest.pairs("R", "a", "b", 20, 1);
+    Table s = NAryRelationTest.pairs("S", "c", "d", 20, 2);
+    assertEquals(ValueTest.collect(r, false).size() * ValueTest.collect(s, false).size(),
+        assertSameResults(ValueTest.product(r, s)).size());
+  }
+
+  @Test
+  public void testJoin()
+  {
+    Table r = NAryRelationTest.pairs("R", "a", "b", 100, 1);
+    Table s = NAryRelationTest.pairs("S", "b", "c", 100, 2);
+    for (Join.Strategy st : Join.Strategy.values())
+    {
+      Join j = NAryRelationTest.join(r, s);
+      j.setStrategy(st);
+      assertFalse(assertSameResults(j).isEmpty());
+    }
+  }
+
+  @Test
+  public void testTree()
+  {
+    // A projection of a selection over a join, where the projection
+    // produces duplicates
+    Table r = NAryRelationTest.pairs("R", "a", "b", 100, 1);
+    Table s = NAryRelationTest.pairs("S", "b", "c", 100, 2);
+    Selection sel = new Selection(new Equality(new Attribute("S", "c"), new IntValue(4)),
+        NAryRelationTest.join(r, s));
+    assertFalse(assertSameResults(new Projection(new Schema("R.a:int"), sel)).isEmpty());
+  }
+
+  @Test
+  public void testMixedIteration()
+  {
+    // Tuples and batches can be taken from the same iterator
+    Table r = NAryRelationTest.pairs("R", "a", "b", 3000, 1);
+    LogicalNot not = new LogicalNot();
+    not.addCondition(new Equality(new Attribute("R", "a"), new IntValue(3)));
+    Selection s = new Selection(not, r);
+    for (boolean stream : new boolean[] {true, false})
+    {
+      List<Tuple> expected = ValueTest.collect(s, stream);
+      List<Tuple> actual = new ArrayList<Tuple>();
+      RelationIterator it = s.iterator();
+      boolean batch = false;
+      while (true)
+      {
+        if (batch)
+        {
+          TupleBatch b = it.nextBatch();
+          if (b == null)
+            break;
+          for (int i = 0; i < b.size(); i++)
+            actual.add(b.get(i));
+        }
+        else
+        {
+          if (!it.hasNext())
+            break;
+          actual.add(it.next());
+        }
+        batch = !batch;
+      }
+      assertEquals(expected, actual);
+    }
+  }
+
+  /**
+   * Checks that a relation gives the same tuples in streaming and in
+   * cache mode, whether they are enumerated one by one or in batches,
+   * and that there are no duplicates
+   * @return The tuples of the relation, as sorted strings
+   */
+  protected static List<String> assertSameResults(Relation r)
+  {
+    List<String> expected = JoinTest.sorted(ValueTest.collect(r, false));
+    assertEquals(new HashSet<String>(expected).size(), expected.size());
+    assertEquals("stream", expected, JoinTest.sorted(ValueTest.collect(r, true)));
+    for (boolean stream : new boolean[] {true, false})
+    {
+      assertEquals(stream ? "stream batches" : "cache batches", expected,
+          JoinTest.sorted(collectBatches(r, stream)));
+    }
+    return expected;
+  }
+
+  /**
+   * Enumerates the tuples of a relation by batches
+   */
+  protected static List<Tuple> collectBatches(Relation r, boolean stream)
+  {
+    r.setStreamingMode(stream);
+    List<Tuple> out = new ArrayList<Tuple>();
+    RelationIterator it = r.iterator();
+    TupleBatch b;
+    while ((b = it.nextBatch()) != null)
+    {
+      for (int i = 0; i < b.size(); i++)
+        out.add(b.get(i));
+    }
+    return out;
+  }
+}
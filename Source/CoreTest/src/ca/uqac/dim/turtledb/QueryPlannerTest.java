@@ -0,0 +1,95 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link QueryPlanner}, checking that the plans it
+ * builds give the same results as a local evaluation of the query
+ * @author sylvain
+ *
+ */
+public class QueryPlannerTest
+{
+  /**
+   * Builds a query joining three relations, with a selection and
+   * a projection
+   */
+  protected static Relation query(Relation a, Relation b, Relation c)
+  {
+    Join j1 = new Join(new Equality(new Attribute("A", "b"), new Attribute("B", "b")));
+    j1.addOperand(a);
+    j1.addOperand(b);
+    Join j2 = new Join(new Equality(new Attribute("B", "c"), new Attribute("C", "c")));
+    j2.addOperand(j1);
+    j2.addOperand(c);
+    Selection s = new Selection(new Equality(new Attribute("C", "d"), new IntValue(4)), j2);
+    return new Projection(new Schema("A.a:int,C.d:int"), s);
+  }
+
+  /**
+   * Creates three sites, each holding one of the tables of the query
+   */
+  protected static CentralizedCommunicator communicator(Table a, Table b, Table c, boolean concurrent)
+  {
+    CentralizedCommunicator cm = new CentralizedCommunicator(concurrent);
+    Table[] tables = {a, b, c};
+    for (int i = 0; i < tables.length; i++)
+    {
+      Engine e = new Engine("Site " + (i + 1));
+      e.putRelation(tables[i].getName(), tables[i]);
+      cm.addSite(e);
+    }
+    return cm;
+  }
+
+  @Test
+  public void testPlan()
+  {
+    Table a = NAryRelationTest.pairs("A", "a", "b", 50, 1);
+    Table b = NAryRelationTest.pairs("B", "b", "c", 200, 2);
+    Table c = NAryRelationTest.pairs("C", "c", "d", 20, 3);
+    Set<String> expected = NAryRelationTest.values(ValueTest.collect(query(a, b, c), false));
+    assertFalse(expected.isEmpty());
+    CentralizedCommunicator cm = communicator(a, b, c, false);
+    Relation q = query(new VariableTable("A"), new VariableTable("B"), new VariableTable("C"));
+    QueryPlan qp = cm.getSite("Site 1").getQueryPlan(q);
+    assertNotNull(qp);
+    // Each site evaluates a part of the query
+    assertEquals(3, qp.size());
+    QueryProcessor p = cm.getQueryProcessor(qp);
+    p.run();
+    assertEquals(expected, NAryRelationTest.values(ValueTest.collect(p.getResult(), false)));
+  }
+
+  @Test
+  public void testUnknownTable()
+  {
+    Table a = NAryRelationTest.pairs("A", "a", "b", 50, 1);
+    Table b = NAryRelationTest.pairs("B", "b", "c", 200, 2);
+    Table c = NAryRelationTest.pairs("C", "c", "d", 20, 3);
+    CentralizedCommunicator cm = communicator(a, b, c, false);
+    Relation q = query(new VariableTable("A"), new VariableTable("B"), new VariableTable("D"));
+    assertNull(cm.getSite("Site 1").getQueryPlan(q));
+  }
+}
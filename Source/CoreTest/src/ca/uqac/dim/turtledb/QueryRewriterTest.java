@@ -0,0 +1,94 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link QueryRewriter}
+ * @author sylvain
+ *
+ */
+public class QueryRewriterTest
+{
+  @Test
+  public void testSelectionOverProduct()
+  {
+    Table r = NAryRelationTest.pairs("R", "a", "b", 100, 1);
+    Table s = NAryRelationTest.pairs("S", "b", "c", 100, 2);
+    LogicalAnd c = new LogicalAnd();
+    c.addCondition(new Equality(new Attribute("R", "a"), new IntValue(3)));
+    c.addCondition(new Equality(new Attribute("S", "c"), new IntValue(5)));
+    c.addCondition(new Equality(new Attribute("R", "b"), new Attribute("S", "b")));
+    Relation q = new Projection(new Schema("R.a:int"),
+        new Selection(c, ValueTest.product(r, s)));
+    Relation w = assertSameResults(q);
+    // The selections are below a join, which replaces the product
+    String xml = XmlQueryFormatter.toXmlString(w);
+    assertFalse(xml.contains("<product>"));
+    assertTrue(xml.indexOf("<join>") < xml.indexOf("<selection>"));
+  }
+
+  @Test
+  public void testSelectionOverUnion()
+  {
+    Union u = new Union();
+    u.addOperand(NAryRelationTest.pairs("R", "a", "b", 100, 1));
+    u.addOperand(NAryRelationTest.pairs("R", "a", "b", 100, 2));
+    Renaming ren = new Renaming(u).rename(new Attribute("R", "a"), new Attribute("R", "x"));
+    Relation q = new Selection(new Equality(new Attribute("R", "x"), new IntValue(3)), ren);
+    Relation w = assertSameResults(q);
+    String xml = XmlQueryFormatter.toXmlString(w);
+    assertTrue(xml.indexOf("<union>") < xml.indexOf("<selection>"));
+  }
+
+  @Test
+  public void testJoinCondition()
+  {
+    Table r = NAryRelationTest.pairs("R", "a", "b", 100, 1);
+    Table s = NAryRelationTest.pairs("S", "b", "c", 100, 2);
+    LogicalAnd c = new LogicalAnd();
+    c.addCondition(new Equality(new Attribute("R", "b"), new Attribute("S", "b")));
+    c.addCondition(new Equality(new Attribute("S", "c"), new IntValue(7)));
+    Join j = new Join(c);
+    j.addOperand(r);
+    j.addOperand(s);
+    Relation w = assertSameResults(j);
+    assertTrue(XmlQueryFormatter.toXmlString(w).contains("<selection>"));
+  }
+
+  /**
+   * Checks that a query and its rewritten form give the same tuples,
+   * and that the query is left untouched
+   * @return The rewritten query
+   */
+  protected static Relation assertSameResults(Relation q)
+  {
+    String before = XmlQueryFormatter.toXmlString(q);
+    Relation w = QueryRewriter.rewrite(q);
+    assertEquals(before, XmlQueryFormatter.toXmlString(q));
+    List<String> expected = OperatorTest.assertSameResults(q);
+    assertFalse(expected.isEmpty());
+    assertEquals(expected, OperatorTest.assertSameResults(w));
+    return w;
+  }
+}
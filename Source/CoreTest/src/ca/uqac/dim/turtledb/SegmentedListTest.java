@@ -0,0 +1,82 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the copies of segmented lists
+ * @author sylvain
+ *
+ */
+public class SegmentedListTest
+{
+  @Test
+  public void testInsertions()
+  {
+    Random r = new Random(6);
+    SegmentedList<Integer> list = new SegmentedList<Integer>();
+    List<Integer> expected = new ArrayList<Integer>();
+    for (int i = 0; i < 10000; i++)
+    {
+      // Elements are added at the end, or in the first segments
+      int index = i % 3 == 0 ? r.nextInt(expected.size() / 4 + 1) : expected.size();
+      list.add(index, i);
+      expected.add(index, i);
+    }
+    assertEquals(expected, list);
+    assertEquals(expected, new ArrayList<Integer>(list));
+    assertEquals(expected.get(7777), list.get(7777));
+  }
+  
+  @Test
+  public void testCopies()
+  {
+    Random r = new Random(7);
+    SegmentedList<Integer> list = new SegmentedList<Integer>();
+    List<Integer> expected = new ArrayList<Integer>();
+    List<List<Integer>> copies = new ArrayList<List<Integer>>();
+    List<List<Integer>> contents = new ArrayList<List<Integer>>();
+    for (int i = 0; i < 5000; i++)
+    {
+      if (i % 500 == 0)
+      {
+        // The original list is kept, and the copy is modified
+        copies.add(list);
+        contents.add(new ArrayList<Integer>(expected));
+        list = list.copy();
+      }
+      int index = r.nextInt(expected.size() + 1);
+      list.add(index, i);
+      expected.add(index, i);
+      if (i % 7 == 0)
+      {
+        index = r.nextInt(expected.size());
+        list.set(index, -i);
+        expected.set(index, -i);
+      }
+    }
+    assertEquals(expected, list);
+    for (int i = 0; i < copies.size(); i++)
+      assertEquals(contents.get(i), copies.get(i));
+  }
+}
@@ -0,0 +1,120 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for tables that are written to disk
+ * @author sylvain
+ *
+ */
+public class SpillableTableTest
+{
+  /**
+   * Builds a table that does not fit in its budget
+   */
+  protected static SpillableTable spilledTable(MemoryBudget budget, int size)
+  {
+    Schema sch = new Schema("T.a:int,T.b");
+    SpillableTable tab = new SpillableTable(sch, budget);
+    // Appended in decreasing order, with duplicates
+    for (int i = size - 1; i >= 0; i--)
+    {
+      tab.append(new Tuple(sch, new Value[] {new IntValue(i / 2), new Value("b" + (i % 2))}));
+      tab.append(new Tuple(sch, new Value[] {new IntValue(i / 2), new Value("b" + (i % 2))}));
+    }
+    return tab;
+  }
+  
+  @Test
+  public void testSpill()
+  {
+    MemoryBudget budget = new MemoryBudget(1000);
+    SpillableTable tab = spilledTable(budget, 5000);
+    assertTrue(tab.isSpilled());
+    assertEquals(5000, tab.tupleCount());
+    Iterator<Tuple> it = tab.tupleIterator();
+    Tuple last = null;
+    while (it.hasNext())
+    {
+      Tuple t = it.next();
+      if (last != null)
+        assertTrue(last.compareTo(t) < 0);
+      last = t;
+    }
+    assertTrue(tab.contains(last));
+    tab.dispose();
+    assertEquals(0, budget.getUsed());
+  }
+  
+  @Test
+  public void testDisposeClosesIterators()
+  {
+    MemoryBudget budget = new MemoryBudget(1000);
+    SpillableTable tab = spilledTable(budget, 5000);
+    tab.seal();
+    File f = tab.m_file;
+    assertNotNull(f);
+    // Iterators abandoned before the end
+    Iterator<Tuple> it1 = tab.tupleIterator();
+    it1.next();
+    Iterator<Tuple> it2 = tab.tupleIterator();
+    assertTrue(it2.hasNext());
+    assertEquals(2, tab.m_openIterators.size());
+    tab.dispose();
+    assertTrue(tab.m_openIterators.isEmpty());
+    assertFalse(it1.hasNext());
+    assertFalse(f.exists());
+  }
+  
+  @Test
+  public void testDisposeCacheIterator()
+  {
+    // A join whose result does not fit in its budget, enumerated
+    // only in part
+    Table t1 = new Table("A");
+    t1.setSchema(new Schema("A.k:int,A.x:int"));
+    Table t2 = new Table("B");
+    t2.setSchema(new Schema("B.k:int,B.y:int"));
+    for (int i = 0; i < 200; i++)
+    {
+      t1.put(new Tuple(t1.getSchema(), new Value[] {new IntValue(i % 10), new IntValue(i)}));
+      t2.put(new Tuple(t2.getSchema(), new Value[] {new IntValue(i % 10), new IntValue(i)}));
+    }
+    Join j = new Join(new Equality(new Attribute("A", "k"), new Attribute("B", "k")));
+    j.addOperand(t1);
+    j.addOperand(t2);
+    MemoryBudget budget = new MemoryBudget(10000);
+    j.setMemoryBudget(budget);
+    RelationCacheIterator it = (RelationCacheIterator) j.cacheIterator();
+    for (int i = 0; i < 10; i++)
+      assertNotNull(it.next());
+    SpillableTable result = (SpillableTable) it.m_intermediateResult;
+    assertTrue(result.isSpilled());
+    assertEquals(1, result.m_openIterators.size());
+    it.dispose();
+    assertTrue(result.m_openIterators.isEmpty());
+    assertEquals(0, budget.getUsed());
+  }
+}
@@ -0,0 +1,79 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the statistics maintained on tables
+ * @author sylvain
+ *
+ */
+public class TableStatisticsTest
+{
+  /**
+   * Builds a table whose first attribute is a key, and whose second
+   * attribute has 50 values, one of which is in 30% of the tuples
+   */
+  protected static Table table(int size)
+  {
+    Table t = new Table("T");
+    Schema sch = new Schema("T.k:int,T.s");
+    t.setSchema(sch);
+    for (int i = 0; i < size; i++)
+    {
+      Value s = i % 10 < 3 ? new Value("hot") : new Value("v" + (i % 50));
+      Tuple tup = new Tuple(sch, new Value[] {new IntValue(i), s});
+      if (i % 2 == 0)
+        t.put(tup);
+      else
+        t.append(tup);
+    }
+    t.seal();
+    return t;
+  }
+
+  @Test
+  public void testCounts()
+  {
+    TableStatistics stats = table(10000).getStatistics();
+    assertEquals(10000, stats.getRowCount());
+    TableStatistics.AttributeStatistics k = stats.getAttributeStatistics(new Attribute("T", "k"));
+    TableStatistics.AttributeStatistics s = stats.getAttributeStatistics(new Attribute("T", "s"));
+    assertEquals(10000, k.getDistinctCount(), 500);
+    assertEquals(36, s.getDistinctCount(), 3);
+    assertEquals(new IntValue(0), k.getMin());
+    assertEquals(new IntValue(9999), k.getMax());
+  }
+
+  @Test
+  public void testEstimates()
+  {
+    TableStatistics stats = table(10000).getStatistics();
+    TableStatistics.AttributeStatistics k = stats.getAttributeStatistics(0);
+    TableStatistics.AttributeStatistics s = stats.getAttributeStatistics(1);
+    assertEquals(0.3, s.estimateEquality(new Value("hot")), 0.06);
+    assertEquals(0, k.estimateEquality(new IntValue(-5)), 0);
+    // The value is converted to the type of the attribute
+    assertEquals(1.0 / k.getDistinctCount(), k.estimateEquality(new Value("42")), 1e-9);
+    assertEquals(0.5, k.estimateRange(new IntValue(0), new IntValue(5000)), 0.06);
+    assertEquals(0.1, k.estimateRange(new IntValue(9000), null), 0.04);
+  }
+}
@@ -0,0 +1,178 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the indexes, the bulk loading and the snapshots
+ * of tables
+ * @author sylvain
+ *
+ */
+public class TableTest
+{
+  @Test
+  public void testIndexedSelection()
+  {
+    Table plain = NAryRelationTest.pairs("R", "a", "b", 300, 1);
+    Table indexed = NAryRelationTest.pairs("R", "a", "b", 300, 1);
+    indexed.createIndex(new Attribute("R", "a"));
+    LogicalNot not = new LogicalNot();
+    not.addCondition(new Equality(new Attribute("R", "b"), new IntValue(5)));
+    LogicalAnd c = new LogicalAnd();
+    c.addCondition(new Equality(new Attribute("R", "a"), new IntValue(3)));
+    c.addCondition(not);
+    assertNotNull(indexed.lookup(c));
+    assertNull(plain.lookup(c));
+    List<Tuple> expected = ValueTest.collect(new Selection(c, plain), false);
+    assertFalse(expected.isEmpty());
+    for (boolean stream : new boolean[] {true, false})
+      assertEquals(expected, ValueTest.collect(new Selection(c, indexed), stream));
+  }
+
+  @Test
+  public void testIndexLookup()
+  {
+    Table t = NAryRelationTest.pairs("R", "a", "b", 300, 1);
+    t.createIndex(new Attribute("R", "a"), new Attribute("R", "b"));
+    assertNull(t.lookup(new Equality(new Attribute("R", "a"), new IntValue(3))));
+    LogicalAnd c = new LogicalAnd();
+    c.addCondition(new Equality(new Attribute("R", "b"), new IntValue(4)));
+    // The string is converted to the type of the attribute
+    c.addCondition(new Equality(new Value("3"), new Attribute("R", "a")));
+    Tuple added = new Tuple(t.getSchema(), new Value[] {new IntValue(3), new IntValue(4)});
+    t.put(added);
+    assertEquals(Arrays.asList(added), t.lookup(c));
+    // Contradictory equalities select nothing
+    c.addCondition(new Equality(new Attribute("R", "a"), new IntValue(2)));
+    assertTrue(t.lookup(c).isEmpty());
+  }
+
+  @Test
+  public void testBulkLoad()
+  {
+    Schema sch = new Schema("R.a:int,R.b:int");
+    Random r = new Random(4);
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < 500; i++)
+    {
+      tuples.add(new Tuple(sch, new Value[] {
+          new IntValue(r.nextInt(20)), new IntValue(r.nextInt(20))}));
+    }
+    Table expected = new Table("R");
+    expected.setSchema(sch);
+    for (Tuple t : tuples)
+      expected.put(t);
+    Table loaded = new Table("R");
+    loaded.setSchema(sch);
+    loaded.createIndex(new Attribute("R", "b"));
+    // Appends and insertions are mixed, with duplicates among both
+    for (int i = 0; i < tuples.size(); i++)
+    {
+      if (i % 100 == 0)
+        loaded.put(tuples.get(i));
+      else
+        loaded.append(tuples.get(i));
+    }
+    loaded.putAll(tuples.subList(0, 50));
+    List<Tuple> contents = ValueTest.collect(expected, false);
+    assertEquals(contents, ValueTest.collect(loaded, false));
+    assertEquals(contents, ValueTest.collect(loaded, true));
+    assertEquals(contents.size(), loaded.tupleCount());
+    assertTrue(loaded.isSortedOn(new int[] {0, 1}));
+    Equality e = new Equality(new Attribute("R", "b"), new IntValue(7));
+    assertEquals(ValueTest.collect(new Selection(e, expected), false),
+        ValueTest.collect(new Selection(e, loaded), false));
+  }
+
+  @Test
+  public void testSnapshotWrites()
+  {
+    Schema sch = new Schema("R.a:int,R.b:int");
+    Random r = new Random(5);
+    Table t = new Table("R");
+    t.setSchema(sch);
+    t.createIndex(new Attribute("R", "b"));
+    t.createIndex(new Attribute("R", "a"));
+    // Enough tuples to fill several segments of the list of tuples
+    for (int i = 0; i < 5000; i++)
+      t.append(new Tuple(sch, new Value[] {new IntValue(r.nextInt(100000)), new IntValue(r.nextInt(20))}));
+    t.seal();
+    List<Table> snapshots = new ArrayList<Table>();
+    List<List<Tuple>> contents = new ArrayList<List<Tuple>>();
+    for (int i = 0; i < 400; i++)
+    {
+      Table s = t.getSnapshot();
+      if (i % 40 == 0)
+      {
+        snapshots.add(s);
+        contents.add(ValueTest.collect(s, false));
+      }
+      t.put(new Tuple(sch, new Value[] {new IntValue(r.nextInt(100000)), new IntValue(r.nextInt(20))}));
+      if (i % 100 == 50)
+      {
+        // Writing to a snapshot leaves the table unchanged
+        int size = t.tupleCount();
+        s.put(new Tuple(sch, new Value[] {new IntValue(-i - 1), new IntValue(3)}));
+        assertEquals(size, t.tupleCount());
+        assertEquals(1, s.lookup(new Equality(new Attribute("R", "a"), new IntValue(-i - 1))).size());
+      }
+    }
+    snapshots.add(t);
+    contents.add(null);
+    for (int i = 0; i < snapshots.size(); i++)
+    {
+      Table s = snapshots.get(i);
+      List<Tuple> tuples = ValueTest.collect(s, false);
+      if (contents.get(i) != null)
+        assertEquals(contents.get(i), tuples);
+      assertEquals(tuples, ValueTest.collect(new Table(s), false));
+      assertEquals(tuples.size(), s.tupleCount());
+      for (int b = 0; b < 20; b++)
+      {
+        Equality e = new Equality(new Attribute("R", "b"), new IntValue(b));
+        List<Tuple> expected = new ArrayList<Tuple>();
+        for (Tuple u : tuples)
+        {
+          if (e.evaluate(u))
+            expected.add(u);
+        }
+        assertEquals(expected, s.lookup(e));
+      }
+      for (int j = 0; j < tuples.size(); j += 97)
+      {
+        Tuple u = tuples.get(j);
+        assertTrue(s.contains(u));
+        List<Tuple> found = s.lookup(new Equality(new Attribute("R", "a"), u.get(0)));
+        assertTrue(found.contains(u));
+        for (Tuple v : found)
+          assertEquals(u.get(0), v.get(0));
+      }
+      Set<Value> keys = new HashSet<Value>();
+      for (Tuple u : tuples)
+        keys.add(u.get(0));
+      assertEquals(keys.size(), s.getIndex(new int[] {0}).getKeyCount());
+      assertEquals(20, s.getIndex(new int[] {1}).getKeyCount());
+    }
+  }
+}
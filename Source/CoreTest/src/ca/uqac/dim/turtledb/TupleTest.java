@@ -0,0 +1,100 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for tuples
+ * @author sylvain
+ *
+ */
+public class TupleTest
+{
+  @Test
+  public void testLookup()
+  {
+    Schema sch = new Schema("T.a:int,T.b,T.c:double");
+    Tuple t = new Tuple(sch, "3,x,2.5");
+    assertEquals(3, t.size());
+    assertEquals(new IntValue(3), t.get(0));
+    assertEquals(ValueType.INT, t.get(0).getType());
+    assertEquals(new Value("x"), t.get(new Attribute("T", "b")));
+    assertEquals(new DoubleValue(2.5), t.get(new Attribute("T", "c")));
+    assertNull(t.get(new Attribute("T", "d")));
+    assertNull(t.get(new Attribute("U", "a")));
+  }
+
+  @Test
+  public void testSharedSchema()
+  {
+    Schema sch = new Schema("T.a:int,T.b:int");
+    Tuple t1 = new Tuple(sch, new Value[] {new IntValue(1), new IntValue(2)});
+    Tuple t2 = new Tuple(t1);
+    int hash = t2.hashCode();
+    // Adding a value to a tuple leaves the tuples it shares data with
+    // untouched
+    t1.put(new Attribute("T", "c"), new IntValue(3));
+    assertEquals(3, t1.size());
+    assertEquals(new IntValue(3), t1.get(new Attribute("T", "c")));
+    assertEquals(2, sch.size());
+    assertEquals(2, t2.size());
+    assertNull(t2.get(new Attribute("T", "c")));
+    assertEquals(hash, t2.hashCode());
+    assertFalse(t1.equals(t2));
+    assertFalse(hash == t1.hashCode());
+  }
+
+  @Test
+  public void testEquality()
+  {
+    Tuple t1 = new Tuple(new Schema("T.a:int,T.b"), "1,x");
+    Tuple t2 = new Tuple(new Schema("T.a:int,T.b"), "1,x");
+    Tuple t3 = new Tuple(new Schema("U.a:int,U.b"), "1,x");
+    assertEquals(t1, t2);
+    assertEquals(t1.hashCode(), t2.hashCode());
+    assertEquals(0, t1.compareTo(t2));
+    // Tuples with the same values under other names are different,
+    // but are not ordered
+    assertFalse(t1.equals(t3));
+    assertEquals(0, t1.compareTo(t3));
+    t3.setTable("T");
+    assertEquals(t1, t3);
+    assertTrue(t1.compareTo(new Tuple(t1.getSchema(), "1,y")) < 0);
+    assertTrue(t1.compareTo(new Tuple(t1.getSchema(), "0,y")) > 0);
+  }
+
+  @Test
+  public void testMakeTuple()
+  {
+    Tuple t1 = new Tuple(new Schema("T.a:int,T.b"), "1,x");
+    Tuple t2 = new Tuple(new Schema("U.c:long"), "7");
+    Tuple t = Tuple.makeTuple(Arrays.asList(t1, t2));
+    assertEquals(3, t.size());
+    assertEquals("T.a=1,T.b=x,U.c=7", t.toString());
+    assertEquals(new LongValue(7), t.get(new Attribute("U", "c")));
+    assertNull(Tuple.makeTuple(Arrays.asList(t1, null)));
+    Tuple u = new Tuple(t1);
+    u.putAll(t2);
+    assertEquals(t, u);
+  }
+}
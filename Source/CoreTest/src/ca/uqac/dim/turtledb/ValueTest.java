@@ -0,0 +1,179 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the order between values of all types
+ * @author sylvain
+ *
+ */
+public class ValueTest
+{
+  /**
+   * Values of all kinds, including numbers of different types
+   * that are equal, and strings that look like numbers
+   */
+  protected static Value[] sampleValues()
+  {
+    return new Value[] {
+        new IntValue(9), new IntValue(10), new IntValue(-3),
+        new LongValue(10), new LongValue(9007199254740993L), new LongValue(Long.MAX_VALUE),
+        new DoubleValue(9.5), new DoubleValue(10), new DoubleValue(-0d), new DoubleValue(0),
+        new DoubleValue(9007199254740992d), new DoubleValue(1e16), new LongValue(10000000000000000L),
+        new DoubleValue(Double.NaN), new DoubleValue(Double.POSITIVE_INFINITY),
+        new DoubleValue(Double.NEGATIVE_INFINITY), new DoubleValue(9.3e18),
+        new Value("9"), new Value("10"), new Value("9.5"), new Value("abc"), new Value(""),
+        DateValue.parse("2012-01-01"), DateValue.parse("2011-12-31")
+    };
+  }
+  
+  @Test
+  public void testTotalOrder()
+  {
+    Value[] values = sampleValues();
+    for (Value a : values)
+    {
+      assertEquals(a.toString(), 0, a.compareTo(a));
+      for (Value b : values)
+      {
+        int ab = Integer.signum(a.compareTo(b));
+        assertEquals(a + " " + b, -ab, Integer.signum(b.compareTo(a)));
+        for (Value c : values)
+        {
+          if (ab <= 0 && b.compareTo(c) <= 0)
+            assertTrue(a + " " + b + " " + c, a.compareTo(c) <= 0);
+        }
+      }
+    }
+  }
+  
+  @Test
+  public void testHashConsistentWithEquals()
+  {
+    Value[] values = sampleValues();
+    for (Value a : values)
+    {
+      for (Value b : values)
+      {
+        if (a.equals(b))
+          assertEquals(a + " " + b, a.hashCode(), b.hashCode());
+      }
+    }
+  }
+  
+  @Test
+  public void testNumbers()
+  {
+    assertTrue(new IntValue(9).compareTo(new IntValue(10)) < 0);
+    assertEquals(new IntValue(10), new LongValue(10));
+    assertEquals(new IntValue(10), new DoubleValue(10));
+    assertEquals(new DoubleValue(0), new DoubleValue(-0d));
+    assertEquals(new DoubleValue(1e16), new LongValue(10000000000000000L));
+    // No rounding of the long to a double
+    assertFalse(new LongValue(9007199254740993L).equals(new DoubleValue(9007199254740992d)));
+    assertTrue(new DoubleValue(9007199254740992d).compareTo(new LongValue(9007199254740993L)) < 0);
+    assertTrue(new DoubleValue(-1.5).compareTo(new LongValue(-1)) < 0);
+  }
+  
+  @Test
+  public void testNaN()
+  {
+    Value nan = new DoubleValue(Double.NaN);
+    assertEquals(nan, new DoubleValue(Double.NaN));
+    assertFalse(nan.equals(new IntValue(0)));
+    assertFalse(nan.equals(new Value("x")));
+    assertTrue(nan.compareTo(new DoubleValue(Double.POSITIVE_INFINITY)) > 0);
+    assertTrue(nan.compareTo(new LongValue(Long.MAX_VALUE)) > 0);
+  }
+  
+  @Test
+  public void testKinds()
+  {
+    // Numbers, then dates, then strings
+    assertTrue(new IntValue(10).compareTo(new Value("9")) < 0);
+    assertTrue(new Value("10").compareTo(new IntValue(9)) > 0);
+    assertTrue(DateValue.parse("2012-01-01").compareTo(new IntValue(1)) > 0);
+    assertTrue(DateValue.parse("2012-01-01").compareTo(new Value("2012-01-01")) < 0);
+    assertFalse(new IntValue(10).equals(new Value("10")));
+    assertEquals(new IntValue(10), ValueType.INT.convert(new Value("10")));
+    assertEquals(new Value("ten"), ValueType.INT.convert(new Value("ten")));
+  }
+  
+  @Test
+  public void testSort()
+  {
+    List<Value> values = new ArrayList<Value>(Arrays.asList(sampleValues()));
+    Collections.shuffle(values, new Random(0));
+    Collections.sort(values);
+    for (int i = 1; i < values.size(); i++)
+      assertTrue(values.get(i - 1).compareTo(values.get(i)) <= 0);
+  }
+  
+  @Test
+  public void testConvertedEquality()
+  {
+    // An attribute of type string is compared to an attribute of
+    // type int by converting its values
+    Table t1 = new Table("A");
+    t1.setSchema(new Schema("A.k:int,A.x"));
+    Table t2 = new Table("B");
+    t2.setSchema(new Schema("B.k,B.y"));
+    for (int i = 0; i < 20; i++)
+    {
+      t1.put(new Tuple(t1.getSchema(), new Value[] {new IntValue(i), new Value("x" + i)}));
+      t2.put(new Tuple(t2.getSchema(), new Value[] {new Value(Integer.toString(i % 10)), new Value("y" + i)}));
+    }
+    Condition c = new Equality(new Attribute("A", "k"), new Attribute("B", "k"));
+    Selection s = new Selection(c, product(t1, t2));
+    assertEquals(20, collect(s, false).size());
+    for (boolean stream : new boolean[] {true, false})
+    {
+      Join j = new Join(c);
+      j.addOperand(t1);
+      j.addOperand(t2);
+      j.setStrategy(Join.Strategy.HASH);
+      assertEquals(20, collect(j, stream).size());
+    }
+  }
+  
+  protected static Product product(Relation left, Relation right)
+  {
+    Product p = new Product();
+    p.addOperand(left);
+    p.addOperand(right);
+    return p;
+  }
+  
+  /**
+   * Enumerates the tuples of a relation
+   */
+  protected static List<Tuple> collect(Relation r, boolean stream)
+  {
+    r.setStreamingMode(stream);
+    List<Tuple> out = new ArrayList<Tuple>();
+    for (Iterator<Tuple> it = r.iterator(); it.hasNext();)
+      out.add(it.next());
+    return out;
+  }
+}
@@ -61,6 +61,13 @@ public class SpaceDemo
 	    System.err.println("Error reading Space database");
 	    System.exit(1);
 	  }
+	  // Index the attributes of Crew that are looked up by value
+	  if (r_Crew instanceof Table)
+	  {
+	    Table t_Crew = (Table) r_Crew;
+	    t_Crew.createIndex(new Attribute("Crew", "Astronaut"));
+	    t_Crew.createIndex(new Attribute("Crew", "Role"));
+	  }
 	  
 	  // ---------------
 	  // Step 2: build query trees
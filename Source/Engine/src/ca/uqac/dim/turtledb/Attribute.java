@@ -22,10 +22,18 @@ public class Attribute extends Literal
   protected String m_value;
   protected String m_tableName;
   
+  /**
+   * The type of the values this attribute holds. The type is
+   * not part of the attribute's identity: it is ignored by
+   * {@link #equals(Attribute)} and {@link #compareTo(Attribute)}.
+   */
+  protected ValueType m_type;
+  
   public Attribute()
   {
     m_value = "";
     m_tableName = "";
+    m_type = ValueType.STRING;
   }
   
   /**
@@ -65,6 +73,7 @@ public class Attribute extends Literal
       return;
     m_value = new String(a.m_value);
     m_tableName = new String(a.m_tableName);
+    m_type = a.m_type;
   }
   
   public void setName(String name)
@@ -87,6 +96,27 @@ public class Attribute extends Literal
     return m_tableName;
   }
   
+  /**
+   * Sets the type of the values this attribute holds
+   * @param type The type; <tt>null</tt> stands for
+   *   {@link ValueType#STRING}
+   */
+  public void setType(ValueType type)
+  {
+    if (type == null)
+      type = ValueType.STRING;
+    m_type = type;
+  }
+  
+  /**
+   * Gives the type of the values this attribute holds
+   * @return The type
+   */
+  public ValueType getType()
+  {
+    return m_type;
+  }
+  
   @Override
   public String toString()
   {
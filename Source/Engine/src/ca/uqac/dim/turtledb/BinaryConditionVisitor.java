@@ -0,0 +1,116 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.io.IOException;
+
+/**
+ * Writes the binary representation of a condition, in postfix order,
+ * on behalf of a {@link BinaryQueryVisitor}. As the methods of a
+ * {@link ConditionVisitor} cannot throw exceptions, the first error
+ * is kept, and thrown by {@link #rethrow()}.
+ * @author sylvain
+ *
+ */
+/*package*/ class BinaryConditionVisitor extends ConditionVisitor
+{
+  protected BinaryQueryVisitor m_writer;
+
+  protected IOException m_error;
+
+  public BinaryConditionVisitor(BinaryQueryVisitor writer)
+  {
+    super();
+    m_writer = writer;
+    m_error = null;
+  }
+
+  @Override
+  public void visit(LogicalAnd c)
+  {
+    visitNAry(BinaryQueryFormatter.COND_AND, c);
+  }
+
+  @Override
+  public void visit(LogicalOr c)
+  {
+    visitNAry(BinaryQueryFormatter.COND_OR, c);
+  }
+
+  @Override
+  public void visit(LogicalNot c)
+  {
+    visitNAry(BinaryQueryFormatter.COND_NOT, c);
+  }
+
+  protected void visitNAry(byte tag, NAryCondition c)
+  {
+    if (m_error != null)
+      return;
+    try
+    {
+      m_writer.m_out.writeByte(tag);
+      m_writer.writeSize(c.getArity());
+    }
+    catch (IOException e)
+    {
+      m_error = e;
+    }
+  }
+
+  @Override
+  public void visit(Equality c)
+  {
+    if (m_error != null)
+      return;
+    try
+    {
+      m_writer.m_out.writeByte(BinaryQueryFormatter.COND_EQUALS);
+      writeLiteral(c.m_left);
+      writeLiteral(c.m_right);
+    }
+    catch (IOException e)
+    {
+      m_error = e;
+    }
+  }
+
+  protected void writeLiteral(Literal l) throws IOException
+  {
+    if (l instanceof Attribute)
+    {
+      m_writer.m_out.writeByte(BinaryQueryFormatter.LITERAL_ATTRIBUTE);
+      m_writer.writeAttribute((Attribute) l);
+    }
+    else
+    {
+      m_writer.m_out.writeByte(BinaryQueryFormatter.LITERAL_VALUE);
+      TupleCodec.writeValue(m_writer.m_out, (Value) l);
+    }
+  }
+
+  /**
+   * Throws the first error that occurred while writing, if any
+   * @throws IOException The error
+   */
+  public void rethrow() throws IOException
+  {
+    if (m_error != null)
+      throw m_error;
+  }
+}
@@ -0,0 +1,143 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Facilities to convert relations into a compact binary representation.
+ * The BinaryQueryFormatter works in pair with the
+ * {@link BinaryQueryParser}, just as the {@link XmlQueryFormatter} does
+ * with the {@link XmlQueryParser}; the binary form is however much
+ * smaller, as it does not repeat the name of an attribute for every
+ * value of a table.
+ * <p>
+ * The representation starts with the bytes <tt>TDB</tt> and a version
+ * number, followed by the number of relations it contains. Each
+ * relation is the sequence of the nodes of its tree in postfix order,
+ * followed by an end tag. A node is a one-byte tag followed by:
+ * <ul>
+ * <li>for a table: its name, its schema, the number of tuples, and the
+ *   values of each column in turn. The values of a column are either
+ *   written one by one, or as a dictionary of distinct values followed
+ *   by the position of each tuple's value in the dictionary</li>
+ * <li>for a variable table: its name, its site, and whether it has an
+ *   operand</li>
+ * <li>for a projection: its schema</li>
+ * <li>for a selection or a join: its condition, whose nodes are also
+ *   written in postfix order, followed by an end tag</li>
+ * <li>for a renaming: the pairs of attributes it renames</li>
+ * <li>for a union, an intersection or a product: its number of
+ *   operands</li>
+ * </ul>
+ * Counts are written in a variable number of bytes, strings as their
+ * length followed by their UTF-8 bytes, and values as in the
+ * {@link TupleCodec}.
+ * @author sylvain
+ *
+ */
+public class BinaryQueryFormatter
+{
+  /**
+   * The content type of the binary representation, when sent over HTTP
+   */
+  public static final String CONTENT_TYPE = "application/x-turtledb";
+
+  protected static final byte[] MAGIC = {'T', 'D', 'B'};
+
+  protected static final byte VERSION = 1;
+
+  protected static final byte TAG_END = 0;
+  protected static final byte TAG_TABLE = 1;
+  protected static final byte TAG_VARTABLE = 2;
+  protected static final byte TAG_PROJECTION = 3;
+  protected static final byte TAG_SELECTION = 4;
+  protected static final byte TAG_RENAMING = 5;
+  protected static final byte TAG_JOIN = 6;
+  protected static final byte TAG_UNION = 7;
+  protected static final byte TAG_INTERSECTION = 8;
+  protected static final byte TAG_PRODUCT = 9;
+
+  protected static final byte COND_AND = 1;
+  protected static final byte COND_OR = 2;
+  protected static final byte COND_NOT = 3;
+  protected static final byte COND_EQUALS = 4;
+
+  protected static final byte LITERAL_ATTRIBUTE = 0;
+  protected static final byte LITERAL_VALUE = 1;
+
+  protected static final byte COLUMN_PLAIN = 0;
+  protected static final byte COLUMN_DICTIONARY = 1;
+
+  /**
+   * Utility class: no instances
+   */
+  private BinaryQueryFormatter()
+  {
+    throw new UnsupportedOperationException("Cannot instantiate utility class BinaryQueryFormatter");
+  }
+
+  /**
+   * Serializes a relation
+   * @param q The relation to serialize
+   * @return The binary representation of the relation
+   */
+  public static byte[] toBytes(Relation q)
+  {
+    List<Relation> rels = new ArrayList<Relation>(1);
+    rels.add(q);
+    return toBytes(rels);
+  }
+
+  /**
+   * Serializes a set of relations
+   * @param rels The relations to serialize
+   * @return The binary representation of the relations
+   */
+  public static byte[] toBytes(Collection<Relation> rels)
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    BinaryQueryVisitor v = new BinaryQueryVisitor(out);
+    try
+    {
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      v.writeSize(rels.size());
+      for (Relation r : rels)
+      {
+        r.accept(v);
+        out.writeByte(TAG_END);
+      }
+      out.flush();
+    }
+    catch (IOException e)
+    {
+      // Cannot happen when writing to memory
+      e.printStackTrace();
+      return null;
+    }
+    catch (EmptyQueryVisitor.VisitorException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+    return bytes.toByteArray();
+  }
+}
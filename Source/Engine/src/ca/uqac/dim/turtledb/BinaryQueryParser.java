@@ -0,0 +1,339 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Facilities to build relations from the binary representation
+ * produced by the {@link BinaryQueryFormatter}. For any relation
+ * <tt>r</tt>, we should have that
+ * <code>
+ * BinaryQueryParser.parse(BinaryQueryFormatter.toBytes(r)).get(0) == r
+ * </code>
+ * @author sylvain
+ *
+ */
+public class BinaryQueryParser
+{
+  /**
+   * Utility class: no instances
+   */
+  private BinaryQueryParser()
+  {
+    throw new UnsupportedOperationException("Cannot instantiate utility class BinaryQueryParser");
+  }
+
+  /**
+   * Determines if an array of bytes starts like a binary representation
+   * of relations
+   * @param bytes The bytes
+   * @return True if the bytes start with the expected header
+   */
+  public static boolean isBinary(byte[] bytes)
+  {
+    if (bytes.length < BinaryQueryFormatter.MAGIC.length + 1)
+      return false;
+    for (int i = 0; i < BinaryQueryFormatter.MAGIC.length; i++)
+    {
+      if (bytes[i] != BinaryQueryFormatter.MAGIC[i])
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Builds relations from their binary representation
+   * @param bytes The binary representation
+   * @return The relations
+   * @throws XmlQueryParser.ParseException If the bytes are not a valid
+   *   representation of relations
+   */
+  public static List<Relation> parse(byte[] bytes) throws XmlQueryParser.ParseException
+  {
+    if (!isBinary(bytes))
+      throw new XmlQueryParser.ParseException("Not a binary representation of relations");
+    if (bytes[BinaryQueryFormatter.MAGIC.length] != BinaryQueryFormatter.VERSION)
+      throw new XmlQueryParser.ParseException("Unsupported version: " + bytes[BinaryQueryFormatter.MAGIC.length]);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, BinaryQueryFormatter.MAGIC.length + 1, bytes.length));
+    try
+    {
+      int count = readSize(in);
+      List<Relation> out = new ArrayList<Relation>(Math.min(count, 1024));
+      for (int i = 0; i < count; i++)
+        out.add(parseRelation(in));
+      if (in.available() > 0)
+        throw new XmlQueryParser.ParseException("Trailing bytes after the relations");
+      return out;
+    }
+    catch (EOFException e)
+    {
+      throw new XmlQueryParser.ParseException("Truncated binary representation");
+    }
+    catch (IOException e)
+    {
+      throw new XmlQueryParser.ParseException(e.toString());
+    }
+    catch (IllegalArgumentException e)
+    {
+      throw new XmlQueryParser.ParseException(e.toString());
+    }
+  }
+
+  /**
+   * Reads the nodes of a relation until the end tag
+   * @param in The input to read from
+   * @return The relation
+   */
+  protected static Relation parseRelation(DataInputStream in) throws IOException, XmlQueryParser.ParseException
+  {
+    Stack<Relation> parts = new Stack<Relation>();
+    for (byte tag = in.readByte(); tag != BinaryQueryFormatter.TAG_END; tag = in.readByte())
+    {
+      switch (tag)
+      {
+      case BinaryQueryFormatter.TAG_TABLE:
+        parts.push(parseTable(in));
+        break;
+      case BinaryQueryFormatter.TAG_VARTABLE:
+      {
+        VariableTable vt = new VariableTable(TupleCodec.readString(in), TupleCodec.readString(in));
+        if (in.readBoolean())
+          vt.setRelation(pop(parts));
+        parts.push(vt);
+        break;
+      }
+      case BinaryQueryFormatter.TAG_PROJECTION:
+      {
+        Schema s = parseSchema(in);
+        parts.push(new Projection(s, pop(parts)));
+        break;
+      }
+      case BinaryQueryFormatter.TAG_SELECTION:
+      {
+        Condition c = parseCondition(in);
+        parts.push(new Selection(c, pop(parts)));
+        break;
+      }
+      case BinaryQueryFormatter.TAG_RENAMING:
+      {
+        int size = readSize(in);
+        Map<Attribute,Attribute> renamings = new HashMap<Attribute,Attribute>();
+        for (int i = 0; i < size; i++)
+          renamings.put(parseAttribute(in), parseAttribute(in));
+        Renaming r = new Renaming(pop(parts));
+        for (Map.Entry<Attribute,Attribute> e : renamings.entrySet())
+          r.rename(e.getKey(), e.getValue());
+        parts.push(r);
+        break;
+      }
+      case BinaryQueryFormatter.TAG_JOIN:
+      {
+        Join j = new Join();
+        j.m_condition = parseCondition(in);
+        j.setRight(pop(parts));
+        j.setLeft(pop(parts));
+        parts.push(j);
+        break;
+      }
+      case BinaryQueryFormatter.TAG_UNION:
+        parts.push(parseNAry(new Union(), in, parts));
+        break;
+      case BinaryQueryFormatter.TAG_INTERSECTION:
+        parts.push(parseNAry(new Intersection(), in, parts));
+        break;
+      case BinaryQueryFormatter.TAG_PRODUCT:
+        parts.push(parseNAry(new Product(), in, parts));
+        break;
+      default:
+        throw new XmlQueryParser.ParseException("Unrecognized operand tag: " + tag);
+      }
+    }
+    if (parts.size() != 1)
+      throw new XmlQueryParser.ParseException("Malformed relation tree");
+    return parts.pop();
+  }
+
+  protected static Relation pop(Stack<Relation> parts) throws XmlQueryParser.ParseException
+  {
+    if (parts.isEmpty())
+      throw new XmlQueryParser.ParseException("Missing operand");
+    return parts.pop();
+  }
+
+  protected static NAryRelation parseNAry(NAryRelation r, DataInputStream in, Stack<Relation> parts) throws IOException, XmlQueryParser.ParseException
+  {
+    int arity = readSize(in);
+    Relation[] operands = new Relation[arity];
+    // Operands were written in order, and are popped in reverse order
+    for (int i = arity - 1; i >= 0; i--)
+      operands[i] = pop(parts);
+    for (Relation op : operands)
+      r.addOperand(op);
+    return r;
+  }
+
+  protected static Table parseTable(DataInputStream in) throws IOException, XmlQueryParser.ParseException
+  {
+    String table_name = TupleCodec.readString(in);
+    Schema s = parseSchema(in);
+    int size = readSize(in);
+    Value[][] values = new Value[size][s.size()];
+    for (int col = 0; col < s.size(); col++)
+    {
+      byte mode = in.readByte();
+      if (mode == BinaryQueryFormatter.COLUMN_PLAIN)
+      {
+        for (int row = 0; row < size; row++)
+          values[row][col] = TupleCodec.readValue(in);
+      }
+      else if (mode == BinaryQueryFormatter.COLUMN_DICTIONARY)
+      {
+        Value[] dictionary = new Value[readSize(in)];
+        for (int i = 0; i < dictionary.length; i++)
+          dictionary[i] = TupleCodec.readValue(in);
+        for (int row = 0; row < size; row++)
+        {
+          int pos = readSize(in);
+          if (pos >= dictionary.length)
+            throw new XmlQueryParser.ParseException("Invalid dictionary entry: " + pos);
+          values[row][col] = dictionary[pos];
+        }
+      }
+      else
+        throw new XmlQueryParser.ParseException("Unrecognized column encoding: " + mode);
+    }
+    List<Tuple> tuples = new ArrayList<Tuple>(size);
+    for (int row = 0; row < size; row++)
+      tuples.add(new Tuple(s, values[row]));
+    Table tab = new Table(table_name);
+    tab.setSchema(s);
+    tab.putAll(tuples);
+    return tab;
+  }
+
+  protected static Schema parseSchema(DataInputStream in) throws IOException, XmlQueryParser.ParseException
+  {
+    int size = readSize(in);
+    if (size == 0)
+      throw new XmlQueryParser.ParseException("Empty schema");
+    Schema s = new Schema();
+    for (int i = 0; i < size; i++)
+      s.add(parseAttribute(in));
+    return s;
+  }
+
+  protected static Attribute parseAttribute(DataInputStream in) throws IOException, XmlQueryParser.ParseException
+  {
+    Attribute a = new Attribute(TupleCodec.readString(in), TupleCodec.readString(in));
+    a.setType(parseType(in.readByte()));
+    return a;
+  }
+
+  protected static ValueType parseType(byte b) throws XmlQueryParser.ParseException
+  {
+    ValueType[] types = ValueType.values();
+    if (b < 0 || b >= types.length)
+      throw new XmlQueryParser.ParseException("Invalid value type: " + b);
+    return types[b];
+  }
+
+  /**
+   * Reads the nodes of a condition until the end tag
+   * @param in The input to read from
+   * @return The condition
+   */
+  protected static Condition parseCondition(DataInputStream in) throws IOException, XmlQueryParser.ParseException
+  {
+    Stack<Condition> parts = new Stack<Condition>();
+    for (byte tag = in.readByte(); tag != BinaryQueryFormatter.TAG_END; tag = in.readByte())
+    {
+      switch (tag)
+      {
+      case BinaryQueryFormatter.COND_AND:
+        parts.push(parseNAryCondition(new LogicalAnd(), in, parts));
+        break;
+      case BinaryQueryFormatter.COND_OR:
+        parts.push(parseNAryCondition(new LogicalOr(), in, parts));
+        break;
+      case BinaryQueryFormatter.COND_NOT:
+        parts.push(parseNAryCondition(new LogicalNot(), in, parts));
+        break;
+      case BinaryQueryFormatter.COND_EQUALS:
+        parts.push(new Equality(parseLiteral(in), parseLiteral(in)));
+        break;
+      default:
+        throw new XmlQueryParser.ParseException("Unrecognized condition tag: " + tag);
+      }
+    }
+    if (parts.size() != 1)
+      throw new XmlQueryParser.ParseException("Malformed condition");
+    return parts.pop();
+  }
+
+  protected static Condition parseNAryCondition(NAryCondition c, DataInputStream in, Stack<Condition> parts) throws IOException, XmlQueryParser.ParseException
+  {
+    int arity = readSize(in);
+    if (arity > parts.size())
+      throw new XmlQueryParser.ParseException("Missing operand in condition");
+    Condition[] operands = new Condition[arity];
+    for (int i = arity - 1; i >= 0; i--)
+      operands[i] = parts.pop();
+    for (Condition op : operands)
+      c.addCondition(op);
+    return c;
+  }
+
+  protected static Literal parseLiteral(DataInputStream in) throws IOException, XmlQueryParser.ParseException
+  {
+    byte kind = in.readByte();
+    if (kind == BinaryQueryFormatter.LITERAL_ATTRIBUTE)
+      return parseAttribute(in);
+    if (kind == BinaryQueryFormatter.LITERAL_VALUE)
+    {
+      Value v = TupleCodec.readValue(in);
+      if (v == null)
+        throw new XmlQueryParser.ParseException("Missing value in condition");
+      return v;
+    }
+    throw new XmlQueryParser.ParseException("Unrecognized literal: " + kind);
+  }
+
+  /**
+   * Reads an integer written by {@link BinaryQueryVisitor#writeSize(int)}
+   * @param in The input to read from
+   * @return The integer
+   */
+  protected static int readSize(DataInput in) throws IOException, XmlQueryParser.ParseException
+  {
+    int n = 0;
+    for (int shift = 0; shift < 32; shift += 7)
+    {
+      byte b = in.readByte();
+      n |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+      {
+        if (n < 0)
+          throw new XmlQueryParser.ParseException("Invalid size: " + n);
+        return n;
+      }
+    }
+    throw new XmlQueryParser.ParseException("Invalid size");
+  }
+}
@@ -0,0 +1,255 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes the binary representation of a relation. The visitor sees the
+ * operands of an operator before the operator itself; the nodes of the
+ * tree are therefore written in postfix order, and the
+ * {@link BinaryQueryParser} rebuilds the tree with a stack. The
+ * format of each node is described in {@link BinaryQueryFormatter}.
+ * @author sylvain
+ *
+ */
+/*package*/ class BinaryQueryVisitor extends QueryVisitor
+{
+  protected DataOutputStream m_out;
+
+  public BinaryQueryVisitor(DataOutputStream out)
+  {
+    super();
+    m_out = out;
+  }
+
+  @Override
+  public void visit(Projection r) throws VisitorException
+  {
+    try
+    {
+      m_out.writeByte(BinaryQueryFormatter.TAG_PROJECTION);
+      writeSchema(r.m_schema);
+    }
+    catch (IOException e)
+    {
+      throw new VisitorException(e.toString());
+    }
+  }
+
+  @Override
+  public void visit(Selection r) throws VisitorException
+  {
+    try
+    {
+      m_out.writeByte(BinaryQueryFormatter.TAG_SELECTION);
+      writeCondition(r.m_condition);
+    }
+    catch (IOException e)
+    {
+      throw new VisitorException(e.toString());
+    }
+  }
+
+  @Override
+  public void visit(Renaming r) throws VisitorException
+  {
+    try
+    {
+      m_out.writeByte(BinaryQueryFormatter.TAG_RENAMING);
+      writeSize(r.m_renamedAttributes.size());
+      for (Map.Entry<Attribute,Attribute> e : r.m_renamedAttributes.entrySet())
+      {
+        writeAttribute(e.getKey());
+        writeAttribute(e.getValue());
+      }
+    }
+    catch (IOException e)
+    {
+      throw new VisitorException(e.toString());
+    }
+  }
+
+  @Override
+  public void visit(VariableTable r) throws VisitorException
+  {
+    try
+    {
+      m_out.writeByte(BinaryQueryFormatter.TAG_VARTABLE);
+      TupleCodec.writeString(m_out, r.getName());
+      TupleCodec.writeString(m_out, r.getSite());
+      m_out.writeBoolean(r.m_relation != null);
+    }
+    catch (IOException e)
+    {
+      throw new VisitorException(e.toString());
+    }
+  }
+
+  @Override
+  public void visit(Table r) throws VisitorException
+  {
+    try
+    {
+      m_out.writeByte(BinaryQueryFormatter.TAG_TABLE);
+      TupleCodec.writeString(m_out, r.getName());
+      writeSchema(r.m_schema);
+      List<Tuple> tuples = new ArrayList<Tuple>();
+      RelationStreamIterator it = r.streamIterator();
+      it.reset();
+      while (it.hasNext())
+        tuples.add(it.next());
+      writeSize(tuples.size());
+      for (int i = 0; i < r.m_schema.size(); i++)
+        writeColumn(tuples, i);
+    }
+    catch (IOException e)
+    {
+      throw new VisitorException(e.toString());
+    }
+  }
+
+  @Override
+  public void visit(Join r) throws VisitorException
+  {
+    try
+    {
+      m_out.writeByte(BinaryQueryFormatter.TAG_JOIN);
+      writeCondition(r.m_condition);
+    }
+    catch (IOException e)
+    {
+      throw new VisitorException(e.toString());
+    }
+  }
+
+  @Override
+  public void visit(Union r) throws VisitorException
+  {
+    visitNAry(BinaryQueryFormatter.TAG_UNION, r);
+  }
+
+  @Override
+  public void visit(Intersection r) throws VisitorException
+  {
+    visitNAry(BinaryQueryFormatter.TAG_INTERSECTION, r);
+  }
+
+  @Override
+  public void visit(Product r) throws VisitorException
+  {
+    visitNAry(BinaryQueryFormatter.TAG_PRODUCT, r);
+  }
+
+  protected void visitNAry(byte tag, NAryRelation r) throws VisitorException
+  {
+    try
+    {
+      m_out.writeByte(tag);
+      writeSize(r.m_relations.size());
+    }
+    catch (IOException e)
+    {
+      throw new VisitorException(e.toString());
+    }
+  }
+
+  /**
+   * Writes the values of a column. The values are written once in a
+   * dictionary, followed by the position of each tuple's value in the
+   * dictionary, if this takes less room than writing every value; this
+   * requires all the values to have the same type.
+   * @param tuples The tuples
+   * @param col The position of the column
+   */
+  protected void writeColumn(List<Tuple> tuples, int col) throws IOException
+  {
+    Map<Value,Integer> dictionary = new LinkedHashMap<Value,Integer>();
+    Class<?> value_class = null;
+    boolean uniform = true;
+    for (Tuple t : tuples)
+    {
+      Value v = t.get(col);
+      if (v == null || (value_class != null && v.getClass() != value_class))
+      {
+        uniform = false;
+        break;
+      }
+      value_class = v.getClass();
+      if (!dictionary.containsKey(v))
+        dictionary.put(v, dictionary.size());
+      if (dictionary.size() * 2 > tuples.size())
+      {
+        // Mostly distinct values: a dictionary does not pay off
+        uniform = false;
+        break;
+      }
+    }
+    if (!uniform || tuples.isEmpty())
+    {
+      m_out.writeByte(BinaryQueryFormatter.COLUMN_PLAIN);
+      for (Tuple t : tuples)
+        TupleCodec.writeValue(m_out, t.get(col));
+      return;
+    }
+    m_out.writeByte(BinaryQueryFormatter.COLUMN_DICTIONARY);
+    writeSize(dictionary.size());
+    for (Value v : dictionary.keySet())
+      TupleCodec.writeValue(m_out, v);
+    for (Tuple t : tuples)
+      writeSize(dictionary.get(t.get(col)));
+  }
+
+  protected void writeSchema(Schema sch) throws IOException
+  {
+    writeSize(sch.size());
+    for (Attribute a : sch)
+      writeAttribute(a);
+  }
+
+  protected void writeAttribute(Attribute a) throws IOException
+  {
+    TupleCodec.writeString(m_out, a.getTableName());
+    TupleCodec.writeString(m_out, a.getName());
+    m_out.writeByte(a.getType().ordinal());
+  }
+
+  protected void writeCondition(Condition c) throws IOException
+  {
+    BinaryConditionVisitor bcv = new BinaryConditionVisitor(this);
+    c.accept(bcv);
+    bcv.rethrow();
+    m_out.writeByte(BinaryQueryFormatter.TAG_END);
+  }
+
+  /**
+   * Writes a non-negative integer in as few bytes as possible, seven
+   * bits at a time
+   * @param n The integer
+   */
+  protected void writeSize(int n) throws IOException
+  {
+    while ((n & ~0x7F) != 0)
+    {
+      m_out.writeByte((n & 0x7F) | 0x80);
+      n >>>= 7;
+    }
+    m_out.writeByte(n);
+  }
+}
@@ -62,7 +62,10 @@ public abstract class BinaryRelation extends Relation
   
   protected abstract class BinaryRelationStreamIterator extends RelationStreamIterator
   {
-    
+    public BinaryRelationStreamIterator()
+    {
+      super(!isDuplicateFree());
+    }
   }
   
   protected class BinaryRelationCacheIterator extends RelationCacheIterator
@@ -75,20 +78,21 @@ public abstract class BinaryRelation extends Relation
     {
       RelationIterator it = null;
       it = m_left.cacheIterator();
-      m_intermediateLeft = new Table(m_left.getSchema());
+      m_intermediateLeft = newIntermediateTable(m_left.getSchema());
       while (it.hasNext())
       {
         Tuple t = it.next();
-        m_intermediateLeft.put(t);
+        m_intermediateLeft.append(t);
       }
+      dispose(it);
       it = m_right.cacheIterator();
-      m_intermediateRight = new Table(m_right.getSchema());
+      m_intermediateRight = newIntermediateTable(m_right.getSchema());
       while (it.hasNext())
       {
         Tuple t = it.next();
-        m_intermediateRight.put(t);
+        m_intermediateRight.append(t);
       }
-      m_intermediateRight = new Table(m_right.getSchema());
+      dispose(it);
     }
   }
 
@@ -0,0 +1,185 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Directory of the tables hosted by the sites of a distributed
+ * database. For each table, the catalog records the site that hosts
+ * it, its schema and its number of tuples. This is the information
+ * a {@link QueryPlanner} needs to decide where each part of a query
+ * should be computed. For a {@link Table}, the catalog also refers to
+ * its {@link TableStatistics}, which are kept up to date as tuples are
+ * inserted; the number of tuples of such a table is then taken from
+ * its statistics rather than recorded once.
+ * <p>
+ * An {@link Engine} registers its own tables in its catalog; engines
+ * that share the same catalog (e.g. the sites of a
+ * {@link CentralizedCommunicator}) therefore know about each
+ * other's tables.
+ * <p>
+ * A catalog can be read and updated by many threads at the same time.
+ * @author sylvain
+ *
+ */
+public class Catalog
+{
+  protected Map<String,Entry> m_entries;
+  
+  public Catalog()
+  {
+    super();
+    m_entries = new ConcurrentHashMap<String,Entry>();
+  }
+  
+  /**
+   * Registers a table
+   * @param name The table's name
+   * @param site The name of the site that hosts the table
+   * @param r The table
+   */
+  public void putTable(String name, String site, Relation r)
+  {
+    int cardinality;
+    TableStatistics stats = null;
+    Table t = Table.asTable(r);
+    if (t != null)
+    {
+      cardinality = t.getCardinality();
+      stats = t.getStatistics();
+    }
+    else
+      cardinality = r.tupleCount();
+    m_entries.put(name, new Entry(site, r.getSchema(), cardinality, stats));
+  }
+  
+  /**
+   * Registers a table
+   * @param name The table's name
+   * @param site The name of the site that hosts the table
+   * @param sch The table's schema
+   * @param cardinality The number of tuples in the table
+   */
+  public void putTable(String name, String site, Schema sch, int cardinality)
+  {
+    m_entries.put(name, new Entry(site, sch, cardinality, null));
+  }
+  
+  /**
+   * Copies all the entries of another catalog into this one
+   * @param c The other catalog
+   */
+  public void putAll(Catalog c)
+  {
+    m_entries.putAll(c.m_entries);
+  }
+  
+  public boolean contains(String name)
+  {
+    return m_entries.containsKey(name);
+  }
+  
+  /**
+   * Gives the names of all the tables in the catalog
+   * @return The names
+   */
+  public Set<String> getTableNames()
+  {
+    return m_entries.keySet();
+  }
+  
+  /**
+   * Gives the site that hosts a table
+   * @param name The table's name
+   * @return The site's name, or <tt>null</tt> if the table
+   *   is not in the catalog
+   */
+  public String getSite(String name)
+  {
+    Entry e = m_entries.get(name);
+    if (e == null)
+      return null;
+    return e.m_site;
+  }
+  
+  /**
+   * Gives the schema of a table
+   * @param name The table's name
+   * @return The schema, or <tt>null</tt> if the table is not
+   *   in the catalog
+   */
+  public Schema getSchema(String name)
+  {
+    Entry e = m_entries.get(name);
+    if (e == null)
+      return null;
+    return e.m_schema;
+  }
+  
+  /**
+   * Gives the number of tuples of a table
+   * @param name The table's name
+   * @return The number of tuples, or 0 if the table is not
+   *   in the catalog
+   */
+  public int getCardinality(String name)
+  {
+    Entry e = m_entries.get(name);
+    if (e == null)
+      return 0;
+    if (e.m_statistics != null)
+      return (int) e.m_statistics.getRowCount();
+    return e.m_cardinality;
+  }
+  
+  /**
+   * Gives the statistics on the contents of a table
+   * @param name The table's name
+   * @return The statistics, or <tt>null</tt> if the table is not in
+   *   the catalog or has no statistics
+   */
+  public TableStatistics getStatistics(String name)
+  {
+    Entry e = m_entries.get(name);
+    if (e == null)
+      return null;
+    return e.m_statistics;
+  }
+  
+  /**
+   * What the catalog knows about a table
+   */
+  protected static class Entry
+  {
+    protected final String m_site;
+    protected final Schema m_schema;
+    protected final int m_cardinality;
+    protected final TableStatistics m_statistics;
+    
+    public Entry(String site, Schema sch, int cardinality, TableStatistics stats)
+    {
+      super();
+      m_site = site;
+      m_schema = sch;
+      m_cardinality = cardinality;
+      m_statistics = stats;
+    }
+  }
+}
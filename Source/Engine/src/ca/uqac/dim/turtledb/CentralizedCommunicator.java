@@ -18,20 +18,69 @@
 package ca.uqac.dim.turtledb;
 
 import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * Communicator simulating a distributed database in a single virtual
+ * machine, where all the sites are {@link Engine}s in memory. By
+ * default, a query is processed by polling every site in turn until
+ * the result comes back to its target site.
+ * <p>
+ * In <em>concurrent</em> mode, each site rather runs in its own
+ * thread, which receives the queries and fragments sent to the site
+ * in a queue. As soon as a site computes a fragment, it is put in the
+ * queue of its destination site; sites therefore compute their
+ * fragments in parallel, whenever their inputs are available.
+ * @author sylvain
+ *
+ */
 public class CentralizedCommunicator extends Communicator
 {
   protected Map<String,Engine> m_sites;
   
   protected List<Relation> m_results;
   
+  /**
+   * Whether each site runs in its own thread
+   */
+  protected final boolean m_concurrent;
+  
+  /**
+   * The threads running the sites, in concurrent mode
+   */
+  protected Map<String,SiteThread> m_threads;
+  
+  /**
+   * The results that come back to their target site, in
+   * concurrent mode
+   */
+  protected BlockingQueue<Relation> m_resultQueue;
+  
+  /**
+   * The catalog shared by all the sites
+   */
+  protected Catalog m_catalog;
+  
   protected static final int MAX_LOOPS = 100;
   
   public CentralizedCommunicator()
+  {
+    this(false);
+  }
+  
+  /**
+   * Creates a communicator
+   * @param concurrent Set to true to run each site in its own thread
+   */
+  public CentralizedCommunicator(boolean concurrent)
   {
     super();
-    m_sites = new HashMap<String,Engine>();
+    m_sites = new ConcurrentHashMap<String,Engine>();
     m_results = new LinkedList<Relation>();
+    m_catalog = new Catalog();
+    m_concurrent = concurrent;
+    m_threads = new ConcurrentHashMap<String,SiteThread>();
+    m_resultQueue = new LinkedBlockingQueue<Relation>();
   }
   
   public void run()
@@ -42,6 +91,37 @@ public class CentralizedCommunicator extends Communicator
   public void addSite(Engine e)
   {
     m_sites.put(e.m_siteName, e);
+    m_catalog.putAll(e.getCatalog());
+    e.setCatalog(m_catalog);
+    if (m_concurrent)
+    {
+      SiteThread t = new SiteThread(e);
+      m_threads.put(e.m_siteName, t);
+      t.start();
+    }
+  }
+  
+  /**
+   * Stops the threads running the sites, in concurrent mode
+   */
+  public void shutdown()
+  {
+    for (SiteThread t : m_threads.values())
+      t.interrupt();
+    m_threads.clear();
+  }
+  
+  /**
+   * Sends a query or a fragment to a site
+   * @param site_name The name of the site
+   * @param r The query or fragment
+   */
+  protected void send(String site_name, Relation r)
+  {
+    if (m_concurrent)
+      m_threads.get(site_name).m_inbox.add(r);
+    else
+      m_sites.get(site_name).addQuery(r);
   }
   
   public Engine getSite(String name)
@@ -124,6 +204,11 @@ public class CentralizedCommunicator extends Communicator
     {
       // Dispatch pieces of the plan to their respective site
       assert m_queryPlan != null;
+      if (m_concurrent)
+      {
+        runConcurrent();
+        return;
+      }
       for (String site_name : m_queryPlan.keySet())
       {
         Set<Relation> queries = m_queryPlan.get(site_name);
@@ -143,6 +228,33 @@ public class CentralizedCommunicator extends Communicator
       m_result = m_results.get(0);
     }
 
+    /**
+     * Sends the pieces of the plan to the threads of their sites, and
+     * waits until the result comes back. Queries are still processed
+     * one at a time, as the result of a query cannot be told apart
+     * from that of another one.
+     */
+    protected void runConcurrent()
+    {
+      synchronized (m_resultQueue)
+      {
+        for (String site_name : m_queryPlan.keySet())
+        {
+          for (Relation q : m_queryPlan.get(site_name))
+            send(site_name, q);
+        }
+        try
+        {
+          m_result = m_resultQueue.take();
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          m_result = null;
+        }
+      }
+    }
+
     @Override
     public Relation getResult()
     {
@@ -150,4 +262,74 @@ public class CentralizedCommunicator extends Communicator
     }
     
   }
+  
+  /**
+   * The thread running a site in concurrent mode. It waits for queries
+   * and fragments in its queue, gives them to the site's engine, and
+   * sends the fragments the engine computes to their destination.
+   */
+  protected class SiteThread extends Thread implements Engine.ResultListener
+  {
+    protected final Engine m_engine;
+    
+    /**
+     * The queries and fragments sent to the site
+     */
+    protected final BlockingQueue<Relation> m_inbox;
+    
+    public SiteThread(Engine e)
+    {
+      super("TurtleDB site " + e.m_siteName);
+      setDaemon(true);
+      m_engine = e;
+      m_inbox = new LinkedBlockingQueue<Relation>();
+    }
+    
+    @Override
+    public void run()
+    {
+      try
+      {
+        while (!isInterrupted())
+        {
+          // Take every message received so far, then process the
+          // queries they made ready
+          Relation r = m_inbox.take();
+          while (r != null)
+          {
+            m_engine.addQuery(r);
+            r = m_inbox.poll();
+          }
+          try
+          {
+            m_engine.processPendingQueries(this);
+          }
+          catch (RuntimeException e)
+          {
+            e.printStackTrace();
+          }
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // Stop
+      }
+    }
+    
+    @Override
+    public void resultComputed(Relation r)
+    {
+      if (r.isFragment())
+      {
+        // Dispatch the fragment to its destination right away
+        VariableTable vt = (VariableTable) r;
+        send(vt.getSite(), vt);
+      }
+      else
+      {
+        // The result is not topped with a placeholder
+        m_resultQueue.add(r);
+      }
+    }
+  }
 }
@@ -0,0 +1,762 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * A table that stores its tuples by column rather than by row.
+ * Each attribute of the schema has its own column: attributes of
+ * type <tt>int</tt>, <tt>long</tt> and <tt>double</tt> (see
+ * {@link ValueType}) are kept in arrays of primitive numbers, and all
+ * other attributes are <em>dictionary-encoded</em>: each distinct
+ * value is stored once, and the column only holds the integer code
+ * of the value in each row.
+ * <p>
+ * A columnar table behaves like any other {@link Table}: it holds a
+ * set of tuples, enumerated in sorted order, and can be used as a leaf
+ * of any query. Tuples are only built when they are enumerated. In
+ * addition, a {@link Projection} placed directly over a columnar table
+ * only reads the columns it keeps (see {@link #scan(Schema)}), so that
+ * the cost of evaluating a query depends on the number of attributes
+ * it uses rather than on the width of the table.
+ * <p>
+ * The sorted order of the rows is kept in a separate array of row
+ * numbers; inserting a tuple appends its values at the end of each
+ * column and inserts its row number at the proper position of that
+ * array. Tuples added with {@link #append(Tuple)} have their row
+ * numbers placed at the end of the array; sealing the table sorts
+ * them and merges them with the others.
+ * @author sylvain
+ *
+ */
+public class ColumnarTable extends Table
+{
+  /**
+   * The columns, one per attribute of the schema
+   */
+  protected Column[] m_columns;
+  
+  /**
+   * The row numbers, in the sorted order of the tuples
+   */
+  protected int[] m_order;
+  
+  /**
+   * The number of rows in the table
+   */
+  protected int m_size;
+  
+  /**
+   * The number of rows stored in the columns. Duplicates appended
+   * to the table are only removed from the sorted order, so this
+   * can be greater than the number of rows in the table.
+   */
+  protected int m_rows;
+  
+  /**
+   * The number of rows appended since the table was last sealed;
+   * their numbers follow the first m_size ones in m_order
+   */
+  protected int m_pending;
+  
+  /**
+   * Creates an empty columnar table
+   * @param name The table's name
+   * @param sch The table's schema
+   */
+  public ColumnarTable(String name, Schema sch)
+  {
+    super(name);
+    m_order = new int[16];
+    m_size = 0;
+    setSchema(sch);
+  }
+  
+  /**
+   * Creates a table with no schema and no storage, which is given
+   * those of another table by {@link #getSnapshot()}
+   * @param name The table's name
+   */
+  protected ColumnarTable(String name)
+  {
+    super(name);
+  }
+  
+  /**
+   * Constructor by copy
+   * @param r The relation whose tuples are copied into the table
+   */
+  public ColumnarTable(Relation r)
+  {
+    super();
+    m_order = new int[16];
+    m_size = 0;
+    copy(r);
+  }
+  
+  @Override
+  protected void setSchema(Schema sch)
+  {
+    super.setSchema(sch);
+    m_columns = new Column[m_schema.size()];
+    for (int i = 0; i < m_columns.length; i++)
+    {
+      m_columns[i] = Column.create(m_schema.get(i).getType());
+    }
+    m_size = 0;
+    m_rows = 0;
+    m_pending = 0;
+  }
+  
+  @Override
+  public void copy(Relation r)
+  {
+    assert r != null;
+    setSchema(r.getSchema());
+    Iterator<Tuple> i = r.iterator();
+    while (i.hasNext())
+    {
+      Tuple t = i.next();
+      this.append(t);
+    }
+    seal();
+  }
+  
+  /**
+   * Adds a new tuple to the table. The tuple's values are appended
+   * to each column, and its row number is inserted so as to keep
+   * the sorted order of the rows. Tuples already present in the
+   * table are silently ignored.
+   * @param t The tuple to add
+   */
+  @Override
+  public synchronized void put(Tuple t)
+  {
+    assert t != null;
+    assert t.size() == m_columns.length;
+    if (m_shared)
+      detach();
+    seal();
+    int index = search(t);
+    if (index >= 0) // We silently ignore tuples that are already present
+      return;
+    index = -index - 1;
+    int row = addRow(t);
+    if (m_size == m_order.length)
+      m_order = Arrays.copyOf(m_order, m_order.length * 2);
+    System.arraycopy(m_order, index, m_order, index + 1, m_size - index);
+    m_order[index] = row;
+    m_size++;
+    if (!m_indexes.isEmpty())
+      addToIndexes(getRow(row, m_schema, allColumns()));
+    addToStatistics(t);
+  }
+  
+  /**
+   * Adds a new tuple at the end of the columns; its row number is put
+   * in the sorted order when the table is sealed
+   * @param t The tuple to add
+   */
+  @Override
+  public synchronized void append(Tuple t)
+  {
+    assert t != null;
+    assert t.size() == m_columns.length;
+    if (m_shared)
+      detach();
+    int row = addRow(t);
+    int position = m_size + m_pending;
+    if (position == m_order.length)
+      m_order = Arrays.copyOf(m_order, m_order.length * 2);
+    m_order[position] = row;
+    m_pending++;
+    addToStatistics(t);
+  }
+  
+  /**
+   * Sorts the rows appended since the table was last sealed, and
+   * merges them with the rows already in sorted order, leaving out
+   * duplicates
+   */
+  @Override
+  public synchronized void seal()
+  {
+    if (m_pending == 0)
+      return;
+    Integer[] pending = new Integer[m_pending];
+    for (int i = 0; i < m_pending; i++)
+      pending[i] = m_order[m_size + i];
+    Arrays.sort(pending, new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer r1, Integer r2)
+      {
+        return compareRows(r1, r2);
+      }
+    });
+    int[] order = new int[Math.max(16, m_size + m_pending)];
+    int i = 0, j = 0, size = 0;
+    while (i < m_size || j < pending.length)
+    {
+      int row;
+      if (j == pending.length || (i < m_size && compareRows(m_order[i], pending[j]) <= 0))
+        row = m_order[i++];
+      else
+        row = pending[j++];
+      if (size == 0 || compareRows(order[size - 1], row) != 0)
+        order[size++] = row;
+    }
+    m_order = order;
+    m_size = size;
+    m_pending = 0;
+    rebuildIndexes();
+    checkStatistics(m_size);
+  }
+  
+  /**
+   * Gives a snapshot of the current contents of the table. The
+   * snapshot shares the columns of the table, which copies them the
+   * next time a tuple is inserted; unlike the tuples of a
+   * {@link Table}, the columns are copied whole, at a cost
+   * proportional to the size of the table. The indexes are shared
+   * as in a {@link Table}.
+   */
+  @Override
+  public synchronized Table getSnapshot()
+  {
+    seal();
+    ColumnarTable s = new ColumnarTable(m_name);
+    s.m_schema = m_schema;
+    s.m_columns = m_columns;
+    s.m_order = m_order;
+    s.m_size = m_size;
+    s.m_rows = m_rows;
+    s.m_pending = 0;
+    s.m_indexes = new ArrayList<HashIndex>(m_indexes);
+    s.m_shared = true;
+    m_shared = true;
+    return s;
+  }
+  
+  @Override
+  protected void detach()
+  {
+    Column[] columns = new Column[m_columns.length];
+    for (int i = 0; i < columns.length; i++)
+      columns[i] = m_columns[i].copy();
+    m_columns = columns;
+    m_order = Arrays.copyOf(m_order, m_order.length);
+    super.detach();
+  }
+  
+  /**
+   * Appends the values of a tuple at the end of each column
+   * @param t The tuple
+   * @return The number of the new row
+   */
+  protected int addRow(Tuple t)
+  {
+    int row = m_rows++;
+    for (int i = 0; i < m_columns.length; i++)
+    {
+      m_columns[i].add(t.get(i), row);
+    }
+    return row;
+  }
+  
+  /**
+   * Compares two rows of the table
+   */
+  protected int compareRows(int row1, int row2)
+  {
+    for (int i = 0; i < m_columns.length; i++)
+    {
+      int comp = m_columns[i].compareRows(row1, row2);
+      if (comp != 0)
+        return comp;
+    }
+    return 0;
+  }
+  
+  /**
+   * Looks for a tuple in the table
+   * @param t The tuple
+   * @return The position of the tuple in the sorted order of the rows
+   *   if it is present; otherwise, <tt>(-(insertion point) - 1)</tt>,
+   *   like {@link Collections#binarySearch(List, Object)}
+   */
+  protected int search(Tuple t)
+  {
+    int low = 0, high = m_size - 1;
+    while (low <= high)
+    {
+      int mid = (low + high) >>> 1;
+      int comp = compareRow(m_order[mid], t);
+      if (comp < 0)
+        low = mid + 1;
+      else if (comp > 0)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -(low + 1);
+  }
+  
+  /**
+   * Compares a row of the table to a tuple, in the same lexicographical
+   * order as {@link Tuple#compareTo(Tuple)}
+   * @param row The row number
+   * @param t The tuple
+   * @return A negative number, zero or a positive number if the row
+   *   is respectively smaller, equal or greater than the tuple
+   */
+  protected int compareRow(int row, Tuple t)
+  {
+    for (int i = 0; i < m_columns.length; i++)
+    {
+      int comp = m_columns[i].compare(row, t.get(i));
+      if (comp != 0)
+        return comp;
+    }
+    return 0;
+  }
+  
+  /**
+   * Builds the tuple for a row of the table
+   * @param row The row number
+   * @param sch The schema of the tuple
+   * @param columns The positions of the columns to read
+   * @return The tuple
+   */
+  protected Tuple getRow(int row, Schema sch, int[] columns)
+  {
+    Value[] values = new Value[columns.length];
+    for (int i = 0; i < columns.length; i++)
+    {
+      values[i] = m_columns[columns[i]].get(row);
+    }
+    return new Tuple(sch, values);
+  }
+  
+  @Override
+  public int getCardinality()
+  {
+    seal();
+    return m_size;
+  }
+  
+  @Override
+  public int tupleCount()
+  {
+    seal();
+    return m_size;
+  }
+  
+  @Override
+  public boolean contains(Tuple tup)
+  {
+    if (tup == null || tup.size() != m_columns.length)
+      return false;
+    seal();
+    return search(tup) >= 0;
+  }
+  
+  @Override
+  protected Iterator<Tuple> tupleIterator()
+  {
+    seal();
+    return new RowIterator(m_schema, allColumns());
+  }
+  
+  @Override
+  public RelationStreamIterator streamIterator()
+  {
+    seal();
+    return new ColumnarStreamIterator(m_schema, allColumns());
+  }
+  
+  @Override
+  public RelationIterator cacheIterator()
+  {
+    return streamIterator();
+  }
+  
+  /**
+   * Enumerates the tuples of the table restricted to some of its
+   * attributes. Only the columns of these attributes are read.
+   * Removing attributes may produce the same tuple more than once;
+   * the returned iterator does <em>not</em> remove these duplicates,
+   * which is left to the caller (typically a {@link Projection}).
+   * Tuples are not necessarily enumerated in sorted order.
+   * @param sch The attributes to keep; this is the schema of the
+   *   tuples produced by the iterator
+   * @return An iterator over the tuples, or <tt>null</tt> if some
+   *   attribute of <tt>sch</tt> is not in the table
+   */
+  public RelationStreamIterator scan(Schema sch)
+  {
+    seal();
+    int[] columns = sch.getOrdinalsIn(m_schema);
+    for (int c : columns)
+    {
+      if (c < 0)
+        return null;
+    }
+    return new ColumnarStreamIterator(sch, columns);
+  }
+  
+  /**
+   * Gives the positions of all the columns of the table
+   * @return The positions
+   */
+  protected int[] allColumns()
+  {
+    int[] columns = new int[m_columns.length];
+    for (int i = 0; i < columns.length; i++)
+      columns[i] = i;
+    return columns;
+  }
+  
+  /**
+   * Iterates over the rows of the table in sorted order
+   */
+  protected class RowIterator implements Iterator<Tuple>
+  {
+    protected final Schema m_rowSchema;
+    protected final int[] m_rowColumns;
+    protected int m_position;
+    
+    public RowIterator(Schema sch, int[] columns)
+    {
+      super();
+      m_rowSchema = sch;
+      m_rowColumns = columns;
+      m_position = 0;
+    }
+    
+    @Override
+    public boolean hasNext()
+    {
+      return m_position < m_size;
+    }
+    
+    @Override
+    public Tuple next()
+    {
+      if (m_position >= m_size)
+        throw new NoSuchElementException();
+      return getRow(m_order[m_position++], m_rowSchema, m_rowColumns);
+    }
+    
+    @Override
+    public void remove()
+    {
+      // Not supported at the moment
+    }
+  }
+  
+  protected class ColumnarStreamIterator extends RelationStreamIterator
+  {
+    protected final Schema m_rowSchema;
+    protected final int[] m_rowColumns;
+    protected int m_position;
+    
+    public ColumnarStreamIterator(Schema sch, int[] columns)
+    {
+      super(false);
+      m_rowSchema = sch;
+      m_rowColumns = columns;
+      m_position = 0;
+    }
+    
+    @Override
+    protected Tuple internalNext()
+    {
+      if (m_position >= m_size)
+        return null;
+      return getRow(m_order[m_position++], m_rowSchema, m_rowColumns);
+    }
+    
+    @Override
+    public void reset()
+    {
+      super.reset();
+      m_position = 0;
+    }
+  }
+  
+  /**
+   * The values of one attribute of the table
+   */
+  protected static abstract class Column
+  {
+    /**
+     * Creates an empty column for values of a given type
+     * @param type The type
+     * @return The column
+     */
+    public static Column create(ValueType type)
+    {
+      switch (type)
+      {
+      case INT:
+        return new IntColumn();
+      case LONG:
+        return new LongColumn();
+      case DOUBLE:
+        return new DoubleColumn();
+      default:
+        return new DictionaryColumn();
+      }
+    }
+    
+    /**
+     * Gives the value at some row
+     * @param row The row number
+     * @return The value
+     */
+    public abstract Value get(int row);
+    
+    /**
+     * Sets the value of a new row, appended at the end of the column
+     * @param v The value
+     * @param row The row number, equal to the current number of rows
+     */
+    public abstract void add(Value v, int row);
+    
+    /**
+     * Copies the column
+     * @return A column with the same values, which can be modified
+     *   independently of this one
+     */
+    public abstract Column copy();
+    
+    /**
+     * Compares the value at some row to another value
+     * @param row The row number
+     * @param v The value
+     * @return The result of comparing the row's value to <tt>v</tt>
+     */
+    public int compare(int row, Value v)
+    {
+      return get(row).compareTo(v);
+    }
+    
+    /**
+     * Compares the values at two rows
+     * @param row1 The first row number
+     * @param row2 The second row number
+     * @return The result of comparing the value of the first row to
+     *   that of the second
+     */
+    public int compareRows(int row1, int row2)
+    {
+      return compare(row1, get(row2));
+    }
+  }
+  
+  /**
+   * A column of 32-bit integers
+   */
+  protected static class IntColumn extends Column
+  {
+    protected int[] m_data = new int[16];
+    
+    @Override
+    public Value get(int row)
+    {
+      return new IntValue(m_data[row]);
+    }
+    
+    @Override
+    public void add(Value v, int row)
+    {
+      if (row == m_data.length)
+        m_data = Arrays.copyOf(m_data, m_data.length * 2);
+      m_data[row] = ((IntValue) ValueType.INT.cast(v)).intValue();
+    }
+    
+    @Override
+    public Column copy()
+    {
+      IntColumn c = new IntColumn();
+      c.m_data = Arrays.copyOf(m_data, m_data.length);
+      return c;
+    }
+    
+    @Override
+    public int compare(int row, Value v)
+    {
+      if (v instanceof IntValue)
+      {
+        int x = m_data[row], y = ((IntValue) v).intValue();
+        return x < y ? -1 : (x > y ? 1 : 0);
+      }
+      return super.compare(row, v);
+    }
+    
+    @Override
+    public int compareRows(int row1, int row2)
+    {
+      int x = m_data[row1], y = m_data[row2];
+      return x < y ? -1 : (x > y ? 1 : 0);
+    }
+  }
+  
+  /**
+   * A column of 64-bit integers
+   */
+  protected static class LongColumn extends Column
+  {
+    protected long[] m_data = new long[16];
+    
+    @Override
+    public Value get(int row)
+    {
+      return new LongValue(m_data[row]);
+    }
+    
+    @Override
+    public void add(Value v, int row)
+    {
+      if (row == m_data.length)
+        m_data = Arrays.copyOf(m_data, m_data.length * 2);
+      m_data[row] = ((LongValue) ValueType.LONG.cast(v)).longValue();
+    }
+    
+    @Override
+    public Column copy()
+    {
+      LongColumn c = new LongColumn();
+      c.m_data = Arrays.copyOf(m_data, m_data.length);
+      return c;
+    }
+    
+    @Override
+    public int compare(int row, Value v)
+    {
+      if (v instanceof LongValue)
+      {
+        long x = m_data[row], y = ((LongValue) v).longValue();
+        return x < y ? -1 : (x > y ? 1 : 0);
+      }
+      return super.compare(row, v);
+    }
+    
+    @Override
+    public int compareRows(int row1, int row2)
+    {
+      long x = m_data[row1], y = m_data[row2];
+      return x < y ? -1 : (x > y ? 1 : 0);
+    }
+  }
+  
+  /**
+   * A column of double-precision numbers
+   */
+  protected static class DoubleColumn extends Column
+  {
+    protected double[] m_data = new double[16];
+    
+    @Override
+    public Value get(int row)
+    {
+      return new DoubleValue(m_data[row]);
+    }
+    
+    @Override
+    public void add(Value v, int row)
+    {
+      if (row == m_data.length)
+        m_data = Arrays.copyOf(m_data, m_data.length * 2);
+      m_data[row] = ((DoubleValue) ValueType.DOUBLE.cast(v)).doubleValue();
+    }
+    
+    @Override
+    public Column copy()
+    {
+      DoubleColumn c = new DoubleColumn();
+      c.m_data = Arrays.copyOf(m_data, m_data.length);
+      return c;
+    }
+    
+    @Override
+    public int compare(int row, Value v)
+    {
+      if (v instanceof DoubleValue)
+      {
+        double x = m_data[row], y = ((DoubleValue) v).doubleValue();
+        return x < y ? -1 : (x > y ? 1 : 0);
+      }
+      return super.compare(row, v);
+    }
+  }
+  
+  /**
+   * A dictionary-encoded column. Each distinct value is stored once
+   * in the dictionary, and the column holds the code of the value
+   * in each row.
+   */
+  protected static class DictionaryColumn extends Column
+  {
+    protected int[] m_codes = new int[16];
+    protected List<Value> m_dictionary = new ArrayList<Value>();
+    protected Map<Value,Integer> m_lookup = new HashMap<Value,Integer>();
+    
+    @Override
+    public Value get(int row)
+    {
+      return m_dictionary.get(m_codes[row]);
+    }
+    
+    @Override
+    public void add(Value v, int row)
+    {
+      if (row == m_codes.length)
+        m_codes = Arrays.copyOf(m_codes, m_codes.length * 2);
+      Integer code = m_lookup.get(v);
+      if (code == null)
+      {
+        code = m_dictionary.size();
+        m_dictionary.add(v);
+        m_lookup.put(v, code);
+      }
+      m_codes[row] = code;
+    }
+    
+    @Override
+    public Column copy()
+    {
+      DictionaryColumn c = new DictionaryColumn();
+      c.m_codes = Arrays.copyOf(m_codes, m_codes.length);
+      c.m_dictionary.addAll(m_dictionary);
+      c.m_lookup.putAll(m_lookup);
+      return c;
+    }
+    
+    /**
+     * Gives the number of distinct values in the column
+     * @return The number of values
+     */
+    public int getDictionarySize()
+    {
+      return m_dictionary.size();
+    }
+  }
+}
@@ -34,7 +34,7 @@ public abstract class Communicator implements Runnable
     
     public QueryExecutionException(String message)
     {
-      super();
+      super(message);
       m_message = message;
     }
     
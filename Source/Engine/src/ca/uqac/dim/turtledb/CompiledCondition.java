@@ -0,0 +1,342 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+/**
+ * A condition resolved once and for all against the schema of the
+ * rows it is evaluated on. Attributes are replaced by positions and
+ * constants are converted to the type of the attribute they are
+ * compared to, exactly as an {@link Equality} does when it is bound;
+ * the condition is then evaluated directly on the array of values
+ * of a row, without looking at its schema.
+ * @author sylvain
+ *
+ */
+public abstract class CompiledCondition
+{
+  /**
+   * The condition that is always true
+   */
+  public static final CompiledCondition TRUE = new Constant(true);
+  
+  /**
+   * The condition that is always false
+   */
+  public static final CompiledCondition FALSE = new Constant(false);
+  
+  /**
+   * Evaluates the condition
+   * @param values The values of the row, in the order of the schema
+   *   the condition was compiled against
+   * @return True if the row satisfies the condition, false otherwise
+   */
+  public abstract boolean evaluate(Value[] values);
+  
+  /**
+   * Compiles a condition
+   * @param c The condition; <tt>null</tt> stands for a condition that
+   *   is always true
+   * @param sch The schema of the rows the condition will be
+   *   evaluated on
+   * @return The compiled condition
+   */
+  public static CompiledCondition compile(Condition c, Schema sch)
+  {
+    if (c == null)
+      return TRUE;
+    if (c instanceof Equality)
+      return compileEquality((Equality) c, sch);
+    if (c instanceof LogicalAnd || c instanceof LogicalOr)
+    {
+      NAryCondition n = (NAryCondition) c;
+      CompiledCondition[] children = new CompiledCondition[n.m_conditions.size()];
+      for (int i = 0; i < children.length; i++)
+        children[i] = compile(n.m_conditions.get(i), sch);
+      if (c instanceof LogicalAnd)
+        return new And(children);
+      return new Or(children);
+    }
+    if (c instanceof LogicalNot)
+    {
+      NAryCondition n = (NAryCondition) c;
+      if (n.m_conditions.isEmpty())
+        return TRUE;
+      return new Not(compile(n.m_conditions.get(0), sch));
+    }
+    return new Interpreted(c, sch);
+  }
+  
+  protected static CompiledCondition compileEquality(Equality e, Schema sch)
+  {
+    // The binding resolves the operands the same way as when the
+    // equality is evaluated on a tuple
+    Equality.Binding b = e.new Binding(sch);
+    if (b.m_leftPosition >= 0 && b.m_rightPosition >= 0)
+    {
+      if (b.m_leftConversion != null || b.m_rightConversion != null)
+        return new Interpreted(e, sch); // Values are converted
+      return new PositionEquality(b.m_leftPosition, b.m_rightPosition);
+    }
+    if (b.m_leftPosition >= 0)
+    {
+      if (b.m_rightConstant == null)
+        return FALSE;
+      return constantEquality(b.m_leftPosition, b.m_rightConstant, false);
+    }
+    if (b.m_rightPosition >= 0)
+    {
+      if (b.m_leftConstant == null)
+        return FALSE;
+      return constantEquality(b.m_rightPosition, b.m_leftConstant, true);
+    }
+    if (b.m_leftConstant == null || b.m_rightConstant == null)
+      return FALSE;
+    return b.m_leftConstant.equals(b.m_rightConstant) ? TRUE : FALSE;
+  }
+  
+  /**
+   * Compiles the equality between the value at some position and a
+   * constant, specializing it for the most common kinds of constants
+   */
+  protected static CompiledCondition constantEquality(int position, Value constant, boolean constant_first)
+  {
+    if (constant instanceof IntValue)
+      return new IntEquality(position, (IntValue) constant);
+    if (constant.getClass() == Value.class)
+      return new StringEquality(position, constant);
+    return new ConstantEquality(position, constant, constant_first);
+  }
+  
+  protected static class Constant extends CompiledCondition
+  {
+    protected final boolean m_value;
+    
+    public Constant(boolean value)
+    {
+      super();
+      m_value = value;
+    }
+    
+    @Override
+    public boolean evaluate(Value[] values)
+    {
+      return m_value;
+    }
+  }
+  
+  /**
+   * Equality between the values at two positions
+   */
+  protected static class PositionEquality extends CompiledCondition
+  {
+    protected final int m_left;
+    protected final int m_right;
+    
+    public PositionEquality(int left, int right)
+    {
+      super();
+      m_left = left;
+      m_right = right;
+    }
+    
+    @Override
+    public boolean evaluate(Value[] values)
+    {
+      Value left = values[m_left];
+      return left != null && left.equals(values[m_right]);
+    }
+  }
+  
+  /**
+   * Equality between the value at some position and a constant
+   */
+  protected static class ConstantEquality extends CompiledCondition
+  {
+    protected final int m_position;
+    protected final Value m_constant;
+    
+    /**
+     * Whether the constant is the left operand of the equality
+     */
+    protected final boolean m_constantFirst;
+    
+    public ConstantEquality(int position, Value constant, boolean constant_first)
+    {
+      super();
+      m_position = position;
+      m_constant = constant;
+      m_constantFirst = constant_first;
+    }
+    
+    @Override
+    public boolean evaluate(Value[] values)
+    {
+      Value v = values[m_position];
+      if (v == null)
+        return false;
+      if (m_constantFirst)
+        return m_constant.equals(v);
+      return v.equals(m_constant);
+    }
+  }
+  
+  /**
+   * Equality between the value at some position and an integer. Two
+   * integers are compared directly; any other value is compared as
+   * by {@link Value#equals(Value)}, which is symmetric for integers.
+   */
+  protected static class IntEquality extends CompiledCondition
+  {
+    protected final int m_position;
+    protected final IntValue m_constant;
+    protected final int m_int;
+    
+    public IntEquality(int position, IntValue constant)
+    {
+      super();
+      m_position = position;
+      m_constant = constant;
+      m_int = constant.intValue();
+    }
+    
+    @Override
+    public boolean evaluate(Value[] values)
+    {
+      Value v = values[m_position];
+      if (v instanceof IntValue)
+        return ((IntValue) v).intValue() == m_int;
+      return v != null && m_constant.equals(v);
+    }
+  }
+  
+  /**
+   * Equality between the value at some position and a character
+   * string. Two plain values are equal when their strings are, so
+   * that the strings can be compared directly.
+   */
+  protected static class StringEquality extends CompiledCondition
+  {
+    protected final int m_position;
+    protected final Value m_constant;
+    protected final String m_string;
+    
+    public StringEquality(int position, Value constant)
+    {
+      super();
+      m_position = position;
+      m_constant = constant;
+      m_string = constant.toString();
+    }
+    
+    @Override
+    public boolean evaluate(Value[] values)
+    {
+      Value v = values[m_position];
+      if (v == null)
+        return false;
+      if (v.getClass() == Value.class)
+        return m_string.equals(v.toString());
+      return m_constant.equals(v);
+    }
+  }
+  
+  protected static class And extends CompiledCondition
+  {
+    protected final CompiledCondition[] m_children;
+    
+    public And(CompiledCondition[] children)
+    {
+      super();
+      m_children = children;
+    }
+    
+    @Override
+    public boolean evaluate(Value[] values)
+    {
+      for (CompiledCondition c : m_children)
+      {
+        if (!c.evaluate(values))
+          return false;
+      }
+      return true;
+    }
+  }
+  
+  protected static class Or extends CompiledCondition
+  {
+    protected final CompiledCondition[] m_children;
+    
+    public Or(CompiledCondition[] children)
+    {
+      super();
+      m_children = children;
+    }
+    
+    @Override
+    public boolean evaluate(Value[] values)
+    {
+      for (CompiledCondition c : m_children)
+      {
+        if (c.evaluate(values))
+          return true;
+      }
+      return false;
+    }
+  }
+  
+  protected static class Not extends CompiledCondition
+  {
+    protected final CompiledCondition m_child;
+    
+    public Not(CompiledCondition child)
+    {
+      super();
+      m_child = child;
+    }
+    
+    @Override
+    public boolean evaluate(Value[] values)
+    {
+      return !m_child.evaluate(values);
+    }
+  }
+  
+  /**
+   * A condition of an unknown kind, evaluated on a tuple built
+   * for the occasion
+   */
+  protected static class Interpreted extends CompiledCondition
+  {
+    protected final Condition m_condition;
+    protected final Schema m_schema;
+    
+    public Interpreted(Condition c, Schema sch)
+    {
+      super();
+      m_condition = c;
+      m_schema = sch;
+      c.bind(sch);
+    }
+    
+    @Override
+    public boolean evaluate(Value[] values)
+    {
+      return m_condition.evaluate(new Tuple(m_schema, values));
+    }
+  }
+}
@@ -0,0 +1,408 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * A query compiled into a pipeline of fused operations, for queries
+ * that are evaluated many times. Evaluating a query tree directly
+ * goes through the iterator of every operator for each tuple, and
+ * resolves the attributes of conditions against the schema of the
+ * tuples it sees. Compiling the query does this work once:
+ * <ul>
+ * <li>selections become {@link CompiledCondition}s that read the
+ *   values of a row at known positions;</li>
+ * <li>projections become arrays of positions;</li>
+ * <li>renamings disappear, as they do not change the values;</li>
+ * <li>joins with equality keys become hash joins, whose key positions
+ *   are known in advance.</li>
+ * </ul>
+ * When the query is evaluated, the rows of each table are pushed
+ * through the chain of operations above it, as plain arrays of values;
+ * the only tuples built are those of the result. A hash join
+ * interrupts the chain: the rows of one of its operands are first put
+ * in a hash table, and the rows of the other are then pushed through
+ * it.
+ * <p>
+ * Any other operator (e.g. a {@link Union}) is left to the usual
+ * evaluation: its tuples are read through its iterator and pushed
+ * into the operations above it. Since the query is compiled against
+ * the tables themselves and not their contents, a compiled query
+ * always reflects the current contents of the tables.
+ * @author sylvain
+ *
+ */
+public class CompiledQuery
+{
+  /**
+   * The schema of the result
+   */
+  protected final Schema m_schema;
+  
+  protected final Pipeline m_pipeline;
+  
+  /**
+   * The number of operators left to the usual evaluation
+   */
+  protected int m_interpreted;
+  
+  protected CompiledQuery(Relation query)
+  {
+    super();
+    m_schema = query.getSchema();
+    m_interpreted = 0;
+    m_pipeline = compile(query, true);
+  }
+  
+  /**
+   * Compiles a query
+   * @param query The query. Its leaves must be tables, or
+   *   {@link VariableTable}s linked to tables.
+   * @return The compiled query
+   * @throws IllegalArgumentException If the schema of a part of the
+   *   query is unknown, e.g. because a leaf is not linked to a table
+   */
+  public static CompiledQuery compile(Relation query)
+  {
+    return new CompiledQuery(query);
+  }
+  
+  /**
+   * Gives the schema of the query's result
+   * @return The schema
+   */
+  public Schema getSchema()
+  {
+    return m_schema;
+  }
+  
+  /**
+   * Gives the number of operators of the query that could not be
+   * compiled, and are evaluated in the usual way
+   * @return The number of operators
+   */
+  public int getInterpretedCount()
+  {
+    return m_interpreted;
+  }
+  
+  /**
+   * Evaluates the query
+   * @return A new table holding the result
+   */
+  public Table evaluate()
+  {
+    final Table out = new Table(m_schema);
+    m_pipeline.run(new Sink()
+    {
+      @Override
+      public void push(Value[] row)
+      {
+        out.append(new Tuple(m_schema, row));
+      }
+    });
+    out.seal();
+    return out;
+  }
+  
+  /**
+   * Compiles a node of the query
+   * @param r The node
+   * @param root Whether the node is the root of the query
+   * @return The pipeline producing the rows of the node
+   */
+  protected Pipeline compile(Relation r, boolean root)
+  {
+    if (r.getSchema() == null)
+      throw new IllegalArgumentException("Cannot compile a query with an unlinked table");
+    if (r instanceof Selection)
+    {
+      Selection s = (Selection) r;
+      Schema sch = s.m_relation.getSchema();
+      Pipeline child;
+      if (Table.asTable(s.m_relation) != null)
+        child = new Scan(s.m_relation, s.m_condition); // Can use an index
+      else
+        child = compile(s.m_relation, false);
+      return new Filter(child, CompiledCondition.compile(s.m_condition, sch));
+    }
+    if (r instanceof Projection)
+    {
+      Projection p = (Projection) r;
+      if (p.m_relation.getSchema() == null)
+        throw new IllegalArgumentException("Cannot compile a query with an unlinked table");
+      int[] positions = p.getSchema().getOrdinalsIn(p.m_relation.getSchema());
+      // The result is rid of duplicates anyway; elsewhere, duplicates
+      // would multiply the work of the operators above
+      boolean distinct = !root && !p.isDuplicateFree();
+      return new Project(compile(p.m_relation, false), positions, distinct);
+    }
+    if (r instanceof Renaming)
+      return compile(((Renaming) r).m_relation, root);
+    if (r instanceof Join)
+    {
+      Join j = (Join) r;
+      JoinKeys keys = new JoinKeys(j.m_condition, j.m_left.getSchema(), j.m_right.getSchema());
+      // Keys whose values must be converted are left to the join itself
+      if (keys.hasKeys() && !keys.hasConversions())
+      {
+        return new HashJoin(j, compile(j.m_left, false), compile(j.m_right, false), keys,
+            CompiledCondition.compile(keys.getResidual(), j.getSchema()));
+      }
+    }
+    if (!r.isLeaf())
+      m_interpreted++;
+    return new Scan(r, null);
+  }
+  
+  /**
+   * Receives the rows produced by a pipeline
+   */
+  protected abstract static class Sink
+  {
+    /**
+     * Receives a row
+     * @param row The row's values. The array must not be modified.
+     */
+    public abstract void push(Value[] row);
+  }
+  
+  /**
+   * Produces the rows of a part of the query
+   */
+  protected abstract static class Pipeline
+  {
+    /**
+     * Pushes all the rows into a sink
+     * @param s The sink
+     */
+    public abstract void run(Sink s);
+  }
+  
+  /**
+   * Reads the tuples of a relation, a batch at a time
+   */
+  protected static class Scan extends Pipeline
+  {
+    protected final Relation m_relation;
+    
+    /**
+     * A condition that the rows will be filtered with, used to find
+     * them through an index of the table; <tt>null</tt> if none
+     */
+    protected final Condition m_lookup;
+    
+    public Scan(Relation r, Condition lookup)
+    {
+      super();
+      m_relation = r;
+      m_lookup = lookup;
+    }
+    
+    @Override
+    public void run(Sink s)
+    {
+      if (m_lookup != null)
+      {
+        Table tab = Table.asTable(m_relation);
+        List<Tuple> candidates = tab == null ? null : tab.lookup(m_lookup);
+        if (candidates != null)
+        {
+          for (Tuple t : candidates)
+            s.push(t.m_values);
+          return;
+        }
+      }
+      RelationIterator it = m_relation.iterator();
+      for (TupleBatch b = it.nextBatch(); b != null; b = it.nextBatch())
+      {
+        for (int i = 0; i < b.size(); i++)
+          s.push(b.get(i).m_values);
+      }
+    }
+  }
+  
+  protected static class Filter extends Pipeline
+  {
+    protected final Pipeline m_child;
+    protected final CompiledCondition m_condition;
+    
+    public Filter(Pipeline child, CompiledCondition c)
+    {
+      super();
+      m_child = child;
+      m_condition = c;
+    }
+    
+    @Override
+    public void run(final Sink s)
+    {
+      m_child.run(new Sink()
+      {
+        @Override
+        public void push(Value[] row)
+        {
+          if (m_condition.evaluate(row))
+            s.push(row);
+        }
+      });
+    }
+  }
+  
+  protected static class Project extends Pipeline
+  {
+    protected final Pipeline m_child;
+    
+    /**
+     * For each value of the output rows, its position in the input
+     * rows; -1 if the attribute is not in the input
+     */
+    protected final int[] m_positions;
+    
+    /**
+     * Whether duplicate output rows are removed
+     */
+    protected final boolean m_distinct;
+    
+    public Project(Pipeline child, int[] positions, boolean distinct)
+    {
+      super();
+      m_child = child;
+      m_positions = positions;
+      m_distinct = distinct;
+    }
+    
+    @Override
+    public void run(final Sink s)
+    {
+      final Set<List<Value>> seen = m_distinct ? new HashSet<List<Value>>() : null;
+      m_child.run(new Sink()
+      {
+        @Override
+        public void push(Value[] row)
+        {
+          Value[] out = new Value[m_positions.length];
+          for (int i = 0; i < out.length; i++)
+          {
+            int pos = m_positions[i];
+            if (pos >= 0)
+              out[i] = row[pos];
+          }
+          if (seen == null || seen.add(Arrays.asList(out)))
+            s.push(out);
+        }
+      });
+    }
+  }
+  
+  /**
+   * Hash join on the keys of the join condition. As in the usual
+   * evaluation, the hash table is built from the operand with
+   * the fewest tuples.
+   */
+  protected static class HashJoin extends Pipeline
+  {
+    protected final Join m_join;
+    protected final Pipeline m_left;
+    protected final Pipeline m_right;
+    protected final int[] m_leftPositions;
+    protected final int[] m_rightPositions;
+    
+    /**
+     * The part of the condition that is not an equality between keys,
+     * compiled against the schema of the joined rows
+     */
+    protected final CompiledCondition m_residual;
+    
+    public HashJoin(Join j, Pipeline left, Pipeline right, JoinKeys keys, CompiledCondition residual)
+    {
+      super();
+      m_join = j;
+      m_left = left;
+      m_right = right;
+      m_leftPositions = keys.getLeftPositions();
+      m_rightPositions = keys.getRightPositions();
+      m_residual = residual;
+    }
+    
+    @Override
+    public void run(final Sink s)
+    {
+      final boolean build_left = m_join.m_left.tupleCount() <= m_join.m_right.tupleCount();
+      final int[] build_positions = build_left ? m_leftPositions : m_rightPositions;
+      final int[] probe_positions = build_left ? m_rightPositions : m_leftPositions;
+      final Map<Object,List<Value[]>> table = new HashMap<Object,List<Value[]>>();
+      (build_left ? m_left : m_right).run(new Sink()
+      {
+        @Override
+        public void push(Value[] row)
+        {
+          Object key = key(row, build_positions);
+          if (key == null)
+            return; // Can match no row
+          List<Value[]> list = table.get(key);
+          if (list == null)
+          {
+            list = new ArrayList<Value[]>(1);
+            table.put(key, list);
+          }
+          list.add(row);
+        }
+      });
+      if (table.isEmpty())
+        return;
+      (build_left ? m_right : m_left).run(new Sink()
+      {
+        @Override
+        public void push(Value[] row)
+        {
+          Object key = key(row, probe_positions);
+          List<Value[]> matches = key == null ? null : table.get(key);
+          if (matches == null)
+            return;
+          for (Value[] match : matches)
+          {
+            Value[] out = build_left ? Tuple.concat(match, row) : Tuple.concat(row, match);
+            if (m_residual.evaluate(out))
+              s.push(out);
+          }
+        }
+      });
+    }
+  }
+  
+  /**
+   * Builds the key of a row, as {@link JoinKeys} does for a tuple
+   * @return The key, or <tt>null</tt> if a value of the key is missing
+   */
+  protected static Object key(Value[] row, int[] positions)
+  {
+    if (positions.length == 1)
+      return row[positions[0]];
+    Value[] values = new Value[positions.length];
+    for (int i = 0; i < positions.length; i++)
+    {
+      Value v = row[positions[i]];
+      if (v == null)
+        return null;
+      values[i] = v;
+    }
+    return Arrays.asList(values);
+  }
+}
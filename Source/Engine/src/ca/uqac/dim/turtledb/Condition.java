@@ -17,9 +17,37 @@
  -------------------------------------------------------------------------*/
 package ca.uqac.dim.turtledb;
 
+import java.util.List;
+
 public abstract class Condition
 {
   public abstract boolean evaluate(Tuple t);
   
   public abstract void accept(ConditionVisitor v);
+  
+  /**
+   * Resolves the attributes mentioned in the condition to their
+   * position in a given schema. Operators call this method once,
+   * with the schema of the tuples they are about to evaluate;
+   * the condition then reads values by position instead of
+   * looking up attribute names for every tuple. Evaluating a
+   * tuple of another schema simply resolves the positions again.
+   * @param sch The schema
+   */
+  public void bind(Schema sch)
+  {
+    // Nothing to resolve by default
+  }
+  
+  /**
+   * Splits the condition into conjuncts, i.e. conditions that must
+   * all be true for this condition to be true. By default, a condition
+   * is its only conjunct; a {@link LogicalAnd} adds the conjuncts of
+   * each of its operands.
+   * @param conjuncts The list where the conjuncts are added
+   */
+  public void addConjuncts(List<Condition> conjuncts)
+  {
+    conjuncts.add(this);
+  }
 }
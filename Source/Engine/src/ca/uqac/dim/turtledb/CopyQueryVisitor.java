@@ -0,0 +1,262 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * Visitor that builds a copy of a query tree. Since visitors are
+ * called on the children of an operator before the operator itself,
+ * the copy is built bottom-up: each call to <tt>visit</tt> pops the
+ * copies of the operator's operands from a stack, and pushes the
+ * copy of the operator. Leaves ({@link Table}s and
+ * {@link VariableTable}s) are not copied, but shared with the
+ * original tree.
+ * <p>
+ * This class is meant to be extended by visitors that transform a
+ * query tree without modifying it, such as the {@link QueryRewriter}:
+ * they only need to override the methods for the operators they
+ * transform.
+ * @author sylvain
+ *
+ */
+public class CopyQueryVisitor extends QueryVisitor
+{
+  protected Stack<Relation> m_parts;
+  
+  public CopyQueryVisitor()
+  {
+    super();
+    m_parts = new Stack<Relation>();
+  }
+  
+  /**
+   * Gives the copy of the query tree that was visited
+   * @return The copy
+   */
+  public Relation getResult()
+  {
+    return m_parts.peek();
+  }
+  
+  /**
+   * Gives the copy of a query tree
+   * @param r The query tree
+   * @return The copy
+   */
+  public static Relation copy(Relation r)
+  {
+    CopyQueryVisitor v = new CopyQueryVisitor();
+    try
+    {
+      r.accept(v);
+    }
+    catch (QueryVisitor.VisitorException e)
+    {
+      // Does not happen
+      e.printStackTrace();
+    }
+    return v.getResult();
+  }
+  
+  /**
+   * Gives a copy the same evaluation mode as the original relation
+   * @param original The original relation
+   * @param copy The copy
+   * @return The copy
+   */
+  protected static Relation copyMode(Relation original, Relation copy)
+  {
+    copy.setStreamingMode(original.m_streamingMode);
+    copy.setMemoryBudget(original.m_budget);
+    return copy;
+  }
+  
+  /**
+   * Gives the operands of an operator
+   * @param r The operator
+   * @return The operands, in order; the list is empty for a leaf
+   */
+  public static List<Relation> operandsOf(Relation r)
+  {
+    List<Relation> out = new ArrayList<Relation>();
+    if (r instanceof VariableTable)
+      return out;
+    if (r instanceof UnaryRelation)
+      out.add(((UnaryRelation) r).m_relation);
+    else if (r instanceof BinaryRelation)
+    {
+      out.add(((BinaryRelation) r).m_left);
+      out.add(((BinaryRelation) r).m_right);
+    }
+    else if (r instanceof NAryRelation)
+      out.addAll(((NAryRelation) r).m_relations);
+    return out;
+  }
+  
+  /**
+   * Copies an operator, giving it new operands
+   * @param r The operator
+   * @param operands The operands of the copy, in the order
+   *   given by {@link #operandsOf(Relation)}
+   * @return The copy, or <tt>r</tt> itself if it is a leaf
+   */
+  public static Relation copyOperator(Relation r, List<Relation> operands)
+  {
+    Relation out = r;
+    if (r instanceof Selection)
+      out = new Selection(((Selection) r).m_condition, operands.get(0));
+    else if (r instanceof Projection)
+      out = new Projection(((Projection) r).m_schema, operands.get(0));
+    else if (r instanceof Renaming)
+    {
+      Renaming ren = new Renaming(operands.get(0));
+      ren.m_renamedAttributes.putAll(((Renaming) r).m_renamedAttributes);
+      out = ren;
+    }
+    else if (r instanceof Join)
+      return copyJoin((Join) r, ((Join) r).m_condition, operands.get(0), operands.get(1));
+    else if (r instanceof NAryRelation)
+    {
+      NAryRelation n;
+      if (r instanceof Union)
+        n = new Union();
+      else if (r instanceof Intersection)
+        n = new Intersection();
+      else
+        n = new Product();
+      for (Relation op : operands)
+        n.addOperand(op);
+      out = n;
+    }
+    if (out != r)
+      copyMode(r, out);
+    return out;
+  }
+  
+  /**
+   * Pops the copies of the operands of an <i>n</i>-ary operator
+   * @param r The operator
+   * @return The copies, in the order of the original operands
+   */
+  protected List<Relation> popOperands(NAryRelation r)
+  {
+    LinkedList<Relation> operands = new LinkedList<Relation>();
+    for (int i = 0; i < r.getArity(); i++)
+      operands.addFirst(m_parts.pop());
+    return operands;
+  }
+
+  /**
+   * Replaces the copies of the operand of a unary operator by
+   * the copy of the operator
+   */
+  protected void visitUnary(UnaryRelation r)
+  {
+    List<Relation> operands = new ArrayList<Relation>(1);
+    operands.add(m_parts.pop());
+    m_parts.push(copyOperator(r, operands));
+  }
+  
+  /**
+   * Replaces the copies of the operands of an <i>n</i>-ary operator
+   * by the copy of the operator
+   */
+  protected void visitNAry(NAryRelation r)
+  {
+    m_parts.push(copyOperator(r, popOperands(r)));
+  }
+
+  @Override
+  public void visit(Projection r) throws VisitorException
+  {
+    visitUnary(r);
+  }
+
+  @Override
+  public void visit(Selection r) throws VisitorException
+  {
+    visitUnary(r);
+  }
+
+  @Override
+  public void visit(Table r) throws VisitorException
+  {
+    m_parts.push(r);
+  }
+
+  @Override
+  public void visit(VariableTable r) throws VisitorException
+  {
+    // The relation the table is linked to is not copied
+    if (r.m_relation != null)
+      m_parts.pop();
+    m_parts.push(r);
+  }
+
+  @Override
+  public void visit(Union r) throws VisitorException
+  {
+    visitNAry(r);
+  }
+
+  @Override
+  public void visit(Intersection r) throws VisitorException
+  {
+    visitNAry(r);
+  }
+
+  @Override
+  public void visit(Join r) throws VisitorException
+  {
+    Relation right = m_parts.pop();
+    Relation left = m_parts.pop();
+    m_parts.push(copyJoin(r, r.m_condition, left, right));
+  }
+  
+  /**
+   * Copies a join with new operands
+   * @param r The original join
+   * @param c The condition of the copy
+   * @param left The left operand of the copy
+   * @param right The right operand of the copy
+   * @return The copy
+   */
+  protected static Join copyJoin(Join r, Condition c, Relation left, Relation right)
+  {
+    Join j = new Join(c);
+    j.setLeft(left);
+    j.setRight(right);
+    j.setStrategy(r.m_strategy);
+    j.setSortBufferSize(r.m_sortBufferSize);
+    copyMode(r, j);
+    return j;
+  }
+
+  @Override
+  public void visit(Product r) throws VisitorException
+  {
+    visitNAry(r);
+  }
+
+  @Override
+  public void visit(Renaming r) throws VisitorException
+  {
+    visitUnary(r);
+  }
+}
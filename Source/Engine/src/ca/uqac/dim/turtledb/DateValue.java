@@ -0,0 +1,137 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.text.*;
+import java.util.*;
+
+/**
+ * A value holding a calendar date, in the format
+ * <tt>yyyy-MM-dd</tt>. Dates are compared chronologically to each
+ * other; they come after all numbers and before all strings.
+ * @author sylvain
+ *
+ */
+public class DateValue extends Value
+{
+  /**
+   * The format used to read and print dates
+   */
+  public static final String DATE_FORMAT = "yyyy-MM-dd";
+  
+  /**
+   * Date formats are not thread-safe; each thread gets its own
+   */
+  private static final ThreadLocal<DateFormat> s_format = new ThreadLocal<DateFormat>()
+  {
+    @Override
+    protected DateFormat initialValue()
+    {
+      DateFormat df = new SimpleDateFormat(DATE_FORMAT);
+      df.setTimeZone(TimeZone.getTimeZone("UTC"));
+      df.setLenient(false);
+      return df;
+    }
+  };
+  
+  /**
+   * The date, in milliseconds since the epoch (UTC)
+   */
+  private final long m_time;
+  
+  /**
+   * The string representation of the date, computed on demand
+   */
+  private String m_string;
+  
+  public DateValue(long time)
+  {
+    super();
+    m_time = time;
+    m_string = null;
+  }
+  
+  /**
+   * Builds a date from a string in the format {@link #DATE_FORMAT}
+   * @param s The string
+   * @return The date
+   * @throws IllegalArgumentException If the string is not a valid date
+   */
+  public static DateValue parse(String s)
+  {
+    try
+    {
+      Date d = s_format.get().parse(s);
+      return new DateValue(d.getTime());
+    }
+    catch (ParseException e)
+    {
+      throw new IllegalArgumentException("Invalid date: " + s);
+    }
+  }
+  
+  /**
+   * Gives the date in milliseconds since the epoch
+   * @return The date
+   */
+  public long getTime()
+  {
+    return m_time;
+  }
+  
+  @Override
+  public ValueType getType()
+  {
+    return ValueType.DATE;
+  }
+  
+  @Override
+  protected int getRank()
+  {
+    return 1;
+  }
+  
+  @Override
+  public String toString()
+  {
+    if (m_string == null)
+      m_string = s_format.get().format(new Date(m_time));
+    return m_string;
+  }
+  
+  @Override
+  public int hashCode()
+  {
+    return toString().hashCode();
+  }
+  
+  @Override
+  public int compareTo(Value o)
+  {
+    if (o instanceof DateValue)
+    {
+      long v = ((DateValue) o).m_time;
+      if (m_time < v)
+        return -1;
+      if (m_time > v)
+        return 1;
+      return 0;
+    }
+    return super.compareTo(o);
+  }
+}
@@ -0,0 +1,92 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+/**
+ * A value holding a double-precision number. A number with no
+ * fractional part is printed without a decimal point, like the
+ * {@link IntValue} or {@link LongValue} holding the same number
+ * (to which it is equal).
+ * @author sylvain
+ *
+ */
+public class DoubleValue extends NumericValue
+{
+  /**
+   * Numbers beyond this magnitude are always printed in
+   * floating-point notation
+   */
+  protected static final double MAX_INTEGRAL = 1e15;
+  
+  private final double m_value;
+  
+  public DoubleValue(double v)
+  {
+    super();
+    m_value = v;
+  }
+  
+  @Override
+  public long longValue()
+  {
+    return (long) m_value;
+  }
+  
+  @Override
+  public double doubleValue()
+  {
+    return m_value;
+  }
+  
+  @Override
+  public ValueType getType()
+  {
+    return ValueType.DOUBLE;
+  }
+  
+  /**
+   * Determines if the number has no fractional part
+   * @return True if the number is integral, false otherwise
+   */
+  protected boolean isIntegral()
+  {
+    return m_value == Math.rint(m_value) && Math.abs(m_value) < MAX_INTEGRAL;
+  }
+  
+  @Override
+  public String toString()
+  {
+    if (isIntegral())
+      return Long.toString((long) m_value);
+    return Double.toString(m_value);
+  }
+  
+  @Override
+  public int hashCode()
+  {
+    return hashCode(m_value);
+  }
+  
+  @Override
+  public int compareTo(Value o)
+  {
+    if (o instanceof DoubleValue)
+      return compare(m_value, ((DoubleValue) o).m_value);
+    return super.compareTo(o);
+  }
+}
@@ -19,11 +19,11 @@ package ca.uqac.dim.turtledb;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.w3c.dom.Document;
 
-import ca.uqac.dim.turtledb.QueryVisitor.VisitorException;
-
 /**
  * An engine does two things:
  * <ol>
@@ -32,38 +32,122 @@ import ca.uqac.dim.turtledb.QueryVisitor.VisitorException;
  *   the locally-hosted relations, then outputs the resulting
  *   relation</li>
  * </ol>
+ * An engine can be used by many threads at the same time. Each query
+ * is evaluated on its own copy of the query tree, linked to snapshots
+ * of the local tables (see {@link LinkedCopyVisitor}): queries never
+ * modify each other's trees nor the trees passed by the caller, and
+ * each one sees the contents of the tables as they were when its
+ * evaluation started, even if tuples are inserted in the meantime.
+ * <p>
+ * The pending queries that are ready to be processed are evaluated
+ * in parallel by a pool of worker threads (see
+ * {@link #setExecutor(ExecutorService)}).
  * @author sylvain
  *
  */
 public class Engine
 {
+  /**
+   * The default maximum number of fragments kept while no plan
+   * waits for them
+   */
+  public static final int DEFAULT_MAX_EARLY_FRAGMENTS = 1024;
+  
+  /**
+   * The default time, in milliseconds, a fragment is kept while no
+   * plan waits for it
+   */
+  public static final long DEFAULT_EARLY_FRAGMENT_LIFETIME = 10 * 60 * 1000;
+  
   protected Map<String,Relation> m_tables;
   
   /**
-   * The list of query plans that await computation
+   * The query plans that await fragments from other sites, indexed by
+   * the name of each fragment they are waiting for, the oldest first.
+   * These plans are copies owned by the engine; they are only
+   * accessed, as well as this map and the list of ready queries,
+   * while holding the lock of the map.
    */
-  protected List<Relation> m_pendingQueries;
+  protected Map<String,List<PendingQuery>> m_waitingQueries;
+  
+  /**
+   * The query plans that are ready to be processed
+   */
+  protected List<Relation> m_readyQueries;
+  
+  /**
+   * The fragments received before any plan waiting for them, indexed
+   * by their name, the oldest first. Each of them is connected to the
+   * first plan that needs it, and is dropped if no plan comes for it
+   * in time (see {@link #setEarlyFragmentLimits(int, long)}).
+   */
+  protected Map<String,LinkedList<EarlyFragment>> m_earlyFragments;
+  
+  /**
+   * The same fragments, in the order they arrived
+   */
+  protected Set<EarlyFragment> m_earlyOrder;
+  
+  protected int m_maxEarlyFragments;
+  
+  protected long m_earlyFragmentLifetime;
+  
+  /**
+   * The number of fragments dropped because no plan came for them
+   */
+  protected int m_droppedFragments;
   
   /**
    * The total number of tuples received by this site
    */
-  protected int m_numTuplesReceived;
+  protected final AtomicInteger m_numTuplesReceived;
   
   /**
    * The site's name
    */
   protected String m_siteName;
   
+  /**
+   * The tables known to this site, used to plan queries
+   */
+  protected volatile Catalog m_catalog;
+  
+  /**
+   * The number of bytes that the intermediate results of each query
+   * may occupy in memory, or 0 for no limit
+   */
+  protected volatile long m_memoryBudget;
+  
+  /**
+   * The executor that evaluates the pending queries, or <tt>null</tt>
+   * to evaluate them one after the other in the calling thread
+   */
+  protected ExecutorService m_executor;
+  
+  /**
+   * Whether the executor was created by the engine, which must then
+   * shut it down
+   */
+  protected boolean m_ownsExecutor;
+  
   /**
    * Instantiates a new database query engine. 
    */
   public Engine(String name)
   {
     super();
-    m_tables = new HashMap<String,Relation>();
-    m_pendingQueries = new LinkedList<Relation>();
-    m_numTuplesReceived = 0;
+    m_tables = new ConcurrentHashMap<String,Relation>();
+    m_waitingQueries = new HashMap<String,List<PendingQuery>>();
+    m_readyQueries = new LinkedList<Relation>();
+    m_earlyFragments = new HashMap<String,LinkedList<EarlyFragment>>();
+    m_earlyOrder = new LinkedHashSet<EarlyFragment>();
+    m_maxEarlyFragments = DEFAULT_MAX_EARLY_FRAGMENTS;
+    m_earlyFragmentLifetime = DEFAULT_EARLY_FRAGMENT_LIFETIME;
+    m_numTuplesReceived = new AtomicInteger(0);
     m_siteName = name;
+    m_catalog = new Catalog();
+    m_memoryBudget = 0;
+    setWorkerCount(Runtime.getRuntime().availableProcessors());
   }
   
   /**
@@ -76,6 +160,139 @@ public class Engine
   public void putRelation(String name, Relation r)
   {
     m_tables.put(name, r);
+    m_catalog.putTable(name, m_siteName, r);
+  }
+  
+  /**
+   * Sets the catalog used to plan queries. Sites that share a catalog
+   * can plan queries over each other's tables.
+   * @param c The catalog
+   */
+  public void setCatalog(Catalog c)
+  {
+    m_catalog = c;
+  }
+  
+  public Catalog getCatalog()
+  {
+    return m_catalog;
+  }
+  
+  /**
+   * Sets the amount of memory that the intermediate results of a
+   * query may occupy. Every query evaluated afterwards receives its
+   * own {@link MemoryBudget} of that size; intermediate results that
+   * do not fit in it are written to disk.
+   * @param bytes The number of bytes, or 0 for no limit
+   */
+  public void setMemoryBudget(long bytes)
+  {
+    m_memoryBudget = bytes;
+  }
+  
+  public long getMemoryBudget()
+  {
+    return m_memoryBudget;
+  }
+  
+  /**
+   * Sets how many fragments the engine keeps, and for how long, while
+   * no plan waits for them. A fragment can arrive before the plan that
+   * needs it; one that is sent by mistake, or whose plan was
+   * abandoned, would otherwise be kept forever.
+   * @param max The maximum number of fragments kept; beyond that, the
+   *   oldest ones are dropped
+   * @param lifetime The time in milliseconds after which a fragment
+   *   is dropped
+   */
+  public void setEarlyFragmentLimits(int max, long lifetime)
+  {
+    synchronized (m_waitingQueries)
+    {
+      m_maxEarlyFragments = max;
+      m_earlyFragmentLifetime = lifetime;
+      expireEarlyFragments();
+    }
+  }
+  
+  /**
+   * Gives the number of fragments dropped because no plan came for
+   * them in time
+   * @return The number of fragments
+   */
+  public int getDroppedFragmentCount()
+  {
+    synchronized (m_waitingQueries)
+    {
+      return m_droppedFragments;
+    }
+  }
+  
+  /**
+   * Sets the executor that evaluates the pending queries that are
+   * ready to be processed. Any executor can be used, e.g. one that
+   * starts a virtual thread for each task on a recent virtual
+   * machine. An executor passed to this method is not shut down by
+   * the engine.
+   * @param executor The executor, or <tt>null</tt> to evaluate the
+   *   queries one after the other in the thread that processes them
+   */
+  public synchronized void setExecutor(ExecutorService executor)
+  {
+    shutdown();
+    m_executor = executor;
+    m_ownsExecutor = false;
+  }
+  
+  /**
+   * Evaluates the pending queries with a pool of worker threads
+   * created by the engine. The threads are daemons, so that they do
+   * not prevent the virtual machine from exiting.
+   * @param workers The number of threads; with 1 or less, queries
+   *   are evaluated in the thread that processes them
+   */
+  public synchronized void setWorkerCount(int workers)
+  {
+    shutdown();
+    if (workers <= 1)
+      return;
+    m_executor = Executors.newFixedThreadPool(workers, new ThreadFactory()
+    {
+      protected int m_count = 0;
+      
+      @Override
+      public synchronized Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "TurtleDB " + m_siteName + " worker " + (++m_count));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    m_ownsExecutor = true;
+  }
+  
+  /**
+   * Stops the worker threads created by the engine, if any. Pending
+   * queries are then evaluated in the thread that processes them.
+   */
+  public synchronized void shutdown()
+  {
+    if (m_executor != null && m_ownsExecutor)
+      m_executor.shutdown();
+    m_executor = null;
+    m_ownsExecutor = false;
+  }
+  
+  /**
+   * Gives the statistics on the contents of a table, as recorded in
+   * the catalog. The table can be hosted by another site that shares
+   * the catalog.
+   * @param name The table's name
+   * @return The statistics, or <tt>null</tt> if they are not known
+   */
+  public TableStatistics getStatistics(String name)
+  {
+    return m_catalog.getStatistics(name);
   }
   
   /**
@@ -85,7 +302,7 @@ public class Engine
   public void addQuery(Relation query)
   {
     // Update count of received tuples from the outside world
-    m_numTuplesReceived += query.tupleCount();
+    m_numTuplesReceived.addAndGet(query.tupleCount());
     if (query.isFragment())
     {
       assert query instanceof VariableTable;
@@ -93,51 +310,150 @@ public class Engine
       if (vt.getSite().compareTo(m_siteName) != 0)
       {
         // The fragment is not destined to this site: therefore it is a query
-        // plan. Connect plan's leaves to any local tables...
-        TableLinkVisitor tlv = new TableLinkVisitor(m_tables);
-        try
-        {
-          query.accept(tlv);
-        }
-        catch (EmptyQueryVisitor.VisitorException e)
-        {
-          e.printStackTrace();
-        }
-        // Add plan to pending queries        
-        m_pendingQueries.add(query);
+        // plan. Add it to pending queries
+        addPendingQuery(query);
       }
       else
       {
-        // The fragment is destined to this site: iterate over pending queries and
-        // check if fragment can be connected to some of their leaves
-        for (Relation r : m_pendingQueries)
+        // The fragment is destined to this site: connect it to the
+        // oldest pending query that is waiting for it. Each fragment is
+        // the input of a single query; the others that wait for the
+        // same name belong to other runs of the same plan.
+        synchronized (m_waitingQueries)
         {
-          TableLinkVisitor tlv = new TableLinkVisitor((VariableTable) query);
-          try
+          List<PendingQuery> waiting = m_waitingQueries.get(vt.getName());
+          if (waiting == null)
           {
-            r.accept(tlv);
+            // The plan that needs the fragment has not arrived yet
+            parkEarlyFragment(vt);
           }
-          catch (EmptyQueryVisitor.VisitorException e)
+          else
           {
-            e.printStackTrace();
+            PendingQuery pq = waiting.remove(0);
+            if (waiting.isEmpty())
+              m_waitingQueries.remove(vt.getName());
+            if (pq.connect(vt))
+              m_readyQueries.add(pq.m_query);
           }
         }
       }
     }
     else
     {
-      // Not a fragment; connect plan's leaves to any local tables...
-      TableLinkVisitor tlv = new TableLinkVisitor(m_tables);
-      try
+      // Not a fragment; add it to pending queries
+      addPendingQuery(query);
+    }
+  }
+  
+  /**
+   * Adds a query plan to the pending queries. The engine keeps its own
+   * copy of the plan, whose leaves are connected to any local tables;
+   * fragments received later are connected to the copy. The plan is
+   * ready to be processed right away if no leaf remains, and is
+   * otherwise indexed by the names of the fragments it waits for.
+   * @param query The query plan
+   */
+  protected void addPendingQuery(Relation query)
+  {
+    Relation plan = LinkedCopyVisitor.link(query, Collections.<String,Relation>emptyMap());
+    TableLinkVisitor tlv = new TableLinkVisitor(m_tables);
+    ReadyToProcessVisitor rtv = new ReadyToProcessVisitor();
+    try
+    {
+      plan.accept(tlv);
+      plan.accept(rtv);
+    }
+    catch (EmptyQueryVisitor.VisitorException e)
+    {
+      e.printStackTrace();
+    }
+    PendingQuery pq = new PendingQuery(plan, rtv.getMissingFragments());
+    synchronized (m_waitingQueries)
+    {
+      expireEarlyFragments();
+      for (String name : new ArrayList<String>(pq.m_missing.keySet()))
       {
-        query.accept(tlv);
+        VariableTable fragment = takeEarlyFragment(name);
+        if (fragment != null)
+          pq.connect(fragment);
       }
-      catch (EmptyQueryVisitor.VisitorException e)
+      if (pq.isReady())
       {
-        e.printStackTrace();
+        m_readyQueries.add(plan);
+        return;
       }
-      // Add plan to pending queries        
-      m_pendingQueries.add(query);
+      for (String name : pq.m_missing.keySet())
+      {
+        List<PendingQuery> waiting = m_waitingQueries.get(name);
+        if (waiting == null)
+        {
+          waiting = new LinkedList<PendingQuery>();
+          m_waitingQueries.put(name, waiting);
+        }
+        waiting.add(pq);
+      }
+    }
+  }
+  
+  /**
+   * Keeps a fragment until a plan needs it. Must be called while
+   * holding the lock of {@link #m_waitingQueries}.
+   * @param fragment The fragment
+   */
+  protected void parkEarlyFragment(VariableTable fragment)
+  {
+    EarlyFragment ef = new EarlyFragment(fragment);
+    LinkedList<EarlyFragment> same_name = m_earlyFragments.get(fragment.getName());
+    if (same_name == null)
+    {
+      same_name = new LinkedList<EarlyFragment>();
+      m_earlyFragments.put(fragment.getName(), same_name);
+    }
+    same_name.addLast(ef);
+    m_earlyOrder.add(ef);
+    expireEarlyFragments();
+  }
+  
+  /**
+   * Removes the oldest fragment of some name kept for a plan. Must be
+   * called while holding the lock of {@link #m_waitingQueries}.
+   * @param name The name of the fragment
+   * @return The fragment, or <tt>null</tt> if there is none
+   */
+  protected VariableTable takeEarlyFragment(String name)
+  {
+    LinkedList<EarlyFragment> same_name = m_earlyFragments.get(name);
+    if (same_name == null)
+      return null;
+    EarlyFragment ef = same_name.removeFirst();
+    if (same_name.isEmpty())
+      m_earlyFragments.remove(name);
+    m_earlyOrder.remove(ef);
+    return ef.m_fragment;
+  }
+  
+  /**
+   * Drops the kept fragments that are too old, and the oldest ones if
+   * there are too many. Must be called while holding the lock of
+   * {@link #m_waitingQueries}.
+   */
+  protected void expireEarlyFragments()
+  {
+    long now = System.currentTimeMillis();
+    Iterator<EarlyFragment> it = m_earlyOrder.iterator();
+    while (it.hasNext())
+    {
+      EarlyFragment ef = it.next();
+      if (m_earlyOrder.size() <= m_maxEarlyFragments && now - ef.m_arrival < m_earlyFragmentLifetime)
+        break;
+      it.remove();
+      // Fragments of the same name arrive in the same order
+      String name = ef.m_fragment.getName();
+      LinkedList<EarlyFragment> same_name = m_earlyFragments.get(name);
+      same_name.removeFirst();
+      if (same_name.isEmpty())
+        m_earlyFragments.remove(name);
+      m_droppedFragments++;
     }
   }
   
@@ -158,53 +474,124 @@ public class Engine
    */
   public Set<Relation> processPendingQueries()
   {
-    Set<Relation> processed = new HashSet<Relation>();
-    Iterator<Relation> it = m_pendingQueries.iterator();
-    while (it.hasNext())
+    final Set<Relation> processed = new HashSet<Relation>();
+    processPendingQueries(new ResultListener()
+    {
+      @Override
+      public void resultComputed(Relation r)
+      {
+        processed.add(r);
+      }
+    });
+    return processed;
+  }
+  
+  /**
+   * Process any pending queries. The queries that are ready are
+   * evaluated in parallel by the executor of the engine, and each
+   * result is given to a listener, in the calling thread, as soon as
+   * it is computed. The method returns once all of them are.
+   * @param listener The listener receiving the results
+   * @return The number of queries that have been processed
+   * @throws RuntimeException If the evaluation of a query fails; the
+   *   other results are given to the listener before
+   */
+  public int processPendingQueries(ResultListener listener)
+  {
+    List<Relation> ready;
+    synchronized (m_waitingQueries)
+    {
+      // Queries are put in this list as soon as they are ready
+      ready = m_readyQueries;
+      m_readyQueries = new LinkedList<Relation>();
+    }
+    // Queries are computed without holding the lock, so that other
+    // threads can add queries in the meantime
+    ExecutorService executor;
+    synchronized (this)
+    {
+      executor = m_executor;
+    }
+    if (executor == null || ready.size() < 2)
+    {
+      for (Relation pq : ready)
+        listener.resultComputed(process(pq));
+      return ready.size();
+    }
+    CompletionService<Relation> service = new ExecutorCompletionService<Relation>(executor);
+    for (final Relation pq : ready)
+    {
+      service.submit(new Callable<Relation>()
+      {
+        @Override
+        public Relation call()
+        {
+          return process(pq);
+        }
+      });
+    }
+    Throwable failure = null;
+    for (int i = 0; i < ready.size(); i++)
     {
-      Relation pq = it.next();
-      ReadyToProcessVisitor rtv = new ReadyToProcessVisitor();
       try
       {
-        pq.accept(rtv);
+        Future<Relation> f = service.take();
+        listener.resultComputed(f.get());
       }
-      catch (VisitorException e)
+      catch (ExecutionException e)
       {
-        // This should not happen anyway
-        e.printStackTrace();
+        if (failure == null)
+          failure = e.getCause();
       }
-      if (!rtv.isReady())
-        continue;
-      // Query is ready
-      it.remove(); // Remove from list of pending queries
-      // Computes the result and copies it into a new table
-      Relation to_add;
-      Table result = new Table();
-      result.copy(pq);
-      to_add = result;
-      // If relation is a fragment, affix the fragment's label to the computed result
-      if (pq.isFragment())
+      catch (InterruptedException e)
       {
-        VariableTable vt = (VariableTable) pq;
-        VariableTable head = new VariableTable(vt.m_name, vt.m_site);
-        head.setRelation(result);
-        to_add = head;
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
       }
-      // Put that table into list of computed results
-      processed.add(to_add);
     }
-    return processed;
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    if (failure instanceof Error)
+      throw (Error) failure;
+    return ready.size();
+  }
+  
+  /**
+   * Computes the result of a pending query that is ready to be
+   * processed, on snapshots of the local tables
+   * @param pq The query
+   * @return A new table containing the result, under the fragment's
+   *   label if the query is a fragment
+   */
+  protected Relation process(Relation pq)
+  {
+    // Computes the result and copies it into a new table
+    Relation to_add;
+    Table result = new Table();
+    result.copy(allocate(optimize(LinkedCopyVisitor.link(pq, m_tables))));
+    to_add = result;
+    // If relation is a fragment, affix the fragment's label to the computed result
+    if (pq.isFragment())
+    {
+      VariableTable vt = (VariableTable) pq;
+      VariableTable head = new VariableTable(vt.m_name, vt.m_site);
+      head.setRelation(result);
+      to_add = head;
+    }
+    return to_add;
   }
   
   /**
-   * Creates a query plan from a given query
+   * Creates a query plan from a given query, using the tables of
+   * the catalog. The plan sends the result of the query to this site.
    * @param query The query to execute
-   * @return The query plan
+   * @return The query plan, or <tt>null</tt> if the query refers to
+   *   a table absent from the catalog
    */
   public QueryPlan getQueryPlan(Relation query)
   {
-    // TODO
-    return null;
+    QueryPlanner planner = new QueryPlanner(m_catalog, m_siteName);
+    return planner.getPlan(query);
   }
   
   /**
@@ -215,21 +602,57 @@ public class Engine
   public Table evaluate(Relation query)
   {  
     // Update count of received tuples from the outside world
-    m_numTuplesReceived += query.tupleCount();
-    // Connect leaves to actual tables
-    TableLinkVisitor tlv = new TableLinkVisitor(m_tables);
+    m_numTuplesReceived.addAndGet(query.tupleCount());
+    // Connect the leaves of a copy of the query to snapshots of the tables
+    Relation linked = LinkedCopyVisitor.link(query, m_tables);
+    // Computes the result and copies it into a new table
+    Table out = new Table();
+    out.copy(allocate(optimize(linked)));
+    return out;
+  }
+  
+  /**
+   * Gives a query a fresh memory budget for its intermediate results,
+   * if the engine has one
+   * @param query The query
+   * @return The same query
+   * @see #setMemoryBudget(long)
+   */
+  protected Relation allocate(Relation query)
+  {
+    if (m_memoryBudget <= 0)
+      return query;
+    MemoryBudgetVisitor mbv = new MemoryBudgetVisitor(new MemoryBudget(m_memoryBudget));
     try
     {
-      query.accept(tlv);
+      query.accept(mbv);
     }
     catch (EmptyQueryVisitor.VisitorException e)
     {
+      // Does not happen
       e.printStackTrace();
     }
-    // Computes the result and copies it into a new table
-    Table out = new Table();
-    out.copy(query);
-    return out;
+    return query;
+  }
+  
+  /**
+   * Rewrites a query whose leaves are linked to actual tables into an
+   * equivalent query that is cheaper to evaluate. The query that
+   * computes a fragment is the relation under its label.
+   * @param query The query
+   * @return The rewritten query
+   * @see QueryRewriter
+   */
+  protected Relation optimize(Relation query)
+  {
+    if (query.isFragment())
+    {
+      VariableTable vt = (VariableTable) query;
+      if (vt.m_relation == null)
+        return query;
+      return QueryRewriter.rewrite(vt.m_relation);
+    }
+    return QueryRewriter.rewrite(query);
   }
   
   /**
@@ -290,6 +713,91 @@ public class Engine
    */
   public int getTuplesReceived()
   {
-    return m_numTuplesReceived;
+    return m_numTuplesReceived.get();
+  }
+  
+  /**
+   * A query plan waiting for fragments from other sites
+   */
+  protected static class PendingQuery
+  {
+    protected final Relation m_query;
+    
+    /**
+     * The leaves of the plan that are not yet connected, indexed
+     * by the name of the fragment they stand for
+     */
+    protected final Map<String,List<VariableTable>> m_missing;
+    
+    public PendingQuery(Relation query, List<VariableTable> missing)
+    {
+      super();
+      m_query = query;
+      m_missing = new HashMap<String,List<VariableTable>>();
+      for (VariableTable vt : missing)
+      {
+        List<VariableTable> leaves = m_missing.get(vt.getName());
+        if (leaves == null)
+        {
+          leaves = new LinkedList<VariableTable>();
+          m_missing.put(vt.getName(), leaves);
+        }
+        leaves.add(vt);
+      }
+    }
+    
+    /**
+     * Connects a fragment to the leaves of the plan that stand for it
+     * @param fragment The fragment
+     * @return True if the plan is now ready to be processed
+     */
+    public boolean connect(VariableTable fragment)
+    {
+      List<VariableTable> leaves = m_missing.remove(fragment.getName());
+      if (leaves != null)
+      {
+        for (VariableTable vt : leaves)
+          vt.setRelation(fragment);
+      }
+      return isReady();
+    }
+    
+    public boolean isReady()
+    {
+      return m_missing.isEmpty();
+    }
+  }
+  
+  /**
+   * A fragment received before any plan waiting for it
+   */
+  protected static class EarlyFragment
+  {
+    protected final VariableTable m_fragment;
+    
+    /**
+     * The time the fragment arrived, in milliseconds
+     */
+    protected final long m_arrival;
+    
+    public EarlyFragment(VariableTable fragment)
+    {
+      super();
+      m_fragment = fragment;
+      m_arrival = System.currentTimeMillis();
+    }
+  }
+  
+  /**
+   * Receives the results of the pending queries as they are computed
+   * @see Engine#processPendingQueries(ResultListener)
+   */
+  public static interface ResultListener
+  {
+    /**
+     * Called when the result of a query is computed
+     * @param r The result, as returned by {@link Engine#processPendingQueries()}
+     */
+    public void resultComputed(Relation r);
   }
 }
@@ -22,44 +22,109 @@ public class Equality extends Condition
   protected Literal m_left;
   protected Literal m_right;
   
+  /**
+   * The positions of the operands in the schema of the
+   * tuples being evaluated
+   */
+  protected volatile Binding m_binding;
+  
   public Equality(Literal l, Literal r)
   {
     m_left = l;
     m_right = r;
+    m_binding = null;
+  }
+
+  @Override
+  public void bind(Schema sch)
+  {
+    m_binding = new Binding(sch);
   }
 
   @Override
   public boolean evaluate(Tuple t)
   {
-    // attribute = attribute
-    if (m_left instanceof Attribute && m_right instanceof Attribute)
+    Binding b = m_binding;
+    if (b == null || b.m_schema != t.getSchema())
     {
-      Value left = t.get(m_left);
-      Value right = t.get(m_right);
-      return left.equals(right);
+      b = new Binding(t.getSchema());
+      m_binding = b;
     }
-    // attribute = value
-    if (m_left instanceof Attribute && m_right instanceof Value)
+    Value left = b.m_leftConstant, right = b.m_rightConstant;
+    if (b.m_leftPosition >= 0)
+      left = t.get(b.m_leftPosition);
+    if (b.m_rightPosition >= 0)
+      right = t.get(b.m_rightPosition);
+    if (left == null || right == null)
+      return false;
+    if (b.m_leftConversion != null)
+      left = b.m_leftConversion.convert(left);
+    else if (b.m_rightConversion != null)
+      right = b.m_rightConversion.convert(right);
+    return left.equals(right);
+  }
+  
+  public void accept(ConditionVisitor v)
+  {
+    v.visit(this);
+  }
+  
+  /**
+   * Resolution of both sides of the equality in a given schema.
+   * An attribute is replaced by its position; a value is kept as is,
+   * unless it is compared to an attribute of another type, in which
+   * case it is converted once to that type (e.g. so that the
+   * string "3" is compared as a number to the values of an
+   * attribute of type int). Likewise, when two attributes of
+   * different types are compared, the values of an attribute of type
+   * string are converted to the type of the other one.
+   */
+  protected class Binding
+  {
+    protected final Schema m_schema;
+    protected final int m_leftPosition;
+    protected final int m_rightPosition;
+    protected final Value m_leftConstant;
+    protected final Value m_rightConstant;
+    protected final ValueType m_leftConversion;
+    protected final ValueType m_rightConversion;
+    
+    public Binding(Schema sch)
     {
-      Value left = t.get(m_left);
-      return left.equals(m_right);
+      super();
+      m_schema = sch;
+      m_leftPosition = position(m_left);
+      m_rightPosition = position(m_right);
+      m_leftConstant = constant(m_left, m_right, m_rightPosition);
+      m_rightConstant = constant(m_right, m_left, m_leftPosition);
+      m_leftConversion = conversion(m_leftPosition, m_rightPosition);
+      m_rightConversion = conversion(m_rightPosition, m_leftPosition);
     }
-    // value = attribute
-    if (m_left instanceof Value && m_right instanceof Attribute)
+    
+    protected int position(Literal l)
     {
-      return t.get(m_right).equals(m_left);
+      if (l instanceof Attribute)
+        return m_schema.getOrdinal(l);
+      return -1;
     }
-    // value = value
-    if (m_left instanceof Value && m_right instanceof Value)
+    
+    protected Value constant(Literal l, Literal other, int other_position)
     {
-      return m_left.equals(m_right);
+      if (!(l instanceof Value))
+        return null;
+      Value v = (Value) l;
+      if (other_position < 0 || v.getType() != ValueType.STRING)
+        return v;
+      // If not convertible, the strings are compared
+      return m_schema.get(other_position).getType().convert(v);
+    }
+    
+    protected ValueType conversion(int position, int other_position)
+    {
+      if (position < 0 || other_position < 0)
+        return null;
+      return ValueType.conversion(m_schema.get(position).getType(),
+          m_schema.get(other_position).getType());
     }
-    return false;
-  }
-  
-  public void accept(ConditionVisitor v)
-  {
-    v.visit(this);
   }
-
 }
@@ -0,0 +1,270 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * Hash index on one or more attributes of a {@link Table}. The index
+ * associates each combination of values of these attributes (its
+ * <em>key</em>) to the tuples of the table that have these values,
+ * so that the tuples with a given key are found without a scan of
+ * the table.
+ * <p>
+ * The tuples of each key are kept in the order of the table, so that
+ * enumerating them does not break the ordering other operators may
+ * rely on (see {@link Relation#isSortedOn(int[])}).
+ * Indexes are created with {@link Table#createIndex(Collection)} and
+ * kept up to date by the table as tuples are added.
+ * <p>
+ * An index shared by a table and its snapshots is never modified
+ * again. The table instead writes to a new <em>layer</em> on top of
+ * it (see {@link #layer()}), which holds the keys whose tuples have
+ * changed since, and looks up the other keys in the shared index.
+ * The list of tuples of a key is copied the first time it changes in
+ * a layer. A layer that grows as large as the one below is merged
+ * into it, so that a lookup visits a number of layers logarithmic in
+ * the number of keys.
+ * @author sylvain
+ *
+ */
+public class HashIndex
+{
+  /**
+   * The positions of the indexed attributes in the table's schema,
+   * in increasing order
+   */
+  protected final int[] m_positions;
+  
+  protected Map<Object,List<Tuple>> m_entries;
+  
+  /**
+   * The index this one is a layer of, or <tt>null</tt>. The keys
+   * absent from {@link #m_entries} are looked up there.
+   */
+  protected HashIndex m_base;
+  
+  /**
+   * The number of distinct keys in the index and the layers below
+   */
+  protected int m_keyCount;
+  
+  /**
+   * Creates an empty index
+   * @param positions The positions of the indexed attributes
+   */
+  public HashIndex(int[] positions)
+  {
+    super();
+    m_positions = positions.clone();
+    Arrays.sort(m_positions);
+    m_entries = new HashMap<Object,List<Tuple>>();
+    m_base = null;
+    m_keyCount = 0;
+  }
+  
+  /**
+   * Creates an empty layer on top of an index
+   * @param base The index
+   */
+  protected HashIndex(HashIndex base)
+  {
+    super();
+    m_positions = base.m_positions;
+    m_entries = new HashMap<Object,List<Tuple>>();
+    m_base = base;
+    m_keyCount = base.m_keyCount;
+  }
+  
+  /**
+   * Gives a new layer on top of this index. The index must no longer
+   * be modified afterwards; tuples are added to the layer instead.
+   * Creating the layer costs a constant time, whatever the size of
+   * the index.
+   * @return The layer
+   */
+  public HashIndex layer()
+  {
+    return new HashIndex(this);
+  }
+  
+  /**
+   * Gives the positions of the indexed attributes
+   * @return The positions, in increasing order
+   */
+  public int[] getPositions()
+  {
+    return m_positions.clone();
+  }
+  
+  /**
+   * Determines if the index is on exactly a given set of attributes
+   * @param positions The positions of the attributes, in any order
+   * @return True if the index is on these attributes
+   */
+  public boolean isOn(int[] positions)
+  {
+    int[] sorted = positions.clone();
+    Arrays.sort(sorted);
+    return Arrays.equals(sorted, m_positions);
+  }
+  
+  /**
+   * Adds a tuple to the index
+   * @param t The tuple
+   */
+  public void add(Tuple t)
+  {
+    Object key = JoinKeys.key(t, m_positions);
+    if (key == null)
+      return; // Can match no lookup
+    List<Tuple> list = get(key);
+    int index = Collections.binarySearch(list, t);
+    if (index >= 0)
+      return;
+    if (!(list instanceof Entry) || ((Entry) list).m_owner != this)
+    {
+      // The list is shared with the layers below, or there is none yet
+      if (list.isEmpty())
+        m_keyCount++;
+      list = new Entry(this, list);
+      m_entries.put(key, list);
+    }
+    list.add(-index-1, t);
+    if (m_base != null && m_entries.size() >= m_base.m_entries.size())
+      merge();
+  }
+  
+  /**
+   * Merges the layers below into this one, as long as they hold no
+   * more keys than it does. The layers below are left unchanged, as
+   * they may be shared; the lists of tuples they hold are only copied
+   * when they change.
+   */
+  protected void merge()
+  {
+    while (m_base != null && m_entries.size() >= m_base.m_entries.size())
+    {
+      Map<Object,List<Tuple>> entries = new HashMap<Object,List<Tuple>>(m_base.m_entries);
+      entries.putAll(m_entries);
+      m_entries = entries;
+      m_base = m_base.m_base;
+    }
+  }
+  
+  /**
+   * Gives the tuples with a given key
+   * @param values The values of the indexed attributes, in the order
+   *   of their positions
+   * @return The tuples, in the order of the table
+   */
+  public List<Tuple> get(Value[] values)
+  {
+    Object key;
+    if (values.length == 1)
+      key = values[0];
+    else
+      key = Arrays.asList(values);
+    return get(key);
+  }
+  
+  /**
+   * Gives the tuples of the table that have the same key as a tuple
+   * of another relation
+   * @param t The tuple
+   * @param positions The position in <tt>t</tt> of each of the values
+   *   of the key, in the order of the indexed attributes (see
+   *   {@link #align(int[], int[])})
+   * @return The tuples, in the order of the table
+   */
+  public List<Tuple> lookup(Tuple t, int[] positions)
+  {
+    Object key = JoinKeys.key(t, positions);
+    if (key == null)
+      return Collections.emptyList();
+    return get(key);
+  }
+  
+  protected List<Tuple> get(Object key)
+  {
+    for (HashIndex index = this; index != null; index = index.m_base)
+    {
+      List<Tuple> list = index.m_entries.get(key);
+      if (list != null)
+        return list;
+    }
+    return Collections.emptyList();
+  }
+  
+  /**
+   * Gives the number of distinct keys in the index
+   * @return The number of keys
+   */
+  public int getKeyCount()
+  {
+    return m_keyCount;
+  }
+  
+  /**
+   * Matches the indexed attributes with those of another relation.
+   * For instance, for an index on the attributes at positions 0 and 2
+   * of a table joined on <i>t</i>[2] = <i>u</i>[5] and
+   * <i>t</i>[0] = <i>u</i>[1], the matching positions in <i>u</i>
+   * are {1, 5}.
+   * @param positions Positions of attributes in the table; each of
+   *   the indexed attributes must appear
+   * @param other The positions of the corresponding attributes in
+   *   the other relation
+   * @return The positions of the attributes of the other relation,
+   *   in the order of the indexed attributes
+   */
+  public int[] align(int[] positions, int[] other)
+  {
+    int[] out = new int[m_positions.length];
+    for (int i = 0; i < m_positions.length; i++)
+    {
+      for (int j = 0; j < positions.length; j++)
+      {
+        if (positions[j] == m_positions[i])
+        {
+          out[i] = other[j];
+          break;
+        }
+      }
+    }
+    return out;
+  }
+  
+  /**
+   * The list of tuples of a key, which can only be modified by the
+   * index that created it
+   */
+  protected static class Entry extends ArrayList<Tuple>
+  {
+    private static final long serialVersionUID = 1L;
+    
+    protected final HashIndex m_owner;
+    
+    public Entry(HashIndex owner, List<Tuple> tuples)
+    {
+      super(tuples.size() + 1);
+      m_owner = owner;
+      addAll(tuples);
+    }
+  }
+}
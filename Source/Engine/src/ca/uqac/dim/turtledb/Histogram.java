@@ -0,0 +1,148 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+/**
+ * An equi-depth histogram of the values of an attribute. The values
+ * are split into buckets that each hold the same fraction of them;
+ * the histogram records the boundaries of the buckets. A value that
+ * is very frequent therefore spans several buckets, and a range of
+ * values where few tuples lie falls in a single one.
+ * <p>
+ * Within a bucket, numbers are assumed to be uniformly distributed;
+ * for other values, half of the bucket is counted.
+ * @author sylvain
+ *
+ */
+public class Histogram
+{
+  /**
+   * The boundaries of the buckets: bucket <i>i</i> holds the values
+   * between m_bounds[i] and m_bounds[i+1]
+   */
+  protected final Value[] m_bounds;
+  
+  /**
+   * Builds a histogram
+   * @param sorted Values of the attribute (e.g. a sample), in
+   *   ascending order
+   * @param buckets The maximum number of buckets
+   */
+  public Histogram(Value[] sorted, int buckets)
+  {
+    super();
+    if (sorted.length == 0)
+    {
+      m_bounds = new Value[0];
+      return;
+    }
+    buckets = Math.max(1, Math.min(buckets, sorted.length - 1));
+    m_bounds = new Value[buckets + 1];
+    for (int i = 0; i <= buckets; i++)
+      m_bounds[i] = sorted[(int) ((long) i * (sorted.length - 1) / buckets)];
+  }
+  
+  /**
+   * Gives the number of buckets
+   * @return The number of buckets; 0 if the histogram is empty
+   */
+  public int getBucketCount()
+  {
+    return Math.max(0, m_bounds.length - 1);
+  }
+  
+  /**
+   * Gives a boundary of the buckets
+   * @param i The boundary's position, between 0 and
+   *   {@link #getBucketCount()} inclusively
+   * @return The boundary
+   */
+  public Value getBound(int i)
+  {
+    return m_bounds[i];
+  }
+  
+  /**
+   * Estimates the fraction of the values that are less than a value
+   * @param v The value
+   * @return The fraction, between 0 and 1
+   */
+  public double estimateLessThan(Value v)
+  {
+    int buckets = getBucketCount();
+    if (buckets == 0 || v.compareTo(m_bounds[0]) <= 0)
+      return 0;
+    if (v.compareTo(m_bounds[buckets]) > 0)
+      return 1;
+    // Find the first bucket whose upper bound is not less than v
+    int low = 0, high = buckets - 1;
+    while (low < high)
+    {
+      int mid = (low + high) >>> 1;
+      if (m_bounds[mid + 1].compareTo(v) < 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return (low + fractionBelow(m_bounds[low], m_bounds[low + 1], v)) / buckets;
+  }
+  
+  /**
+   * Estimates the fraction of the values that lie in a range
+   * @param low The lower bound of the range, inclusive; <tt>null</tt>
+   *   if the range has no lower bound
+   * @param high The upper bound of the range, exclusive; <tt>null</tt>
+   *   if the range has no upper bound
+   * @return The fraction, between 0 and 1
+   */
+  public double estimateRange(Value low, Value high)
+  {
+    double from = low == null ? 0 : estimateLessThan(low);
+    double to = high == null ? 1 : estimateLessThan(high);
+    return Math.max(0, to - from);
+  }
+  
+  /**
+   * Estimates which fraction of a bucket is below a value
+   */
+  protected static double fractionBelow(Value from, Value to, Value v)
+  {
+    if (from instanceof NumericValue && to instanceof NumericValue && v instanceof NumericValue)
+    {
+      double f = ((NumericValue) from).doubleValue(), t = ((NumericValue) to).doubleValue();
+      if (t <= f)
+        return 0.5;
+      double x = (((NumericValue) v).doubleValue() - f) / (t - f);
+      return Math.max(0, Math.min(1, x));
+    }
+    return 0.5;
+  }
+  
+  @Override
+  public String toString()
+  {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < m_bounds.length; i++)
+    {
+      if (i > 0)
+        out.append(" | ");
+      out.append(m_bounds[i]);
+    }
+    return out.toString();
+  }
+}
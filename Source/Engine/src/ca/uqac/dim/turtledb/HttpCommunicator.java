@@ -19,104 +19,415 @@ package ca.uqac.dim.turtledb;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.*;
 
-public class HttpCommunicator extends Communicator
+/**
+ * Communicator where each site is a separate process, and where queries
+ * and fragments are exchanged in HTTP POST requests. Running the communicator starts a server on the site's
+ * port; every relation received is given to the site's {@link Engine},
+ * and the fragments the engine computes are in turn sent to the site
+ * they are destined to. Relations are sent over persistent connections,
+ * kept in an {@link HttpConnectionPool} for each site, which also
+ * records timing metrics on the requests.
+ * <p>
+ * Relations are sent in the compact form of the
+ * {@link BinaryQueryFormatter}. A site that answers that it does not
+ * support this content type (415 Unsupported Media Type) is thereafter
+ * sent XML documents instead. The binary form can also be turned off
+ * for any site, which must be done for the sites whose server predates
+ * it, as they do not answer with that code.
+ * <p>
+ * The server is non-blocking: a single thread multiplexes all the
+ * connections with a {@link Selector}, reads requests incrementally as
+ * their bytes arrive, and keeps connections alive between requests.
+ * Only the decoding of complete requests is done by a pool of handler
+ * threads, so that a large fragment does not hold back the other
+ * connections.
+ * @author sylvain
+ *
+ */
+public class HttpCommunicator extends Communicator implements Engine.ResultListener
 {
+  /**
+   * The port the server listens to by default
+   */
+  public static final int DEFAULT_PORT = 1234;
+
+  /**
+   * The maximum size of the request line and headers of a request
+   */
+  protected static final int MAX_HEADER_SIZE = 16384;
+
+  /**
+   * The initial size of the input buffer of a connection
+   */
+  protected static final int BUFFER_SIZE = 8192;
+
+  /**
+   * The maximum size of the body of a request, by default
+   */
+  public static final int DEFAULT_MAX_BODY_SIZE = 64 * 1024 * 1024;
+
+  protected static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
+  protected static final Charset BODY_CHARSET = Charset.forName("UTF-8");
 
   protected Map<String,SiteInfo> m_siteInfo;
 
+  /**
+   * Whether the sites declared from now on are first sent relations
+   * in binary form
+   */
+  protected volatile boolean m_binary = true;
+
   protected Engine m_engine;
 
+  /**
+   * The port the server listens to
+   */
+  protected volatile int m_port;
+
+  /**
+   * The maximum size of the body of a request. Larger requests are
+   * refused before their body is read.
+   */
+  protected volatile int m_maxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+  /**
+   * The queries started from this site whose result has not come back
+   * yet, indexed by query ID
+   */
+  protected Map<String,QueryResult> m_queries;
+
+  /**
+   * The selector multiplexing the server's connections
+   */
+  protected volatile Selector m_selector;
+
+  protected volatile boolean m_running;
+
+  /**
+   * The connections whose response is ready to be written, handed
+   * back to the selector thread by the handlers
+   */
+  protected Queue<HttpConnection> m_pendingWrites;
+
+  /**
+   * The threads decoding the requests
+   */
+  protected ExecutorService m_handlers;
+
+  /**
+   * The threads sending relations to the other sites
+   */
+  protected ExecutorService m_dispatcher;
+
   public HttpCommunicator()
+  {
+    this(null, DEFAULT_PORT);
+  }
+
+  /**
+   * Creates a communicator
+   * @param e The engine of the site the communicator runs on
+   * @param port The port the server listens to. Use 0 to pick any
+   *   free port; {@link #getPort()} gives the actual port once the
+   *   server is started.
+   */
+  public HttpCommunicator(Engine e, int port)
   {
     super();
-    m_siteInfo = new HashMap<String,SiteInfo>();
+    m_siteInfo = new ConcurrentHashMap<String,SiteInfo>();
+    m_engine = e;
+    m_port = port;
+    m_queries = new ConcurrentHashMap<String,QueryResult>();
+    m_pendingWrites = new ConcurrentLinkedQueue<HttpConnection>();
+    m_dispatcher = Executors.newCachedThreadPool(daemonThreads("TurtleDB HTTP dispatcher"));
+  }
+
+  public void setEngine(Engine e)
+  {
+    m_engine = e;
+  }
+
+  public Engine getEngine()
+  {
+    return m_engine;
+  }
+
+  /**
+   * Sets the port the server listens to. This has no effect on a
+   * server that is already started.
+   * @param port The port
+   */
+  public void setPort(int port)
+  {
+    m_port = port;
   }
 
+  public int getPort()
+  {
+    return m_port;
+  }
+
+  /**
+   * Sets the maximum size of the body of a request. The server answers
+   * a request that announces a larger body with the status code 413,
+   * without reading it.
+   * @param size The size, in bytes
+   */
+  public void setMaxBodySize(int size)
+  {
+    assert size >= 0;
+    m_maxBodySize = size;
+  }
+
+  /**
+   * Declares the URL of the server of a site
+   * @param name The name of the site
+   * @param url The URL of the site's server
+   * @throws IllegalArgumentException If the URL is not a valid HTTP URL
+   */
   public void addSiteInfo(String name, String url)
   {
-    SiteInfo si = new SiteInfo(name, url);
-    m_siteInfo.put(name, si);
+    SiteInfo si;
+    try
+    {
+      si = new SiteInfo(name, url);
+    }
+    catch (MalformedURLException e)
+    {
+      throw new IllegalArgumentException("Invalid URL for site " + name + ": " + url);
+    }
+    SiteInfo old = m_siteInfo.put(name, si);
+    if (old != null)
+      old.m_pool.close();
+  }
+
+  /**
+   * Sets whether the sites declared from now on are first sent
+   * relations in binary form, or only in XML
+   * @param binary Set to false to only send XML
+   */
+  public void setBinaryEncoding(boolean binary)
+  {
+    m_binary = binary;
+  }
+
+  /**
+   * Sets whether a site is sent relations in binary form, or in XML
+   * @param site_name The name of the site
+   * @param binary Set to false to only send XML
+   */
+  public void setBinaryEncoding(String site_name, boolean binary)
+  {
+    SiteInfo si = m_siteInfo.get(site_name);
+    if (si != null)
+      si.m_binary = binary;
+  }
+
+  /**
+   * Gives the metrics on the requests sent to a site
+   * @param site_name The name of the site
+   * @return The metrics, or null if the site is unknown
+   */
+  public HttpConnectionPool.Metrics getMetrics(String site_name)
+  {
+    SiteInfo si = m_siteInfo.get(site_name);
+    if (si == null)
+      return null;
+    return si.m_pool.getMetrics();
   }
 
   protected void sendQuery(String site_name, Relation r) throws Communicator.QueryExecutionException
   {
+    Set<Relation> rels = new HashSet<Relation>();
+    rels.add(r);
+    sendQuery(site_name, rels);
+  }
+
+  /**
+   * Sends relations to a site. All the relations are sent in a single
+   * request.
+   * @param site_name The name of the site
+   * @param rels The relations
+   * @throws Communicator.QueryExecutionException If the relations cannot
+   *   be delivered
+   */
+  protected void sendQuery(String site_name, Set<Relation> rels) throws Communicator.QueryExecutionException
+  {
+    if (m_engine != null && site_name.compareTo(m_engine.m_siteName) == 0)
+    {
+      // No need to go through the network to reach ourselves
+      deliver(rels);
+      return;
+    }
     SiteInfo si = m_siteInfo.get(site_name);
     if (si == null)
     {
       throw new Communicator.QueryExecutionException("Unknown site: " + site_name);
     }
-    String soap_string = XmlQueryFormatter.toXmlString(r);
-    @SuppressWarnings("unused")
-    String return_value = "";
+    int code;
     try
     {
-      return_value = postData(si.m_siteUrl, soap_string);
+      if (si.m_binary)
+      {
+        code = si.m_pool.post(BinaryQueryFormatter.CONTENT_TYPE, BinaryQueryFormatter.toBytes(rels));
+        if (code != 415)
+        {
+          // Any other error, including a malformed request, is
+          // reported as such
+          checkCode(site_name, code);
+          return;
+        }
+        // The site does not support the binary form: fall back
+        // to XML, for this request and the next ones
+        si.m_binary = false;
+        System.err.println("Site " + site_name + " does not accept " + BinaryQueryFormatter.CONTENT_TYPE + "; sending XML instead");
+      }
+      String soap_string;
+      if (rels.size() == 1)
+        soap_string = XmlQueryFormatter.toXmlString(rels.iterator().next());
+      else
+        soap_string = XmlQueryFormatter.toXmlString(rels);
+      code = si.m_pool.post("application/xml; charset=UTF-8", soap_string.getBytes(BODY_CHARSET.name()));
     }
     catch (IOException e)
     {
       throw new Communicator.QueryExecutionException("IOException while sending data to site " + site_name);
     }
+    checkCode(site_name, code);
   }
 
-  protected void sendQuery(String site_name, Set<Relation> rels) throws Communicator.QueryExecutionException
+  /**
+   * Checks that a site has accepted a request
+   * @param site_name The name of the site
+   * @param code The HTTP status code of the site's response
+   * @throws Communicator.QueryExecutionException If the site has not
+   *   accepted the request
+   */
+  protected void checkCode(String site_name, int code) throws Communicator.QueryExecutionException
   {
-    for (Relation r : rels)
-      sendQuery(site_name, r);
+    if (code != 200)
+    {
+      throw new Communicator.QueryExecutionException("Site " + site_name + " answered with HTTP error code " + code);
+    }
   }
 
   /**
-   * Sends a string of data through an TCP connection at a given URL:port
-   * @param destination_url The destination URL
-   * @param data The data to send
-   * @return The response returned by the destination (if any)
-   * @throws IOException
+   * Sends relations to a site without waiting for the request to
+   * complete
+   * @param site_name The name of the site
+   * @param rels The relations
+   * @return A future that completes once the site has received the
+   *   relations. Its <tt>get</tt> method throws an
+   *   {@link ExecutionException} wrapping a
+   *   {@link Communicator.QueryExecutionException} if they could not be
+   *   delivered.
    */
-  protected String sendData(URL url, String data) throws IOException
+  protected Future<Void> sendQueryAsync(final String site_name, final Set<Relation> rels)
   {
-    URLConnection conn = url.openConnection();
-    conn.setDoOutput(true);
-    OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
-    wr.write(data);
-    wr.flush();
+    return m_dispatcher.submit(new Callable<Void>()
+    {
+      @Override
+      public Void call() throws Communicator.QueryExecutionException
+      {
+        sendQuery(site_name, rels);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Gives queries or fragments to the site's engine, and processes
+   * the queries they made ready
+   * @param rels The queries or fragments
+   */
+  protected void deliver(Collection<Relation> rels)
+  {
+    rels = collectResults(rels);
+    if (rels.isEmpty())
+      return;
+    m_engine.addQuery(rels);
+    m_engine.processPendingQueries(this);
+  }
 
-    // Get the response
-    BufferedReader rd = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-    String line;
-    StringBuilder out = new StringBuilder();
-    while ((line = rd.readLine()) != null)
+  /**
+   * Gives pieces of a plan to the site's engine, without waiting for
+   * them to be processed. Unlike with {@link #deliver(Collection)}, a
+   * piece topped with a fragment destined to this site is processed as
+   * a query, and not taken for a fragment computed by another site.
+   * @param rels The pieces of the plan
+   * @return A future that completes once the pieces are processed
+   */
+  protected Future<Void> addPlanAsync(final Set<Relation> rels)
+  {
+    return m_dispatcher.submit(new Callable<Void>()
     {
-      out.append(line).append("\n");
-    }
-    wr.close();
-    rd.close();   
-    return out.toString();
+      @Override
+      public Void call()
+      {
+        for (Relation r : rels)
+          m_engine.addPendingQuery(r);
+        m_engine.processPendingQueries(HttpCommunicator.this);
+        return null;
+      }
+    });
   }
 
   /**
-   * Sends a string of data through an TCP connection at a given URL:port
-   * using an HTTP POST request
-   * @param host The destination host
-   * @param location The location on the host (i.e. the page name)
-   * @param payload The data to send
-   * @return The response returned by the destination (if any)
-   * @throws IOException
+   * Completes the queries whose result is among the relations received
+   * @param rels The relations received
+   * @return The relations that are not the result of a query started
+   *   from this site
    */
-  protected String postData(String destination_url, String payload) throws IOException
+  protected Collection<Relation> collectResults(Collection<Relation> rels)
   {
-    URL url = new URL(destination_url);
-    StringBuilder out = new StringBuilder();
-    out.append("POST ").append(url.getFile()).append(" HTTP/1.1\n");
-    out.append("Host: ").append(url.getHost()).append("\n");
-    out.append("User-Agent: TurtleDB\n");
-    out.append("Content-Type: application/xml\n");
-    out.append("Content-Length: ").append(payload.length()).append("\n");
-    out.append(payload);
-    String http_response = sendData(url, out.toString());
-    if (!http_response.startsWith("200 OK"))
-      throw new IOException("HTTP error code");
-    return http_response;
+    List<Relation> out = new ArrayList<Relation>(rels.size());
+    for (Relation r : rels)
+    {
+      QueryResult qr = null;
+      if (r.isFragment())
+        qr = m_queries.remove(((VariableTable) r).getName());
+      if (qr == null)
+        out.add(r);
+      else
+        qr.complete(((VariableTable) r).m_relation, null);
+    }
+    return out;
+  }
+
+  @Override
+  public void resultComputed(Relation r)
+  {
+    if (r.isFragment())
+    {
+      // Send the fragment from a dispatcher thread: a handler thread
+      // that waits for another site, whose handlers may themselves be
+      // waiting for this site, could deadlock
+      final VariableTable vt = (VariableTable) r;
+      m_dispatcher.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            sendQuery(vt.getSite(), vt);
+          }
+          catch (Communicator.QueryExecutionException e)
+          {
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+    // Otherwise, the result is not topped with a placeholder: it
+    // belongs to a query with no return path, and nobody waits for it
   }
 
   /**
@@ -128,11 +439,23 @@ public class HttpCommunicator extends Communicator
     public String m_siteName;
     public String m_siteUrl;
 
-    public SiteInfo(String name, String url)
+    /**
+     * The connections to the site's server
+     */
+    public HttpConnectionPool m_pool;
+
+    /**
+     * Whether relations are sent to the site in binary form
+     */
+    public volatile boolean m_binary;
+
+    public SiteInfo(String name, String url) throws MalformedURLException
     {
       super();
       m_siteName = name;
       m_siteUrl = url;
+      m_pool = new HttpConnectionPool(url);
+      m_binary = HttpCommunicator.this.m_binary;
     }
   }
 
@@ -149,33 +472,231 @@ public class HttpCommunicator extends Communicator
     return new HttpQueryProcessor(qp);
   }
 
+  /**
+   * Processes a query plan from this site. The piece of the plan that
+   * computes the final result is topped with a fragment named after
+   * the query's ID, and destined to this site: the site computing the
+   * result thereby sends it back like any other fragment, and the
+   * communicator gives it to the processor waiting for that ID.
+   * The names of the other fragments of the plan are qualified with
+   * the same ID, so that the intermediate results of two runs of a
+   * plan are not mixed up. Many queries can therefore be processed at
+   * the same time, including the same plan more than once.
+   */
   protected class HttpQueryProcessor extends QueryProcessor
   {
     protected QueryPlan m_queryPlan;
 
     protected Relation m_result;
 
+    /**
+     * The ID of the query, unique among all the sites
+     */
+    protected final String m_queryId;
+
+    /**
+     * The maximum time to wait for the result, in milliseconds, or 0
+     * to wait forever
+     */
+    protected long m_timeout;
+
     public HttpQueryProcessor(QueryPlan qp)
     {
       m_queryPlan = qp;
+      m_queryId = "query-" + UUID.randomUUID().toString();
+      m_timeout = 0;
     }
 
+    public String getQueryId()
+    {
+      return m_queryId;
+    }
+
+    /**
+     * Sets the maximum time {@link #run()} waits for the result
+     * @param millis The time, in milliseconds, or 0 to wait forever
+     */
+    public void setTimeout(long millis)
+    {
+      m_timeout = millis;
+    }
+
+    /**
+     * Sends the pieces of the plan to their sites, and waits until
+     * the result comes back to this site. The result is null if the
+     * query fails or times out.
+     */
     @Override
     public void run()
     {
+      Future<Relation> f = submit();
+      try
+      {
+        if (m_timeout > 0)
+          m_result = f.get(m_timeout, TimeUnit.MILLISECONDS);
+        else
+          m_result = f.get();
+      }
+      catch (ExecutionException e)
+      {
+        e.getCause().printStackTrace();
+        m_result = null;
+      }
+      catch (TimeoutException e)
+      {
+        f.cancel(false);
+        m_result = null;
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        f.cancel(false);
+        m_result = null;
+      }
+    }
+
+    /**
+     * Starts processing the query. The pieces for each site are sent
+     * in a single request, and the requests to all the sites are sent
+     * at the same time.
+     * @return A future that gives the result of the query once it
+     *   comes back to this site. Its <tt>get</tt> method throws an
+     *   {@link ExecutionException} if a piece of the plan cannot be
+     *   delivered.
+     */
+    public Future<Relation> submit()
+    {
+      final QueryResult qr = new QueryResult(m_queryId);
+      final QueryPlan plan;
+      try
+      {
+        plan = getReturningPlan();
+      }
+      catch (Communicator.QueryExecutionException e)
+      {
+        qr.complete(null, e);
+        return qr;
+      }
+      m_queries.put(m_queryId, qr);
       // Dispatch query plan pieces to every site
+      final List<Future<Void>> sent = new LinkedList<Future<Void>>();
+      for (String site_name : plan.keySet())
+      {
+        if (site_name.compareTo(m_engine.m_siteName) == 0)
+          sent.add(addPlanAsync(plan.get(site_name)));
+        else
+          sent.add(sendQueryAsync(site_name, plan.get(site_name)));
+      }
+      m_dispatcher.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          // Fail the query if a piece cannot be delivered
+          for (Future<Void> f : sent)
+          {
+            try
+            {
+              f.get();
+            }
+            catch (ExecutionException e)
+            {
+              m_queries.remove(m_queryId);
+              qr.complete(null, e.getCause());
+              return;
+            }
+            catch (InterruptedException e)
+            {
+              return;
+            }
+          }
+        }
+      });
+      return qr;
+    }
+
+    /**
+     * Copies the plan, qualifying the names of its fragments with the
+     * query's ID, and topping its root with a fragment that sends the
+     * result back to this site
+     * @return The plan
+     * @throws Communicator.QueryExecutionException If the plan has no
+     *   root, or more than one
+     */
+    protected QueryPlan getReturningPlan() throws Communicator.QueryExecutionException
+    {
+      // The names of the fragments sent from one site to another
+      Set<String> labels = new HashSet<String>();
+      for (Set<Relation> pieces : m_queryPlan.values())
+      {
+        for (Relation r : pieces)
+        {
+          if (r.isFragment())
+            labels.add(((VariableTable) r).getName());
+        }
+      }
+      QueryPlan plan = new QueryPlan();
+      int roots = 0;
       for (String site_name : m_queryPlan.keySet())
       {
-        Set<Relation> rels = m_queryPlan.get(site_name);
-        try
+        for (Relation r : m_queryPlan.get(site_name))
         {
-          sendQuery(site_name, rels);
+          r = qualify(r, labels);
+          if (!r.isFragment())
+          {
+            VariableTable head = new VariableTable(m_queryId, m_engine.m_siteName);
+            head.setRelation(r);
+            r = head;
+            roots++;
+          }
+          plan.add(site_name, r);
         }
-        catch (Communicator.QueryExecutionException e)
+      }
+      if (roots != 1)
+      {
+        throw new Communicator.QueryExecutionException("The plan must have exactly one piece computing the result, not " + roots);
+      }
+      return plan;
+    }
+
+    /**
+     * Copies a piece of the plan, qualifying the names of fragments
+     * with the query's ID
+     * @param r The piece of the plan
+     * @param labels The names of the fragments of the plan
+     * @return The copy
+     */
+    protected Relation qualify(Relation r, final Set<String> labels)
+    {
+      CopyQueryVisitor v = new CopyQueryVisitor()
+      {
+        @Override
+        public void visit(VariableTable vt) throws VisitorException
         {
-          e.printStackTrace();
+          Relation linked = null;
+          if (vt.m_relation != null)
+            linked = m_parts.pop();
+          String name = vt.getName();
+          if (labels.contains(name))
+            name = name + "@" + m_queryId;
+          VariableTable copy = new VariableTable(name, vt.getSite());
+          copyMode(vt, copy);
+          if (linked != null)
+            copy.setRelation(linked);
+          m_parts.push(copy);
         }
+      };
+      try
+      {
+        r.accept(v);
       }
+      catch (QueryVisitor.VisitorException e)
+      {
+        // Does not happen
+        e.printStackTrace();
+        return r;
+      }
+      return v.getResult();
     }
 
     @Override
@@ -186,65 +707,332 @@ public class HttpCommunicator extends Communicator
   }
 
   /**
-   * Listen to the connection for any incoming messages
+   * The result of a query started from this site
+   */
+  protected class QueryResult implements Future<Relation>
+  {
+    protected final String m_queryId;
+
+    protected final CountDownLatch m_done;
+
+    protected volatile Relation m_result;
+
+    protected volatile Throwable m_failure;
+
+    protected volatile boolean m_cancelled;
+
+    public QueryResult(String query_id)
+    {
+      super();
+      m_queryId = query_id;
+      m_done = new CountDownLatch(1);
+    }
+
+    /**
+     * Completes the query
+     * @param result The result of the query
+     * @param failure The reason why the query failed, or null
+     */
+    protected synchronized void complete(Relation result, Throwable failure)
+    {
+      if (m_done.getCount() == 0)
+        return;
+      m_result = result;
+      m_failure = failure;
+      m_done.countDown();
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean may_interrupt)
+    {
+      if (m_done.getCount() == 0)
+        return false;
+      m_queries.remove(m_queryId);
+      m_cancelled = true;
+      m_done.countDown();
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+      return m_cancelled;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+      return m_done.getCount() == 0;
+    }
+
+    @Override
+    public Relation get() throws InterruptedException, ExecutionException
+    {
+      m_done.await();
+      return getNow();
+    }
+
+    @Override
+    public Relation get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+      if (!m_done.await(timeout, unit))
+        throw new TimeoutException("No result for " + m_queryId);
+      return getNow();
+    }
+
+    protected Relation getNow() throws ExecutionException
+    {
+      if (m_cancelled)
+        throw new CancellationException();
+      if (m_failure != null)
+        throw new ExecutionException(m_failure);
+      return m_result;
+    }
+  }
+
+  /**
+   * Listens to the port for incoming requests, until
+   * {@link #shutdown()} is called
    */
   @Override
   public void run()
   {
-    int port = 1234;
-    ServerSocket serversocket = null;
+    ServerSocketChannel server = null;
     try
     {
-      serversocket = new ServerSocket(port);
+      m_selector = Selector.open();
+      server = ServerSocketChannel.open();
+      server.socket().setReuseAddress(true);
+      server.socket().bind(new InetSocketAddress(m_port));
+      server.configureBlocking(false);
+      server.register(m_selector, SelectionKey.OP_ACCEPT);
+      m_port = server.socket().getLocalPort();
     }
     catch (IOException e)
     {
       // Nothing to do if we can't open a socket
+      e.printStackTrace();
+      close(server);
+      close(m_selector);
       return;
     }
-
-    //go in a infinite loop, wait for connections, process request, send response
-    while (true)
+    m_handlers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), daemonThreads("TurtleDB HTTP handler"));
+    m_running = true;
+    ByteBuffer read_buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    while (m_running)
     {
       try
       {
-        //this call waits/blocks until someone connects to the port we
-        //are listening to
-        Socket connectionsocket = serversocket.accept();
-        //Read the http request from the client from the socket interface
-        //into a buffer.
-        BufferedReader input =
-            new BufferedReader(new InputStreamReader(connectionsocket.
-                getInputStream()));
-        //Prepare a outputstream from us to the client,
-        //this will be used sending back our response
-        //(header + requested file) to the client.
-        DataOutputStream output =
-            new DataOutputStream(connectionsocket.getOutputStream());
-        http_handler(input, output);
-      }
-      catch (Exception e)
-      { 
+        m_selector.select();
+      }
+      catch (IOException e)
+      {
         e.printStackTrace();
+        break;
       }
-      if (serversocket != null)
+      // Write the responses the handlers have prepared
+      HttpConnection conn = m_pendingWrites.poll();
+      while (conn != null)
       {
-        try 
-        {
-          serversocket.close();
-        } 
-        catch (IOException e)
+        conn.write();
+        conn = m_pendingWrites.poll();
+      }
+      Iterator<SelectionKey> it = m_selector.selectedKeys().iterator();
+      while (it.hasNext())
+      {
+        SelectionKey key = it.next();
+        it.remove();
+        if (!key.isValid())
+          continue;
+        if (key.isAcceptable())
         {
-          e.printStackTrace();
+          accept(server);
+          continue;
         }
+        conn = (HttpConnection) key.attachment();
+        if (key.isWritable())
+          conn.write();
+        else if (key.isReadable())
+          conn.read(read_buffer);
       }
     }
+    // Release everything
+    for (SelectionKey key : m_selector.keys())
+      close(key.channel());
+    close(m_selector);
+    m_handlers.shutdown();
+  }
+
+  /**
+   * Stops the server, and closes the connections to the other sites
+   */
+  public void shutdown()
+  {
+    m_dispatcher.shutdown();
+    for (SiteInfo si : m_siteInfo.values())
+      si.m_pool.close();
+    m_running = false;
+    Selector sel = m_selector;
+    if (sel != null)
+      sel.wakeup();
+  }
+
+  /**
+   * Creates a factory of daemon threads
+   * @param prefix The prefix of the names of the threads
+   * @return The factory
+   */
+  protected static ThreadFactory daemonThreads(final String prefix)
+  {
+    return new ThreadFactory()
+    {
+      protected int m_count = 0;
+
+      @Override
+      public synchronized Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, prefix + " " + (++m_count));
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  /**
+   * Accepts a pending connection on the server's socket
+   * @param server The server's socket
+   */
+  protected void accept(ServerSocketChannel server)
+  {
+    SocketChannel channel = null;
+    try
+    {
+      channel = server.accept();
+      if (channel == null)
+        return;
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      HttpConnection conn = new HttpConnection(channel);
+      conn.m_key = channel.register(m_selector, SelectionKey.OP_READ, conn);
+    }
+    catch (IOException e)
+    {
+      close(channel);
+    }
+  }
+
+  protected static void close(Closeable c)
+  {
+    if (c == null)
+      return;
+    try
+    {
+      c.close();
+    }
+    catch (IOException e)
+    {
+      // Nothing to do
+    }
+  }
+
+  /**
+   * Decodes the body of a request and gives the relations it contains
+   * to the site's engine. This is called by a handler thread; the
+   * response is sent as soon as the relations are received, and before
+   * they are processed, so that the sender is not held back.
+   * @param conn The connection the request comes from
+   * @param content_type The content type of the body, or null if none
+   *   is declared, in which case the body is read as XML. Bodies of
+   *   any type other than XML and the binary form of the
+   *   {@link BinaryQueryFormatter} are refused with code 415.
+   * @param body The body of the request
+   */
+  protected void handle(HttpConnection conn, String content_type, byte[] body)
+  {
+    String type = mediaType(content_type);
+    boolean binary = type != null && type.equals(BinaryQueryFormatter.CONTENT_TYPE);
+    if (type != null && !binary && !isXmlType(type))
+    {
+      // Neither XML nor the binary form
+      conn.respond(415);
+      return;
+    }
+    int code = 200;
+    try
+    {
+      List<Relation> rels;
+      if (binary)
+        rels = BinaryQueryParser.parse(body);
+      else
+        rels = XmlQueryParser.parseBatch(new String(body, BODY_CHARSET.name()));
+      if (rels == null || rels.contains(null))
+        code = 400;
+      else if (m_engine == null)
+        code = 500;
+      else
+        m_engine.addQuery(collectResults(rels));
+    }
+    catch (XmlQueryParser.ParseException e)
+    {
+      code = 400;
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      code = 500;
+    }
+    catch (Throwable e)
+    {
+      // Including errors, as the connection waits for the response
+      e.printStackTrace();
+      code = 500;
+    }
+    conn.respond(code);
+    if (code != 200)
+      return;
+    try
+    {
+      m_engine.processPendingQueries(this);
+    }
+    catch (Throwable e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Gives the media type of a content type, without its parameters
+   * @param content_type The content type, e.g.
+   *   <tt>application/xml; charset=UTF-8</tt>
+   * @return The media type in lower case, e.g. <tt>application/xml</tt>,
+   *   or null if no content type is given
+   */
+  protected static String mediaType(String content_type)
+  {
+    if (content_type == null)
+      return null;
+    int semicolon = content_type.indexOf(';');
+    if (semicolon >= 0)
+      content_type = content_type.substring(0, semicolon);
+    content_type = content_type.trim().toLowerCase();
+    if (content_type.isEmpty())
+      return null;
+    return content_type;
+  }
+
+  /**
+   * Determines if a media type designates an XML document
+   * @param type The media type, in lower case
+   * @return True if the type is XML
+   */
+  protected static boolean isXmlType(String type)
+  {
+    return type.equals("application/xml") || type.equals("text/xml") || type.endsWith("+xml");
   }
 
   //this method makes the HTTP header for the response
-  //the headers job is to tell the browser the result of the request
+  //the headers job is to tell the client the result of the request
   //among if it was successful or not.
-  private String construct_http_header(int return_code)
+  private static String construct_http_header(int return_code, boolean keep_alive)
   {
     String s = "HTTP/1.1 ";
     switch (return_code)
@@ -261,6 +1049,15 @@ public class HttpCommunicator extends Communicator
     case 404:
       s = s + "404 Not Found";
       break;
+    case 411:
+      s = s + "411 Length Required";
+      break;
+    case 413:
+      s = s + "413 Payload Too Large";
+      break;
+    case 415:
+      s = s + "415 Unsupported Media Type";
+      break;
     case 500:
       s = s + "500 Internal Server Error";
       break;
@@ -269,39 +1066,331 @@ public class HttpCommunicator extends Communicator
       break;
     }
     s = s + "\r\n";
-    s = s + "Connection: close\r\n"; //we can't handle persistent connections
+    s = s + "Connection: " + (keep_alive ? "keep-alive" : "close") + "\r\n";
     s = s + "Server: TurtleDB\r\n"; //server name
+    s = s + "Content-Length: 0\r\n"; //responses have no body
     s = s + "\r\n"; //this marks the end of the httpheader
     return s;
   }
 
-  private void http_handler(BufferedReader input, DataOutputStream output)
+  /**
+   * The state of a connection to the server. Bytes are accumulated as
+   * they arrive, and a request is decoded as soon as its headers, and
+   * then as many bytes of body as they announce, have been received.
+   * Requests on the same connection are handled one at a time: the
+   * connection stops being read while a request is being handled,
+   * and resumes once its response is written; any bytes of the next
+   * request already received are then decoded right away.
+   */
+  protected class HttpConnection
   {
-    int method = 0; //1 post, 0 not supported
-    try
+    protected final SocketChannel m_channel;
+
+    protected SelectionKey m_key;
+
+    /**
+     * The bytes received and not yet consumed
+     */
+    protected byte[] m_data;
+
+    protected int m_length;
+
+    /**
+     * The position of the body of the current request in the data,
+     * or -1 if its headers are not completely received
+     */
+    protected int m_bodyStart;
+
+    protected int m_contentLength;
+
+    /**
+     * The content type of the current request, or null if none
+     * is declared
+     */
+    protected String m_contentType;
+
+    /**
+     * Whether the connection is kept alive after the current request
+     */
+    protected volatile boolean m_keepAlive;
+
+    /**
+     * Whether a request is being handled
+     */
+    protected boolean m_busy;
+
+    /**
+     * The response being written
+     */
+    protected volatile ByteBuffer m_out;
+
+    public HttpConnection(SocketChannel channel)
     {
-      String tmp = input.readLine(); //read from the stream
-      if (tmp.startsWith("POST"))
-      { //compare it is it GET
-        method = 1;
-      } //if we set it to method 1
-      if (method == 0)
-      { // not supported
-        output.writeBytes(construct_http_header(501));
-        output.close();
+      super();
+      m_channel = channel;
+      m_data = new byte[BUFFER_SIZE];
+      m_length = 0;
+      m_bodyStart = -1;
+    }
+
+    /**
+     * Reads the bytes available on the connection
+     * @param buffer A buffer to read the bytes into
+     */
+    protected void read(ByteBuffer buffer)
+    {
+      int n;
+      do
+      {
+        buffer.clear();
+        try
+        {
+          n = m_channel.read(buffer);
+        }
+        catch (IOException e)
+        {
+          n = -1;
+        }
+        if (n < 0)
+        {
+          close();
+          return;
+        }
+        if (m_length + n > m_data.length)
+          m_data = Arrays.copyOf(m_data, Math.max(m_data.length * 2, m_length + n));
+        System.arraycopy(buffer.array(), 0, m_data, m_length, n);
+        m_length += n;
+      } while (n == buffer.capacity() && m_length < readLimit());
+      decode();
+    }
+
+    /**
+     * Gives the number of bytes received beyond which the connection
+     * is no longer read until they are decoded. Any bytes left are
+     * read afterwards, so that no more than the headers, or the body
+     * of the size they announce, are buffered at a time.
+     * @return The number of bytes
+     */
+    protected int readLimit()
+    {
+      if (m_bodyStart < 0)
+        return MAX_HEADER_SIZE;
+      return m_bodyStart + m_contentLength;
+    }
+
+    /**
+     * Decodes the request whose bytes have been received, if any
+     */
+    protected void decode()
+    {
+      if (m_busy)
+        return;
+      if (m_bodyStart < 0 && !decodeHeaders())
+        return;
+      if (m_length - m_bodyStart < m_contentLength)
+      {
+        // Wait for the rest of the body; make room for it at once
+        if (m_data.length < m_bodyStart + m_contentLength)
+          m_data = Arrays.copyOf(m_data, m_bodyStart + m_contentLength);
         return;
       }
-      String line = input.readLine();
-      while (line != null)
+      final byte[] body = Arrays.copyOfRange(m_data, m_bodyStart, m_bodyStart + m_contentLength);
+      final String content_type = m_contentType;
+      consume(m_bodyStart + m_contentLength);
+      m_busy = true;
+      m_key.interestOps(0);
+      m_handlers.execute(new Runnable()
       {
+        @Override
+        public void run()
+        {
+          handle(HttpConnection.this, content_type, body);
+        }
+      });
+    }
 
-        line = input.readLine();
+    /**
+     * Decodes the request line and the headers of a request, if they
+     * are completely received. A request that is not acceptable is
+     * answered immediately.
+     * @return True if the body of an acceptable request can be read,
+     *   false otherwise
+     */
+    protected boolean decodeHeaders()
+    {
+      int end = -1, body_start = -1;
+      for (int i = 0; i < m_length; i++)
+      {
+        if (m_data[i] != '\n')
+          continue;
+        if (i + 1 < m_length && m_data[i + 1] == '\n')
+        {
+          end = i;
+          body_start = i + 2;
+          break;
+        }
+        if (i + 2 < m_length && m_data[i + 1] == '\r' && m_data[i + 2] == '\n')
+        {
+          end = i;
+          body_start = i + 3;
+          break;
+        }
       }
+      if (end < 0)
+      {
+        if (m_length > MAX_HEADER_SIZE)
+        {
+          m_keepAlive = false;
+          respond(400);
+        }
+        return false;
+      }
+      String[] lines = new String(m_data, 0, end, HEADER_CHARSET).split("\r?\n");
+      consume(body_start);
+      String[] request_line = lines[0].trim().split(" ");
+      String method = request_line[0];
+      boolean http11 = request_line.length < 3 || request_line[2].compareToIgnoreCase("HTTP/1.0") != 0;
+      String connection = null, content_length = null, transfer_encoding = null;
+      m_contentType = null;
+      for (int i = 1; i < lines.length; i++)
+      {
+        int colon = lines[i].indexOf(':');
+        if (colon < 0)
+          continue;
+        String name = lines[i].substring(0, colon).trim();
+        String value = lines[i].substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Connection"))
+          connection = value;
+        else if (name.equalsIgnoreCase("Content-Length"))
+          content_length = value;
+        else if (name.equalsIgnoreCase("Transfer-Encoding"))
+          transfer_encoding = value;
+        else if (name.equalsIgnoreCase("Content-Type"))
+          m_contentType = value;
+      }
+      if (http11)
+        m_keepAlive = connection == null || connection.compareToIgnoreCase("close") != 0;
+      else
+        m_keepAlive = connection != null && connection.compareToIgnoreCase("keep-alive") == 0;
+      if (transfer_encoding != null && transfer_encoding.compareToIgnoreCase("identity") != 0)
+      {
+        // We cannot tell where the body ends
+        m_keepAlive = false;
+        respond(501);
+        return false;
+      }
+      m_contentLength = 0;
+      if (content_length != null)
+      {
+        try
+        {
+          m_contentLength = Integer.parseInt(content_length);
+        }
+        catch (NumberFormatException e)
+        {
+          m_contentLength = -1;
+        }
+        if (m_contentLength < 0)
+        {
+          m_keepAlive = false;
+          respond(400);
+          return false;
+        }
+        if (m_contentLength > m_maxBodySize)
+        {
+          // The body is not read, so the connection cannot be reused
+          m_keepAlive = false;
+          respond(413);
+          return false;
+        }
+      }
+      if (method.compareTo("POST") != 0)
+      {
+        // Skip the body, if any
+        m_keepAlive = m_keepAlive && m_contentLength == 0;
+        respond(501);
+        return false;
+      }
+      if (content_length == null)
+      {
+        m_keepAlive = false;
+        respond(411);
+        return false;
+      }
+      m_bodyStart = 0;
+      return true;
     }
-    catch (IOException e)
+
+    /**
+     * Discards the first bytes of the data received
+     * @param n The number of bytes to discard
+     */
+    protected void consume(int n)
     {
-      e.printStackTrace();
+      m_length -= n;
+      if (m_length > BUFFER_SIZE || m_data.length == BUFFER_SIZE)
+        System.arraycopy(m_data, n, m_data, 0, m_length);
+      else
+      {
+        // Give back the memory taken by a large request
+        byte[] data = new byte[BUFFER_SIZE];
+        System.arraycopy(m_data, n, data, 0, m_length);
+        m_data = data;
+      }
+      m_bodyStart = -1;
     }
-  }
 
+    /**
+     * Sends the response to the current request. This can be called
+     * from any thread; the response is written by the selector thread.
+     * @param code The HTTP status code of the response
+     */
+    protected void respond(int code)
+    {
+      m_busy = true;
+      m_out = ByteBuffer.wrap(construct_http_header(code, m_keepAlive).getBytes(HEADER_CHARSET));
+      m_pendingWrites.add(this);
+      m_selector.wakeup();
+    }
+
+    /**
+     * Writes the response to the current request. Once it is written,
+     * the connection goes back to reading the next request, unless
+     * it must be closed.
+     */
+    protected void write()
+    {
+      if (m_out == null || !m_key.isValid())
+        return;
+      try
+      {
+        m_channel.write(m_out);
+      }
+      catch (IOException e)
+      {
+        close();
+        return;
+      }
+      if (m_out.hasRemaining())
+      {
+        m_key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      m_out = null;
+      if (!m_keepAlive)
+      {
+        close();
+        return;
+      }
+      m_busy = false;
+      m_key.interestOps(SelectionKey.OP_READ);
+      decode();
+    }
+
+    protected void close()
+    {
+      m_key.cancel();
+      HttpCommunicator.close(m_channel);
+    }
+  }
 }
@@ -0,0 +1,546 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * A pool of persistent connections to the HTTP server of a site. Each
+ * request borrows an idle connection (or opens one if none is
+ * available), sends an HTTP/1.1 POST request on it, reads the response,
+ * and gives the connection back to the pool if the server keeps it
+ * alive. The cost of establishing a TCP connection is therefore paid
+ * once per concurrent sender, and not once per fragment.
+ * <p>
+ * The pool also keeps {@link Metrics} on the requests it sends.
+ * @author sylvain
+ *
+ */
+public class HttpConnectionPool
+{
+  /**
+   * The default maximum number of idle connections kept
+   */
+  public static final int DEFAULT_MAX_IDLE = 8;
+
+  /**
+   * The default timeout, in milliseconds, for connecting and reading
+   * a response
+   */
+  public static final int DEFAULT_TIMEOUT = 30000;
+
+  protected final String m_host;
+
+  protected final int m_port;
+
+  /**
+   * The path requests are sent to
+   */
+  protected final String m_path;
+
+  /**
+   * The idle connections, the most recently used first
+   */
+  protected final LinkedList<Connection> m_idle;
+
+  protected int m_maxIdle = DEFAULT_MAX_IDLE;
+
+  protected int m_timeout = DEFAULT_TIMEOUT;
+
+  protected final Metrics m_metrics;
+
+  /**
+   * Creates a pool of connections to a URL
+   * @param url The URL requests are sent to
+   * @throws MalformedURLException If the URL is not an HTTP URL
+   */
+  public HttpConnectionPool(String url) throws MalformedURLException
+  {
+    super();
+    URL u = new URL(url);
+    if (u.getProtocol().compareToIgnoreCase("http") != 0)
+      throw new MalformedURLException("Not an HTTP URL: " + url);
+    m_host = u.getHost();
+    m_port = u.getPort() < 0 ? u.getDefaultPort() : u.getPort();
+    m_path = u.getFile().isEmpty() ? "/" : u.getFile();
+    m_idle = new LinkedList<Connection>();
+    m_metrics = new Metrics();
+  }
+
+  /**
+   * Sets the maximum number of idle connections kept in the pool
+   * @param max The number of connections
+   */
+  public synchronized void setMaxIdle(int max)
+  {
+    m_maxIdle = max;
+    while (m_idle.size() > m_maxIdle)
+      m_idle.removeLast().close();
+  }
+
+  /**
+   * Sets the timeout for connecting and for reading a response
+   * @param millis The timeout, in milliseconds
+   */
+  public void setTimeout(int millis)
+  {
+    m_timeout = millis;
+  }
+
+  public Metrics getMetrics()
+  {
+    return m_metrics;
+  }
+
+  /**
+   * Sends data in an HTTP POST request. An idle connection the server
+   * has closed is discarded before use; the request is sent again on a
+   * fresh connection only if it could not be written entirely, and never
+   * once it may have reached the server.
+   * @param content_type The content type of the data
+   * @param payload The data to send
+   * @return The HTTP status code of the response
+   * @throws IOException If the request cannot be sent, or no response
+   *   is received
+   */
+  public int post(String content_type, byte[] payload) throws IOException
+  {
+    long start = System.nanoTime();
+    Connection conn = borrow();
+    while (conn != null && conn.isClosedByServer())
+    {
+      conn.close();
+      m_metrics.staleConnection();
+      conn = borrow();
+    }
+    boolean reused = conn != null;
+    try
+    {
+      if (conn != null)
+      {
+        try
+        {
+          conn.send(content_type, payload);
+        }
+        catch (IOException e)
+        {
+          // The request was not written entirely, so the server cannot
+          // have handled it: send it again on a fresh connection
+          conn.close();
+          conn = null;
+          reused = false;
+          m_metrics.staleConnection();
+        }
+      }
+      if (conn == null)
+      {
+        conn = new Connection();
+        m_metrics.connectionOpened();
+        conn.send(content_type, payload);
+      }
+      // From now on, the server may have handled the request, even if
+      // no response comes back: it is never sent a second time
+      int code = conn.readResponse();
+      release(conn);
+      m_metrics.requestCompleted(payload.length, System.nanoTime() - start, reused, code);
+      return code;
+    }
+    catch (IOException e)
+    {
+      if (conn != null)
+        conn.close();
+      m_metrics.requestFailed(System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  /**
+   * Closes all the idle connections of the pool
+   */
+  public synchronized void close()
+  {
+    for (Connection conn : m_idle)
+      conn.close();
+    m_idle.clear();
+  }
+
+  protected synchronized Connection borrow()
+  {
+    if (m_idle.isEmpty())
+      return null;
+    return m_idle.removeFirst();
+  }
+
+  protected synchronized void release(Connection conn)
+  {
+    if (!conn.m_keepAlive || m_idle.size() >= m_maxIdle)
+    {
+      conn.close();
+      return;
+    }
+    m_idle.addFirst(conn);
+  }
+
+  /**
+   * A persistent connection to the server
+   */
+  protected class Connection
+  {
+    protected final Socket m_socket;
+
+    protected final InputStream m_in;
+
+    protected final OutputStream m_out;
+
+    /**
+     * Whether the server keeps the connection open after the last
+     * response
+     */
+    protected boolean m_keepAlive;
+
+    public Connection() throws IOException
+    {
+      super();
+      m_socket = new Socket();
+      m_socket.setTcpNoDelay(true);
+      m_socket.connect(new InetSocketAddress(m_host, m_port), m_timeout);
+      m_socket.setSoTimeout(m_timeout);
+      m_in = new BufferedInputStream(m_socket.getInputStream());
+      m_out = new BufferedOutputStream(m_socket.getOutputStream());
+      m_keepAlive = true;
+    }
+
+    /**
+     * Writes a POST request; its response is then read by
+     * {@link #readResponse()}
+     * @param content_type The content type of the data
+     * @param payload The data to send
+     * @throws IOException If the request cannot be written
+     */
+    public void send(String content_type, byte[] payload) throws IOException
+    {
+      StringBuilder out = new StringBuilder();
+      out.append("POST ").append(m_path).append(" HTTP/1.1\r\n");
+      out.append("Host: ").append(m_host).append(":").append(m_port).append("\r\n");
+      out.append("User-Agent: TurtleDB\r\n");
+      out.append("Content-Type: ").append(content_type).append("\r\n");
+      out.append("Content-Length: ").append(payload.length).append("\r\n");
+      out.append("\r\n");
+      m_out.write(out.toString().getBytes("ISO-8859-1"));
+      m_out.write(payload);
+      m_out.flush();
+    }
+
+    /**
+     * Determines if the server has closed this idle connection. A
+     * request written on such a connection would not fail, but would
+     * receive no response, and could then not be told apart from a
+     * request whose response is lost.
+     * @return True if the connection is closed, or if the server sent
+     *   bytes that are not the response to any request
+     */
+    public boolean isClosedByServer()
+    {
+      try
+      {
+        if (m_in.available() > 0)
+          return true;
+        m_socket.setSoTimeout(1);
+        try
+        {
+          m_in.read();
+          return true;
+        }
+        finally
+        {
+          m_socket.setSoTimeout(m_timeout);
+        }
+      }
+      catch (SocketTimeoutException e)
+      {
+        // Nothing to read: the connection is still open
+        return false;
+      }
+      catch (IOException e)
+      {
+        return true;
+      }
+    }
+
+    /**
+     * Reads the response to a request, including its body, which is
+     * discarded
+     * @return The HTTP status code of the response
+     * @throws IOException If the response is malformed or cut short
+     */
+    protected int readResponse() throws IOException
+    {
+      String status_line = readLine();
+      if (status_line == null)
+        throw new EOFException("Connection closed by the server");
+      String[] parts = status_line.split(" ");
+      int code;
+      try
+      {
+        code = Integer.parseInt(parts[1]);
+      }
+      catch (RuntimeException e)
+      {
+        throw new IOException("Malformed status line: " + status_line);
+      }
+      boolean http11 = parts[0].compareToIgnoreCase("HTTP/1.0") != 0;
+      String connection = null;
+      int content_length = -1;
+      String line = readLine();
+      while (line != null && !line.isEmpty())
+      {
+        int colon = line.indexOf(':');
+        if (colon > 0)
+        {
+          String name = line.substring(0, colon).trim();
+          String value = line.substring(colon + 1).trim();
+          if (name.equalsIgnoreCase("Connection"))
+            connection = value;
+          else if (name.equalsIgnoreCase("Content-Length"))
+          {
+            try
+            {
+              content_length = Integer.parseInt(value);
+            }
+            catch (NumberFormatException e)
+            {
+              throw new IOException("Malformed Content-Length: " + value);
+            }
+          }
+        }
+        line = readLine();
+      }
+      if (line == null)
+        throw new EOFException("Connection closed by the server");
+      if (http11)
+        m_keepAlive = connection == null || connection.compareToIgnoreCase("close") != 0;
+      else
+        m_keepAlive = connection != null && connection.compareToIgnoreCase("keep-alive") == 0;
+      if (content_length < 0)
+      {
+        // The body ends with the connection
+        m_keepAlive = false;
+        return code;
+      }
+      for (long n = content_length; n > 0; )
+      {
+        long skipped = m_in.skip(n);
+        if (skipped <= 0)
+        {
+          if (m_in.read() < 0)
+            throw new EOFException("Connection closed by the server");
+          skipped = 1;
+        }
+        n -= skipped;
+      }
+      return code;
+    }
+
+    /**
+     * Reads a line of the response's headers
+     * @return The line, without its terminator, or null if the
+     *   connection is closed
+     */
+    protected String readLine() throws IOException
+    {
+      StringBuilder line = new StringBuilder();
+      int c = m_in.read();
+      if (c < 0)
+        return null;
+      while (c >= 0 && c != '\n')
+      {
+        if (c != '\r')
+          line.append((char) c);
+        c = m_in.read();
+      }
+      return line.toString();
+    }
+
+    public void close()
+    {
+      try
+      {
+        m_socket.close();
+      }
+      catch (IOException e)
+      {
+        // Nothing to do
+      }
+    }
+  }
+
+  /**
+   * Timing and traffic metrics on the requests sent through a pool
+   */
+  public static class Metrics
+  {
+    protected long m_requests;
+
+    protected long m_failures;
+
+    /**
+     * The number of requests answered with a status other than 200
+     */
+    protected long m_errors;
+
+    protected long m_bytesSent;
+
+    protected long m_connectionsOpened;
+
+    protected long m_connectionsReused;
+
+    /**
+     * The number of idle connections found closed by the server
+     */
+    protected long m_staleConnections;
+
+    protected long m_totalNanos;
+
+    protected long m_maxNanos;
+
+    protected long m_lastNanos;
+
+    protected synchronized void requestCompleted(int bytes, long nanos, boolean reused, int code)
+    {
+      m_requests++;
+      m_bytesSent += bytes;
+      if (reused)
+        m_connectionsReused++;
+      if (code != 200)
+        m_errors++;
+      recordTime(nanos);
+    }
+
+    protected synchronized void requestFailed(long nanos)
+    {
+      m_requests++;
+      m_failures++;
+      recordTime(nanos);
+    }
+
+    protected synchronized void connectionOpened()
+    {
+      m_connectionsOpened++;
+    }
+
+    protected synchronized void staleConnection()
+    {
+      m_staleConnections++;
+    }
+
+    protected void recordTime(long nanos)
+    {
+      m_totalNanos += nanos;
+      m_lastNanos = nanos;
+      if (nanos > m_maxNanos)
+        m_maxNanos = nanos;
+    }
+
+    public synchronized long getRequestCount()
+    {
+      return m_requests;
+    }
+
+    /**
+     * Gives the number of requests that could not be sent, or that
+     * got no response
+     * @return The number of requests
+     */
+    public synchronized long getFailureCount()
+    {
+      return m_failures;
+    }
+
+    public synchronized long getErrorCount()
+    {
+      return m_errors;
+    }
+
+    public synchronized long getBytesSent()
+    {
+      return m_bytesSent;
+    }
+
+    public synchronized long getConnectionsOpened()
+    {
+      return m_connectionsOpened;
+    }
+
+    public synchronized long getConnectionsReused()
+    {
+      return m_connectionsReused;
+    }
+
+    public synchronized long getStaleConnections()
+    {
+      return m_staleConnections;
+    }
+
+    /**
+     * Gives the time taken by the last request, from the moment a
+     * connection is requested until the response is read
+     * @return The time, in nanoseconds
+     */
+    public synchronized long getLastNanos()
+    {
+      return m_lastNanos;
+    }
+
+    public synchronized long getMaxNanos()
+    {
+      return m_maxNanos;
+    }
+
+    public synchronized long getTotalNanos()
+    {
+      return m_totalNanos;
+    }
+
+    /**
+     * Gives the average time taken by a request
+     * @return The time, in nanoseconds
+     */
+    public synchronized long getAverageNanos()
+    {
+      if (m_requests == 0)
+        return 0;
+      return m_totalNanos / m_requests;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+      StringBuilder out = new StringBuilder();
+      out.append(m_requests).append(" requests (").append(m_failures).append(" failed, ");
+      out.append(m_errors).append(" errors), ").append(m_bytesSent).append(" bytes, ");
+      out.append(m_connectionsOpened).append(" connections opened, ");
+      out.append(m_connectionsReused).append(" reused, ");
+      out.append(m_staleConnections).append(" stale; avg ");
+      out.append(getAverageNanos() / 1000).append(" us, max ");
+      out.append(m_maxNanos / 1000).append(" us");
+      return out.toString();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+/**
+ * Estimates the number of distinct elements of a set in constant space,
+ * with the HyperLogLog algorithm of Flajolet et al. Each element is
+ * hashed; the first bits of the hash select one of <i>m</i> registers,
+ * and the register keeps the largest number of leading zeros (plus one)
+ * seen in the remaining bits. The harmonic mean of the registers then
+ * gives an estimate of the number of distinct hashes, with a relative
+ * standard error of about 1.04/&radic;<i>m</i>.
+ * <p>
+ * Adding an element that was already added has no effect, and two
+ * sketches can be merged; an element can however not be removed.
+ * @author sylvain
+ *
+ */
+public class HyperLogLog
+{
+  /**
+   * The default number of bits of the hash that select a register
+   */
+  public static final int DEFAULT_PRECISION = 11;
+  
+  /**
+   * The number of bits of the hash that select a register
+   */
+  protected final int m_precision;
+  
+  protected final byte[] m_registers;
+  
+  public HyperLogLog()
+  {
+    this(DEFAULT_PRECISION);
+  }
+  
+  /**
+   * Creates an empty sketch
+   * @param precision The number of bits of the hash that select a
+   *   register; the sketch has 2<sup>precision</sup> registers
+   */
+  public HyperLogLog(int precision)
+  {
+    super();
+    assert precision >= 4 && precision <= 16;
+    m_precision = precision;
+    m_registers = new byte[1 << precision];
+  }
+  
+  /**
+   * Adds an element to the sketch
+   * @param o The element
+   */
+  public void add(Object o)
+  {
+    addHash(mix(o.hashCode()));
+  }
+  
+  /**
+   * Adds the hash of an element to the sketch
+   * @param hash The hash, whose 64 bits are expected to be
+   *   uniformly distributed
+   */
+  protected void addHash(long hash)
+  {
+    int index = (int) (hash >>> (64 - m_precision));
+    // The guard bit bounds the rank when the remaining bits are all 0
+    long rest = (hash << m_precision) | (1L << (m_precision - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+    if (rank > m_registers[index])
+      m_registers[index] = rank;
+  }
+  
+  /**
+   * Adds the elements of another sketch to this one
+   * @param h The other sketch, which must have the same precision
+   */
+  public void merge(HyperLogLog h)
+  {
+    assert h.m_precision == m_precision;
+    for (int i = 0; i < m_registers.length; i++)
+    {
+      if (h.m_registers[i] > m_registers[i])
+        m_registers[i] = h.m_registers[i];
+    }
+  }
+  
+  /**
+   * Estimates the number of distinct elements added to the sketch
+   * @return The estimate
+   */
+  public double estimate()
+  {
+    int m = m_registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte b : m_registers)
+    {
+      sum += 1.0 / (1L << b);
+      if (b == 0)
+        zeros++;
+    }
+    double alpha = 0.7213 / (1 + 1.079 / m);
+    double e = alpha * m * m / sum;
+    if (e <= 2.5 * m && zeros > 0)
+    {
+      // Few elements: linear counting is more precise
+      return m * Math.log((double) m / zeros);
+    }
+    return e;
+  }
+  
+  /**
+   * Spreads the bits of a 32-bit hash code over 64 bits (this is the
+   * finalization step of MurmurHash3)
+   * @param h The hash code
+   * @return The mixed hash
+   */
+  protected static long mix(int h)
+  {
+    long k = h;
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+}
@@ -17,6 +17,8 @@
  -------------------------------------------------------------------------*/
 package ca.uqac.dim.turtledb;
 
+import java.util.Iterator;
+
 import ca.uqac.dim.turtledb.QueryVisitor.VisitorException;
 
 public class Intersection extends NAryRelation
@@ -29,6 +31,12 @@ public class Intersection extends NAryRelation
     v.visit(this);
   }
   
+  @Override
+  protected boolean mergesOperands()
+  {
+    return true;
+  }
+  
   protected class IntersectionIterator extends NAryRelationStreamIterator
   {
     /**
@@ -39,7 +47,11 @@ public class Intersection extends NAryRelation
     @Override
     protected Tuple internalNext()
     {
-      super.initializeIteration();
+      if (m_first)
+      {
+        m_first = false;
+        super.initializeIteration();
+      }
 
       // Iterate through the vector of last tuples and find
       // the smallest one
@@ -50,6 +62,8 @@ public class Intersection extends NAryRelation
         all_equal = allEqual();
         smallest_tuple = super.incrementSmallestTuple();
       } while (!all_equal && smallest_tuple != null);
+      if (smallest_tuple == null)
+        return null;
       // Change tuple's schema to that of first relation
       Relation r = m_relations.get(0);
       Schema sch = r.getSchema();
@@ -60,7 +74,8 @@ public class Intersection extends NAryRelation
     
     /**
      * Determines if the tuples currently held in the tuple
-     * vector are all equal
+     * vector are all equal. Only the values are compared, as
+     * the operands may name their attributes differently.
      * @return True if the tuples are all equal and not null,
      *    false otherwise
      */
@@ -71,14 +86,14 @@ public class Intersection extends NAryRelation
       for (int i = 0; i < len; i++)
       {
         Tuple t = m_lastTuple.elementAt(i);
+        if (t == null)
+          return false;
         if (i == 0)
         {
           last_elem = t;
           continue;
         }
-        if (t == null)
-          return false;
-        if (!last_elem.equals(t))
+        if (last_elem.compareTo(t) != 0)
           return false;
       }
       return true;
@@ -103,10 +118,12 @@ public class Intersection extends NAryRelation
     protected void getIntermediateResult()
     {
       super.getIntermediateResult();
-      Table tab = new Table(getSchema());
+      Table tab = newIntermediateTable(getSchema());
       Table first_table = m_results.firstElement();
-      for (Tuple t : first_table.m_tuples)
+      Iterator<Tuple> it = first_table.tupleIterator();
+      while (it.hasNext())
       {
+        Tuple t = it.next();
         boolean all_in = true;
         for (int i = 1; i < m_results.size(); i++)
         {
@@ -122,8 +139,10 @@ public class Intersection extends NAryRelation
           }
         }
         if (all_in)
-          tab.put(t);
+          tab.append(t);
       }
+      for (Table tt : m_results)
+        dispose(tt);
       m_intermediateResult = tab;
     }
   }
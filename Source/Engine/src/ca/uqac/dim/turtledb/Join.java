@@ -17,17 +17,71 @@
  -------------------------------------------------------------------------*/
 package ca.uqac.dim.turtledb;
 
+import java.util.*;
+
 import ca.uqac.dim.turtledb.QueryVisitor.VisitorException;
 
+/**
+ * Join of two relations on a condition. When the condition contains
+ * equalities between an attribute of each operand (see
+ * {@link JoinKeys}), the join is computed by matching the tuples
+ * of both operands by their key, using one of two algorithms:
+ * <ul>
+ * <li>a <em>hash join</em>: the tuples of the smaller operand are put
+ *   in a hash table indexed by their key, and each tuple of the other
+ *   operand is matched with the tuples of the same key. If one of the
+ *   operands is a {@link Table} with an index on its key (see
+ *   {@link HashIndex}), the index serves as the hash table and
+ *   nothing needs to be built;</li>
+ * <li>a <em>sort-merge join</em>: both operands are enumerated in
+ *   the order of their key, and tuples with the same key are
+ *   matched in a single pass. An operand that is not already
+ *   sorted on its key is first sorted by a {@link TupleSorter},
+ *   which uses a bounded amount of memory.</li>
+ * </ul>
+ * The algorithm is chosen by the join's {@link Strategy}. Otherwise,
+ * the condition is evaluated on every tuple of the {@link Product}
+ * of both operands.
+ * @author sylvain
+ *
+ */
 public class Join extends BinaryRelation
 {
-  protected Product m_product;
+  /**
+   * The algorithms that compute a join on key equalities
+   */
+  public static enum Strategy
+  {
+    /**
+     * Hash join if an operand has an index on its key; otherwise,
+     * sort-merge join if both operands are already sorted on
+     * their key, hash join if they are not
+     */
+    AUTO,
+    /**
+     * Always use a hash join
+     */
+    HASH,
+    /**
+     * Always use a sort-merge join, sorting the operands if needed,
+     * unless the keys of both operands have different types
+     */
+    MERGE
+  }
+  
   protected Condition m_condition;
   
+  protected Strategy m_strategy = Strategy.AUTO;
+  
+  /**
+   * The maximum number of tuples a sort-merge join keeps in memory
+   * when sorting an operand
+   */
+  protected int m_sortBufferSize = TupleSorter.DEFAULT_BUFFER_SIZE;
+  
   public Join()
   {
     super();
-    m_product = new Product();
   }
   
   public Join(Condition c)
@@ -41,23 +95,170 @@ public class Join extends BinaryRelation
     m_condition = c;
   }
   
+  /**
+   * Sets the algorithm used to compute the join
+   * @param s The strategy
+   */
+  public void setStrategy(Strategy s)
+  {
+    assert s != null;
+    m_strategy = s;
+  }
+  
+  public Strategy getStrategy()
+  {
+    return m_strategy;
+  }
+  
+  /**
+   * Sets the maximum number of tuples kept in memory when a sort-merge
+   * join sorts one of its operands; beyond that, tuples are written
+   * to temporary files
+   * @param size The number of tuples
+   */
+  public void setSortBufferSize(int size)
+  {
+    assert size > 0;
+    m_sortBufferSize = size;
+  }
+  
+  /**
+   * Decides whether to compute the join with a sort-merge join
+   * @param keys The join keys
+   * @param cache Whether the operands are enumerated in cache mode,
+   *   in which case they are produced by a {@link Table} and
+   *   therefore sorted on their first attributes
+   * @return True to use a sort-merge join, false to use a hash join
+   */
+  protected boolean useMerge(JoinKeys keys, boolean cache)
+  {
+    // Keys of different types are not matched in a merge of the
+    // orders of both operands, e.g. if one of them is converted
+    if (!keys.hasSameTypes())
+      return false;
+    switch (m_strategy)
+    {
+    case HASH:
+      return false;
+    case MERGE:
+      return true;
+    default:
+      if (findIndex(keys) != null)
+        return false;
+      // Under a memory budget, the operands are rather sorted on
+      // disk than hashed in memory
+      if (cache && m_budget != null)
+        return true;
+      return isSorted(m_left, keys.getLeftPositions(), cache)
+          && isSorted(m_right, keys.getRightPositions(), cache);
+    }
+  }
+  
+  /**
+   * Finds an index of one of the operands on its join key. If both
+   * operands have one, the index of the larger operand is used, so
+   * that the smaller one is enumerated.
+   * @param keys The join keys
+   * @return The index, or <tt>null</tt> if no operand has one (or if
+   *   the key values are converted)
+   */
+  protected HashIndex findIndex(JoinKeys keys)
+  {
+    if (keys.hasConversions())
+      return null;
+    HashIndex left = getIndex(m_left, keys.getLeftPositions());
+    HashIndex right = getIndex(m_right, keys.getRightPositions());
+    if (left != null && (right == null || m_left.tupleCount() >= m_right.tupleCount()))
+      return left;
+    return right;
+  }
+  
+  /**
+   * Gives the index of an operand on its join key
+   * @return The index, or <tt>null</tt> if the operand is not
+   *   a table or has no such index
+   */
+  protected static HashIndex getIndex(Relation r, int[] positions)
+  {
+    Table tab = Table.asTable(r);
+    if (tab == null)
+      return null;
+    return tab.getIndex(positions);
+  }
+  
+  /**
+   * Determines if an operand is enumerated in the order of its key
+   */
+  protected static boolean isSorted(Relation r, int[] positions, boolean cache)
+  {
+    if (cache)
+    {
+      for (int i = 0; i < positions.length; i++)
+      {
+        if (positions[i] != i)
+          return false;
+      }
+      return true;
+    }
+    return r.isSortedOn(positions);
+  }
+  
   @Override
   public Schema getSchema()
   {
-    return m_product.getSchema();
+    Schema sch = new Schema();
+    sch.addAll(m_left.getSchema());
+    sch.addAll(m_right.getSchema());
+    return sch;
   }
   
+  /**
+   * Adds an operand to the join. The first call sets the left
+   * operand, and the second call sets the right operand.
+   * @param r The operand
+   */
   public void addOperand(Relation r)
   {
-    m_product.addOperand(r);
+    if (m_left == null)
+    {
+      m_left = r;
+      return;
+    }
+    assert m_right == null;
+    m_right = r;
+  }
+  
+  @Override
+  public boolean isDuplicateFree()
+  {
+    return m_left.isDuplicateFree() && m_right.isDuplicateFree();
   }
   
-  public int tupleCount()
+  /**
+   * Gives the product of both operands, on which a condition
+   * with no join key is evaluated
+   * @return The product
+   */
+  protected Product getProduct()
   {
-    return m_product.tupleCount();
+    Product p = new Product();
+    p.addOperand(m_left);
+    p.addOperand(m_right);
+    p.setMemoryBudget(m_budget);
+    return p;
   }
   
-
+  /**
+   * Concatenates a tuple of each operand
+   * @param sch The schema of the joined tuple
+   * @param left The tuple of the left operand
+   * @param right The tuple of the right operand
+   * @return The joined tuple
+   */
+  protected static Tuple join(Schema sch, Tuple left, Tuple right)
+  {
+    return new Tuple(sch, Tuple.concat(left.m_values, right.m_values));
+  }
   
   @Override
   public void accept(QueryVisitor v) throws VisitorException
@@ -66,14 +267,18 @@ public class Join extends BinaryRelation
     v.visit(this);
   }
   
+  /**
+   * Evaluates the condition on every tuple of the product
+   * of both operands
+   */
   protected class JoinStreamIterator extends BinaryRelationStreamIterator
   {
-    protected RelationStreamIterator m_childIterator;
+    protected RelationIterator m_childIterator;
     
     public JoinStreamIterator()
     {
       super();
-      m_childIterator = m_product.streamIterator();
+      m_childIterator = getProduct().streamIterator();
       reset();
     }
     
@@ -87,23 +292,405 @@ public class Join extends BinaryRelation
       while (m_childIterator.hasNext())
       {
         Tuple t = m_childIterator.next();
-        if (m_condition.evaluate(t))
+        if (m_condition == null || m_condition.evaluate(t))
           return t;
       }
       return null;
     }
     
+    /**
+     * Filters the batches of the product, without copying them
+     */
+    @Override
+    protected TupleBatch internalNextBatch()
+    {
+      TupleBatch b = m_childIterator.nextBatch();
+      if (b != null && m_condition != null)
+        b.filter(m_condition);
+      return b;
+    }
+    
     public void reset()
     {
       super.reset();
       m_childIterator.reset();
     }
   }
+  
+  /**
+   * Hash join in streaming mode. The hash table is built from the
+   * operand with the fewest tuples on the first call to
+   * {@link #internalNext()}, unless an operand has an index on its
+   * key; the tuples of the other operand are then streamed, a batch
+   * at a time, and matched one by one.
+   */
+  protected class HashJoinStreamIterator extends BinaryRelationStreamIterator
+  {
+    protected final JoinKeys m_keys;
+    
+    /**
+     * The schema shared by all output tuples
+     */
+    protected Schema m_schema;
+    
+    /**
+     * Whether the hash table holds the tuples of the left operand
+     */
+    protected boolean m_buildLeft;
+    
+    protected Map<Object,List<Tuple>> m_hashTable;
+    
+    /**
+     * The index used instead of the hash table, if any
+     */
+    protected HashIndex m_index;
+    
+    /**
+     * The positions of the key of the probed operand, in the order
+     * of the attributes of m_index
+     */
+    protected int[] m_probePositions;
+    
+    protected RelationIterator m_probeIterator;
+    
+    /**
+     * The current batch of the probed operand, and the position
+     * of the next tuple to read in it
+     */
+    protected TupleBatch m_probeBatch;
+    protected int m_probePosition;
+    
+    /**
+     * The last tuple read from the probed operand
+     */
+    protected Tuple m_probeTuple;
+    
+    /**
+     * The tuples of the hash table that match m_probeTuple
+     * and have not been output yet
+     */
+    protected Iterator<Tuple> m_matches;
+    
+    public HashJoinStreamIterator(JoinKeys keys)
+    {
+      super();
+      m_keys = keys;
+    }
+    
+    protected void build()
+    {
+      m_schema = getSchema();
+      if (m_keys.getResidual() != null)
+        m_keys.getResidual().bind(m_schema);
+      int[] left_positions = m_keys.getLeftPositions();
+      int[] right_positions = m_keys.getRightPositions();
+      m_index = findIndex(m_keys);
+      if (m_index != null)
+      {
+        m_buildLeft = m_index == getIndex(m_left, left_positions);
+        if (m_buildLeft)
+          m_probePositions = m_index.align(left_positions, right_positions);
+        else
+          m_probePositions = m_index.align(right_positions, left_positions);
+        m_hashTable = Collections.emptyMap();
+      }
+      else
+      {
+        m_buildLeft = m_left.tupleCount() <= m_right.tupleCount();
+        Relation build = m_buildLeft ? m_left : m_right;
+        m_hashTable = buildHashTable(build.streamIterator(), m_keys, m_buildLeft);
+      }
+      Relation probe = m_buildLeft ? m_right : m_left;
+      m_probeIterator = probe.streamIterator();
+      m_probeBatch = null;
+      m_probePosition = 0;
+      m_matches = null;
+    }
+    
+    /**
+     * Reads the next tuple of the probed operand
+     * @return The tuple, or <tt>null</tt> if there is none
+     */
+    protected Tuple nextProbeTuple()
+    {
+      if (m_probeBatch == null || m_probePosition == m_probeBatch.size())
+      {
+        m_probeBatch = m_probeIterator.nextBatch();
+        m_probePosition = 0;
+        if (m_probeBatch == null)
+          return null;
+      }
+      return m_probeBatch.get(m_probePosition++);
+    }
+    
+    @Override
+    protected Tuple internalNext()
+    {
+      if (m_hashTable == null)
+        build();
+      Condition residual = m_keys.getResidual();
+      while (true)
+      {
+        while (m_matches != null && m_matches.hasNext())
+        {
+          Tuple t = m_matches.next();
+          Tuple out;
+          if (m_buildLeft)
+            out = join(m_schema, t, m_probeTuple);
+          else
+            out = join(m_schema, m_probeTuple, t);
+          if (residual == null || residual.evaluate(out))
+            return out;
+        }
+        m_probeTuple = nextProbeTuple();
+        if (m_probeTuple == null)
+          return null;
+        if (m_index != null)
+        {
+          m_matches = m_index.lookup(m_probeTuple, m_probePositions).iterator();
+          continue;
+        }
+        Object key = m_buildLeft ? m_keys.rightKey(m_probeTuple) : m_keys.leftKey(m_probeTuple);
+        List<Tuple> matches = key == null ? null : m_hashTable.get(key);
+        m_matches = matches == null ? null : matches.iterator();
+      }
+    }
+    
+    @Override
+    public void reset()
+    {
+      super.reset();
+      m_hashTable = null;
+      m_index = null;
+      m_probeIterator = null;
+      m_probeBatch = null;
+      m_matches = null;
+    }
+  }
+  
+  /**
+   * Puts the tuples of an operand in a hash table indexed by their key
+   * @param it An iterator over the operand's tuples
+   * @param keys The join keys
+   * @param left Whether the operand is the left operand
+   * @return The hash table
+   */
+  protected static Map<Object,List<Tuple>> buildHashTable(Iterator<Tuple> it, JoinKeys keys, boolean left)
+  {
+    Map<Object,List<Tuple>> table = new HashMap<Object,List<Tuple>>();
+    while (it.hasNext())
+    {
+      Tuple t = it.next();
+      Object key = left ? keys.leftKey(t) : keys.rightKey(t);
+      if (key == null)
+        continue; // Can match no tuple
+      List<Tuple> list = table.get(key);
+      if (list == null)
+      {
+        list = new ArrayList<Tuple>(1);
+        table.put(key, list);
+      }
+      list.add(t);
+    }
+    return table;
+  }
+
+  /**
+   * Sort-merge join. Each operand is enumerated in the order of its
+   * key, sorting it first if necessary; for every group of tuples of
+   * the right operand that have the same key, the tuples of the
+   * left operand with that key are matched with all the tuples
+   * of the group.
+   */
+  protected class MergeJoinStreamIterator extends BinaryRelationStreamIterator
+  {
+    protected final JoinKeys m_keys;
+    
+    /**
+     * Whether the operands are enumerated in cache mode
+     */
+    protected final boolean m_cache;
+    
+    protected Schema m_schema;
+    
+    protected Iterator<Tuple> m_leftIterator;
+    protected Iterator<Tuple> m_rightIterator;
+    
+    /**
+     * The sorters of each operand, if they had to be sorted
+     */
+    protected TupleSorter m_leftSorter;
+    protected TupleSorter m_rightSorter;
+    
+    /**
+     * The current tuple of each operand
+     */
+    protected Tuple m_leftTuple;
+    protected Tuple m_rightTuple;
+    
+    /**
+     * The tuples of the right operand that have the same key as
+     * m_leftTuple, or <tt>null</tt> if no group is being matched
+     */
+    protected List<Tuple> m_group;
+    
+    /**
+     * The position in m_group of the next tuple to match
+     * with m_leftTuple
+     */
+    protected int m_groupIndex;
+    
+    public MergeJoinStreamIterator(JoinKeys keys, boolean cache)
+    {
+      super();
+      m_keys = keys;
+      m_cache = cache;
+    }
+    
+    protected void start()
+    {
+      m_schema = getSchema();
+      if (m_keys.getResidual() != null)
+        m_keys.getResidual().bind(m_schema);
+      m_leftSorter = null;
+      m_rightSorter = null;
+      Iterator<Tuple> it = m_cache ? m_left.cacheIterator() : m_left.streamIterator();
+      if (!isSorted(m_left, m_keys.getLeftPositions(), m_cache))
+      {
+        m_leftSorter = sort(it, m_keys.leftComparator());
+        it = m_leftSorter.iterator();
+      }
+      m_leftIterator = it;
+      it = m_cache ? m_right.cacheIterator() : m_right.streamIterator();
+      if (!isSorted(m_right, m_keys.getRightPositions(), m_cache))
+      {
+        m_rightSorter = sort(it, m_keys.rightComparator());
+        it = m_rightSorter.iterator();
+      }
+      m_rightIterator = it;
+      m_leftTuple = nextLeft();
+      m_rightTuple = nextRight();
+      m_group = null;
+    }
+    
+    protected TupleSorter sort(Iterator<Tuple> it, Comparator<Tuple> c)
+    {
+      TupleSorter sorter = new TupleSorter(c, m_sortBufferSize);
+      while (it.hasNext())
+        sorter.add(it.next());
+      return sorter;
+    }
+    
+    /**
+     * Gives the next tuple of the left operand, skipping tuples
+     * with a missing key value, as they cannot match anything
+     */
+    protected Tuple nextLeft()
+    {
+      while (m_leftIterator.hasNext())
+      {
+        Tuple t = m_leftIterator.next();
+        if (m_keys.leftKey(t) != null)
+          return t;
+      }
+      return null;
+    }
+    
+    protected Tuple nextRight()
+    {
+      while (m_rightIterator.hasNext())
+      {
+        Tuple t = m_rightIterator.next();
+        if (m_keys.rightKey(t) != null)
+          return t;
+      }
+      return null;
+    }
+    
+    @Override
+    protected Tuple internalNext()
+    {
+      if (m_leftIterator == null)
+        start();
+      Condition residual = m_keys.getResidual();
+      while (true)
+      {
+        if (m_group != null)
+        {
+          // Match the current left tuple with the rest of the group
+          while (m_groupIndex < m_group.size())
+          {
+            Tuple out = join(m_schema, m_leftTuple, m_group.get(m_groupIndex++));
+            if (residual == null || residual.evaluate(out))
+              return out;
+          }
+          // The next left tuple may have the same key
+          m_leftTuple = nextLeft();
+          if (m_leftTuple != null && m_keys.compare(m_leftTuple, m_group.get(0)) == 0)
+          {
+            m_groupIndex = 0;
+            continue;
+          }
+          m_group = null;
+        }
+        if (m_leftTuple == null || m_rightTuple == null)
+        {
+          close();
+          return null;
+        }
+        int comp = m_keys.compare(m_leftTuple, m_rightTuple);
+        if (comp < 0)
+        {
+          m_leftTuple = nextLeft();
+          continue;
+        }
+        if (comp > 0)
+        {
+          m_rightTuple = nextRight();
+          continue;
+        }
+        // Same key: gather the right tuples with that key
+        m_group = new ArrayList<Tuple>();
+        do
+        {
+          m_group.add(m_rightTuple);
+          m_rightTuple = nextRight();
+        } while (m_rightTuple != null && m_keys.compare(m_leftTuple, m_rightTuple) == 0);
+        m_groupIndex = 0;
+      }
+    }
+    
+    /**
+     * Deletes the temporary files of the sorters, if any
+     */
+    protected void close()
+    {
+      if (m_leftSorter != null)
+        m_leftSorter.close();
+      if (m_rightSorter != null)
+        m_rightSorter.close();
+    }
+    
+    @Override
+    public void reset()
+    {
+      super.reset();
+      close();
+      m_leftIterator = null;
+      m_rightIterator = null;
+      m_group = null;
+    }
+  }
 
   @Override
   public RelationIterator streamIterator()
   {
-    return new JoinStreamIterator();
+    JoinKeys keys = new JoinKeys(m_condition, m_left.getSchema(), m_right.getSchema());
+    if (!keys.hasKeys())
+      return new JoinStreamIterator();
+    if (useMerge(keys, false))
+      return new MergeJoinStreamIterator(keys, false);
+    return new HashJoinStreamIterator(keys);
   }
 
   @Override
@@ -122,16 +709,96 @@ public class Join extends BinaryRelation
     
     protected void getIntermediateResult()
     {
-      m_intermediateResult = new Table(m_product.getSchema());
-      RelationIterator it = m_product.cacheIterator();
-      while (it.hasNext())
+      Schema sch = getSchema();
+      m_intermediateResult = newIntermediateTable(sch);
+      JoinKeys keys = new JoinKeys(m_condition, m_left.getSchema(), m_right.getSchema());
+      if (!keys.hasKeys())
+      {
+        RelationIterator it = getProduct().cacheIterator();
+        for (TupleBatch b = it.nextBatch(); b != null; b = it.nextBatch())
+        {
+          if (m_condition != null)
+            b.filter(m_condition);
+          for (int i = 0; i < b.size(); i++)
+            m_intermediateResult.append(b.get(i));
+        }
+        dispose(it);
+        return;
+      }
+      if (useMerge(keys, true))
+      {
+        RelationIterator it = new MergeJoinStreamIterator(keys, true);
+        while (it.hasNext())
+          m_intermediateResult.append(it.next());
+        return;
+      }
+      Condition residual = keys.getResidual();
+      if (residual != null)
+        residual.bind(sch);
+      HashIndex index = findIndex(keys);
+      if (index != null)
       {
-        Tuple t = it.next();
-        if (m_condition.evaluate(t))
-          m_intermediateResult.put(t);
+        // Only the other operand is computed, and each of its tuples
+        // is looked up in the index
+        int[] left_positions = keys.getLeftPositions();
+        int[] right_positions = keys.getRightPositions();
+        boolean index_left = index == getIndex(m_left, left_positions);
+        int[] probe_positions;
+        if (index_left)
+          probe_positions = index.align(left_positions, right_positions);
+        else
+          probe_positions = index.align(right_positions, left_positions);
+        RelationIterator it = (index_left ? m_right : m_left).cacheIterator();
+        for (TupleBatch b = it.nextBatch(); b != null; b = it.nextBatch())
+        {
+          for (int i = 0; i < b.size(); i++)
+          {
+            Tuple p = b.get(i);
+            for (Tuple t : index.lookup(p, probe_positions))
+            {
+              Tuple out = index_left ? join(sch, t, p) : join(sch, p, t);
+              if (residual == null || residual.evaluate(out))
+                m_intermediateResult.append(out);
+            }
+          }
+        }
+        dispose(it);
+        return;
+      }
+      // Hash join: both operands are computed, and the hash table
+      // is built from the one that has the fewest tuples
+      List<Tuple> left = materialize(m_left);
+      List<Tuple> right = materialize(m_right);
+      boolean build_left = left.size() <= right.size();
+      Map<Object,List<Tuple>> table = buildHashTable(
+          (build_left ? left : right).iterator(), keys, build_left);
+      for (Tuple p : build_left ? right : left)
+      {
+        Object key = build_left ? keys.rightKey(p) : keys.leftKey(p);
+        List<Tuple> matches = key == null ? null : table.get(key);
+        if (matches == null)
+          continue;
+        for (Tuple t : matches)
+        {
+          Tuple out = build_left ? join(sch, t, p) : join(sch, p, t);
+          if (residual == null || residual.evaluate(out))
+            m_intermediateResult.append(out);
+        }
       }
     }
     
+    protected List<Tuple> materialize(Relation r)
+    {
+      List<Tuple> out = new ArrayList<Tuple>();
+      RelationIterator it = r.cacheIterator();
+      for (TupleBatch b = it.nextBatch(); b != null; b = it.nextBatch())
+      {
+        for (int i = 0; i < b.size(); i++)
+          out.add(b.get(i));
+      }
+      dispose(it);
+      return out;
+    }
   }
 
 }
@@ -0,0 +1,394 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * The equality predicates of a join condition that relate an attribute
+ * of the left operand to an attribute of the right operand. These
+ * predicates are what allows a {@link Join} to match tuples by their
+ * values (e.g. through a hash table), rather than by evaluating the
+ * condition on every pair of tuples of the Cartesian product.
+ * <p>
+ * The condition is first split into conjuncts (see
+ * {@link Condition#addConjuncts(List)}); every {@link Equality}
+ * between an attribute of each operand becomes a pair of key
+ * positions, and all the other conjuncts form the <em>residual</em>
+ * condition, which must still be evaluated on each joined tuple.
+ * <p>
+ * When a key attribute of type string is related to an attribute of
+ * another type, its values are converted to that type in the keys of
+ * the tuples, as an {@link Equality} between both attributes does.
+ * @author sylvain
+ *
+ */
+public class JoinKeys
+{
+  /**
+   * The positions of the key attributes in the left operand's schema
+   */
+  protected final int[] m_leftPositions;
+  
+  /**
+   * The positions of the key attributes in the right operand's schema
+   */
+  protected final int[] m_rightPositions;
+  
+  /**
+   * The types into which the key values of the left operand are
+   * converted, or <tt>null</tt> if none of them is converted
+   */
+  protected final ValueType[] m_leftConversions;
+  
+  /**
+   * The types into which the key values of the right operand are
+   * converted, or <tt>null</tt> if none of them is converted
+   */
+  protected final ValueType[] m_rightConversions;
+  
+  /**
+   * Whether each key attribute of the left operand has the same type
+   * as the corresponding attribute of the right operand
+   */
+  protected final boolean m_sameTypes;
+  
+  /**
+   * The conjuncts of the condition that are not key equalities,
+   * or <tt>null</tt> if there are none
+   */
+  protected final Condition m_residual;
+  
+  /**
+   * Extracts the join keys of a condition
+   * @param c The join condition; <tt>null</tt> stands for a
+   *   condition that is always true
+   * @param left The schema of the left operand
+   * @param right The schema of the right operand
+   */
+  public JoinKeys(Condition c, Schema left, Schema right)
+  {
+    super();
+    List<Condition> conjuncts = new LinkedList<Condition>();
+    if (c != null)
+      c.addConjuncts(conjuncts);
+    List<Integer> left_positions = new ArrayList<Integer>();
+    List<Integer> right_positions = new ArrayList<Integer>();
+    List<Condition> residual = new LinkedList<Condition>();
+    for (Condition conj : conjuncts)
+    {
+      if (!addKey(conj, left, right, left_positions, right_positions))
+        residual.add(conj);
+    }
+    m_leftPositions = toArray(left_positions);
+    m_rightPositions = toArray(right_positions);
+    sortByLeftPosition();
+    m_leftConversions = conversions(left, m_leftPositions, right, m_rightPositions);
+    m_rightConversions = conversions(right, m_rightPositions, left, m_leftPositions);
+    m_sameTypes = sameTypes(left, m_leftPositions, right, m_rightPositions);
+    if (residual.isEmpty())
+      m_residual = null;
+    else if (residual.size() == 1)
+      m_residual = residual.get(0);
+    else
+    {
+      LogicalAnd and = new LogicalAnd();
+      for (Condition conj : residual)
+        and.addCondition(conj);
+      m_residual = and;
+    }
+  }
+  
+  /**
+   * Determines if a conjunct is an equality between an attribute of
+   * each operand, and if so, adds the positions of both attributes.
+   * An attribute is looked up in the left operand first, like it is
+   * when the condition is evaluated on a tuple of the product of
+   * both operands.
+   */
+  protected static boolean addKey(Condition c, Schema left, Schema right,
+      List<Integer> left_positions, List<Integer> right_positions)
+  {
+    if (!(c instanceof Equality))
+      return false;
+    Equality eq = (Equality) c;
+    if (!(eq.m_left instanceof Attribute) || !(eq.m_right instanceof Attribute))
+      return false;
+    int l_left = left.getOrdinal(eq.m_left);
+    int r_left = left.getOrdinal(eq.m_right);
+    if (l_left >= 0 && r_left < 0)
+    {
+      int r_right = right.getOrdinal(eq.m_right);
+      if (r_right < 0)
+        return false;
+      left_positions.add(l_left);
+      right_positions.add(r_right);
+      return true;
+    }
+    if (r_left >= 0 && l_left < 0)
+    {
+      int l_right = right.getOrdinal(eq.m_left);
+      if (l_right < 0)
+        return false;
+      left_positions.add(r_left);
+      right_positions.add(l_right);
+      return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Orders the keys by their position in the left operand, so that
+   * keys on the leading attributes of a sorted operand come first
+   * (see {@link Relation#isSortedOn(int[])})
+   */
+  protected void sortByLeftPosition()
+  {
+    for (int i = 1; i < m_leftPositions.length; i++)
+    {
+      for (int j = i; j > 0 && m_leftPositions[j - 1] > m_leftPositions[j]; j--)
+      {
+        swap(m_leftPositions, j - 1, j);
+        swap(m_rightPositions, j - 1, j);
+      }
+    }
+  }
+  
+  /**
+   * Finds the types into which the key values of an operand must be
+   * converted to be compared to those of the other operand
+   * @return The types, or <tt>null</tt> if no value is converted
+   */
+  protected static ValueType[] conversions(Schema sch, int[] positions,
+      Schema other, int[] other_positions)
+  {
+    ValueType[] out = null;
+    for (int i = 0; i < positions.length; i++)
+    {
+      ValueType type = ValueType.conversion(sch.get(positions[i]).getType(),
+          other.get(other_positions[i]).getType());
+      if (type == null)
+        continue;
+      if (out == null)
+        out = new ValueType[positions.length];
+      out[i] = type;
+    }
+    return out;
+  }
+  
+  protected static boolean sameTypes(Schema sch, int[] positions,
+      Schema other, int[] other_positions)
+  {
+    for (int i = 0; i < positions.length; i++)
+    {
+      if (sch.get(positions[i]).getType() != other.get(other_positions[i]).getType())
+        return false;
+    }
+    return true;
+  }
+  
+  protected static void swap(int[] a, int i, int j)
+  {
+    int x = a[i];
+    a[i] = a[j];
+    a[j] = x;
+  }
+  
+  protected static int[] toArray(List<Integer> list)
+  {
+    int[] out = new int[list.size()];
+    int i = 0;
+    for (int x : list)
+      out[i++] = x;
+    return out;
+  }
+  
+  /**
+   * Determines if the condition has at least one key equality
+   * @return True if there are join keys, false otherwise
+   */
+  public boolean hasKeys()
+  {
+    return m_leftPositions.length > 0;
+  }
+  
+  /**
+   * Determines if the key values of an operand are converted to be
+   * compared to those of the other. The tuples of an operand are then
+   * not ordered by their (converted) keys, even if the operand is
+   * sorted on the key attributes, and an index of an operand on these
+   * attributes cannot be looked up with the keys of the other.
+   * @return True if some key values are converted, false otherwise
+   */
+  public boolean hasConversions()
+  {
+    return m_leftConversions != null || m_rightConversions != null;
+  }
+  
+  /**
+   * Determines if the key attributes of both operands have the same
+   * types. Only then do the keys of both operands compare in the
+   * same way as the values of the key attributes, so that the
+   * operands can be merged in the order of these attributes.
+   * @return True if the types are the same, false otherwise
+   */
+  public boolean hasSameTypes()
+  {
+    return m_sameTypes;
+  }
+  
+  public int[] getLeftPositions()
+  {
+    return m_leftPositions;
+  }
+  
+  public int[] getRightPositions()
+  {
+    return m_rightPositions;
+  }
+  
+  /**
+   * Gives the part of the condition that is not a key equality
+   * @return The residual condition, or <tt>null</tt> if the join
+   *   condition only consists of key equalities
+   */
+  public Condition getResidual()
+  {
+    return m_residual;
+  }
+  
+  /**
+   * Gives the key of a tuple of the left operand
+   * @param t The tuple
+   * @return The key, or <tt>null</tt> if one of its values is missing
+   */
+  public Object leftKey(Tuple t)
+  {
+    return key(t, m_leftPositions, m_leftConversions);
+  }
+  
+  /**
+   * Gives the key of a tuple of the right operand
+   * @param t The tuple
+   * @return The key, or <tt>null</tt> if one of its values is missing
+   */
+  public Object rightKey(Tuple t)
+  {
+    return key(t, m_rightPositions, m_rightConversions);
+  }
+  
+  /**
+   * Compares the keys of a tuple of each operand
+   * @param left A tuple of the left operand
+   * @param right A tuple of the right operand
+   * @return A negative number, zero or a positive number if the key
+   *   of <tt>left</tt> is respectively smaller, equal or greater than
+   *   the key of <tt>right</tt>
+   */
+  public int compare(Tuple left, Tuple right)
+  {
+    return compare(left, m_leftPositions, right, m_rightPositions);
+  }
+  
+  /**
+   * Compares the values of two tuples at given positions,
+   * in lexicographical order
+   */
+  protected static int compare(Tuple t1, int[] p1, Tuple t2, int[] p2)
+  {
+    for (int i = 0; i < p1.length; i++)
+    {
+      int comp = t1.get(p1[i]).compareTo(t2.get(p2[i]));
+      if (comp != 0)
+        return comp;
+    }
+    return 0;
+  }
+  
+  /**
+   * Gives the order of the tuples of the left operand by their key
+   * @return The comparator
+   */
+  public Comparator<Tuple> leftComparator()
+  {
+    return new KeyComparator(m_leftPositions);
+  }
+  
+  /**
+   * Gives the order of the tuples of the right operand by their key
+   * @return The comparator
+   */
+  public Comparator<Tuple> rightComparator()
+  {
+    return new KeyComparator(m_rightPositions);
+  }
+  
+  protected static class KeyComparator implements Comparator<Tuple>
+  {
+    protected final int[] m_positions;
+    
+    public KeyComparator(int[] positions)
+    {
+      super();
+      m_positions = positions;
+    }
+    
+    @Override
+    public int compare(Tuple t1, Tuple t2)
+    {
+      return JoinKeys.compare(t1, m_positions, t2, m_positions);
+    }
+  }
+  
+  /**
+   * Builds the key of a tuple. Keys of both operands are equal
+   * (and have the same hash code) exactly when their values
+   * are equal.
+   */
+  protected static Object key(Tuple t, int[] positions)
+  {
+    return key(t, positions, null);
+  }
+  
+  /**
+   * Builds the key of a tuple, converting some of its values
+   * @param conversions The types into which each value is converted
+   *   (<tt>null</tt> for none)
+   */
+  protected static Object key(Tuple t, int[] positions, ValueType[] conversions)
+  {
+    if (positions.length == 1)
+      return convert(t.get(positions[0]), conversions, 0);
+    Value[] values = new Value[positions.length];
+    for (int i = 0; i < positions.length; i++)
+    {
+      Value v = t.get(positions[i]);
+      if (v == null)
+        return null;
+      values[i] = convert(v, conversions, i);
+    }
+    return Arrays.asList(values);
+  }
+  
+  protected static Value convert(Value v, ValueType[] conversions, int i)
+  {
+    if (v == null || conversions == null || conversions[i] == null)
+      return v;
+    return conversions[i].convert(v);
+  }
+}
@@ -0,0 +1,106 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * Visitor that builds a copy of a query tree whose leaves are linked
+ * to actual tables. Contrarily to the {@link TableLinkVisitor}, which
+ * connects the {@link VariableTable}s of the query itself, the
+ * visitor leaves the original tree untouched: every operator and
+ * every variable table is copied. The copy is linked to a snapshot of
+ * each table (see {@link Table#getSnapshot()}), and the tables that
+ * already are leaves of the query are replaced by a snapshot, so that
+ * its result is not affected by tuples inserted in the tables while
+ * it is evaluated. Many copies of the same query can therefore be linked
+ * and evaluated at the same time.
+ * @author sylvain
+ *
+ */
+public class LinkedCopyVisitor extends CopyQueryVisitor
+{
+  protected final Map<String,Relation> m_tables;
+  
+  /**
+   * Creates a visitor
+   * @param tables A map from table names to the relations the
+   *   variable tables of the query are linked to
+   */
+  public LinkedCopyVisitor(Map<String,Relation> tables)
+  {
+    super();
+    m_tables = tables;
+  }
+  
+  /**
+   * Gives a copy of a query whose leaves are linked to actual tables
+   * @param r The query
+   * @param tables A map from table names to relations
+   * @return The linked copy
+   */
+  public static Relation link(Relation r, Map<String,Relation> tables)
+  {
+    LinkedCopyVisitor v = new LinkedCopyVisitor(tables);
+    try
+    {
+      r.accept(v);
+    }
+    catch (QueryVisitor.VisitorException e)
+    {
+      // Does not happen
+      e.printStackTrace();
+    }
+    return v.getResult();
+  }
+  
+  @Override
+  public void visit(Table r) throws VisitorException
+  {
+    m_parts.push(snapshotOf(r));
+  }
+  
+  @Override
+  public void visit(VariableTable r) throws VisitorException
+  {
+    Relation linked = null;
+    if (r.m_relation != null)
+      linked = m_parts.pop();
+    Relation table = m_tables.get(r.getName());
+    if (table != null)
+      linked = snapshotOf(table);
+    VariableTable copy = new VariableTable(r.m_name, r.m_site);
+    copyMode(r, copy);
+    if (linked != null)
+      copy.setRelation(linked);
+    m_parts.push(copy);
+  }
+  
+  /**
+   * Gives a snapshot of a relation a query is linked to
+   * @param r The relation
+   * @return A snapshot of the relation if it is a table, the relation
+   *   itself otherwise
+   */
+  protected static Relation snapshotOf(Relation r)
+  {
+    if (r instanceof Table)
+      return ((Table) r).getSnapshot();
+    return r;
+  }
+}
@@ -0,0 +1,608 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A table organized as a log-structured merge tree, for workloads
+ * where tuples are inserted one by one at a high rate.
+ * <p>
+ * Inserting a tuple in a plain {@link Table} shifts on average half of
+ * its list, so that the cost of {@link #put(Tuple)} grows with the size
+ * of the table. A log-structured table rather puts new tuples in a small
+ * sorted buffer, the <em>memtable</em>. When the memtable is full, its
+ * tuples are written into a new sorted array, called a <em>run</em>,
+ * which is never modified afterwards. Runs of similar sizes are then
+ * merged into a single one (this is called <em>compaction</em>), so
+ * that the table never has more than a logarithmic number of runs.
+ * By default, compaction takes place in a background thread, and
+ * inserting a tuple never waits for it.
+ * <p>
+ * Enumerating the table merges the memtable and the runs, so that the
+ * tuples come out in the same global order as in any other table, which
+ * is what the merging algorithms of {@link Intersection} and
+ * {@link Union} rely on. A tuple is only inserted if it is not already
+ * present in the memtable or in a run, so that the runs never have
+ * tuples in common.
+ * <p>
+ * Insertions and compaction are synchronized on the table; an
+ * enumeration works on a snapshot of the memtable and the runs taken
+ * when it starts (or is reset).
+ * @author sylvain
+ *
+ */
+public class LogStructuredTable extends Table
+{
+  /**
+   * The default maximum number of tuples in the memtable
+   */
+  public static final int DEFAULT_MEMTABLE_SIZE = 4096;
+  
+  /**
+   * The tuples inserted since the last flush
+   */
+  protected TreeSet<Tuple> m_memtable;
+  
+  /**
+   * The maximum number of tuples in the memtable
+   */
+  protected final int m_memtableSize;
+  
+  /**
+   * The runs, each sorted and without duplicates. The list itself is
+   * never modified: flushes and compactions replace it by a new one,
+   * so that it can be read without holding the lock of the table.
+   */
+  protected volatile List<Tuple[]> m_runs;
+  
+  /**
+   * The number of tuples in the table
+   */
+  protected int m_size;
+  
+  /**
+   * Whether compaction takes place in a background thread
+   */
+  protected boolean m_background;
+  
+  /**
+   * Whether a compaction has been submitted to the background
+   * thread and has not started yet
+   */
+  protected boolean m_compactionPending;
+  
+  /**
+   * Lock held during a whole compaction, so that two compactions
+   * never merge the same runs
+   */
+  protected final Object m_compactionLock = new Object();
+  
+  /**
+   * The thread that compacts the runs of all the tables in the
+   * background
+   */
+  protected static ExecutorService s_compactor;
+  
+  /**
+   * Creates an empty log-structured table
+   * @param name The table's name
+   * @param sch The table's schema
+   */
+  public LogStructuredTable(String name, Schema sch)
+  {
+    this(name, sch, DEFAULT_MEMTABLE_SIZE);
+  }
+  
+  /**
+   * Creates an empty log-structured table
+   * @param name The table's name
+   * @param sch The table's schema
+   * @param memtable_size The maximum number of tuples kept in the
+   *   memtable before they are flushed into a run
+   */
+  public LogStructuredTable(String name, Schema sch, int memtable_size)
+  {
+    super(name);
+    assert memtable_size > 0;
+    m_memtableSize = memtable_size;
+    m_memtable = new TreeSet<Tuple>();
+    m_runs = new ArrayList<Tuple[]>(0);
+    m_size = 0;
+    m_background = true;
+    setSchema(sch);
+  }
+  
+  /**
+   * Creates a table with no schema, which is given the contents of
+   * another table by {@link #getSnapshot()}
+   * @param name The table's name
+   * @param memtable_size The maximum number of tuples kept in the
+   *   memtable before they are flushed into a run
+   */
+  protected LogStructuredTable(String name, int memtable_size)
+  {
+    super(name);
+    m_memtableSize = memtable_size;
+    m_memtable = new TreeSet<Tuple>();
+    m_runs = new ArrayList<Tuple[]>(0);
+    m_size = 0;
+    m_background = true;
+  }
+  
+  /**
+   * Constructor by copy
+   * @param r The relation whose tuples are copied into the table
+   */
+  public LogStructuredTable(Relation r)
+  {
+    super();
+    m_memtableSize = DEFAULT_MEMTABLE_SIZE;
+    m_memtable = new TreeSet<Tuple>();
+    m_runs = new ArrayList<Tuple[]>(0);
+    m_size = 0;
+    m_background = true;
+    copy(r);
+  }
+  
+  /**
+   * Sets whether runs are compacted in a background thread. Otherwise,
+   * compaction takes place in the thread that flushes the memtable,
+   * which makes some insertions much slower than others.
+   * @param b Set to true to compact in the background
+   */
+  public synchronized void setBackgroundCompaction(boolean b)
+  {
+    m_background = b;
+  }
+  
+  @Override
+  public void setName(String name)
+  {
+    m_name = name;
+    if (m_schema == null)
+      return;
+    m_schema.setTableName(m_name);
+    Iterator<Tuple> it = tupleIterator();
+    while (it.hasNext())
+    {
+      Tuple t = it.next();
+      if (t.getSchema() != m_schema)
+        t.setSchema(m_schema);
+    }
+  }
+  
+  /**
+   * Adds a new tuple to the table. The tuple goes into the memtable,
+   * which is flushed into a new run when it is full.
+   * @param t The tuple to add
+   */
+  @Override
+  public void put(Tuple t)
+  {
+    assert t != null;
+    assert t.size() == m_schema.size();
+    boolean compact;
+    synchronized (this)
+    {
+      adopt(t);
+      if (m_memtable.contains(t) || inRuns(m_runs, t))
+        return; // We silently ignore tuples that are already present
+      if (m_shared)
+        detach();
+      m_memtable.add(t);
+      m_size++;
+      addToIndexes(t);
+      addToStatistics(t);
+      if (m_memtable.size() < m_memtableSize)
+        return;
+      compact = flush();
+    }
+    // Done without holding the lock of the table, which compaction
+    // acquires after its own
+    if (compact)
+      compact(false);
+  }
+  
+  /**
+   * Adds a new tuple to the table. Since a log-structured table does
+   * not shift its tuples on insertion, this is the same as
+   * {@link #put(Tuple)}.
+   * @param t The tuple to add
+   */
+  @Override
+  public void append(Tuple t)
+  {
+    put(t);
+  }
+  
+  @Override
+  public void seal()
+  {
+    // Nothing to do: tuples are sorted as they are inserted
+  }
+  
+  /**
+   * Writes the tuples of the memtable into a new run. If runs need to
+   * be compacted afterwards, this is submitted to the background
+   * thread, or left to the caller.
+   * @return True if the caller must compact the runs, false otherwise
+   */
+  protected synchronized boolean flush()
+  {
+    if (m_memtable.isEmpty())
+      return false;
+    Tuple[] run = m_memtable.toArray(new Tuple[m_memtable.size()]);
+    m_memtable = new TreeSet<Tuple>();
+    List<Tuple[]> runs = new ArrayList<Tuple[]>(m_runs.size() + 1);
+    runs.addAll(m_runs);
+    runs.add(run);
+    m_runs = runs;
+    if (firstToMerge(runs) >= runs.size() - 1)
+      return false;
+    if (!m_background)
+      return true;
+    if (m_compactionPending)
+      return false;
+    m_compactionPending = true;
+    getCompactor().execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        synchronized (LogStructuredTable.this)
+        {
+          m_compactionPending = false;
+        }
+        compact(false);
+      }
+    });
+    return false;
+  }
+  
+  /**
+   * Flushes the memtable and merges all the runs into a single one.
+   * This is done in the calling thread.
+   */
+  public void compact()
+  {
+    flush();
+    compact(true);
+  }
+  
+  /**
+   * Merges runs. The runs to merge are chosen, and then replaced by
+   * their merge, while holding the lock of the table; they are merged
+   * without holding it, so that tuples can still be inserted
+   * meanwhile. This is possible because other threads only add runs at
+   * the end of the list.
+   * @param all Set to true to merge all the runs, or to false to
+   *   merge those chosen by {@link #firstToMerge(List)}
+   */
+  protected void compact(boolean all)
+  {
+    synchronized (m_compactionLock)
+    {
+      List<Tuple[]> runs = m_runs;
+      int from = all ? 0 : firstToMerge(runs);
+      if (from >= runs.size() - 1)
+        return;
+      List<Tuple[]> to_merge = runs.subList(from, runs.size());
+      int size = 0;
+      for (Tuple[] run : to_merge)
+        size += run.length;
+      Tuple[] merged = new Tuple[size];
+      Iterator<Tuple> it = new MergeIterator(to_merge);
+      for (int i = 0; i < size; i++)
+        merged[i] = it.next();
+      synchronized (this)
+      {
+        // Runs flushed since the merge started follow the merged ones
+        List<Tuple[]> new_runs = new ArrayList<Tuple[]>(m_runs.size() - to_merge.size() + 1);
+        new_runs.addAll(m_runs.subList(0, from));
+        new_runs.add(merged);
+        new_runs.addAll(m_runs.subList(runs.size(), m_runs.size()));
+        m_runs = new_runs;
+      }
+    }
+  }
+  
+  /**
+   * Chooses the runs to merge. Runs are listed from the oldest to the
+   * newest, which is also from the largest to the smallest; the newest
+   * runs are merged with the one before them as long as that run is
+   * not more than twice as large as all of them together. Sizes then
+   * at least double from one run to the one before, so that a table
+   * of <i>n</i> tuples has at most log<sub>2</sub> <i>n</i> runs, and
+   * each tuple is copied that many times at most.
+   * @param runs The runs
+   * @return The position of the first run to merge; all the runs from
+   *   that position to the end of the list are merged. Nothing is
+   *   merged if this is the last position.
+   */
+  protected static int firstToMerge(List<Tuple[]> runs)
+  {
+    int from = runs.size() - 1;
+    if (from < 0)
+      return 0;
+    int size = runs.get(from).length;
+    while (from > 0 && runs.get(from - 1).length <= 2 * size)
+    {
+      from--;
+      size += runs.get(from).length;
+    }
+    return from;
+  }
+  
+  /**
+   * Determines if a tuple is present in one of the runs
+   * @param runs The runs
+   * @param t The tuple
+   * @return True if the tuple is present, false otherwise
+   */
+  protected static boolean inRuns(List<Tuple[]> runs, Tuple t)
+  {
+    for (Tuple[] run : runs)
+    {
+      if (Arrays.binarySearch(run, t) >= 0)
+        return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Gives the number of runs of the table
+   * @return The number of runs
+   */
+  public int getRunCount()
+  {
+    return m_runs.size();
+  }
+  
+  /**
+   * Gives a snapshot of the contents of the table
+   * @return The runs, followed by the tuples of the memtable as an
+   *   additional run
+   */
+  protected synchronized List<Tuple[]> snapshot()
+  {
+    List<Tuple[]> runs = new ArrayList<Tuple[]>(m_runs.size() + 1);
+    runs.addAll(m_runs);
+    if (!m_memtable.isEmpty())
+      runs.add(m_memtable.toArray(new Tuple[m_memtable.size()]));
+    return runs;
+  }
+  
+  /**
+   * Gives a snapshot of the current contents of the table. Since runs
+   * are never modified, the snapshot simply refers to the runs of the
+   * table, and to a copy of its memtable. It shares the indexes of
+   * the table until either of them is modified, like the snapshot
+   * of a {@link Table} does.
+   */
+  @Override
+  public synchronized Table getSnapshot()
+  {
+    LogStructuredTable s = new LogStructuredTable(m_name, m_memtableSize);
+    s.m_schema = m_schema;
+    s.m_runs = snapshot();
+    s.m_size = m_size;
+    s.m_background = m_background;
+    s.m_indexes = new ArrayList<HashIndex>(m_indexes);
+    s.m_shared = true;
+    m_shared = true;
+    return s;
+  }
+  
+  /**
+   * Stops sharing the indexes of the table with a snapshot, before
+   * they are modified, by giving them a new layer. The runs are never
+   * modified, and need not be copied.
+   */
+  @Override
+  protected void detach()
+  {
+    m_shared = false;
+    layerIndexes();
+  }
+  
+  @Override
+  public synchronized int getCardinality()
+  {
+    return m_size;
+  }
+  
+  @Override
+  public synchronized int tupleCount()
+  {
+    return m_size;
+  }
+  
+  @Override
+  public boolean contains(Tuple tup)
+  {
+    if (tup == null)
+      return false;
+    List<Tuple[]> runs;
+    synchronized (this)
+    {
+      if (m_memtable.contains(tup))
+        return m_memtable.ceiling(tup).equals(tup);
+      runs = m_runs;
+    }
+    for (Tuple[] run : runs)
+    {
+      int index = Arrays.binarySearch(run, tup);
+      if (index >= 0)
+        return run[index].equals(tup);
+    }
+    return false;
+  }
+  
+  @Override
+  public synchronized TableStatistics getStatistics()
+  {
+    return super.getStatistics();
+  }
+  
+  @Override
+  public synchronized HashIndex createIndex(Collection<Attribute> atts)
+  {
+    return super.createIndex(atts);
+  }
+  
+  @Override
+  protected Iterator<Tuple> tupleIterator()
+  {
+    return new MergeIterator(snapshot());
+  }
+  
+  @Override
+  public RelationStreamIterator streamIterator()
+  {
+    return new LogStructuredStreamIterator();
+  }
+  
+  @Override
+  public RelationIterator cacheIterator()
+  {
+    return new LogStructuredStreamIterator();
+  }
+  
+  /**
+   * Enumerates the tuples of the table, in sorted order
+   */
+  protected class LogStructuredStreamIterator extends RelationStreamIterator
+  {
+    protected Iterator<Tuple> m_iterator;
+    
+    public LogStructuredStreamIterator()
+    {
+      super(false);
+      m_iterator = tupleIterator();
+    }
+    
+    @Override
+    protected Tuple internalNext()
+    {
+      if (m_iterator.hasNext())
+        return m_iterator.next();
+      return null;
+    }
+    
+    @Override
+    public void reset()
+    {
+      super.reset();
+      m_iterator = tupleIterator();
+    }
+  }
+  
+  /**
+   * Merges sorted runs, always returning the smallest of their
+   * current tuples. The runs are assumed to have no tuples in common.
+   */
+  protected static class MergeIterator implements Iterator<Tuple>
+  {
+    protected final PriorityQueue<RunCursor> m_queue;
+    
+    public MergeIterator(List<Tuple[]> runs)
+    {
+      super();
+      m_queue = new PriorityQueue<RunCursor>(Math.max(1, runs.size()));
+      for (Tuple[] run : runs)
+      {
+        if (run.length > 0)
+          m_queue.add(new RunCursor(run));
+      }
+    }
+    
+    @Override
+    public boolean hasNext()
+    {
+      return !m_queue.isEmpty();
+    }
+    
+    @Override
+    public Tuple next()
+    {
+      RunCursor c = m_queue.poll();
+      if (c == null)
+        throw new NoSuchElementException();
+      Tuple t = c.m_run[c.m_position++];
+      if (c.m_position < c.m_run.length)
+        m_queue.add(c);
+      return t;
+    }
+    
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+  
+  /**
+   * A position in a run
+   */
+  protected static class RunCursor implements Comparable<RunCursor>
+  {
+    protected final Tuple[] m_run;
+    protected int m_position;
+    
+    public RunCursor(Tuple[] run)
+    {
+      super();
+      m_run = run;
+      m_position = 0;
+    }
+    
+    @Override
+    public int compareTo(RunCursor c)
+    {
+      return m_run[m_position].compareTo(c.m_run[c.m_position]);
+    }
+  }
+  
+  /**
+   * Gives the thread that compacts runs in the background, creating
+   * it if needed. The thread is a daemon, so that it does not
+   * prevent the virtual machine from exiting.
+   * @return The executor running the thread
+   */
+  protected static synchronized ExecutorService getCompactor()
+  {
+    if (s_compactor == null)
+    {
+      s_compactor = Executors.newSingleThreadExecutor(new ThreadFactory()
+      {
+        @Override
+        public Thread newThread(Runnable r)
+        {
+          Thread t = new Thread(r, "TurtleDB compaction");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return s_compactor;
+  }
+}
@@ -17,6 +17,8 @@
  -------------------------------------------------------------------------*/
 package ca.uqac.dim.turtledb;
 
+import java.util.List;
+
 public class LogicalAnd extends NAryCondition
 {
   public LogicalAnd()
@@ -36,6 +38,13 @@ public class LogicalAnd extends NAryCondition
     return true;
   }
   
+  @Override
+  public void addConjuncts(List<Condition> conjuncts)
+  {
+    for (Condition c : m_conditions)
+      c.addConjuncts(conjuncts);
+  }
+  
   @Override
   public void accept(ConditionVisitor v)
   {
@@ -0,0 +1,79 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+/**
+ * A value holding a 64-bit integer
+ * @author sylvain
+ *
+ */
+public class LongValue extends NumericValue
+{
+  private final long m_value;
+  
+  public LongValue(long v)
+  {
+    super();
+    m_value = v;
+  }
+  
+  @Override
+  public long longValue()
+  {
+    return m_value;
+  }
+  
+  @Override
+  public double doubleValue()
+  {
+    return m_value;
+  }
+  
+  @Override
+  public ValueType getType()
+  {
+    return ValueType.LONG;
+  }
+  
+  @Override
+  public String toString()
+  {
+    return Long.toString(m_value);
+  }
+  
+  @Override
+  public int hashCode()
+  {
+    return hashCode(m_value);
+  }
+  
+  @Override
+  public int compareTo(Value o)
+  {
+    if (o instanceof LongValue)
+    {
+      long v = ((LongValue) o).m_value;
+      if (m_value < v)
+        return -1;
+      if (m_value > v)
+        return 1;
+      return 0;
+    }
+    return super.compareTo(o);
+  }
+}
@@ -0,0 +1,159 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+/**
+ * An amount of memory that the intermediate results of a query may
+ * occupy. Every {@link SpillableTable} materialized while evaluating
+ * the query reserves room in the budget for the tuples it keeps in
+ * memory; when the budget refuses a reservation, the table writes its
+ * tuples to disk instead. Room is given back when an intermediate
+ * result is no longer needed.
+ * <p>
+ * Sizes are estimates of the heap occupied by tuples, computed by
+ * {@link #estimateSize(Tuple)}; they are not meant to be exact.
+ * @author sylvain
+ *
+ */
+public class MemoryBudget
+{
+  /**
+   * The maximum number of bytes that can be reserved
+   */
+  protected final long m_limit;
+  
+  /**
+   * The number of bytes currently reserved
+   */
+  protected long m_used;
+  
+  /**
+   * The largest number of bytes reserved at the same time
+   */
+  protected long m_peak;
+  
+  /**
+   * The number of intermediate results that were written to disk
+   */
+  protected int m_spillCount;
+  
+  /**
+   * Creates a budget
+   * @param limit The maximum number of bytes that can be reserved
+   */
+  public MemoryBudget(long limit)
+  {
+    super();
+    assert limit >= 0;
+    m_limit = limit;
+    m_used = 0;
+    m_peak = 0;
+    m_spillCount = 0;
+  }
+  
+  /**
+   * Attempts to reserve some memory
+   * @param bytes The number of bytes
+   * @return True if the memory was reserved, false if this would
+   *   exceed the budget (in which case nothing is reserved)
+   */
+  public synchronized boolean reserve(long bytes)
+  {
+    if (m_used + bytes > m_limit)
+      return false;
+    m_used += bytes;
+    if (m_used > m_peak)
+      m_peak = m_used;
+    return true;
+  }
+  
+  /**
+   * Gives back memory previously reserved
+   * @param bytes The number of bytes
+   */
+  public synchronized void release(long bytes)
+  {
+    m_used -= bytes;
+    assert m_used >= 0;
+  }
+  
+  /**
+   * Records that an intermediate result had to be written to disk
+   */
+  protected synchronized void spilled()
+  {
+    m_spillCount++;
+  }
+  
+  public long getLimit()
+  {
+    return m_limit;
+  }
+  
+  public synchronized long getUsed()
+  {
+    return m_used;
+  }
+  
+  public synchronized long getPeak()
+  {
+    return m_peak;
+  }
+  
+  /**
+   * Gives the number of intermediate results that were written to
+   * disk since the budget was created
+   * @return The number of spilled results
+   */
+  public synchronized int getSpillCount()
+  {
+    return m_spillCount;
+  }
+  
+  /**
+   * Estimates the number of bytes a tuple occupies on the heap. This
+   * counts the tuple, its array of values and the values themselves;
+   * the schema is shared by many tuples and is not counted.
+   * @param t The tuple
+   * @return The estimated size, in bytes
+   */
+  public static long estimateSize(Tuple t)
+  {
+    // Object header and fields of the tuple, and its array of values
+    long size = 32 + 16 + 8 * t.size();
+    for (int i = 0; i < t.size(); i++)
+    {
+      Value v = t.get(i);
+      if (v == null)
+        continue;
+      size += 24;
+      if (v.getType() == ValueType.STRING)
+      {
+        // The string and its array of characters
+        size += 40 + 2 * v.toString().length();
+      }
+    }
+    return size;
+  }
+  
+  @Override
+  public String toString()
+  {
+    return getUsed() + "/" + m_limit + " bytes";
+  }
+}
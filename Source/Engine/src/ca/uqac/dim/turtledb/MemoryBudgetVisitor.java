@@ -0,0 +1,83 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+/**
+ * Visitor that sets the same {@link MemoryBudget} on every operator
+ * of a query, so that all the intermediate results it materializes
+ * in cache mode share that budget. Tables are left untouched.
+ * @author sylvain
+ *
+ */
+public class MemoryBudgetVisitor extends EmptyQueryVisitor
+{
+  protected final MemoryBudget m_budget;
+  
+  /**
+   * Creates a visitor
+   * @param budget The budget to set, or <tt>null</tt> to remove any
+   *   budget from the query
+   */
+  public MemoryBudgetVisitor(MemoryBudget budget)
+  {
+    super();
+    m_budget = budget;
+  }
+  
+  @Override
+  public void visit(Projection r)
+  {
+    r.setMemoryBudget(m_budget);
+  }
+  
+  @Override
+  public void visit(Selection r)
+  {
+    r.setMemoryBudget(m_budget);
+  }
+  
+  @Override
+  public void visit(Union r)
+  {
+    r.setMemoryBudget(m_budget);
+  }
+  
+  @Override
+  public void visit(Intersection r)
+  {
+    r.setMemoryBudget(m_budget);
+  }
+  
+  @Override
+  public void visit(Join r)
+  {
+    r.setMemoryBudget(m_budget);
+  }
+  
+  @Override
+  public void visit(Product r)
+  {
+    r.setMemoryBudget(m_budget);
+  }
+  
+  @Override
+  public void visit(Renaming r)
+  {
+    r.setMemoryBudget(m_budget);
+  }
+}
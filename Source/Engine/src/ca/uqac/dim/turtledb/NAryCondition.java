@@ -41,6 +41,13 @@ public abstract class NAryCondition extends Condition
       c.accept(v);
   }
   
+  @Override
+  public void bind(Schema sch)
+  {
+    for (Condition c : m_conditions)
+      c.bind(sch);
+  }
+  
   /**
    * Returns the arity of the operator, i.e. the number of
    * operands.
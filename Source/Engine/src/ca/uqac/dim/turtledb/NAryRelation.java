@@ -82,7 +82,123 @@ public abstract class NAryRelation extends Relation
       r.accept(v);
   }
   
-
+  /**
+   * Determines if the stream iterator merges the operands in
+   * increasing order of their tuples. Each operand is then sorted
+   * first if it does not produce its tuples in that order, and the
+   * output of the iterator is sorted on all attributes.
+   * @return True if the operands are merged, false otherwise
+   */
+  protected boolean mergesOperands()
+  {
+    return false;
+  }
+  
+  @Override
+  public boolean isSortedOn(int[] positions)
+  {
+    if (!mergesOperands())
+      return false;
+    for (int i = 0; i < positions.length; i++)
+    {
+      if (positions[i] != i)
+        return false;
+    }
+    return true;
+  }
+  
+  /**
+   * Determines if the stream iterator of a relation enumerates its
+   * tuples in increasing order, as compared by {@link Tuple#compareTo(Tuple)}
+   * @param r The relation
+   * @return True if the tuples are sorted, false if they may not be
+   */
+  protected static boolean isSorted(Relation r)
+  {
+    int[] positions = new int[r.getDegree()];
+    for (int i = 0; i < positions.length; i++)
+      positions[i] = i;
+    return r.isSortedOn(positions);
+  }
+  
+  /**
+   * The stream iterator of an operand, in increasing order of its
+   * tuples. An operand that does not produce its tuples in that order
+   * (e.g. a hash {@link Join}, which produces them in the order of
+   * its probe operand) is sorted first.
+   * @param r The operand
+   * @return The iterator
+   */
+  protected static RelationIterator sortedStreamIterator(Relation r)
+  {
+    if (isSorted(r))
+      return r.streamIterator();
+    return new SortingStreamIterator(r);
+  }
+  
+  /**
+   * Enumerates the tuples of a relation after sorting them with a
+   * {@link TupleSorter}
+   */
+  protected static class SortingStreamIterator extends RelationStreamIterator
+  {
+    protected final Relation m_relation;
+    
+    protected TupleSorter m_sorter;
+    
+    protected Iterator<Tuple> m_iterator;
+    
+    public SortingStreamIterator(Relation r)
+    {
+      super(false);
+      m_relation = r;
+    }
+    
+    @Override
+    protected Tuple internalNext()
+    {
+      if (m_iterator == null)
+      {
+        m_sorter = new TupleSorter(new Comparator<Tuple>()
+        {
+          @Override
+          public int compare(Tuple t1, Tuple t2)
+          {
+            return t1.compareTo(t2);
+          }
+        });
+        RelationIterator it = m_relation.streamIterator();
+        for (TupleBatch b = it.nextBatch(); b != null; b = it.nextBatch())
+        {
+          for (int i = 0; i < b.size(); i++)
+            m_sorter.add(b.get(i));
+        }
+        m_iterator = m_sorter.iterator();
+      }
+      if (m_iterator.hasNext())
+        return m_iterator.next();
+      close();
+      return null;
+    }
+    
+    /**
+     * Deletes the files of the sorter, if any
+     */
+    protected void close()
+    {
+      if (m_sorter != null)
+        m_sorter.close();
+      m_sorter = null;
+    }
+    
+    @Override
+    public void reset()
+    {
+      super.reset();
+      close();
+      m_iterator = null;
+    }
+  }
   
   protected abstract class NAryRelationStreamIterator extends RelationStreamIterator
   {
@@ -103,12 +219,16 @@ public abstract class NAryRelation extends Relation
     
     public NAryRelationStreamIterator()
     {
-      super();
+      super(!isDuplicateFree());
       m_lastTuple = new Vector<Tuple>();
       m_iterators = new Vector<RelationIterator>();
+      boolean merge = mergesOperands();
       for (Relation r : m_relations)
       {
-        m_iterators.addElement(r.streamIterator());
+        if (merge)
+          m_iterators.addElement(sortedStreamIterator(r));
+        else
+          m_iterators.addElement(r.streamIterator());
       }
       reset();
     }
@@ -116,6 +236,7 @@ public abstract class NAryRelation extends Relation
     protected void initializeIteration()
     {
       int len = m_iterators.size();
+      m_lastTuple.clear();
       // Get first tuple of every table and fill m_lastTuple with them
       for (int i = 0; i < len; i++)
       {
@@ -147,7 +268,7 @@ public abstract class NAryRelation extends Relation
         Tuple t = m_lastTuple.get(i);
         if (t == null)
           continue;
-        if (smallest_tuple == null || smallest_tuple.compareTo(t) < 0)
+        if (smallest_tuple == null || smallest_tuple.compareTo(t) > 0)
         {
           smallest_tuple = t;
           smallest_index = i;
@@ -205,13 +326,15 @@ public abstract class NAryRelation extends Relation
       m_results = new Vector<Table>();
       for (Relation r : m_relations)
       {
-        Table tab_int = new Table(r.getSchema());
+        Table tab_int = newIntermediateTable(r.getSchema());
         RelationIterator i = r.cacheIterator();
         while (i.hasNext())
         {
           Tuple t = i.next();
-          tab_int.put(t);
+          tab_int.append(t);
         }
+        dispose(i);
+        tab_int.seal();
         m_results.add(tab_int);
       }
     }
@@ -0,0 +1,147 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+/**
+ * A value that holds a number. Numbers are compared numerically
+ * to each other, regardless of their actual type, without
+ * going through their string representation. The comparison is
+ * exact: a long integer is not rounded to a double to be compared
+ * to it. NaN is equal to itself and greater than all other numbers.
+ * <p>
+ * Numbers that are equal have the same hash code, whatever their
+ * type: the hash code of a number with no fractional part is that
+ * of the long integer with the same value.
+ * @author sylvain
+ *
+ */
+public abstract class NumericValue extends Value
+{
+  /**
+   * 2<sup>63</sup>, the smallest double greater than all long integers
+   */
+  private static final double LONG_BOUND = 9.223372036854775808E18;
+  
+  protected NumericValue()
+  {
+    super();
+  }
+  
+  /**
+   * Gives the value as a long integer
+   * @return The value
+   */
+  public abstract long longValue();
+  
+  /**
+   * Gives the value as a double-precision number
+   * @return The value
+   */
+  public abstract double doubleValue();
+  
+  @Override
+  protected int getRank()
+  {
+    return 0;
+  }
+  
+  @Override
+  public int compareTo(Value o)
+  {
+    if (!(o instanceof NumericValue))
+      return super.compareTo(o);
+    NumericValue nv = (NumericValue) o;
+    boolean double_1 = this instanceof DoubleValue, double_2 = nv instanceof DoubleValue;
+    if (double_1 && double_2)
+      return compare(doubleValue(), nv.doubleValue());
+    if (double_1)
+      return compare(doubleValue(), nv.longValue());
+    if (double_2)
+      return -compare(nv.doubleValue(), longValue());
+    return compare(longValue(), nv.longValue());
+  }
+  
+  protected static int compare(long l1, long l2)
+  {
+    if (l1 < l2)
+      return -1;
+    if (l1 > l2)
+      return 1;
+    return 0;
+  }
+  
+  /**
+   * Compares two doubles. Contrary to {@link Double#compare(double, double)},
+   * 0 and -0 are equal.
+   */
+  protected static int compare(double d1, double d2)
+  {
+    if (d1 < d2)
+      return -1;
+    if (d1 > d2)
+      return 1;
+    if (d1 == d2)
+      return 0;
+    // At least one of them is NaN
+    if (Double.isNaN(d1))
+      return Double.isNaN(d2) ? 0 : 1;
+    return -1;
+  }
+  
+  /**
+   * Compares a double to a long integer, without rounding the integer
+   */
+  protected static int compare(double d, long l)
+  {
+    if (Double.isNaN(d) || d >= LONG_BOUND)
+      return 1;
+    if (d < -LONG_BOUND)
+      return -1;
+    // The integral part of d fits in a long, and the fractional part
+    // is computed exactly
+    long integral = (long) d;
+    if (integral != l)
+      return integral < l ? -1 : 1;
+    return compare(d - integral, 0d);
+  }
+  
+  /**
+   * Computes the hash code of a long integer. All numbers equal to
+   * that integer have this hash code.
+   * @param v The number
+   * @return The hash code
+   */
+  protected static int hashCode(long v)
+  {
+    return (int) (v ^ (v >>> 32));
+  }
+  
+  /**
+   * Computes the hash code of a double. All numbers equal to
+   * that double have this hash code.
+   * @param v The number
+   * @return The hash code
+   */
+  protected static int hashCode(double v)
+  {
+    if (v == Math.rint(v) && v >= -LONG_BOUND && v < LONG_BOUND)
+      return hashCode((long) v); // Also makes 0 and -0 equal
+    // Also gives the same hash code to all NaNs
+    return hashCode(Double.doubleToLongBits(v));
+  }
+}
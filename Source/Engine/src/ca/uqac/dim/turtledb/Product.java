@@ -36,6 +36,17 @@ public class Product extends NAryRelation
   }
   
 
+  @Override
+  public boolean isDuplicateFree()
+  {
+    for (Relation r : m_relations)
+    {
+      if (!r.isDuplicateFree())
+        return false;
+    }
+    return true;
+  }
+
   @Override
   public void accept(QueryVisitor v) throws VisitorException
   {
@@ -45,12 +56,18 @@ public class Product extends NAryRelation
   
   protected class ProductStreamIterator extends NAryRelationStreamIterator
   {
+    /**
+     * The schema shared by all output tuples
+     */
+    protected Schema m_schema;
+    
     @Override
     protected Tuple internalNext()
     { 
       if (m_first)
       {
         m_first = false;
+        m_schema = getSchema();
         super.initializeIteration();
       }
       else
@@ -79,7 +96,7 @@ public class Product extends NAryRelation
           }
         }
       }
-      return Tuple.makeTuple(m_lastTuple);
+      return Tuple.makeTuple(m_schema, m_lastTuple);
     }
   }
 
@@ -102,7 +119,8 @@ public class Product extends NAryRelation
     @Override
     protected void getIntermediateResult()
     {
-      Table tab_out = new Table(getSchema());
+      Schema sch = getSchema();
+      Table tab_out = newIntermediateTable(sch);
       super.getIntermediateResult();
       super.initializeIteration();
       boolean in = true;
@@ -136,8 +154,10 @@ public class Product extends NAryRelation
             m_lastTuple.setElementAt(t, i);
           }
         }
-        tab_out.put(Tuple.makeTuple(m_lastTuple));
+        tab_out.append(Tuple.makeTuple(sch, m_lastTuple));
       }
+      for (Table tab : m_results)
+        dispose(tab);
       m_intermediateResult = tab_out;
     }
     
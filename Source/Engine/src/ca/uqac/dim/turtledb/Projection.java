@@ -45,15 +45,47 @@ public class Projection extends UnaryRelation
   {
     if (t == null)
       return null;
-    Value[] parts = new Value[m_schema.size()];
-    int i = 0;
-    for (Attribute a : m_schema)
+    if (t.getSchema() == m_schema)
+      return t; // Already projected, e.g. by a columnar scan
+    // The positions are only computed for the first tuple of a given schema
+    int[] ordinals = m_schema.getOrdinalsIn(t.getSchema());
+    Value[] parts = new Value[ordinals.length];
+    for (int i = 0; i < ordinals.length; i++)
     {
-      parts[i++] = t.get(a);
+      int pos = ordinals[i];
+      if (pos >= 0)
+        parts[i] = t.get(pos);
     }
     return new Tuple(m_schema, parts);
   }
   
+  /**
+   * A projection is duplicate-free if its operand is, and if it keeps
+   * all the attributes of that operand.
+   */
+  @Override
+  public boolean isDuplicateFree()
+  {
+    if (!super.isDuplicateFree())
+      return false;
+    Schema sch = m_relation.getSchema();
+    if (sch == null)
+      return false;
+    for (int pos : sch.getOrdinalsIn(m_schema))
+    {
+      if (pos < 0)
+        return false;
+    }
+    return true;
+  }
+  
+  @Override
+  public boolean isSortedOn(int[] positions)
+  {
+    // The attributes do not keep their positions
+    return false;
+  }
+  
   public void setSchema(Schema sch)
   {
     assert sch != null;
@@ -72,7 +104,13 @@ public class Projection extends UnaryRelation
     public ProjectionStreamIterator()
     {
       super();
-      m_outputTuples = new LinkedList<Tuple>();
+      if (m_relation instanceof ColumnarTable)
+      {
+        // Only read the columns that are kept
+        RelationStreamIterator it = ((ColumnarTable) m_relation).scan(m_schema);
+        if (it != null)
+          m_childIterator = it;
+      }
     }
     
     protected Tuple internalNext()
@@ -80,21 +118,43 @@ public class Projection extends UnaryRelation
       Tuple t = m_childIterator.next();
       return project(t);    
     }
+    
+    @Override
+    protected TupleBatch internalNextBatch()
+    {
+      TupleBatch in = m_childIterator.nextBatch();
+      if (in == null)
+        return null;
+      TupleBatch out = getBatch();
+      for (int i = 0; i < in.size(); i++)
+        out.add(project(in.get(i)));
+      return out;
+    }
   }
   
   protected class ProjectionCacheIterator extends UnaryRelationCacheIterator
   {
     public void getIntermediateResult()
     {
-      Table tab_out = new Table(getSchema());
-      super.getIntermediateResult();
-      Iterator<Tuple> it = m_intermediateResult.tupleIterator();
+      Table tab_out = newIntermediateTable(getSchema());
+      Iterator<Tuple> it = null;
+      if (m_relation instanceof ColumnarTable)
+      {
+        // Only read the columns that are kept
+        it = ((ColumnarTable) m_relation).scan(m_schema);
+      }
+      if (it == null)
+      {
+        super.getIntermediateResult();
+        it = m_intermediateResult.tupleIterator();
+      }
       while (it.hasNext())
       {
         Tuple t = it.next();
         Tuple t2 = project(t);
-        tab_out.put(t2);
+        tab_out.append(t2);
       }
+      dispose(m_intermediateResult);
       m_intermediateResult = tab_out;
     }
   }
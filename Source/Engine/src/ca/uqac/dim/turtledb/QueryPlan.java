@@ -38,4 +38,21 @@ public class QueryPlan extends HashMap<String,Set<Relation>>
     rels.add(r);
     this.put(key, rels);
   }
+  
+  /**
+   * Adds a query fragment to those of a site, keeping the fragments
+   * already associated to it
+   * @param key The site
+   * @param r The fragment
+   */
+  public void add(String key, Relation r)
+  {
+    Set<Relation> rels = get(key);
+    if (rels == null)
+    {
+      rels = new HashSet<Relation>();
+      this.put(key, rels);
+    }
+    rels.add(r);
+  }
 }
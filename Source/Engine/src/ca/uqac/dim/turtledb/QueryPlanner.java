@@ -0,0 +1,786 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * Builds a distributed {@link QueryPlan} for a query. The leaves of the
+ * query are {@link VariableTable}s that name tables of the
+ * {@link Catalog}; the planner decides at which site each operator of
+ * the query is computed, and cuts the query into fragments accordingly.
+ * <p>
+ * The cost of a plan is the total number of tuples shipped from one
+ * site to another, i.e. the sum of what each site would report through
+ * {@link Engine#getTuplesReceived()}. The result of the query must
+ * reach the site that asked for it. Planning proceeds in four steps:
+ * <ol>
+ * <li>Selections are pushed down the query (see
+ *   {@link QueryRewriter#pushSelections(Relation)}), so that the sizes
+ *   of filtered operands can be taken into account.</li>
+ * <li>The inputs of each tree of joins and products are reordered:
+ *   every left-deep order is tried when there are at most
+ *   {@link #MAX_EXHAUSTIVE_INPUTS} inputs, and the order is built
+ *   greedily otherwise. The order kept is the one whose best
+ *   placement ships the fewest tuples.</li>
+ * <li>Projections are inserted (see
+ *   {@link QueryRewriter#insertProjections(Relation)}).</li>
+ * <li>Each operator is placed on a site by dynamic programming over
+ *   the tree: for each operator and each site, the planner computes the
+ *   minimum number of tuples shipped to have the operator's result at
+ *   that site. A table stays on the site that hosts it.</li>
+ * </ol>
+ * Sizes of intermediate results are estimated from the cardinalities
+ * recorded in the catalog. The selectivity of an equality is derived
+ * from the {@link TableStatistics} of the tables involved when the
+ * catalog has them (the number of distinct values of an attribute,
+ * and the frequent values found in their sample); otherwise, it is
+ * a fixed fraction.
+ * <p>
+ * In the resulting plan, an operand computed on another site than its
+ * parent becomes a fragment: its query is topped by a
+ * <tt>VariableTable</tt> that names the destination site, and the
+ * parent reads it through a <tt>VariableTable</tt> of the same name.
+ * This is the same structure as hand-written plans.
+ * @author sylvain
+ *
+ */
+public class QueryPlanner
+{
+  /**
+   * The maximum number of inputs of a join for which all join
+   * orders are tried
+   */
+  public static final int MAX_EXHAUSTIVE_INPUTS = 6;
+  
+  /**
+   * The estimated fraction of tuples that satisfy an equality, when
+   * no statistics are available
+   */
+  protected static final double EQUALITY_SELECTIVITY = 0.1;
+  
+  /**
+   * Source of unique fragment names
+   */
+  protected static int s_fragmentCount = 0;
+  
+  protected final Catalog m_catalog;
+  
+  /**
+   * The site that asks for the query, and where the result must end up
+   */
+  protected final String m_site;
+  
+  /**
+   * The candidate sites, and the position of each of them
+   */
+  protected List<String> m_sites;
+  protected Map<String,Integer> m_siteIndex;
+  
+  /**
+   * For each leaf standing for a table of the catalog, the table's name
+   */
+  protected Map<Relation,String> m_tableNames;
+  
+  /**
+   * Estimated number of tuples of each node of the query
+   */
+  protected Map<Relation,Double> m_cardinalities;
+  
+  /**
+   * Best placement of each node of the query
+   */
+  protected Map<Relation,Placement> m_placements;
+  
+  /**
+   * Creates a planner
+   * @param c The catalog of tables
+   * @param site The name of the site that asks for the queries
+   */
+  public QueryPlanner(Catalog c, String site)
+  {
+    super();
+    m_catalog = c;
+    m_site = site;
+  }
+  
+  /**
+   * Builds the plan for a query
+   * @param query The query
+   * @return The plan, or <tt>null</tt> if the query mentions a table
+   *   that is not in the catalog
+   */
+  public QueryPlan getPlan(Relation query)
+  {
+    m_tableNames = new IdentityHashMap<Relation,String>();
+    m_cardinalities = new IdentityHashMap<Relation,Double>();
+    m_placements = new IdentityHashMap<Relation,Placement>();
+    m_sites = new ArrayList<String>();
+    m_siteIndex = new HashMap<String,Integer>();
+    addSite(m_site);
+    // Replace the leaves by empty tables with the schema of the
+    // tables they stand for, so that all schemas are known
+    StubVisitor sv = new StubVisitor();
+    try
+    {
+      query.accept(sv);
+    }
+    catch (QueryVisitor.VisitorException e)
+    {
+      return null;
+    }
+    if (sv.m_missing)
+      return null;
+    Relation tree = QueryRewriter.pushSelections(sv.getResult());
+    tree = reorderJoins(tree);
+    tree = QueryRewriter.insertProjections(tree);
+    m_placements.clear();
+    // Place the root, taking into account the shipping of the result
+    Placement p = getPlacement(tree);
+    double card = estimate(tree);
+    int home = m_siteIndex.get(m_site);
+    int best = home;
+    for (int s = 0; s < m_sites.size(); s++)
+    {
+      double cost = p.m_cost[s] + (s == home ? 0 : card);
+      if (cost < p.m_cost[best] + (best == home ? 0 : card))
+        best = s;
+    }
+    QueryPlan qp = new QueryPlan();
+    Relation root = emit(tree, best, qp);
+    if (best == home)
+    {
+      // A query topped by a VariableTable would be taken for a
+      // fragment to send elsewhere
+      if (root instanceof VariableTable)
+        root = new Projection(tree.getSchema(), root);
+      qp.add(m_site, root);
+    }
+    else
+    {
+      String label = newLabel();
+      VariableTable head = new VariableTable(label, m_site);
+      head.setRelation(root);
+      qp.add(m_sites.get(best), head);
+      // The site that asked for the query reads the result through a
+      // projection, for the same reason
+      qp.add(m_site, new Projection(tree.getSchema(), new VariableTable(label, m_sites.get(best))));
+    }
+    return qp;
+  }
+  
+  protected void addSite(String site)
+  {
+    if (m_siteIndex.containsKey(site))
+      return;
+    m_siteIndex.put(site, m_sites.size());
+    m_sites.add(site);
+  }
+  
+  /**
+   * Gives a new, unique name for a fragment
+   */
+  protected String newLabel()
+  {
+    int n;
+    synchronized (QueryPlanner.class)
+    {
+      n = ++s_fragmentCount;
+    }
+    return m_site + "#" + n;
+  }
+  
+  /**
+   * Gives the site where a leaf of the query is
+   * @return The site's position
+   */
+  protected int siteOf(Relation leaf)
+  {
+    String name = m_tableNames.get(leaf);
+    if (name == null)
+      return m_siteIndex.get(m_site);
+    return m_siteIndex.get(m_catalog.getSite(name));
+  }
+  
+  /**
+   * Estimates the number of tuples of a node of the query
+   * @param r The node
+   * @return The estimated number of tuples
+   */
+  protected double estimate(Relation r)
+  {
+    Double d = m_cardinalities.get(r);
+    if (d != null)
+      return d;
+    double card;
+    List<Relation> operands = CopyQueryVisitor.operandsOf(r);
+    if (operands.isEmpty())
+    {
+      String name = m_tableNames.get(r);
+      if (name != null)
+        card = m_catalog.getCardinality(name);
+      else
+        card = r.tupleCount();
+    }
+    else if (r instanceof Selection)
+      card = estimate(operands.get(0)) * selectivity(((Selection) r).m_condition);
+    else if (r instanceof Join)
+    {
+      Join j = (Join) r;
+      double left = estimate(j.m_left), right = estimate(j.m_right);
+      JoinKeys keys = new JoinKeys(j.m_condition, j.m_left.getSchema(), j.m_right.getSchema());
+      if (keys.hasKeys())
+      {
+        card = left * right / Math.max(1, keyDistinct(j, keys, left, right));
+        card *= selectivity(keys.getResidual());
+      }
+      else
+        card = left * right * selectivity(j.m_condition);
+    }
+    else if (r instanceof Product)
+    {
+      card = 1;
+      for (Relation op : operands)
+        card *= estimate(op);
+    }
+    else if (r instanceof Union)
+    {
+      card = 0;
+      for (Relation op : operands)
+        card += estimate(op);
+    }
+    else if (r instanceof Intersection)
+    {
+      card = Double.POSITIVE_INFINITY;
+      for (Relation op : operands)
+        card = Math.min(card, estimate(op));
+    }
+    else
+    {
+      // Projections and renamings: at most as many tuples as their operand
+      card = estimate(operands.get(0));
+    }
+    m_cardinalities.put(r, card);
+    return card;
+  }
+  
+  /**
+   * Estimates the fraction of tuples that satisfy a condition
+   * @param c The condition; <tt>null</tt> stands for a condition
+   *   that is always true
+   * @return The fraction
+   */
+  protected double selectivity(Condition c)
+  {
+    if (c == null)
+      return 1;
+    if (c instanceof Equality)
+      return selectivity((Equality) c);
+    if (c instanceof LogicalAnd)
+    {
+      double s = 1;
+      for (Condition child : ((NAryCondition) c).m_conditions)
+        s *= selectivity(child);
+      return s;
+    }
+    if (c instanceof LogicalOr)
+    {
+      double s = 1;
+      for (Condition child : ((NAryCondition) c).m_conditions)
+        s *= 1 - selectivity(child);
+      return 1 - s;
+    }
+    if (c instanceof LogicalNot)
+    {
+      NAryCondition n = (NAryCondition) c;
+      if (n.m_conditions.isEmpty())
+        return 1;
+      return 1 - selectivity(n.m_conditions.get(0));
+    }
+    return 1;
+  }
+  
+  /**
+   * Estimates the fraction of tuples that satisfy an equality
+   * @param e The equality
+   * @return The fraction
+   */
+  protected double selectivity(Equality e)
+  {
+    Literal left = e.m_left, right = e.m_right;
+    if (left instanceof Value)
+    {
+      left = e.m_right;
+      right = e.m_left;
+    }
+    TableStatistics.AttributeStatistics left_stats = statisticsOf(left);
+    if (right instanceof Value)
+    {
+      if (left_stats == null)
+        return EQUALITY_SELECTIVITY;
+      return left_stats.estimateEquality((Value) right);
+    }
+    TableStatistics.AttributeStatistics right_stats = statisticsOf(right);
+    if (left_stats == null || right_stats == null)
+      return EQUALITY_SELECTIVITY;
+    // Each value of the attribute with the fewest distinct values is
+    // assumed to appear in the other one
+    long distinct = Math.max(left_stats.getDistinctCount(), right_stats.getDistinctCount());
+    return 1.0 / Math.max(1, distinct);
+  }
+  
+  /**
+   * Estimates the number of distinct values of the keys of a join,
+   * taken as the largest number of distinct values of any key
+   * attribute on either side. Each tuple of the side with fewer
+   * distinct values is then assumed to match
+   * (size of the other side) / (distinct values) tuples. Without
+   * statistics, an attribute is assumed to have as many distinct values
+   * as its side has tuples, so that each tuple of the smaller side
+   * matches one tuple of the other.
+   * @param j The join
+   * @param keys The keys of the join condition
+   * @param left The estimated number of tuples of the left operand
+   * @param right The estimated number of tuples of the right operand
+   * @return The number of distinct values
+   */
+  protected double keyDistinct(Join j, JoinKeys keys, double left, double right)
+  {
+    int[] left_positions = keys.getLeftPositions(), right_positions = keys.getRightPositions();
+    Schema left_schema = j.m_left.getSchema(), right_schema = j.m_right.getSchema();
+    double distinct = 1;
+    for (int i = 0; i < left_positions.length; i++)
+    {
+      double d_left = distinctValues(left_schema.get(left_positions[i]), left);
+      double d_right = distinctValues(right_schema.get(right_positions[i]), right);
+      distinct = Math.max(distinct, Math.max(d_left, d_right));
+    }
+    return distinct;
+  }
+  
+  /**
+   * Estimates the number of distinct values of an attribute in an
+   * intermediate result
+   * @param a The attribute
+   * @param card The estimated number of tuples of the result
+   * @return The number of distinct values
+   */
+  protected double distinctValues(Attribute a, double card)
+  {
+    TableStatistics.AttributeStatistics stats = statisticsOf(a);
+    if (stats == null)
+      return card;
+    return Math.min(card, stats.getDistinctCount());
+  }
+  
+  /**
+   * Gives the statistics on an attribute of a table of the catalog
+   * @param l The attribute
+   * @return The statistics, or <tt>null</tt> if the literal is not an
+   *   attribute of a table whose statistics are in the catalog
+   */
+  protected TableStatistics.AttributeStatistics statisticsOf(Literal l)
+  {
+    if (!(l instanceof Attribute))
+      return null;
+    String table = ((Attribute) l).getTableName();
+    if (table == null)
+      return null;
+    TableStatistics stats = m_catalog.getStatistics(table);
+    if (stats == null)
+      return null;
+    return stats.getAttributeStatistics(l);
+  }
+  
+  /**
+   * Computes the best placement of a node of the query, and of all
+   * the nodes below it
+   * @param r The node
+   * @return The placement
+   */
+  protected Placement getPlacement(Relation r)
+  {
+    Placement p = m_placements.get(r);
+    if (p != null)
+      return p;
+    int num_sites = m_sites.size();
+    List<Relation> operands = CopyQueryVisitor.operandsOf(r);
+    p = new Placement(num_sites, operands.size());
+    if (operands.isEmpty())
+    {
+      // A leaf can only be where its table is
+      Arrays.fill(p.m_cost, Double.POSITIVE_INFINITY);
+      p.m_cost[siteOf(r)] = 0;
+    }
+    else
+    {
+      for (int i = 0; i < operands.size(); i++)
+      {
+        Relation op = operands.get(i);
+        Placement p_op = getPlacement(op);
+        double card = estimate(op);
+        for (int s = 0; s < num_sites; s++)
+        {
+          // Compute the operand where it is cheapest, and ship it if
+          // that is not where the operator is; prefer not shipping
+          int best = s;
+          double best_cost = p_op.m_cost[s];
+          for (int t = 0; t < num_sites; t++)
+          {
+            double cost = p_op.m_cost[t] + card;
+            if (cost < best_cost)
+            {
+              best = t;
+              best_cost = cost;
+            }
+          }
+          p.m_cost[s] += best_cost;
+          p.m_operandSites[s][i] = best;
+        }
+      }
+    }
+    m_placements.put(r, p);
+    return p;
+  }
+  
+  /**
+   * Builds the part of the plan that computes a node of the query,
+   * adding to the plan a fragment for every operand computed on
+   * another site
+   * @param r The node
+   * @param site The position of the site where the node is computed
+   * @param qp The plan
+   * @return The query computing the node on that site
+   */
+  protected Relation emit(Relation r, int site, QueryPlan qp)
+  {
+    String name = m_tableNames.get(r);
+    if (name != null)
+      return new VariableTable(name, m_sites.get(site));
+    List<Relation> operands = CopyQueryVisitor.operandsOf(r);
+    if (operands.isEmpty())
+      return r;
+    Placement p = getPlacement(r);
+    List<Relation> new_operands = new ArrayList<Relation>(operands.size());
+    for (int i = 0; i < operands.size(); i++)
+    {
+      int op_site = p.m_operandSites[site][i];
+      Relation op = emit(operands.get(i), op_site, qp);
+      if (op_site != site)
+      {
+        String label = newLabel();
+        VariableTable head = new VariableTable(label, m_sites.get(site));
+        head.setRelation(op);
+        qp.add(m_sites.get(op_site), head);
+        op = new VariableTable(label, m_sites.get(op_site));
+      }
+      new_operands.add(op);
+    }
+    return CopyQueryVisitor.copyOperator(r, new_operands);
+  }
+  
+  /**
+   * Reorders the inputs of every tree of joins and products
+   * @param r The query
+   * @return The query with joins reordered
+   */
+  protected Relation reorderJoins(Relation r)
+  {
+    if (r instanceof Join || r instanceof Product)
+    {
+      List<Relation> inputs = new ArrayList<Relation>();
+      List<Condition> conjuncts = new ArrayList<Condition>();
+      flattenJoins(r, inputs, conjuncts);
+      for (int i = 0; i < inputs.size(); i++)
+        inputs.set(i, reorderJoins(inputs.get(i)));
+      if (inputs.size() < 3 || !disjointSchemas(inputs))
+        return rebuild(r);
+      Relation best = null;
+      if (inputs.size() <= MAX_EXHAUSTIVE_INPUTS)
+        best = bestOrder(inputs, conjuncts, new ArrayList<Integer>(), null);
+      else
+        best = greedyOrder(inputs, conjuncts);
+      Schema sch = r.getSchema();
+      if (!sch.equals(best.getSchema()))
+        best = new Projection(sch, best);
+      return best;
+    }
+    return rebuild(r);
+  }
+  
+  /**
+   * Reorders the joins below an operator that is not a join
+   */
+  protected Relation rebuild(Relation r)
+  {
+    List<Relation> operands = CopyQueryVisitor.operandsOf(r);
+    if (operands.isEmpty())
+      return r;
+    List<Relation> new_operands = new ArrayList<Relation>(operands.size());
+    boolean changed = false;
+    for (Relation op : operands)
+    {
+      Relation new_op = reorderJoins(op);
+      changed |= new_op != op;
+      new_operands.add(new_op);
+    }
+    if (!changed)
+      return r;
+    return CopyQueryVisitor.copyOperator(r, new_operands);
+  }
+  
+  /**
+   * Collects the inputs and the conditions of a tree of joins and products
+   */
+  protected static void flattenJoins(Relation r, List<Relation> inputs, List<Condition> conjuncts)
+  {
+    if (r instanceof Join)
+    {
+      Join j = (Join) r;
+      if (j.m_condition != null)
+        j.m_condition.addConjuncts(conjuncts);
+      flattenJoins(j.m_left, inputs, conjuncts);
+      flattenJoins(j.m_right, inputs, conjuncts);
+    }
+    else if (r instanceof Product)
+    {
+      for (Relation op : ((Product) r).m_relations)
+        flattenJoins(op, inputs, conjuncts);
+    }
+    else
+      inputs.add(r);
+  }
+  
+  /**
+   * Determines if no attribute appears in two inputs, in which case
+   * changing the order of the inputs does not change the meaning of
+   * the conditions
+   */
+  protected static boolean disjointSchemas(List<Relation> inputs)
+  {
+    Set<Attribute> seen = new HashSet<Attribute>();
+    for (Relation r : inputs)
+    {
+      for (Attribute a : r.getSchema())
+      {
+        if (!seen.add(a))
+          return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Tries every left-deep order of the inputs that start with a
+   * given prefix
+   * @param inputs The inputs
+   * @param conjuncts The join conditions
+   * @param prefix The positions of the first inputs
+   * @param best The best tree found so far, or <tt>null</tt>
+   * @return The best tree
+   */
+  protected Relation bestOrder(List<Relation> inputs, List<Condition> conjuncts, List<Integer> prefix, Relation best)
+  {
+    if (prefix.size() == inputs.size())
+    {
+      Relation tree = buildLeftDeep(inputs, conjuncts, prefix);
+      if (best == null || isBetter(tree, best))
+        return tree;
+      return best;
+    }
+    for (int i = 0; i < inputs.size(); i++)
+    {
+      if (prefix.contains(i))
+        continue;
+      prefix.add(i);
+      best = bestOrder(inputs, conjuncts, prefix, best);
+      prefix.remove(prefix.size() - 1);
+    }
+    return best;
+  }
+  
+  /**
+   * Builds a left-deep order by always adding the input that gives
+   * the smallest intermediate result, starting from the smallest input
+   */
+  protected Relation greedyOrder(List<Relation> inputs, List<Condition> conjuncts)
+  {
+    List<Integer> order = new ArrayList<Integer>();
+    while (order.size() < inputs.size())
+    {
+      int best = -1;
+      double best_card = 0;
+      for (int i = 0; i < inputs.size(); i++)
+      {
+        if (order.contains(i))
+          continue;
+        order.add(i);
+        double card = estimate(buildLeftDeep(inputs, conjuncts, order));
+        order.remove(order.size() - 1);
+        if (best < 0 || card < best_card)
+        {
+          best = i;
+          best_card = card;
+        }
+      }
+      order.add(best);
+    }
+    return buildLeftDeep(inputs, conjuncts, order);
+  }
+  
+  /**
+   * Compares two join trees: the best one ships the fewest tuples,
+   * and then has the smallest intermediate results
+   */
+  protected boolean isBetter(Relation t1, Relation t2)
+  {
+    double c1 = minCost(t1), c2 = minCost(t2);
+    if (c1 != c2)
+      return c1 < c2;
+    return sumOfSizes(t1) < sumOfSizes(t2);
+  }
+  
+  protected double minCost(Relation r)
+  {
+    double min = Double.POSITIVE_INFINITY;
+    for (double c : getPlacement(r).m_cost)
+      min = Math.min(min, c);
+    return min;
+  }
+  
+  protected double sumOfSizes(Relation r)
+  {
+    if (!(r instanceof Join || r instanceof Product))
+      return 0;
+    double sum = estimate(r);
+    for (Relation op : CopyQueryVisitor.operandsOf(r))
+      sum += sumOfSizes(op);
+    return sum;
+  }
+  
+  /**
+   * Joins inputs from left to right in a given order. Each join gets the
+   * conditions whose attributes are all available at that point; inputs
+   * with no such condition are combined by a product.
+   * @param inputs The inputs
+   * @param conjuncts The join conditions
+   * @param order The positions of the inputs to join, in order
+   * @return The join tree
+   */
+  protected static Relation buildLeftDeep(List<Relation> inputs, List<Condition> conjuncts, List<Integer> order)
+  {
+    List<Condition> remaining = new LinkedList<Condition>(conjuncts);
+    Relation tree = inputs.get(order.get(0));
+    Schema available = new Schema();
+    available.addAll(tree.getSchema());
+    for (int k = 1; k < order.size(); k++)
+    {
+      Relation next = inputs.get(order.get(k));
+      available.addAll(next.getSchema());
+      List<Condition> applicable = new LinkedList<Condition>();
+      Iterator<Condition> it = remaining.iterator();
+      while (it.hasNext())
+      {
+        Condition c = it.next();
+        if (QueryRewriter.containsAll(available, QueryRewriter.attributesOf(c)))
+        {
+          applicable.add(c);
+          it.remove();
+        }
+      }
+      if (applicable.isEmpty())
+      {
+        Product p = new Product();
+        p.addOperand(tree);
+        p.addOperand(next);
+        tree = p;
+      }
+      else
+      {
+        Join j = new Join(QueryRewriter.conjunction(applicable));
+        j.setLeft(tree);
+        j.setRight(next);
+        tree = j;
+      }
+    }
+    if (!remaining.isEmpty())
+      tree = new Selection(QueryRewriter.conjunction(remaining), tree);
+    return tree;
+  }
+  
+  /**
+   * The best placement of a node of the query
+   */
+  protected static class Placement
+  {
+    /**
+     * For each site, the number of tuples shipped to compute the
+     * node on that site
+     */
+    protected final double[] m_cost;
+    
+    /**
+     * For each site, where each operand is computed when the node
+     * is computed on that site
+     */
+    protected final int[][] m_operandSites;
+    
+    public Placement(int num_sites, int num_operands)
+    {
+      super();
+      m_cost = new double[num_sites];
+      m_operandSites = new int[num_sites][num_operands];
+    }
+  }
+  
+  /**
+   * Copies the query, replacing each leaf that names a table of the
+   * catalog by an empty table with the same name and schema
+   */
+  protected class StubVisitor extends CopyQueryVisitor
+  {
+    /**
+     * Whether some leaf names a table absent from the catalog
+     */
+    protected boolean m_missing = false;
+    
+    @Override
+    public void visit(VariableTable r) throws VisitorException
+    {
+      if (r.m_relation != null)
+      {
+        // Already linked to a local relation: stays on this site
+        super.visit(r);
+        return;
+      }
+      String name = r.getName();
+      Schema sch = m_catalog.getSchema(name);
+      if (sch == null)
+      {
+        m_missing = true;
+        m_parts.push(r);
+        return;
+      }
+      Table stub = new Table(name);
+      stub.setSchema(sch);
+      m_tableNames.put(stub, name);
+      addSite(m_catalog.getSite(name));
+      m_parts.push(stub);
+    }
+  }
+}
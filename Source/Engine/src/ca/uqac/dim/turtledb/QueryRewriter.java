@@ -0,0 +1,606 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * Rewrites a query tree into an equivalent tree that is cheaper to
+ * evaluate, by applying a few classical rules of relational algebra:
+ * <ol>
+ * <li>The condition of a {@link Selection} is split into its conjuncts
+ *   (see {@link Condition#addConjuncts(List)}), and each conjunct is
+ *   pushed as far down the tree as possible: below a {@link Join} or a
+ *   {@link Product}, into the operand that holds all the attributes it
+ *   mentions; into every operand of a {@link Union} or an
+ *   {@link Intersection}; and below a {@link Renaming} or a
+ *   {@link Projection}. A conjunct that relates two operands of a
+ *   product becomes the condition of a join.</li>
+ * <li>Likewise, the conjuncts of a join condition that only mention
+ *   attributes of one operand are pushed into that operand.</li>
+ * <li>{@link Projection}s are inserted over the operands of joins and
+ *   products, so that only the attributes needed by the operators
+ *   above them flow upwards.</li>
+ * </ol>
+ * Filters are therefore applied before the tuples of several relations
+ * are combined, rather than on the result of that combination.
+ * <p>
+ * The original tree is not modified: the rewritten tree is a copy
+ * (see {@link CopyQueryVisitor}) that shares its leaves with it.
+ * A {@link VariableTable} is never rewritten; if it is not yet linked
+ * to a relation, its schema is unknown, and the operators above it
+ * are left as they are.
+ * @author sylvain
+ *
+ */
+public class QueryRewriter extends CopyQueryVisitor
+{
+  /**
+   * Rewrites a query tree
+   * @param query The query tree
+   * @return The rewritten tree
+   */
+  public static Relation rewrite(Relation query)
+  {
+    Relation out = insertProjections(pushSelections(query));
+    if (out != query)
+      copyMode(query, out);
+    return out;
+  }
+  
+  /**
+   * Applies the first two rules: pushes selections and the conjuncts
+   * of join conditions down the tree
+   * @param query The query tree
+   * @return A rewritten copy of the tree
+   */
+  public static Relation pushSelections(Relation query)
+  {
+    QueryRewriter v = new QueryRewriter();
+    try
+    {
+      query.accept(v);
+    }
+    catch (QueryVisitor.VisitorException e)
+    {
+      // Does not happen
+      e.printStackTrace();
+      return query;
+    }
+    return v.getResult();
+  }
+  
+  /**
+   * Applies the last rule: inserts projections over the operands of
+   * joins and products. Contrarily to the other rules, this modifies
+   * the operators of the tree (but not its leaves), and is meant to be
+   * applied to a tree that is already a copy.
+   * @param query The query tree
+   * @return The rewritten tree
+   */
+  public static Relation insertProjections(Relation query)
+  {
+    return prune(query, null);
+  }
+  
+  @Override
+  public void visit(Selection r) throws VisitorException
+  {
+    Relation rel = m_parts.pop();
+    List<Condition> conjuncts = new LinkedList<Condition>();
+    r.m_condition.addConjuncts(conjuncts);
+    for (Condition c : conjuncts)
+      rel = pushSelection(rel, c);
+    m_parts.push(rel);
+  }
+  
+  @Override
+  public void visit(Join r) throws VisitorException
+  {
+    Relation right = m_parts.pop();
+    Relation left = m_parts.pop();
+    Schema s_left = left.getSchema(), s_right = right.getSchema();
+    if (r.m_condition == null || s_left == null || s_right == null)
+    {
+      m_parts.push(copyJoin(r, r.m_condition, left, right));
+      return;
+    }
+    List<Condition> conjuncts = new LinkedList<Condition>();
+    r.m_condition.addConjuncts(conjuncts);
+    List<Condition> remaining = new LinkedList<Condition>();
+    for (Condition c : conjuncts)
+    {
+      switch (sideOf(attributesOf(c), s_left, s_right))
+      {
+      case LEFT:
+        left = pushSelection(left, c);
+        break;
+      case RIGHT:
+        right = pushSelection(right, c);
+        break;
+      default:
+        remaining.add(c);
+      }
+    }
+    if (remaining.isEmpty())
+    {
+      Product p = new Product();
+      p.addOperand(left);
+      p.addOperand(right);
+      m_parts.push(copyMode(r, p));
+      return;
+    }
+    m_parts.push(copyJoin(r, conjunction(remaining), left, right));
+  }
+  
+  /**
+   * Pushes a selection as far down a query tree as possible
+   * @param rel The query tree, which has already been rewritten
+   * @param c The condition of the selection
+   * @return The query tree with the selection applied
+   */
+  protected static Relation pushSelection(Relation rel, Condition c)
+  {
+    Schema sch = rel.getSchema();
+    Set<Attribute> atts = attributesOf(c);
+    if (sch == null || !containsAll(sch, atts))
+      return new Selection(c, rel);
+    if (rel instanceof Selection)
+    {
+      Selection s = (Selection) rel;
+      return new Selection(s.m_condition, pushSelection(s.m_relation, c));
+    }
+    if (rel instanceof Projection)
+    {
+      Projection p = (Projection) rel;
+      Schema s_child = p.m_relation.getSchema();
+      if (s_child != null && containsAll(s_child, atts))
+        return new Projection(p.m_schema, pushSelection(p.m_relation, c));
+    }
+    if (rel instanceof Renaming)
+    {
+      Renaming ren = (Renaming) rel;
+      Map<Attribute,Attribute> inverse = new HashMap<Attribute,Attribute>();
+      for (Map.Entry<Attribute,Attribute> e : ren.m_renamedAttributes.entrySet())
+        inverse.put(e.getValue(), e.getKey());
+      Condition c_child = renameCondition(c, inverse);
+      if (c_child != null)
+      {
+        Renaming ren_out = new Renaming(pushSelection(ren.m_relation, c_child));
+        ren_out.m_renamedAttributes.putAll(ren.m_renamedAttributes);
+        return ren_out;
+      }
+    }
+    if (rel instanceof Join)
+    {
+      Join j = (Join) rel;
+      Schema s_left = j.m_left.getSchema(), s_right = j.m_right.getSchema();
+      if (s_left != null && s_right != null)
+      {
+        switch (sideOf(atts, s_left, s_right))
+        {
+        case LEFT:
+          return copyJoin(j, j.m_condition, pushSelection(j.m_left, c), j.m_right);
+        case RIGHT:
+          return copyJoin(j, j.m_condition, j.m_left, pushSelection(j.m_right, c));
+        case BOTH:
+          List<Condition> conjuncts = new LinkedList<Condition>();
+          if (j.m_condition != null)
+            j.m_condition.addConjuncts(conjuncts);
+          conjuncts.add(c);
+          return copyJoin(j, conjunction(conjuncts), j.m_left, j.m_right);
+        default:
+          break;
+        }
+      }
+    }
+    if (rel instanceof Product)
+    {
+      Relation r = pushIntoProduct((Product) rel, c, atts);
+      if (r != null)
+        return r;
+    }
+    if (rel instanceof Union || rel instanceof Intersection)
+    {
+      Relation r = pushIntoSetOperator((NAryRelation) rel, c);
+      if (r != null)
+        return r;
+    }
+    return new Selection(c, rel);
+  }
+  
+  /**
+   * Pushes a selection below a product. The selection goes into the
+   * operand that holds all its attributes; if it relates the two
+   * operands of a binary product, the product becomes a join.
+   * @return The new relation, or <tt>null</tt> if the selection
+   *   cannot be pushed
+   */
+  protected static Relation pushIntoProduct(Product p, Condition c, Set<Attribute> atts)
+  {
+    List<Relation> operands = new ArrayList<Relation>(p.m_relations);
+    int target = -1;
+    for (Attribute a : atts)
+    {
+      int pos = -1;
+      for (int i = 0; i < operands.size() && pos < 0; i++)
+      {
+        Schema s = operands.get(i).getSchema();
+        if (s == null)
+          return null;
+        if (s.getOrdinal(a) >= 0)
+          pos = i;
+      }
+      if (pos < 0)
+        return null;
+      if (target >= 0 && target != pos)
+      {
+        target = -2;
+        break;
+      }
+      target = pos;
+    }
+    if (target == -2)
+    {
+      if (operands.size() != 2)
+        return null;
+      Join j = new Join(c);
+      j.setLeft(operands.get(0));
+      j.setRight(operands.get(1));
+      return j;
+    }
+    if (target < 0)
+      target = 0;
+    operands.set(target, pushSelection(operands.get(target), c));
+    Product p_out = new Product();
+    for (Relation op : operands)
+      p_out.addOperand(op);
+    return p_out;
+  }
+  
+  /**
+   * Pushes a selection into every operand of a union or an
+   * intersection. The attributes of these operands are matched by
+   * position with those of the first operand, whose schema is the
+   * schema of the result.
+   * @return The new relation, or <tt>null</tt> if the selection
+   *   cannot be pushed
+   */
+  protected static Relation pushIntoSetOperator(NAryRelation r, Condition c)
+  {
+    NAryRelation r_out = r instanceof Union ? new Union() : new Intersection();
+    Schema first = r.getSchema();
+    List<Relation> operands = new ArrayList<Relation>();
+    for (Relation op : r.m_relations)
+    {
+      Schema s = op.getSchema();
+      if (s == null || s.size() != first.size())
+        return null;
+      Map<Attribute,Attribute> mapping = new HashMap<Attribute,Attribute>();
+      for (int i = 0; i < s.size(); i++)
+      {
+        if (!mapping.containsKey(first.get(i)))
+          mapping.put(first.get(i), s.get(i));
+      }
+      Condition c_op = renameCondition(c, mapping);
+      if (c_op == null)
+        return null;
+      operands.add(pushSelection(op, c_op));
+    }
+    for (Relation op : operands)
+      r_out.addOperand(op);
+    return r_out;
+  }
+  
+  /**
+   * Inserts projections so that only the attributes needed by an
+   * operator flow into it
+   * @param r The query tree
+   * @param needed The attributes of <tt>r</tt> that are needed
+   *   above it, or <tt>null</tt> if they all are
+   * @return The query tree with projections inserted
+   */
+  protected static Relation prune(Relation r, Set<Attribute> needed)
+  {
+    if (r instanceof Projection)
+    {
+      Projection p = (Projection) r;
+      // A projection of a projection is a projection of its operand
+      Relation child = p.m_relation;
+      while (child instanceof Projection)
+        child = ((Projection) child).m_relation;
+      Set<Attribute> child_needed = new HashSet<Attribute>(p.m_schema);
+      p.setRelation(prune(child, child_needed));
+      return p;
+    }
+    if (r instanceof Selection)
+    {
+      Selection s = (Selection) r;
+      s.setRelation(prune(s.m_relation, union(needed, attributesOf(s.m_condition))));
+      return s;
+    }
+    if (r instanceof Renaming)
+    {
+      Renaming ren = (Renaming) r;
+      Set<Attribute> child_needed = null;
+      if (needed != null)
+      {
+        Map<Attribute,Attribute> inverse = new HashMap<Attribute,Attribute>();
+        for (Map.Entry<Attribute,Attribute> e : ren.m_renamedAttributes.entrySet())
+          inverse.put(e.getValue(), e.getKey());
+        child_needed = new HashSet<Attribute>();
+        for (Attribute a : needed)
+        {
+          Attribute from = inverse.get(a);
+          child_needed.add(from == null ? a : from);
+        }
+      }
+      ren.setRelation(prune(ren.m_relation, child_needed));
+      return ren;
+    }
+    if (r instanceof Join)
+    {
+      Join j = (Join) r;
+      Set<Attribute> all = union(needed, attributesOf(j.m_condition));
+      List<Relation> operands = pruneOperands(Arrays.asList(j.m_left, j.m_right), all);
+      j.setLeft(operands.get(0));
+      j.setRight(operands.get(1));
+      return j;
+    }
+    if (r instanceof Product)
+    {
+      Product p = (Product) r;
+      List<Relation> operands = pruneOperands(p.m_relations, needed);
+      p.m_relations.clear();
+      p.m_relations.addAll(operands);
+      return p;
+    }
+    if (r instanceof Union || r instanceof Intersection)
+    {
+      // Attributes are matched by position: operands keep all of them
+      NAryRelation n = (NAryRelation) r;
+      List<Relation> operands = new ArrayList<Relation>();
+      for (Relation op : n.m_relations)
+        operands.add(prune(op, null));
+      n.m_relations.clear();
+      n.m_relations.addAll(operands);
+      return n;
+    }
+    // Leaves are never modified
+    return r;
+  }
+  
+  /**
+   * Prunes the operands of a product or a join. Each needed attribute
+   * is attributed to the first operand that holds it, and each operand
+   * is projected on the attributes attributed to it.
+   */
+  protected static List<Relation> pruneOperands(List<Relation> operands, Set<Attribute> needed)
+  {
+    List<Relation> out = new ArrayList<Relation>();
+    List<Set<Attribute>> operand_needed = new ArrayList<Set<Attribute>>();
+    boolean known = needed != null;
+    for (Relation op : operands)
+    {
+      operand_needed.add(new HashSet<Attribute>());
+      if (op.getSchema() == null)
+        known = false;
+    }
+    if (known)
+    {
+      for (Attribute a : needed)
+      {
+        for (int i = 0; i < operands.size(); i++)
+        {
+          if (operands.get(i).getSchema().getOrdinal(a) >= 0)
+          {
+            operand_needed.get(i).add(a);
+            break;
+          }
+        }
+      }
+    }
+    for (int i = 0; i < operands.size(); i++)
+    {
+      Set<Attribute> op_needed = known ? operand_needed.get(i) : null;
+      out.add(narrow(prune(operands.get(i), op_needed), op_needed));
+    }
+    return out;
+  }
+  
+  /**
+   * Projects a relation on the attributes that are needed, if
+   * it has other attributes
+   * @param r The relation
+   * @param needed The needed attributes, or <tt>null</tt> if they
+   *   all are
+   * @return The projected relation
+   */
+  protected static Relation narrow(Relation r, Set<Attribute> needed)
+  {
+    if (needed == null || needed.isEmpty())
+      return r;
+    Schema sch = r.getSchema();
+    Schema s_out = new Schema();
+    for (Attribute a : sch)
+    {
+      if (needed.contains(a) && !s_out.contains(a))
+        s_out.add(a);
+    }
+    if (s_out.size() == sch.size())
+      return r;
+    if (r instanceof Projection)
+      return new Projection(s_out, ((Projection) r).m_relation);
+    return new Projection(s_out, r);
+  }
+  
+  /**
+   * The operand of a binary operator that holds some attributes
+   */
+  protected static enum Side {LEFT, RIGHT, BOTH, NONE};
+  
+  /**
+   * Determines which operand of a binary operator holds a set of
+   * attributes. An attribute present in both operands belongs to
+   * the left one, as when evaluating a condition on their product.
+   */
+  protected static Side sideOf(Set<Attribute> atts, Schema left, Schema right)
+  {
+    boolean in_left = false, in_right = false;
+    for (Attribute a : atts)
+    {
+      if (left.getOrdinal(a) >= 0)
+        in_left = true;
+      else if (right.getOrdinal(a) >= 0)
+        in_right = true;
+      else
+        return Side.NONE;
+    }
+    if (!in_right)
+      return Side.LEFT;
+    if (!in_left)
+      return Side.RIGHT;
+    return Side.BOTH;
+  }
+  
+  protected static boolean containsAll(Schema sch, Set<Attribute> atts)
+  {
+    for (Attribute a : atts)
+    {
+      if (sch.getOrdinal(a) < 0)
+        return false;
+    }
+    return true;
+  }
+  
+  protected static Set<Attribute> union(Set<Attribute> s1, Set<Attribute> s2)
+  {
+    if (s1 == null)
+      return null;
+    Set<Attribute> out = new HashSet<Attribute>(s1);
+    out.addAll(s2);
+    return out;
+  }
+  
+  /**
+   * Builds the conjunction of a list of conditions
+   * @param conjuncts The conditions
+   * @return The conjunction
+   */
+  protected static Condition conjunction(List<Condition> conjuncts)
+  {
+    if (conjuncts.size() == 1)
+      return conjuncts.get(0);
+    LogicalAnd and = new LogicalAnd();
+    for (Condition c : conjuncts)
+      and.addCondition(c);
+    return and;
+  }
+  
+  /**
+   * Gives the attributes mentioned in a condition
+   * @param c The condition; may be <tt>null</tt>
+   * @return The attributes
+   */
+  protected static Set<Attribute> attributesOf(Condition c)
+  {
+    AttributeCollector v = new AttributeCollector();
+    if (c != null)
+      c.accept(v);
+    return v.m_attributes;
+  }
+  
+  /**
+   * Copies a condition, replacing some of its attributes by others
+   * @param c The condition
+   * @param mapping The replacement of each attribute; attributes
+   *   absent from the map are kept
+   * @return The new condition, or <tt>null</tt> if the condition
+   *   is of a kind that cannot be copied
+   */
+  protected static Condition renameCondition(Condition c, Map<Attribute,Attribute> mapping)
+  {
+    if (c instanceof Equality)
+    {
+      Equality eq = (Equality) c;
+      return new Equality(renameLiteral(eq.m_left, mapping), renameLiteral(eq.m_right, mapping));
+    }
+    NAryCondition c_out = null;
+    if (c instanceof LogicalAnd)
+      c_out = new LogicalAnd();
+    else if (c instanceof LogicalOr)
+      c_out = new LogicalOr();
+    else if (c instanceof LogicalNot)
+      c_out = new LogicalNot();
+    else
+      return null;
+    for (Condition child : ((NAryCondition) c).m_conditions)
+    {
+      Condition child_out = renameCondition(child, mapping);
+      if (child_out == null)
+        return null;
+      c_out.addCondition(child_out);
+    }
+    return c_out;
+  }
+  
+  protected static Literal renameLiteral(Literal l, Map<Attribute,Attribute> mapping)
+  {
+    if (!(l instanceof Attribute))
+      return l;
+    Attribute a = mapping.get(l);
+    if (a == null)
+      return l;
+    return a;
+  }
+  
+  /**
+   * Collects the attributes mentioned in a condition
+   */
+  protected static class AttributeCollector extends ConditionVisitor
+  {
+    protected Set<Attribute> m_attributes = new HashSet<Attribute>();
+    
+    @Override
+    public void visit(LogicalAnd c)
+    {
+      // Nothing to do
+    }
+
+    @Override
+    public void visit(LogicalOr c)
+    {
+      // Nothing to do
+    }
+
+    @Override
+    public void visit(Equality c)
+    {
+      if (c.m_left instanceof Attribute)
+        m_attributes.add((Attribute) c.m_left);
+      if (c.m_right instanceof Attribute)
+        m_attributes.add((Attribute) c.m_right);
+    }
+
+    @Override
+    public void visit(LogicalNot c)
+    {
+      // Nothing to do
+    }
+  }
+}
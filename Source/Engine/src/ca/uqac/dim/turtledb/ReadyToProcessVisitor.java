@@ -17,10 +17,14 @@
  -------------------------------------------------------------------------*/
 package ca.uqac.dim.turtledb;
 
+import java.util.*;
+
 /**
  * Visitor that checks if a query is ready to be processed.
  * This is the case when all leaves of the query tree are instances
- * of {@link Table} (and not {@link VariableTable}).
+ * of {@link Table} (and not {@link VariableTable}). The visitor also
+ * collects the variable tables that are not yet connected to a
+ * relation, i.e. the fragments the query is waiting for.
  * @author sylvain
  *
  */
@@ -28,6 +32,11 @@ public class ReadyToProcessVisitor extends EmptyQueryVisitor
 { 
   protected boolean m_hasNonTableLeaf = false;
   
+  /**
+   * The variable tables not connected to any relation
+   */
+  protected List<VariableTable> m_missing = new LinkedList<VariableTable>();
+  
   /**
    * Determines if visited query is ready to be processed
    * @return
@@ -37,10 +46,22 @@ public class ReadyToProcessVisitor extends EmptyQueryVisitor
     return !m_hasNonTableLeaf;
   }
   
+  /**
+   * Gives the variable tables of the visited query that are not
+   * connected to any relation
+   * @return The variable tables
+   */
+  public List<VariableTable> getMissingFragments()
+  {
+    return m_missing;
+  }
+  
   @Override
   public void visit(VariableTable t)
   {
     if (t.isLeaf())
       m_hasNonTableLeaf = true;
+    if (t.m_relation == null)
+      m_missing.add(t);
   }
 }
@@ -34,6 +34,13 @@ public abstract class Relation
    */
   public boolean m_streamingMode = false; 
   
+  /**
+   * The memory that the intermediate results materialized by this
+   * relation in cache mode may occupy, or <tt>null</tt> to keep them
+   * in memory regardless of their size
+   */
+  protected MemoryBudget m_budget = null;
+  
   /**
    * Returns the relation's schema
    * @return The schema
@@ -67,6 +74,42 @@ public abstract class Relation
     m_streamingMode = b;
   }
   
+  /**
+   * Sets the budget in which the intermediate results of this
+   * relation are materialized in cache mode. This only applies to
+   * this node of the query tree; see {@link MemoryBudgetVisitor} to
+   * set it on a whole query.
+   * @param budget The budget, or <tt>null</tt> for no limit
+   */
+  public void setMemoryBudget(MemoryBudget budget)
+  {
+    m_budget = budget;
+  }
+  
+  /**
+   * Gives the budget in which the intermediate results of this
+   * relation are materialized
+   * @return The budget, or <tt>null</tt> if there is no limit
+   */
+  public MemoryBudget getMemoryBudget()
+  {
+    return m_budget;
+  }
+  
+  /**
+   * Creates the table in which a cache iterator materializes an
+   * intermediate result. If a memory budget is set, the table is
+   * written to disk when it does not fit in the budget.
+   * @param sch The schema of the table
+   * @return The table
+   */
+  protected Table newIntermediateTable(Schema sch)
+  {
+    if (m_budget == null)
+      return new Table(sch);
+    return new SpillableTable(sch, m_budget);
+  }
+  
   public final RelationIterator iterator()
   {
     if (m_streamingMode)
@@ -96,11 +139,11 @@ public abstract class Relation
     while (i.hasNext())
     {
       Tuple t = i.next();
-      //for (Attribute s : t.keySet())
-      for (Attribute s : sch)
+      int[] ordinals = sch.getOrdinalsIn(t.getSchema());
+      for (int pos : ordinals)
       {
-    	Value v = t.get(s);
-    	assert v != null;
+        assert pos >= 0;
+        Value v = t.get(pos);
         out.append(v).append("\t");
       }
       out.append("\n");
@@ -172,6 +215,37 @@ public abstract class Relation
    */
   public abstract RelationIterator cacheIterator();
   
+  /**
+   * Determines if the relation's operator can guarantee that it never
+   * produces the same tuple twice, without having to remove duplicates.
+   * This is the case of a {@link Table}, and of operators that cannot
+   * create duplicates when their operands have none (e.g. a
+   * {@link Selection}). The stream iterator of such a relation skips
+   * duplicate elimination altogether.
+   * @return True if the relation's tuples are distinct, false if
+   *   duplicates must be removed
+   */
+  public boolean isDuplicateFree()
+  {
+    return false;
+  }
+  
+  /**
+   * Determines if the relation's stream iterator enumerates its
+   * tuples in increasing order of the values at some positions. This
+   * is the case of a {@link Table} when these positions are its first
+   * attributes, as tables keep their tuples sorted. Operators that
+   * need their input sorted (e.g. a sort-merge {@link Join}) can then
+   * avoid sorting it again.
+   * @param positions The positions, from the most significant
+   * @return True if the tuples are known to be sorted, false if
+   *   they may not be
+   */
+  public boolean isSortedOn(int[] positions)
+  {
+    return false;
+  }
+  
   /**
    * Determines if the query tree is a fragment. This is the
    * case when the tree's root is a VariableTable.
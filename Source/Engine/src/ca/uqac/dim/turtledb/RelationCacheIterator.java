@@ -27,6 +27,8 @@ public abstract class RelationCacheIterator implements RelationIterator
   
   private Iterator<Tuple> m_internalIterator;
   
+  private TupleBatch m_batch;
+  
   public RelationCacheIterator()
   {
     super();
@@ -49,9 +51,26 @@ public abstract class RelationCacheIterator implements RelationIterator
     return m_internalIterator.next();    
   }
   
+  @Override
+  public final TupleBatch nextBatch()
+  {
+    if (!m_called)
+      initialize();
+    if (m_batch == null)
+      m_batch = new TupleBatch();
+    m_batch.clear();
+    while (!m_batch.isFull() && m_internalIterator.hasNext())
+      m_batch.add(m_internalIterator.next());
+    if (m_batch.isEmpty())
+      return null;
+    return m_batch;
+  }
+  
   protected final void initialize()
   {
     getIntermediateResult();
+    // Intermediate results are filled with Table.append: sort them once
+    m_intermediateResult.seal();
     m_internalIterator = m_intermediateResult.tupleIterator();
     m_called = true;  
   }
@@ -62,6 +81,40 @@ public abstract class RelationCacheIterator implements RelationIterator
     m_internalIterator = m_intermediateResult.tupleIterator();
   }
   
+  /**
+   * Discards the intermediate result computed by this iterator, which
+   * can no longer be enumerated afterwards. If the result was
+   * materialized in a {@link SpillableTable}, this gives back the
+   * memory and the disk space it occupies.
+   */
+  public void dispose()
+  {
+    dispose(m_intermediateResult);
+  }
+  
+  /**
+   * Discards an iterator that is no longer needed, whether or not
+   * all its tuples have been consumed
+   * @param it The iterator
+   */
+  protected static void dispose(RelationIterator it)
+  {
+    if (it instanceof RelationCacheIterator)
+      ((RelationCacheIterator) it).dispose();
+  }
+  
+  /**
+   * Discards a table holding an intermediate result. Only instances of
+   * {@link SpillableTable} are affected: other tables are left as is,
+   * since they may be the leaves of the query.
+   * @param tab The table
+   */
+  protected static void dispose(Table tab)
+  {
+    if (tab instanceof SpillableTable)
+      ((SpillableTable) tab).dispose();
+  }
+  
   @Override
   public final void remove()
   {
@@ -19,7 +19,24 @@ package ca.uqac.dim.turtledb;
 
 import java.util.Iterator;
 
+/**
+ * Enumerates the tuples of a relation. Tuples can be taken one at a
+ * time, as with any iterator, or a batch at a time with
+ * {@link #nextBatch()}; both can be mixed in the same enumeration.
+ * @author sylvain
+ *
+ */
 public interface RelationIterator extends Iterator<Tuple>
 {
   public void reset();
+  
+  /**
+   * Gives the next tuples of the enumeration, at most
+   * {@link TupleBatch#DEFAULT_CAPACITY} at a time. The batch
+   * belongs to the iterator, and is only valid until the next call
+   * to one of its methods.
+   * @return A batch holding at least one tuple, or <tt>null</tt> if
+   *   the enumeration is over
+   */
+  public TupleBatch nextBatch();
 }
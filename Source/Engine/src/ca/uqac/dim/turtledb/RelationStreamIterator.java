@@ -17,19 +17,50 @@
  -------------------------------------------------------------------------*/
 package ca.uqac.dim.turtledb;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 public abstract class RelationStreamIterator implements RelationIterator
 {
-  protected List<Tuple> m_outputTuples;
+  /**
+   * The tuples output so far, used to remove duplicates. This is
+   * <tt>null</tt> if the iterator does not need to remove duplicates.
+   */
+  protected Set<Tuple> m_outputTuples;
   protected Tuple m_nextTuple;
   protected boolean m_internalNextCalled;
+  
+  /**
+   * The batch filled by {@link #internalNextBatch()}, reused from
+   * one call to the next
+   */
+  protected TupleBatch m_batch;
+  
+  /**
+   * Whether {@link #internalNext()} has signalled the end of the
+   * enumeration while filling a batch. Some operators start over
+   * when called again after that, so it must not be called again
+   * until the iterator is reset.
+   */
+  protected boolean m_exhausted;
 
   public RelationStreamIterator()
+  {
+    this(true);
+  }
+  
+  /**
+   * Creates an iterator
+   * @param remove_duplicates Set to false if the tuples returned by
+   *   {@link internalNext} are known to be distinct (see
+   *   {@link Relation#isDuplicateFree()}); the iterator then does not
+   *   keep track of the tuples it outputs
+   */
+  public RelationStreamIterator(boolean remove_duplicates)
   {
     super();
-    m_outputTuples = new LinkedList<Tuple>();
+    if (remove_duplicates)
+      m_outputTuples = new HashSet<Tuple>();
     m_internalNextCalled = false;
   }
 
@@ -56,9 +87,8 @@ public abstract class RelationStreamIterator implements RelationIterator
         {
           break;
         }
-        if (!m_outputTuples.contains(m_nextTuple))
+        if (m_outputTuples == null || m_outputTuples.add(m_nextTuple))
         {
-          m_outputTuples.add(m_nextTuple);
           break;
         }
       }
@@ -76,11 +106,82 @@ public abstract class RelationStreamIterator implements RelationIterator
    * enumeration. Hence a call to {@link next} may result in
    * multiple calls to the relation's {@link internalNext}, if
    * the tuples returned are already part of the result (this is
-   * especially true of {@link Projection}s.
+   * especially true of {@link Projection}s. Duplicates are detected
+   * through a hash set of the tuples output so far, so this costs
+   * constant time per tuple.
    * @return The next tuple, <tt>null</tt> if no such tuple
    * exists
    */
   protected abstract Tuple internalNext();
+  
+  @Override
+  public final TupleBatch nextBatch()
+  {
+    if (m_internalNextCalled)
+    {
+      // hasNext already fetched a tuple, which must come first
+      if (m_nextTuple == null)
+        return null;
+      TupleBatch b = getBatch();
+      b.add(next());
+      while (!b.isFull() && hasNext())
+        b.add(next());
+      return b;
+    }
+    while (true)
+    {
+      TupleBatch b = internalNextBatch();
+      if (b == null)
+        return null;
+      if (m_outputTuples != null)
+        b.retainNew(m_outputTuples);
+      if (!b.isEmpty())
+        return b;
+    }
+  }
+  
+  /**
+   * Returns the next batch of tuples of the enumeration. This is to
+   * {@link #nextBatch()} what {@link #internalNext()} is to
+   * {@link #next()}: the batch may contain tuples already output,
+   * which are then removed by {@link #nextBatch()}. By default, the
+   * batch is filled by calling {@link #internalNext()}; operators
+   * override this method to process whole batches of their operands
+   * at once.
+   * @return The batch, which may be empty, or <tt>null</tt> if the
+   *   enumeration is over
+   */
+  protected TupleBatch internalNextBatch()
+  {
+    if (m_exhausted)
+      return null;
+    TupleBatch b = getBatch();
+    while (!b.isFull())
+    {
+      Tuple t = internalNext();
+      if (t == null)
+      {
+        m_exhausted = true;
+        break;
+      }
+      b.add(t);
+    }
+    if (b.isEmpty())
+      return null;
+    return b;
+  }
+  
+  /**
+   * Gives the batch reused by this iterator, emptied of its tuples
+   * @return The batch
+   */
+  protected TupleBatch getBatch()
+  {
+    if (m_batch == null)
+      m_batch = new TupleBatch();
+    m_batch.clear();
+    return m_batch;
+  }
 
   @Override
   public final void remove()
@@ -95,7 +196,9 @@ public abstract class RelationStreamIterator implements RelationIterator
   public void reset()
   {
     m_nextTuple = null;
-    m_outputTuples.clear();
+    if (m_outputTuples != null)
+      m_outputTuples.clear();
     m_internalNextCalled = false;
+    m_exhausted = false;
   }
 }
\ No newline at end of file
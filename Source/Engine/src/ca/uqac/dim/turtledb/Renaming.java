@@ -55,23 +55,20 @@ public class Renaming extends UnaryRelation
   }
 
   /**
-   * Computes the renaming of a tuple over a given schema
+   * Computes the renaming of a tuple over a given schema. Renaming
+   * does not change the values or their order: the renamed tuple
+   * shares the values of the original one.
    * @param t The original tuple
+   * @param s_new The renamed schema, computed once by the caller
    * @return The renamed tuple
    */
-  private Tuple rename(Tuple t)
+  private Tuple rename(Tuple t, Schema s_new)
   {
     if (t == null)
       return null;
-    Schema s_orig = m_relation.getSchema();
-    Schema s_new = getSchema();
-    Value[] parts = new Value[s_orig.size()];
-    int i = 0;
-    for (Attribute a : s_orig)
-    {
-      parts[i++] = t.get(a);
-    }
-    return new Tuple(s_new, parts);
+    Tuple t2 = new Tuple(t);
+    t2.setSchema(s_new);
+    return t2;
   }
 
   @Override
@@ -83,16 +80,18 @@ public class Renaming extends UnaryRelation
 
   protected class ProjectionStreamIterator extends UnaryRelationStreamIterator
   {
+    protected Schema m_newSchema;
+    
     public ProjectionStreamIterator()
     {
       super();
-      m_outputTuples = new LinkedList<Tuple>();
+      m_newSchema = getSchema();
     }
 
     protected Tuple internalNext()
     {
       Tuple t = m_childIterator.next();
-      return rename(t);    
+      return rename(t, m_newSchema);    
     }
   }
 
@@ -100,15 +99,17 @@ public class Renaming extends UnaryRelation
   {
     public void getIntermediateResult()
     {
-      Table tab_out = new Table(getSchema());
+      Schema s_new = getSchema();
+      Table tab_out = newIntermediateTable(s_new);
       super.getIntermediateResult();
       Iterator<Tuple> it = m_intermediateResult.tupleIterator();
       while (it.hasNext())
       {
         Tuple t = it.next();
-        Tuple t2 = rename(t);
-        tab_out.put(t2);
+        Tuple t2 = rename(t, s_new);
+        tab_out.append(t2);
       }
+      dispose(m_intermediateResult);
       m_intermediateResult = tab_out;
     }
   }
@@ -17,10 +17,21 @@
  -------------------------------------------------------------------------*/
 package ca.uqac.dim.turtledb;
 
-import java.util.Vector;
+import java.util.*;
 
 /**
- * A schema is an ordered list of attributes.
+ * A schema is an ordered list of attributes. When built from a
+ * string, each attribute can optionally declare the type of its
+ * values by appending it after a colon, as in <tt>Height:int</tt>
+ * (see {@link ValueType}); attributes with no declared type hold
+ * strings.
+ * <p>
+ * A schema keeps an index of the position of each attribute, so that
+ * the value of an attribute in a {@link Tuple} can be found without
+ * scanning the whole schema. The index is rebuilt whenever attributes
+ * are added, removed or replaced, or when the table name is changed
+ * through {@link #setTableName(String)}; attributes should not be
+ * modified directly once the schema is in use.
  * @author sylvain
  *
  */
@@ -32,6 +43,17 @@ public class Schema extends Vector<Attribute>
    */
   private static final long serialVersionUID = 1L;
   
+  /**
+   * The index of attribute positions, built on demand
+   */
+  private transient volatile OrdinalIndex m_index = null;
+  
+  /**
+   * The positions of this schema's attributes in the last schema
+   * passed to {@link #getOrdinalsIn(Schema)}
+   */
+  private transient volatile OrdinalMapping m_mapping = null;
+  
   /**
    * Empty constructor
    */
@@ -50,8 +72,7 @@ public class Schema extends Vector<Attribute>
     String parts[] = s.split(",");
     for (String a : parts)
     {
-      a = a.trim();
-      Attribute att = new Attribute(a);
+      Attribute att = parseAttribute(a);
       this.add(att);
     }
   }
@@ -79,8 +100,7 @@ public class Schema extends Vector<Attribute>
     String parts[] = s.split(",");
     for (String a : parts)
     {
-      a = a.trim();
-      Attribute att = new Attribute(a);
+      Attribute att = parseAttribute(a);
       att.setTableName(tableName);
       this.add(att);
     }
@@ -97,12 +117,32 @@ public class Schema extends Vector<Attribute>
     String parts[] = s.split(",");
     for (String a : parts)
     {
-      a = a.trim();
-      Attribute att = new Attribute(a);
+      Attribute att = parseAttribute(a);
       this.add(att);
     }    
   }
   
+  /**
+   * Creates an attribute from a string of the form
+   * [tablename.]attributename[:type]
+   * @param s The string
+   * @return The attribute
+   */
+  protected static Attribute parseAttribute(String s)
+  {
+    s = s.trim();
+    String type = null;
+    int colon = s.indexOf(':');
+    if (colon >= 0)
+    {
+      type = s.substring(colon + 1);
+      s = s.substring(0, colon).trim();
+    }
+    Attribute att = new Attribute(s);
+    att.setType(ValueType.forName(type));
+    return att;
+  }
+  
   /**
    * Assigns a table name to the tuples in the schema
    * @param name The table's name
@@ -111,6 +151,118 @@ public class Schema extends Vector<Attribute>
   {
 	  for (Attribute a : this)
 		  a.setTableName(name);
+	  invalidate();
+  }
+  
+  /**
+   * Gives the position of an attribute in the schema
+   * @param a The attribute
+   * @return The position of the first occurrence of the attribute,
+   *   -1 if the attribute is not in the schema
+   */
+  public int getOrdinal(Literal a)
+  {
+    OrdinalIndex index = m_index;
+    if (index == null || index.m_modCount != modCount)
+    {
+      index = new OrdinalIndex();
+      m_index = index;
+    }
+    Integer pos = index.m_positions.get(a);
+    if (pos == null)
+      return -1;
+    return pos;
+  }
+  
+  /**
+   * Gives the position of each attribute of this schema in another
+   * schema. Operators that read the same attributes in every tuple
+   * (such as {@link Projection}) use this method with the schema of
+   * their input tuples; since all the tuples of a relation share the
+   * same schema, the positions are only computed once.
+   * @param source The schema to look into
+   * @return An array giving, for each attribute of this schema, its
+   *   position in <tt>source</tt> (-1 if absent)
+   */
+  public int[] getOrdinalsIn(Schema source)
+  {
+    OrdinalMapping mapping = m_mapping;
+    if (mapping == null || mapping.m_source != source
+        || mapping.m_modCount != modCount || mapping.m_sourceIndex != source.m_index)
+    {
+      int[] ordinals = new int[size()];
+      for (int i = 0; i < ordinals.length; i++)
+        ordinals[i] = source.getOrdinal(elementAt(i));
+      mapping = new OrdinalMapping(source, ordinals);
+      m_mapping = mapping;
+    }
+    return mapping.m_ordinals;
+  }
+  
+  /**
+   * Discards the index of attribute positions
+   */
+  protected void invalidate()
+  {
+    m_index = null;
+    m_mapping = null;
+  }
+  
+  @Override
+  public synchronized Attribute set(int index, Attribute a)
+  {
+    Attribute old = super.set(index, a);
+    invalidate();
+    return old;
+  }
+  
+  @Override
+  public synchronized void setElementAt(Attribute a, int index)
+  {
+    super.setElementAt(a, index);
+    invalidate();
+  }
+  
+  /**
+   * Index of the position of each attribute in the schema
+   */
+  private class OrdinalIndex
+  {
+    protected final int m_modCount;
+    protected final Map<Literal,Integer> m_positions;
+    
+    public OrdinalIndex()
+    {
+      super();
+      m_modCount = modCount;
+      m_positions = new HashMap<Literal,Integer>();
+      for (int i = 0; i < size(); i++)
+      {
+        Attribute a = elementAt(i);
+        if (!m_positions.containsKey(a))
+          m_positions.put(a, i);
+      }
+    }
+  }
+  
+  /**
+   * Positions of the attributes of this schema in another schema
+   */
+  private class OrdinalMapping
+  {
+    protected final int m_modCount;
+    protected final Schema m_source;
+    protected final OrdinalIndex m_sourceIndex;
+    protected final int[] m_ordinals;
+    
+    public OrdinalMapping(Schema source, int[] ordinals)
+    {
+      super();
+      m_modCount = modCount;
+      m_source = source;
+      m_sourceIndex = source.m_index;
+      m_ordinals = ordinals;
+    }
   }
 
 }
@@ -0,0 +1,271 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.*;
+
+/**
+ * A list kept in <em>segments</em> of at most a few thousand elements,
+ * which can be copied in a time proportional to the number of segments
+ * rather than to the number of elements. The copy shares the segments
+ * of the original list; each of them is copied the first time the copy
+ * modifies it. Inserting an element in the middle of the list likewise
+ * only shifts the elements of one segment.
+ * <p>
+ * The original list must no longer be modified once it is copied
+ * (see {@link #copy()}). {@link Table} uses this list to hold its
+ * tuples, so that a table that has given a snapshot of its contents
+ * (see {@link Table#getSnapshot()}) does not copy all its tuples at
+ * the next insertion.
+ * @author sylvain
+ *
+ * @param <T> The type of the elements
+ */
+public class SegmentedList<T> extends AbstractList<T> implements RandomAccess
+{
+  /**
+   * The number of elements a segment is filled with when elements
+   * are added at the end of the list. A segment is split in two when
+   * insertions make it twice as large.
+   */
+  public static final int SEGMENT_SIZE = 1024;
+  
+  protected List<Segment<T>> m_segments;
+  
+  /**
+   * The position in the list of the first element of each segment
+   */
+  protected int[] m_starts;
+  
+  protected int m_size;
+  
+  /**
+   * Creates an empty list
+   */
+  public SegmentedList()
+  {
+    super();
+    m_segments = new ArrayList<Segment<T>>();
+    m_starts = new int[4];
+    m_size = 0;
+  }
+  
+  /**
+   * Creates a list with the elements of a collection
+   * @param c The collection
+   */
+  public SegmentedList(Collection<? extends T> c)
+  {
+    this();
+    for (T x : c)
+      add(x);
+  }
+  
+  /**
+   * Creates a copy of a list, sharing its segments
+   * @param l The list
+   */
+  protected SegmentedList(SegmentedList<T> l)
+  {
+    super();
+    m_segments = new ArrayList<Segment<T>>(l.m_segments);
+    m_starts = l.m_starts.clone();
+    m_size = l.m_size;
+  }
+  
+  /**
+   * Gives a copy of the list. The copy shares the segments of this
+   * list, which must no longer be modified afterwards.
+   * @return The copy
+   */
+  public SegmentedList<T> copy()
+  {
+    return new SegmentedList<T>(this);
+  }
+  
+  @Override
+  public int size()
+  {
+    return m_size;
+  }
+  
+  @Override
+  public T get(int index)
+  {
+    checkIndex(index, m_size);
+    int k = segmentOf(index);
+    return m_segments.get(k).get(index - m_starts[k]);
+  }
+  
+  @Override
+  public T set(int index, T x)
+  {
+    checkIndex(index, m_size);
+    int k = segmentOf(index);
+    return writable(k).set(index - m_starts[k], x);
+  }
+  
+  @Override
+  public void add(int index, T x)
+  {
+    checkIndex(index, m_size + 1);
+    int count = m_segments.size();
+    int k;
+    if (index == m_size && (count == 0 || m_segments.get(count - 1).size() >= SEGMENT_SIZE))
+    {
+      // Elements added at the end fill a new segment
+      insertSegment(count, m_size, new Segment<T>(this));
+      k = count;
+    }
+    else if (index == m_size)
+      k = count - 1;
+    else
+      k = segmentOf(index);
+    Segment<T> s = writable(k);
+    s.add(index - m_starts[k], x);
+    m_size++;
+    for (int i = k + 1; i < m_segments.size(); i++)
+      m_starts[i]++;
+    if (s.size() > 2 * SEGMENT_SIZE)
+    {
+      int half = s.size() / 2;
+      List<T> tail = s.subList(half, s.size());
+      Segment<T> right = new Segment<T>(this);
+      right.addAll(tail);
+      tail.clear();
+      insertSegment(k + 1, m_starts[k] + half, right);
+    }
+    modCount++;
+  }
+  
+  @Override
+  public Iterator<T> iterator()
+  {
+    return new SegmentIterator();
+  }
+  
+  /**
+   * Finds the segment that holds an element
+   * @param index The position of the element in the list
+   * @return The number of the segment
+   */
+  protected int segmentOf(int index)
+  {
+    int low = 0, high = m_segments.size() - 1;
+    while (low < high)
+    {
+      int mid = (low + high + 1) >>> 1;
+      if (m_starts[mid] <= index)
+        low = mid;
+      else
+        high = mid - 1;
+    }
+    return low;
+  }
+  
+  /**
+   * Gives a segment that this list can modify, copying it first if
+   * it belongs to another list
+   * @param k The number of the segment
+   * @return The segment
+   */
+  protected Segment<T> writable(int k)
+  {
+    Segment<T> s = m_segments.get(k);
+    if (s.m_owner != this)
+    {
+      Segment<T> copy = new Segment<T>(this);
+      copy.addAll(s);
+      m_segments.set(k, copy);
+      s = copy;
+    }
+    return s;
+  }
+  
+  protected void insertSegment(int k, int start, Segment<T> s)
+  {
+    int count = m_segments.size();
+    if (count == m_starts.length)
+      m_starts = Arrays.copyOf(m_starts, count * 2);
+    System.arraycopy(m_starts, k, m_starts, k + 1, count - k);
+    m_starts[k] = start;
+    m_segments.add(k, s);
+  }
+  
+  protected static void checkIndex(int index, int size)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Index: " + index);
+  }
+  
+  /**
+   * A segment of the list, which can only be modified by the list
+   * that created it
+   */
+  protected static class Segment<T> extends ArrayList<T>
+  {
+    private static final long serialVersionUID = 1L;
+    
+    protected final SegmentedList<T> m_owner;
+    
+    public Segment(SegmentedList<T> owner)
+    {
+      super();
+      m_owner = owner;
+    }
+  }
+  
+  /**
+   * Enumerates the elements of the list one segment after the other
+   */
+  protected class SegmentIterator implements Iterator<T>
+  {
+    protected int m_next;
+    
+    protected Iterator<T> m_current;
+    
+    public SegmentIterator()
+    {
+      super();
+      m_next = 0;
+      m_current = Collections.<T>emptyList().iterator();
+    }
+    
+    @Override
+    public boolean hasNext()
+    {
+      while (!m_current.hasNext() && m_next < m_segments.size())
+        m_current = m_segments.get(m_next++).iterator();
+      return m_current.hasNext();
+    }
+    
+    @Override
+    public T next()
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      return m_current.next();
+    }
+    
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -17,6 +17,17 @@
  -------------------------------------------------------------------------*/
 package ca.uqac.dim.turtledb;
 
+import java.util.*;
+
+/**
+ * Selection of the tuples of a relation that satisfy a condition.
+ * When the relation is a {@link Table} with an index on attributes
+ * that the condition compares to values, the candidate tuples are
+ * found through the index (see {@link Table#lookup(Condition)});
+ * otherwise, the condition is evaluated on every tuple.
+ * @author sylvain
+ *
+ */
 public class Selection extends UnaryRelation
 {
   protected Condition m_condition;
@@ -42,6 +53,30 @@ public class Selection extends UnaryRelation
     m_condition = c;
   }
   
+  /**
+   * Resolves the attributes of the condition in the schema of the
+   * underlying relation, if it is already known
+   */
+  protected void bindCondition()
+  {
+    Schema sch = m_relation.getSchema();
+    if (sch != null)
+      m_condition.bind(sch);
+  }
+  
+  /**
+   * Finds the tuples that can satisfy the condition through an index
+   * of the underlying relation
+   * @return The tuples, or <tt>null</tt> if no index applies
+   */
+  protected List<Tuple> indexLookup()
+  {
+    Table tab = Table.asTable(m_relation);
+    if (tab == null)
+      return null;
+    return tab.lookup(m_condition);
+  }
+  
   @Override
   public void accept(QueryVisitor v) throws EmptyQueryVisitor.VisitorException
   {
@@ -51,17 +86,42 @@ public class Selection extends UnaryRelation
   
   protected class SelectionStreamIterator extends UnaryRelationStreamIterator
   { 
+    /**
+     * The tuples found through an index, if any; they replace
+     * the tuples of the child iterator
+     */
+    protected Iterator<Tuple> m_candidates;
+    
+    protected boolean m_lookedUp;
+    
     public SelectionStreamIterator()
     {
       super();
+      bindCondition();
+      m_lookedUp = false;
+    }
+    
+    /**
+     * Looks for the tuples that can satisfy the condition in an index
+     * on the first call
+     */
+    protected void lookUp()
+    {
+      if (m_lookedUp)
+        return;
+      List<Tuple> candidates = indexLookup();
+      m_candidates = candidates == null ? null : candidates.iterator();
+      m_lookedUp = true;
     }
     
     protected Tuple internalNext()
     {
       m_nextTuple = null;
-      while (m_childIterator.hasNext())
+      lookUp();
+      Iterator<Tuple> it = m_candidates != null ? m_candidates : m_childIterator;
+      while (it.hasNext())
       {
-        Tuple t = m_childIterator.next();
+        Tuple t = it.next();
         if (m_condition.evaluate(t))
         {
           return t;
@@ -69,6 +129,39 @@ public class Selection extends UnaryRelation
       }
       return null;
     }
+    
+    /**
+     * Filters the batches of the operand, without copying them
+     */
+    @Override
+    protected TupleBatch internalNextBatch()
+    {
+      lookUp();
+      TupleBatch b;
+      if (m_candidates != null)
+      {
+        b = getBatch();
+        while (!b.isFull() && m_candidates.hasNext())
+          b.add(m_candidates.next());
+        if (b.isEmpty())
+          return null;
+      }
+      else
+      {
+        b = m_childIterator.nextBatch();
+        if (b == null)
+          return null;
+      }
+      b.filter(m_condition);
+      return b;
+    }
+    
+    @Override
+    public void reset()
+    {
+      super.reset();
+      m_lookedUp = false;
+    }
   }
   
   protected class SelectionCacheIterator extends RelationCacheIterator
@@ -76,13 +169,27 @@ public class Selection extends UnaryRelation
     @Override
     protected void getIntermediateResult()
     {
-      Table tab = new Table(getSchema());
-      RelationIterator i = m_relation.cacheIterator();
-      while (i.hasNext())
+      bindCondition();
+      Table tab = newIntermediateTable(getSchema());
+      List<Tuple> candidates = indexLookup();
+      if (candidates != null)
       {
-        Tuple t = i.next();
-        if (m_condition.evaluate(t))
-          tab.put(t);
+        for (Tuple t : candidates)
+        {
+          if (m_condition.evaluate(t))
+            tab.append(t);
+        }
+      }
+      else
+      {
+        RelationIterator i = m_relation.cacheIterator();
+        for (TupleBatch b = i.nextBatch(); b != null; b = i.nextBatch())
+        {
+          b.filter(m_condition);
+          for (int j = 0; j < b.size(); j++)
+            tab.append(b.get(j));
+        }
+        dispose(i);
       }
       m_intermediateResult = tab;
     }
@@ -0,0 +1,422 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A table holding an intermediate result of a query, whose tuples
+ * are written to disk when they do not fit in the query's
+ * {@link MemoryBudget}. Tuples are kept in memory as in a plain
+ * {@link Table} as long as the budget grants room for them. When it
+ * refuses, the table <em>spills</em>: its tuples, and all those
+ * appended afterwards, go through a {@link TupleSorter}, which writes
+ * them to sorted runs on disk. Sealing the table merges the runs into
+ * a single sorted file without duplicates, which is then read back
+ * sequentially every time the table is enumerated.
+ * <p>
+ * The cache iterators of the operators create such tables through
+ * {@link Relation#newIntermediateTable(Schema)} when a budget is set
+ * on them. The memory reserved by the table and its file on disk are
+ * given back by {@link #dispose()}, once the result is no longer
+ * needed.
+ * @author sylvain
+ *
+ */
+public class SpillableTable extends Table
+{
+  /**
+   * The minimum number of tuples kept in memory before writing a
+   * run, even if the budget is already exhausted
+   */
+  public static final int MIN_BUFFER_SIZE = 1024;
+  
+  /**
+   * Tuples are spilled in the same order as that of a table
+   */
+  protected static final Comparator<Tuple> NATURAL_ORDER = new Comparator<Tuple>()
+  {
+    @Override
+    public int compare(Tuple t1, Tuple t2)
+    {
+      return t1.compareTo(t2);
+    }
+  };
+  
+  protected final MemoryBudget m_budget;
+  
+  /**
+   * The number of bytes this table reserved in the budget
+   */
+  protected long m_reserved;
+  
+  /**
+   * The number of tuples the sorter keeps in memory once the table
+   * has spilled
+   */
+  protected int m_bufferSize;
+  
+  /**
+   * The sorter receiving the tuples appended since the table
+   * spilled, or <tt>null</tt> if the table is sealed or has not
+   * spilled
+   */
+  protected TupleSorter m_sorter;
+  
+  /**
+   * The file holding the sorted tuples of the table, once it has
+   * spilled and been sealed
+   */
+  protected File m_file;
+  
+  /**
+   * The number of tuples in the file
+   */
+  protected int m_fileSize;
+  
+  /**
+   * The iterators reading the table's file that are not closed yet,
+   * e.g. because their consumer stopped before the end
+   */
+  protected final List<SpillIterator> m_openIterators;
+  
+  /**
+   * Creates an empty table
+   * @param sch The table's schema
+   * @param budget The budget in which the table reserves memory
+   */
+  /*package*/ SpillableTable(Schema sch, MemoryBudget budget)
+  {
+    super(sch);
+    assert budget != null;
+    m_budget = budget;
+    m_reserved = 0;
+    m_bufferSize = MIN_BUFFER_SIZE;
+    m_fileSize = 0;
+    m_openIterators = new LinkedList<SpillIterator>();
+  }
+  
+  /**
+   * Determines if the tuples of the table have been written to disk
+   * @return True if the table has spilled, false otherwise
+   */
+  public boolean isSpilled()
+  {
+    return m_sorter != null || m_file != null;
+  }
+  
+  /**
+   * Adds a tuple to the table. Contrarily to {@link Table#put(Tuple)},
+   * the tuple is not inserted at its position right away; the table
+   * is sorted when it is next sealed.
+   * @param t The tuple to add
+   */
+  @Override
+  public void put(Tuple t)
+  {
+    append(t);
+  }
+  
+  @Override
+  public void append(Tuple t)
+  {
+    assert t != null;
+    assert t.size() == m_schema.size();
+    if (!isSpilled())
+    {
+      long size = MemoryBudget.estimateSize(t);
+      if (m_budget.reserve(size))
+      {
+        int before = m_tuples.size();
+        super.append(t);
+        if (m_tuples.size() > before)
+          m_reserved += size;
+        else
+          m_budget.release(size); // Duplicate of the last tuple
+        return;
+      }
+      spill();
+    }
+    else if (m_sorter == null)
+      reopen();
+    adopt(t);
+    m_sorter.add(t);
+    addToStatistics(t);
+    m_sealed = false;
+  }
+  
+  /**
+   * Moves the tuples kept in memory to a sorter, which will write
+   * them and all subsequent tuples to disk. The memory reserved so
+   * far is kept, as the sorter fills a buffer of the same size
+   * before writing each run.
+   */
+  protected void spill()
+  {
+    m_budget.spilled();
+    m_bufferSize = Math.max(MIN_BUFFER_SIZE, m_tuples.size());
+    m_sorter = new TupleSorter(NATURAL_ORDER, m_bufferSize);
+    for (Tuple t : m_tuples)
+      m_sorter.add(t);
+    m_tuples = new ArrayList<Tuple>();
+    m_sorted = true;
+  }
+  
+  /**
+   * Sends the tuples of a sealed, spilled table back to a sorter so
+   * that new tuples can be added to it
+   */
+  protected void reopen()
+  {
+    m_sorter = new TupleSorter(NATURAL_ORDER, m_bufferSize);
+    Iterator<Tuple> it = new SpillIterator();
+    while (it.hasNext())
+      m_sorter.add(it.next());
+    deleteFile();
+  }
+  
+  @Override
+  public void seal()
+  {
+    if (m_sealed)
+      return;
+    if (m_sorter == null)
+    {
+      super.seal();
+      return;
+    }
+    writeFile(m_sorter.iterator());
+    m_sorter.close();
+    m_sorter = null;
+    m_sorted = true;
+    m_sealed = true;
+    rebuildIndexes();
+    checkStatistics(m_fileSize);
+  }
+  
+  /**
+   * Writes sorted tuples to the table's file, removing duplicates
+   * @param it An iterator over the tuples, in sorted order
+   * @throws TupleSorter.SortException If the file cannot be written
+   */
+  protected void writeFile(Iterator<Tuple> it)
+  {
+    DataOutputStream out = null;
+    m_fileSize = 0;
+    try
+    {
+      m_file = File.createTempFile("turtledb", ".spill");
+      m_file.deleteOnExit();
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_file)));
+      Tuple last = null;
+      while (it.hasNext())
+      {
+        Tuple t = it.next();
+        if (last != null && last.compareTo(t) == 0)
+          continue;
+        TupleCodec.writeTuple(out, t);
+        m_fileSize++;
+        last = t;
+      }
+    }
+    catch (IOException e)
+    {
+      throw new TupleSorter.SortException(e);
+    }
+    finally
+    {
+      TupleSorter.closeQuietly(out);
+    }
+  }
+  
+  protected void deleteFile()
+  {
+    closeIterators();
+    if (m_file != null)
+      m_file.delete();
+    m_file = null;
+    m_fileSize = 0;
+  }
+  
+  /**
+   * Closes the iterators still reading the table's file
+   */
+  protected void closeIterators()
+  {
+    List<SpillIterator> open;
+    synchronized (m_openIterators)
+    {
+      open = new ArrayList<SpillIterator>(m_openIterators);
+    }
+    for (SpillIterator it : open)
+      it.close();
+  }
+  
+  /**
+   * Empties the table, giving back the memory it reserved in the
+   * budget and deleting its files. This should be called once the
+   * intermediate result is no longer needed, even if it was not
+   * enumerated to the end: the iterators still reading its file
+   * are closed.
+   */
+  public void dispose()
+  {
+    m_budget.release(m_reserved);
+    m_reserved = 0;
+    if (m_sorter != null)
+      m_sorter.close();
+    m_sorter = null;
+    deleteFile();
+    m_tuples = new ArrayList<Tuple>();
+    m_sorted = true;
+    m_sealed = true;
+  }
+  
+  @Override
+  public int getCardinality()
+  {
+    return tupleCount();
+  }
+  
+  @Override
+  public int tupleCount()
+  {
+    seal();
+    if (m_file == null)
+      return m_tuples.size();
+    return m_fileSize;
+  }
+  
+  /**
+   * Determines if the table contains a tuple. Once the table has
+   * spilled, this reads its file up to the position of the tuple.
+   */
+  @Override
+  public boolean contains(Tuple tup)
+  {
+    if (tup == null)
+      return false;
+    seal();
+    if (m_file == null)
+      return super.contains(tup);
+    SpillIterator it = new SpillIterator();
+    try
+    {
+      while (it.hasNext())
+      {
+        Tuple t = it.next();
+        int comp = t.compareTo(tup);
+        if (comp == 0)
+          return t.equals(tup);
+        if (comp > 0)
+          return false;
+      }
+      return false;
+    }
+    finally
+    {
+      it.close();
+    }
+  }
+  
+  @Override
+  protected Iterator<Tuple> tupleIterator()
+  {
+    seal();
+    if (m_file == null)
+      return m_tuples.iterator();
+    return new SpillIterator();
+  }
+  
+  /**
+   * Reads the tuples of the table's file, one at a time. The file is
+   * closed once all its tuples are read, or when the table is
+   * disposed of.
+   */
+  protected class SpillIterator implements Iterator<Tuple>
+  {
+    protected DataInputStream m_in;
+    protected int m_remaining;
+    
+    public SpillIterator()
+    {
+      super();
+      m_remaining = m_fileSize;
+      try
+      {
+        m_in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+      }
+      catch (IOException e)
+      {
+        throw new TupleSorter.SortException(e);
+      }
+      if (m_remaining == 0)
+        close();
+      else
+      {
+        synchronized (m_openIterators)
+        {
+          m_openIterators.add(this);
+        }
+      }
+    }
+    
+    @Override
+    public boolean hasNext()
+    {
+      return m_remaining > 0;
+    }
+    
+    @Override
+    public Tuple next()
+    {
+      if (m_remaining == 0)
+        throw new NoSuchElementException();
+      try
+      {
+        Tuple t = TupleCodec.readTuple(m_in, m_schema);
+        m_remaining--;
+        if (m_remaining == 0)
+          close();
+        return t;
+      }
+      catch (IOException e)
+      {
+        close();
+        throw new TupleSorter.SortException(e);
+      }
+    }
+    
+    public void close()
+    {
+      m_remaining = 0;
+      TupleSorter.closeQuietly(m_in);
+      synchronized (m_openIterators)
+      {
+        m_openIterators.remove(this);
+      }
+    }
+    
+    @Override
+    public void remove()
+    {
+      // Not supported
+    }
+  }
+}
@@ -29,6 +29,34 @@ import java.util.*;
  * Consquently, a tuple that is to be modified will be removed, changed,
  * and re-inserted so that the global ordering of tuples is always
  * respected. 
+ * <p>
+ * Inserting tuples one by one with {@link #put(Tuple)} costs a binary
+ * search and a shift of the list for each tuple, unless they come in
+ * sorted order. To fill a table with many tuples, they should rather
+ * be added with {@link #append(Tuple)}, which puts them at the end of
+ * the list; the table is then <em>sealed</em> (see {@link #seal()}):
+ * the list is sorted once and duplicates are removed in a single pass.
+ * A table is sealed automatically before its contents are read.
+ * When tuples keep arriving one by one in a large table, a
+ * {@link LogStructuredTable} should be used instead.
+ * <p>
+ * Hash indexes can be declared on attributes of the table (see
+ * {@link #createIndex(Collection)}); a {@link Selection} or a
+ * {@link Join} then uses them to find the tuples with given values
+ * instead of scanning the table.
+ * <p>
+ * Each table also keeps {@link TableStatistics} on its contents,
+ * updated as tuples are inserted (see {@link #getStatistics()}).
+ * <p>
+ * Insertions are synchronized on the table. A query evaluated while
+ * tuples are inserted should read a snapshot of the table, obtained
+ * with {@link #getSnapshot()}: the snapshot shares the tuples and the
+ * indexes of the table. The tuples are kept in a {@link SegmentedList},
+ * so that the next insertion only copies the segment of the list it
+ * modifies, and the table writes to new layers of its indexes (see
+ * {@link HashIndex#layer()}) instead of copying them. Interleaving
+ * snapshots and insertions thus costs a time proportional to the
+ * number of segments, and not to the number of tuples, per insertion.
  * @author sylvain
  *
  */
@@ -39,13 +67,44 @@ public class Table extends Relation
   protected int m_cursor;
   protected String m_name;
   
+  /**
+   * The indexes declared on the table
+   */
+  protected List<HashIndex> m_indexes;
+  
+  /**
+   * The statistics on the contents of the table, created when the
+   * first tuple is inserted
+   */
+  protected TableStatistics m_statistics;
+  
+  /**
+   * Whether the list of tuples is sorted and has no duplicates
+   */
+  protected boolean m_sorted;
+  
+  /**
+   * Whether tuples have been appended since the table was last sealed
+   */
+  protected boolean m_sealed;
+  
+  /**
+   * Whether the tuples and the indexes are shared with a snapshot,
+   * in which case they must be copied before they are modified
+   */
+  protected boolean m_shared;
+  
   /**
    * Empty constructor. Should only be called from another constructor.
    */
   /*package*/ Table()
   {
     super();
-    m_tuples = new ArrayList<Tuple>();
+    m_tuples = new SegmentedList<Tuple>();
+    m_indexes = new ArrayList<HashIndex>(0);
+    m_sorted = true;
+    m_sealed = true;
+    m_shared = false;
     m_name = "";
   }
   
@@ -75,8 +134,16 @@ public class Table extends Relation
   public void setName(String name)
   {
     m_name = name;
+    if (m_schema == null)
+      return;
+    // All tuples share the table's schema: renaming its attributes
+    // renames those of every tuple
+    m_schema.setTableName(m_name);
     for (Tuple t : m_tuples)
-      t.setTable(m_name);
+    {
+      if (t.getSchema() != m_schema)
+        t.setSchema(m_schema);
+    }
   }
 
   /**
@@ -104,8 +171,12 @@ public class Table extends Relation
    */
   protected void setSchema(Schema sch)
   {
-	Schema s = new Schema(sch);
-	s.setTableName(m_name);
+    // The attributes are copied, as the table will later rename them
+    Schema s = new Schema();
+    for (Attribute a : sch)
+      s.add(new Attribute(a));
+    if (m_name != null && !m_name.isEmpty())
+      s.setTableName(m_name);
     m_schema = s;
   }
 
@@ -121,36 +192,384 @@ public class Table extends Relation
    * An <em>assertion</em> fails otherwise (but no exception
    * is raised). This also affixes the table's name to each
    * attribute, except if the table's name is the empty
-   * string.
+   * string; this is done by giving the tuple the table's schema,
+   * so the tuple's values must be in the order of that schema.
    * <p>
    * The method put also ensures that the tuple is inserted
    * at the correct location to keep the linked list sorted.
    * @param t The tuple to add
    */
-  public void put(Tuple t)
+  public synchronized void put(Tuple t)
   {
     assert t != null;
     assert t.size() == m_schema.size();
-    // Gives the current table's name to all the tuple's attributes
-    if (m_name != null && !m_name.isEmpty())
-      t.setTable(m_name);
-    int index = Collections.binarySearch(m_tuples, t);
+    if (m_shared)
+      detach();
+    seal();
+    adopt(t);
+    int size = m_tuples.size();
+    int index;
+    if (size == 0 || m_tuples.get(size - 1).compareTo(t) < 0)
+      index = -size - 1; // Tuples that come in order go at the end
+    else
+      index = Collections.binarySearch(m_tuples, t);
     if (index < 0) // We silently ignore tuples that are already present
+    {
       m_tuples.add(-index-1, t);
+      addToIndexes(t);
+      addToStatistics(t);
+    }
+  }
+  
+  /**
+   * Adds a new tuple at the end of the table, without looking for
+   * its position in the sorted order; as with {@link #put(Tuple)},
+   * the tuple is given the table's schema. The table is no longer
+   * sorted until it is sealed.
+   * @param t The tuple to add
+   */
+  public synchronized void append(Tuple t)
+  {
+    assert t != null;
+    assert t.size() == m_schema.size();
+    if (m_shared)
+      detach();
+    adopt(t);
+    int size = m_tuples.size();
+    if (m_sorted && size > 0)
+    {
+      int comp = m_tuples.get(size - 1).compareTo(t);
+      if (comp == 0)
+        return;
+      if (comp > 0)
+        m_sorted = false;
+    }
+    m_tuples.add(t);
+    addToStatistics(t);
+    m_sealed = false;
+  }
+  
+  /**
+   * Sorts the tuples added with {@link #append(Tuple)}, removes the
+   * duplicates and updates the indexes and the statistics of the
+   * table. Calling this method
+   * on a table that is already sealed has no effect.
+   */
+  public synchronized void seal()
+  {
+    if (m_sealed)
+      return;
+    if (!m_sorted)
+    {
+      Tuple[] sorted = m_tuples.toArray(new Tuple[m_tuples.size()]);
+      Arrays.sort(sorted);
+      // Duplicates are now next to each other
+      List<Tuple> tuples = new SegmentedList<Tuple>();
+      Tuple last = null;
+      for (Tuple t : sorted)
+      {
+        if (last == null || last.compareTo(t) != 0)
+          tuples.add(t);
+        last = t;
+      }
+      m_tuples = tuples;
+      m_sorted = true;
+    }
+    m_sealed = true;
+    rebuildIndexes();
+    checkStatistics(m_tuples.size());
+  }
+  
+  /**
+   * Gives a snapshot of the current contents of the table: tuples
+   * inserted in the table afterwards do not appear in the snapshot.
+   * The snapshot shares the tuples and the indexes of the table,
+   * until either of them is modified. Its statistics are computed
+   * again if they are asked for.
+   * @return The snapshot
+   */
+  public synchronized Table getSnapshot()
+  {
+    seal();
+    Table s = new Table(m_name);
+    s.m_schema = m_schema;
+    s.m_tuples = m_tuples;
+    s.m_indexes = new ArrayList<HashIndex>(m_indexes);
+    s.m_shared = true;
+    m_shared = true;
+    return s;
+  }
+  
+  /**
+   * Stops sharing the tuples and the indexes of the table with a
+   * snapshot, before they are modified. The list of tuples is copied
+   * one segment at a time as it is modified (see
+   * {@link SegmentedList#copy()}), and the indexes are given a new
+   * layer (see {@link #layerIndexes()}).
+   */
+  @SuppressWarnings("unchecked")
+  protected void detach()
+  {
+    getStatistics();
+    if (m_tuples instanceof SegmentedList)
+      m_tuples = ((SegmentedList<Tuple>) m_tuples).copy();
+    else
+      m_tuples = new SegmentedList<Tuple>(m_tuples);
+    m_shared = false;
+    layerIndexes();
+  }
+  
+  /**
+   * Replaces every index of the table by a new layer on top of it,
+   * leaving the index itself unchanged for the snapshots that share it
+   */
+  protected void layerIndexes()
+  {
+    for (int i = 0; i < m_indexes.size(); i++)
+      m_indexes.set(i, m_indexes.get(i).layer());
+  }
+  
+  /**
+   * Gives the table's schema to a tuple about to be added, so that
+   * the table's name is affixed to all its attributes
+   * @param t The tuple
+   */
+  protected void adopt(Tuple t)
+  {
+    if (m_name != null && !m_name.isEmpty() && t.getSchema() != m_schema)
+      t.setSchema(m_schema);
+  }
+  
+  /**
+   * Adds a tuple just inserted in the table to all its indexes
+   * @param t The tuple
+   */
+  protected void addToIndexes(Tuple t)
+  {
+    for (HashIndex index : m_indexes)
+      index.add(t);
+  }
+  
+  /**
+   * Updates the statistics of the table with a tuple just inserted
+   * @param t The tuple
+   */
+  protected void addToStatistics(Tuple t)
+  {
+    if (m_statistics == null)
+      m_statistics = new TableStatistics(m_schema);
+    m_statistics.add(t);
   }
   
   /**
-   * Adds a collection of tuples to the table. This is just
-   * the repeated application of {@link put} to every tuple in
-   * the collection.
+   * Rebuilds the statistics of the table from its tuples if they do
+   * not count the right number of tuples. This happens when duplicates
+   * are appended to the table, as they are only removed when the table
+   * is sealed.
+   * @param size The number of tuples of the table
+   */
+  protected void checkStatistics(int size)
+  {
+    if (m_statistics == null || m_statistics.getRowCount() == size)
+      return;
+    m_statistics = new TableStatistics(m_schema);
+    Iterator<Tuple> it = tupleIterator();
+    while (it.hasNext())
+      m_statistics.add(it.next());
+  }
+  
+  /**
+   * Gives the statistics on the contents of the table. They are kept
+   * up to date as tuples are inserted, so that reading them does not
+   * require a scan of the table.
+   * @return The statistics
+   */
+  public synchronized TableStatistics getStatistics()
+  {
+    seal();
+    if (m_statistics == null && m_schema != null)
+    {
+      m_statistics = new TableStatistics(m_schema);
+      Iterator<Tuple> it = tupleIterator();
+      while (it.hasNext())
+        m_statistics.add(it.next());
+    }
+    return m_statistics;
+  }
+  
+  /**
+   * Rebuilds every index of the table from its tuples
+   */
+  protected void rebuildIndexes()
+  {
+    for (int i = 0; i < m_indexes.size(); i++)
+    {
+      HashIndex index = new HashIndex(m_indexes.get(i).getPositions());
+      Iterator<Tuple> it = tupleIterator();
+      while (it.hasNext())
+        index.add(it.next());
+      m_indexes.set(i, index);
+    }
+  }
+  
+  /**
+   * Declares a hash index on some attributes of the table. The index
+   * holds the tuples already in the table, and is kept up to date
+   * when tuples are added. Declaring the same index twice has no
+   * effect.
+   * @param atts The indexed attributes
+   * @return The index
+   * @throws IllegalArgumentException If an attribute is not in
+   *   the table's schema
+   */
+  public synchronized HashIndex createIndex(Collection<Attribute> atts)
+  {
+    if (m_schema == null || atts.isEmpty())
+      throw new IllegalArgumentException("No attribute to index");
+    int[] positions = new int[atts.size()];
+    int i = 0;
+    for (Attribute a : atts)
+    {
+      positions[i] = m_schema.getOrdinal(a);
+      if (positions[i] < 0)
+        throw new IllegalArgumentException("No attribute " + a + " in table " + m_name);
+      i++;
+    }
+    seal();
+    HashIndex index = getIndex(positions);
+    if (index != null)
+      return index;
+    index = new HashIndex(positions);
+    Iterator<Tuple> it = tupleIterator();
+    while (it.hasNext())
+      index.add(it.next());
+    m_indexes.add(index);
+    return index;
+  }
+  
+  /**
+   * Declares a hash index on some attributes of the table
+   * @see #createIndex(Collection)
+   */
+  public HashIndex createIndex(Attribute ... atts)
+  {
+    return createIndex(Arrays.asList(atts));
+  }
+  
+  /**
+   * Gives the index on exactly a set of attributes
+   * @param positions The positions of the attributes in the schema
+   * @return The index, or <tt>null</tt> if there is none
+   */
+  public HashIndex getIndex(int[] positions)
+  {
+    for (HashIndex index : m_indexes)
+    {
+      if (index.isOn(positions))
+        return index;
+    }
+    return null;
+  }
+  
+  /**
+   * Finds with an index the tuples of the table that can satisfy a
+   * condition. This is possible when the condition is a conjunction
+   * where each of the attributes of some index is equal to a value;
+   * the tuples returned have these values, but must still be checked
+   * against the whole condition.
+   * @param c The condition
+   * @return The tuples, in the order of the table, or <tt>null</tt>
+   *   if no index applies to the condition
+   */
+  public List<Tuple> lookup(Condition c)
+  {
+    if (m_indexes.isEmpty() || c == null || m_schema == null)
+      return null;
+    seal();
+    List<Condition> conjuncts = new LinkedList<Condition>();
+    c.addConjuncts(conjuncts);
+    Map<Integer,Value> fixed = new HashMap<Integer,Value>();
+    for (Condition conj : conjuncts)
+    {
+      if (!(conj instanceof Equality))
+        continue;
+      Equality e = (Equality) conj;
+      Literal att = e.m_left, val = e.m_right;
+      if (att instanceof Value)
+      {
+        att = e.m_right;
+        val = e.m_left;
+      }
+      if (!(att instanceof Attribute) || !(val instanceof Value))
+        continue;
+      int pos = m_schema.getOrdinal(att);
+      if (pos < 0)
+        continue;
+      // The value is converted to the type of the attribute, as
+      // when the equality is evaluated
+      ValueType type = m_schema.get(pos).getType();
+      Value v;
+      try
+      {
+        v = type.cast((Value) val);
+      }
+      catch (IllegalArgumentException ex)
+      {
+        continue;
+      }
+      if (v.getType() != type)
+        continue;
+      Value previous = fixed.put(pos, v);
+      if (previous != null && !previous.equals(v))
+        return new ArrayList<Tuple>(0); // Contradiction
+    }
+    HashIndex best = null;
+    for (HashIndex index : m_indexes)
+    {
+      int[] positions = index.getPositions();
+      boolean applies = true;
+      for (int pos : positions)
+        applies &= fixed.containsKey(pos);
+      if (applies && (best == null || positions.length > best.m_positions.length))
+        best = index;
+    }
+    if (best == null)
+      return null;
+    Value[] values = new Value[best.m_positions.length];
+    for (int i = 0; i < values.length; i++)
+      values[i] = fixed.get(best.m_positions[i]);
+    return best.get(values);
+  }
+  
+  /**
+   * Gives the table that holds the tuples of a relation, if any
+   * @param r The relation: either a table, or a {@link VariableTable}
+   *   linked to a table
+   * @return The table, or <tt>null</tt> if the relation is computed
+   *   by an operator
+   */
+  protected static Table asTable(Relation r)
+  {
+    while (r instanceof VariableTable)
+      r = ((VariableTable) r).m_relation;
+    if (r instanceof Table)
+      return (Table) r;
+    return null;
+  }
+  
+  /**
+   * Adds a collection of tuples to the table. The tuples are
+   * appended (see {@link #append(Tuple)}) and the table is then
+   * sealed, which sorts the tuples only once.
    * @param tuples The tuples to add
    */
   public void putAll(Collection<Tuple> tuples)
   {
     for (Tuple t : tuples)
     {
-      put(t);
+      append(t);
     }
+    seal();
   }
   
   @Override
@@ -163,31 +582,35 @@ public class Table extends Relation
    * Copies the contents of a relation into the current relation.
    * In particular, invoking {@link copy} with a query tree triggers the
    * computation of that query and the storing of the resulting tuples
-   * into the current relation.
+   * into the current relation. The query is evaluated a batch of
+   * tuples at a time.
    * @param r The relation to copy from
    */
   public void copy(Relation r)
   {
     assert r != null;
     m_schema = r.getSchema();
-    Iterator<Tuple> i = r.iterator();
-    while (i.hasNext())
+    RelationIterator i = r.iterator();
+    for (TupleBatch b = i.nextBatch(); b != null; b = i.nextBatch())
     {
-      Tuple t = i.next();
-      this.put(t);
+      for (int j = 0; j < b.size(); j++)
+        this.append(b.get(j));
     }
+    RelationCacheIterator.dispose(i);
+    seal();
   }
   
   public int getCardinality()
   {
+    seal();
     return m_tuples.size();
   }
   
   /**
    * Determines if a relation contains a given tuple. Contrarily to the
    * generic implementation of {@link contains}, the method for instances
-   * of {@link Table} <em>is</em> efficient, as it simply calls the
-   * contains method of the underlying list of tuples. It does not
+   * of {@link Table} <em>is</em> efficient, as it performs a binary
+   * search in the sorted list of tuples. It does not
    * present the side effects (reset of enumeration) that the generic
    * method has.
    * @param tup The tuple to look for
@@ -198,14 +621,39 @@ public class Table extends Relation
   {
     if (tup == null)
       return false;
-    return m_tuples.contains(tup);
+    seal();
+    int index = Collections.binarySearch(m_tuples, tup);
+    return index >= 0 && m_tuples.get(index).equals(tup);
   }
   
   public int tupleCount()
   {
+    seal();
     return m_tuples.size();
   }
   
+  @Override
+  public boolean isDuplicateFree()
+  {
+    // put never inserts the same tuple twice
+    return true;
+  }
+  
+  /**
+   * A table is sorted on its first attributes, in their order
+   * in the schema
+   */
+  @Override
+  public boolean isSortedOn(int[] positions)
+  {
+    for (int i = 0; i < positions.length; i++)
+    {
+      if (positions[i] != i)
+        return false;
+    }
+    return true;
+  }
+  
   @Override
   public final boolean isLeaf()
   {
@@ -215,6 +663,7 @@ public class Table extends Relation
   @Override
   public RelationStreamIterator streamIterator()
   {
+    seal();
     return new TableStreamIterator();
   }
   
@@ -224,7 +673,8 @@ public class Table extends Relation
     
     public TableStreamIterator()
     {
-      m_iterator = m_tuples.iterator();
+      super(false);
+      m_iterator = tupleIterator();
     }
 
     @Override
@@ -235,15 +685,27 @@ public class Table extends Relation
       return null;
     }
     
+    @Override
+    protected TupleBatch internalNextBatch()
+    {
+      TupleBatch b = getBatch();
+      while (!b.isFull() && m_iterator.hasNext())
+        b.add(m_iterator.next());
+      if (b.isEmpty())
+        return null;
+      return b;
+    }
+    
     public void reset()
     {
       super.reset();
-      m_iterator = m_tuples.iterator();
+      m_iterator = tupleIterator();
     }
   }
   
   protected Iterator<Tuple> tupleIterator()
   {
+    seal();
     return m_tuples.iterator();
   }
   
@@ -262,6 +724,7 @@ public class Table extends Relation
   @Override
   public RelationIterator cacheIterator()
   {
+    seal();
     return new TableStreamIterator();
   }
 
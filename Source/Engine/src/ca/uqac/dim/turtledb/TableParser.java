@@ -32,7 +32,10 @@ public class TableParser
    * <li>Empty lines and lines starting with <tt>#</tt> or <tt>---</tt>
    * are ignored</li>
    * <li>The first non-ignored line is a comma- or space-separated list
-   * of attribute names</li>
+   * of attribute names. Each name can be followed by a colon and the
+   * type of the attribute's values (e.g. <tt>a:int</tt>; see
+   * {@link ValueType}); values of attributes with no declared type
+   * are strings</li>
    * <li>The remaining non-ignored lines are comma- or space-separated
    * list of attribute values, making a tuple</li>
    * </ul>
@@ -58,8 +61,9 @@ public class TableParser
         continue;
       }
       Tuple t = new Tuple(sch, line);
-      out.put(t);
+      out.append(t);
     }
+    out.seal();
     out.setName(name);
     return out;
   }
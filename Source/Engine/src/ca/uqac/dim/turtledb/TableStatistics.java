@@ -0,0 +1,389 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Statistics on the contents of a {@link Table}, kept up to date as
+ * tuples are inserted so that they can be read without scanning the
+ * table. They consist of the number of tuples and, for each attribute:
+ * <ul>
+ * <li>an estimate of the number of distinct values, given by a
+ *   {@link HyperLogLog} sketch;</li>
+ * <li>the smallest and the largest value;</li>
+ * <li>an equi-depth {@link Histogram} of the values.</li>
+ * </ul>
+ * The histograms are built on demand from a uniform sample of the
+ * tuples, which is maintained by <em>reservoir sampling</em>: the
+ * <i>n</i>-th tuple inserted replaces a random tuple of the sample
+ * with probability <i>k</i>/<i>n</i>, where <i>k</i> is the size
+ * of the sample.
+ * <p>
+ * These statistics are what a {@link QueryPlanner} uses to estimate
+ * the selectivity of conditions. They are approximate by nature:
+ * in particular, nothing is done when a tuple is removed from a table,
+ * as tables only ever grow.
+ * @author sylvain
+ *
+ */
+public class TableStatistics
+{
+  /**
+   * The number of tuples kept in the sample
+   */
+  public static final int SAMPLE_SIZE = 1024;
+  
+  /**
+   * The maximum number of buckets of a histogram
+   */
+  public static final int HISTOGRAM_BUCKETS = 32;
+  
+  protected final Schema m_schema;
+  
+  protected long m_rowCount;
+  
+  protected final AttributeStatistics[] m_attributes;
+  
+  /**
+   * The sampled tuples, as arrays of values
+   */
+  protected final Value[][] m_sample;
+  
+  protected int m_sampleSize;
+  
+  /**
+   * Incremented each time the sample changes, so that histograms
+   * know when to be rebuilt
+   */
+  protected int m_sampleVersion;
+  
+  protected final Random m_random;
+  
+  /**
+   * Creates empty statistics
+   * @param sch The schema of the table
+   */
+  public TableStatistics(Schema sch)
+  {
+    super();
+    m_schema = sch;
+    m_rowCount = 0;
+    m_attributes = new AttributeStatistics[sch.size()];
+    for (int i = 0; i < m_attributes.length; i++)
+      m_attributes[i] = new AttributeStatistics(i, sch.get(i).getType());
+    m_sample = new Value[SAMPLE_SIZE][];
+    m_sampleSize = 0;
+    m_sampleVersion = 0;
+    // A fixed seed makes the statistics of a table reproducible
+    m_random = new Random(0);
+  }
+  
+  /**
+   * Updates the statistics with a tuple inserted into the table
+   * @param t The tuple
+   */
+  public synchronized void add(Tuple t)
+  {
+    m_rowCount++;
+    Value[] values = new Value[m_attributes.length];
+    for (int i = 0; i < m_attributes.length; i++)
+      values[i] = m_attributes[i].add(t.get(i));
+    if (m_sampleSize < SAMPLE_SIZE)
+    {
+      m_sample[m_sampleSize++] = values;
+      m_sampleVersion++;
+      return;
+    }
+    long j = (long) (m_random.nextDouble() * m_rowCount);
+    if (j < SAMPLE_SIZE)
+    {
+      m_sample[(int) j] = values;
+      m_sampleVersion++;
+    }
+  }
+  
+  /**
+   * Gives the number of tuples of the table
+   * @return The number of tuples
+   */
+  public synchronized long getRowCount()
+  {
+    return m_rowCount;
+  }
+  
+  public Schema getSchema()
+  {
+    return m_schema;
+  }
+  
+  /**
+   * Gives the statistics on an attribute
+   * @param position The attribute's position in the schema
+   * @return The statistics
+   */
+  public AttributeStatistics getAttributeStatistics(int position)
+  {
+    return m_attributes[position];
+  }
+  
+  /**
+   * Gives the statistics on an attribute
+   * @param a The attribute
+   * @return The statistics, or <tt>null</tt> if the attribute is
+   *   not in the table's schema
+   */
+  public AttributeStatistics getAttributeStatistics(Literal a)
+  {
+    int position = m_schema.getOrdinal(a);
+    if (position < 0)
+      return null;
+    return m_attributes[position];
+  }
+  
+  @Override
+  public synchronized String toString()
+  {
+    StringBuilder out = new StringBuilder();
+    out.append(m_rowCount).append(" tuples\n");
+    for (int i = 0; i < m_attributes.length; i++)
+      out.append(m_schema.get(i)).append(": ").append(m_attributes[i]).append("\n");
+    return out.toString();
+  }
+  
+  /**
+   * Statistics on one attribute of a table
+   */
+  public class AttributeStatistics
+  {
+    protected final int m_position;
+    
+    protected final ValueType m_type;
+    
+    protected final HyperLogLog m_distinct;
+    
+    protected Value m_min;
+    
+    protected Value m_max;
+    
+    /**
+     * The values of the attribute in the sample, sorted, and the
+     * version of the sample they were taken from
+     */
+    protected Value[] m_sortedSample;
+    protected int m_sortedVersion;
+    
+    protected Histogram m_histogram;
+    
+    protected AttributeStatistics(int position, ValueType type)
+    {
+      super();
+      m_position = position;
+      m_type = type;
+      m_distinct = new HyperLogLog();
+      m_sortedVersion = -1;
+    }
+    
+    /**
+     * Updates the statistics with a value of the attribute
+     * @param v The value
+     * @return The value, converted to the type of the attribute
+     */
+    protected Value add(Value v)
+    {
+      if (v == null)
+        return null;
+      v = cast(v);
+      m_distinct.add(v);
+      if (m_min == null || v.compareTo(m_min) < 0)
+        m_min = v;
+      if (m_max == null || v.compareTo(m_max) > 0)
+        m_max = v;
+      return v;
+    }
+    
+    /**
+     * Converts a value to the type of the attribute, as it is when the
+     * value is compared to the attribute (see {@link Equality})
+     */
+    protected Value cast(Value v)
+    {
+      try
+      {
+        return m_type.cast(v);
+      }
+      catch (IllegalArgumentException e)
+      {
+        return v;
+      }
+    }
+    
+    /**
+     * Estimates the number of distinct values of the attribute
+     * @return The estimate, which is never more than the number of
+     *   tuples, and at least 1 if the table is not empty
+     */
+    public long getDistinctCount()
+    {
+      synchronized (TableStatistics.this)
+      {
+        if (m_rowCount == 0)
+          return 0;
+        long d = Math.round(m_distinct.estimate());
+        return Math.max(1, Math.min(d, m_rowCount));
+      }
+    }
+    
+    /**
+     * Gives the smallest value of the attribute
+     * @return The value, or <tt>null</tt> if the table is empty
+     */
+    public Value getMin()
+    {
+      synchronized (TableStatistics.this)
+      {
+        return m_min;
+      }
+    }
+    
+    /**
+     * Gives the largest value of the attribute
+     * @return The value, or <tt>null</tt> if the table is empty
+     */
+    public Value getMax()
+    {
+      synchronized (TableStatistics.this)
+      {
+        return m_max;
+      }
+    }
+    
+    /**
+     * Gives the histogram of the values of the attribute
+     * @return The histogram
+     */
+    public Histogram getHistogram()
+    {
+      synchronized (TableStatistics.this)
+      {
+        sortSample();
+        return m_histogram;
+      }
+    }
+    
+    /**
+     * Estimates the fraction of the tuples whose value for the
+     * attribute is equal to a value. A value outside of the range of
+     * the attribute matches no tuple; a value that appears several
+     * times in the sample is given its frequency in the sample; any
+     * other value is assumed to match as many tuples as the average
+     * distinct value.
+     * @param v The value
+     * @return The fraction, between 0 and 1
+     */
+    public double estimateEquality(Value v)
+    {
+      synchronized (TableStatistics.this)
+      {
+        if (m_rowCount == 0 || v == null)
+          return 0;
+        v = cast(v);
+        if (v.compareTo(m_min) < 0 || v.compareTo(m_max) > 0)
+          return 0;
+        sortSample();
+        int count = count(v);
+        if (count > 1)
+          return (double) count / m_sortedSample.length;
+        return 1.0 / getDistinctCount();
+      }
+    }
+    
+    /**
+     * Estimates the fraction of the tuples whose value for the
+     * attribute lies in a range
+     * @param low The lower bound of the range, inclusive; <tt>null</tt>
+     *   if the range has no lower bound
+     * @param high The upper bound of the range, exclusive; <tt>null</tt>
+     *   if the range has no upper bound
+     * @return The fraction, between 0 and 1
+     */
+    public double estimateRange(Value low, Value high)
+    {
+      synchronized (TableStatistics.this)
+      {
+        if (m_rowCount == 0)
+          return 0;
+        return getHistogram().estimateRange(low == null ? null : cast(low),
+            high == null ? null : cast(high));
+      }
+    }
+    
+    /**
+     * Sorts the values of the sample, and builds the histogram,
+     * unless this was already done since the sample last changed
+     */
+    protected void sortSample()
+    {
+      if (m_sortedVersion == m_sampleVersion)
+        return;
+      Value[] values = new Value[m_sampleSize];
+      int size = 0;
+      for (int i = 0; i < m_sampleSize; i++)
+      {
+        Value v = m_sample[i][m_position];
+        if (v != null)
+          values[size++] = v;
+      }
+      values = Arrays.copyOf(values, size);
+      Arrays.sort(values);
+      m_sortedSample = values;
+      m_sortedVersion = m_sampleVersion;
+      m_histogram = new Histogram(values, HISTOGRAM_BUCKETS);
+    }
+    
+    /**
+     * Counts the occurrences of a value in the sorted sample
+     */
+    protected int count(Value v)
+    {
+      int low = 0, high = m_sortedSample.length;
+      while (low < high)
+      {
+        int mid = (low + high) >>> 1;
+        if (m_sortedSample[mid].compareTo(v) < 0)
+          low = mid + 1;
+        else
+          high = mid;
+      }
+      int count = 0;
+      for (int i = low; i < m_sortedSample.length && m_sortedSample[i].compareTo(v) == 0; i++)
+        count++;
+      return count;
+    }
+    
+    @Override
+    public String toString()
+    {
+      synchronized (TableStatistics.this)
+      {
+        return getDistinctCount() + " distinct values in [" + m_min + ", " + m_max + "]";
+      }
+    }
+  }
+}
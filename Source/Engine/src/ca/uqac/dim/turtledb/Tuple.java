@@ -21,19 +21,44 @@ import java.util.*;
 
 /**
  * A tuple is an <em>ordered</em> collection of attribute-value pairs.
+ * <p>
+ * Internally, a tuple is a plain array of values, along with a
+ * reference to the {@link Schema} that names them. The schema is
+ * shared by all the tuples produced by the same relation (or operator),
+ * and is never modified through the tuple: methods that change the
+ * tuple's attributes replace the reference instead. Likewise, the array
+ * of values is never modified once the tuple is built, so that it can
+ * be shared between tuples that only differ by their schema (e.g. the
+ * output of a {@link Renaming}).
+ * <p>
+ * Looking up a value by attribute name goes through the schema's
+ * index of positions; operators that access the same attributes
+ * for every tuple should rather resolve their position once (see
+ * {@link Schema#getOrdinal(Literal)}) and use {@link #get(int)}.
  * @author sylvain
  *
  */
 public class Tuple implements Comparable<Tuple>
 {
-  protected Vector<Attribute> m_attributes;
-  protected Vector<Value> m_values;
+  protected Schema m_schema;
+  protected Value[] m_values;
+  
+  /**
+   * The tuple's hash code, computed on the first call to
+   * {@link #hashCode()}; 0 if not computed yet
+   */
+  private int m_hashCode;
+  
+  /**
+   * The schema of tuples with no attributes
+   */
+  private static final Schema s_emptySchema = new Schema();
   
   /*package*/ Tuple()
   {
     super();
-    m_attributes = new Vector<Attribute>();
-    m_values = new Vector<Value>();
+    m_schema = s_emptySchema;
+    m_values = new Value[0];
   }
   
   /**
@@ -42,36 +67,44 @@ public class Tuple implements Comparable<Tuple>
    */
   public Tuple(Tuple t)
   {
-    this();
-    assert t != null && t.m_attributes != null && t.m_values != null;
-    for (Attribute a : t.m_attributes)
-    {
-      m_attributes.add(a);
-    }
-    for (Value v : t.m_values)
-    {
-      m_values.add(v);
-    }
+    super();
+    assert t != null && t.m_schema != null && t.m_values != null;
+    m_schema = t.m_schema;
+    m_values = t.m_values;
   }
   
+  /**
+   * Creates a tuple from an array of values. The array is not
+   * copied, and must not be modified afterwards.
+   * @param sch The tuple's schema
+   * @param val The values, in the order of the schema
+   */
   public Tuple(Schema sch, Value[] val)
   {
-    this();
+    super();
     assert sch.size() == val.length;
-    for (int i = 0; i < val.length; i++)
-    {
-      this.put(sch.elementAt(i), val[i]);
-    }
+    m_schema = sch;
+    m_values = val;
   }
   
+  /**
+   * Creates a tuple from a comma- or space-separated list of values.
+   * Each value is converted according to the type of the
+   * corresponding attribute in the schema.
+   * @param sch The tuple's schema
+   * @param values The list of values
+   */
   public Tuple(Schema sch, String values)
   {
-    this();
+    super();
     String parts[] = values.split("[,\\s]");
     assert sch.size() == parts.length;
+    m_schema = sch;
+    m_values = new Value[parts.length];
     for (int i = 0; i < parts.length; i++)
     {
-      this.put(sch.elementAt(i), new Value(parts[i]));
+      Attribute a = sch.elementAt(i);
+      m_values[i] = a.getType().parse(parts[i]);
     }
   }
   
@@ -82,48 +115,77 @@ public class Tuple implements Comparable<Tuple>
    */
   public void setSchema(Schema sch)
   {
-    assert sch.size() == m_attributes.size();
-    m_attributes.clear();
-    for (Attribute a : sch)
-    {
-      m_attributes.add(a);
-    }
+    assert sch.size() == m_values.length;
+    m_schema = sch;
+  }
+  
+  /**
+   * Gives the schema of the tuple
+   * @return The schema
+   */
+  public Schema getSchema()
+  {
+    return m_schema;
   }
   
   public Value get(Literal a)
   {
-    // TODO: eventually replace by a Map search
-    for (int i = 0; i < m_attributes.size(); i++)
-    {
-      Attribute att = m_attributes.elementAt(i);
-      if (att.equals(a))
-        return m_values.elementAt(i);
-    }
-    return null;
+    int i = m_schema.getOrdinal(a);
+    if (i < 0)
+      return null;
+    return m_values[i];
+  }
+  
+  /**
+   * Gives the value at some position in the tuple
+   * @param i The position
+   * @return The value
+   */
+  public Value get(int i)
+  {
+    return m_values[i];
   }
   
   public void clear()
   {
-    m_attributes.clear();
-    m_values.clear();
+    m_schema = s_emptySchema;
+    m_values = new Value[0];
+    m_hashCode = 0;
   }
   
+  /**
+   * Appends an attribute-value pair to the tuple. Since the schema
+   * and the values of a tuple may be shared, this copies both of
+   * them; it should only be used to build tuples one value at a time
+   * (e.g. when parsing).
+   * @param a The attribute
+   * @param v The value
+   */
   public void put(Attribute a, Value v)
   {
-    m_attributes.add(a);
-    m_values.add(v);
+    Schema sch = new Schema(m_schema);
+    sch.add(a);
+    Value[] values = new Value[m_values.length + 1];
+    System.arraycopy(m_values, 0, values, 0, m_values.length);
+    values[m_values.length] = v;
+    m_schema = sch;
+    m_values = values;
+    m_hashCode = 0;
   }
   
   public void putAll(Tuple t)
   {
-    m_attributes.addAll(t.m_attributes);
-    m_values.addAll(t.m_values);
+    Schema sch = new Schema(m_schema);
+    sch.addAll(t.m_schema);
+    m_values = concat(m_values, t.m_values);
+    m_schema = sch;
+    m_hashCode = 0;
   }
   
   public Set<Attribute> keySet()
   {
     Set<Attribute> out = new HashSet<Attribute>();
-    out.addAll(m_attributes);
+    out.addAll(m_schema);
     return out;
   }
   
@@ -133,10 +195,14 @@ public class Tuple implements Comparable<Tuple>
    */
   public void setTable(String name)
   {
-    for (Attribute a : m_attributes)
+    Schema sch = new Schema();
+    for (Attribute a : m_schema)
     {
-      a.setTableName(name);
+      Attribute new_a = new Attribute(a);
+      new_a.setTableName(name);
+      sch.add(new_a);
     }
+    m_schema = sch;
   }
 
   /**
@@ -146,15 +212,15 @@ public class Tuple implements Comparable<Tuple>
   @Override
   public int compareTo(Tuple t)
   {
-    if (m_values.size() < t.m_values.size())
+    if (m_values.length < t.m_values.length)
       return -1;
-    if (m_values.size() > t.m_values.size())
+    if (m_values.length > t.m_values.length)
       return 1;
-    assert m_values.size() == t.m_values.size();
-    for (int i = 0; i < m_values.size(); i++)
+    assert m_values.length == t.m_values.length;
+    for (int i = 0; i < m_values.length; i++)
     {
-      Value v1 = m_values.get(i);
-      Value v2 = t.m_values.get(i);
+      Value v1 = m_values[i];
+      Value v2 = t.m_values[i];
       int comp = v1.compareTo(v2);
       if (comp < 0)
         return -1;
@@ -166,19 +232,19 @@ public class Tuple implements Comparable<Tuple>
   
   public int size()
   {
-    return m_values.size();
+    return m_values.length;
   }
   
   @Override
   public String toString()
   {
     StringBuilder out = new StringBuilder();
-    for (int i = 0; i < m_values.size(); i++)
+    for (int i = 0; i < m_values.length; i++)
     {
       if (i > 0)
         out.append(",");
-      Attribute a = m_attributes.get(i);
-      Value v = m_values.get(i);
+      Attribute a = m_schema.get(i);
+      Value v = m_values[i];
       out.append(a).append("=").append(v);
     }
     return out.toString();
@@ -190,7 +256,7 @@ public class Tuple implements Comparable<Tuple>
    */
   public int getDegree()
   {
-    return m_attributes.size();
+    return m_values.length;
   }
   
   @Override
@@ -204,19 +270,39 @@ public class Tuple implements Comparable<Tuple>
     return equals((Tuple) o);
   }
   
+  /**
+   * Computes the tuple's hash code. Only the values are taken into
+   * account, which is consistent with {@link #equals(Tuple)}: two
+   * equal tuples have equal values. Since the values of a tuple are
+   * never modified in place, the hash code is only computed once.
+   */
+  @Override
+  public int hashCode()
+  {
+    int h = m_hashCode;
+    if (h == 0)
+    {
+      h = 1;
+      for (Value v : m_values)
+      {
+        h = 31 * h + (v == null ? 0 : v.hashCode());
+      }
+      m_hashCode = h;
+    }
+    return h;
+  }
+  
   public boolean equals(Tuple t)
   {
     if (t == null)
       return false;
-    if (t.m_attributes.size() != m_attributes.size())
+    if (t.m_values.length != m_values.length)
       return false;
-    if (t.m_values.size() != m_values.size())
+    if (t.m_schema != m_schema && !t.m_schema.equals(m_schema))
       return false;
-    for (int i = 0; i < m_values.size(); i++)
+    for (int i = 0; i < m_values.length; i++)
     {
-      if (!m_attributes.get(i).equals(t.m_attributes.get(i)))
-        return false;
-      if (!m_values.get(i).equals(t.m_values.get(i)))
+      if (!m_values[i].equals(t.m_values[i]))
         return false;
     }
     return true;
@@ -227,15 +313,59 @@ public class Tuple implements Comparable<Tuple>
    * @param v
    * @return
    */
-  public static Tuple makeTuple(Vector<Tuple> v)
+  public static Tuple makeTuple(List<Tuple> v)
   {
-    Tuple t = new Tuple();    
+    Schema sch = new Schema();
     for (Tuple tt : v)
     {
       if (tt == null)
         return null;
-      t.putAll(tt);
+      sch.addAll(tt.m_schema);
     }
-    return t;
+    return makeTuple(sch, v);
+  }
+  
+  /**
+   * Fusions multiple tuples to create a single tuple with a given
+   * schema. Operators that repeatedly fusion tuples coming from
+   * the same relations should compute the resulting schema once
+   * and use this method, so that all their output tuples share it.
+   * @param sch The schema of the resulting tuple; it must be the
+   *   concatenation of the schemas of the tuples to fusion
+   * @param v The tuples to fusion
+   * @return The tuple, or <tt>null</tt> if one of the tuples is
+   *   <tt>null</tt>
+   */
+  public static Tuple makeTuple(Schema sch, List<Tuple> v)
+  {
+    int size = 0;
+    for (Tuple tt : v)
+    {
+      if (tt == null)
+        return null;
+      size += tt.m_values.length;
+    }
+    Value[] values = new Value[size];
+    int pos = 0;
+    for (Tuple tt : v)
+    {
+      System.arraycopy(tt.m_values, 0, values, pos, tt.m_values.length);
+      pos += tt.m_values.length;
+    }
+    return new Tuple(sch, values);
+  }
+  
+  /**
+   * Concatenates two arrays of values
+   * @param left The first array
+   * @param right The second array
+   * @return A new array with the values of both
+   */
+  protected static Value[] concat(Value[] left, Value[] right)
+  {
+    Value[] values = new Value[left.length + right.length];
+    System.arraycopy(left, 0, values, 0, left.length);
+    System.arraycopy(right, 0, values, left.length, right.length);
+    return values;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,210 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.util.Set;
+
+/**
+ * A group of consecutive tuples of an enumeration, as returned by
+ * {@link RelationIterator#nextBatch()}. Processing tuples a batch at a
+ * time rather than one by one saves the calls that go through each
+ * operator of a query for every tuple.
+ * <p>
+ * A batch holds an array of tuples and, optionally, a
+ * <em>selection vector</em>: the positions of the tuples of the array
+ * that are actually part of the batch. Filtering a batch (see
+ * {@link #filter(Condition)}) only updates that vector, so that a
+ * {@link Selection} outputs the batch of its operand without copying
+ * any tuple. The methods {@link #size()} and {@link #get(int)} only
+ * see the selected tuples.
+ * <p>
+ * Batches are reused: a batch belongs to the iterator that returned
+ * it, and is only valid until the next call to a method of that
+ * iterator. The tuples themselves can be kept.
+ * @author sylvain
+ *
+ */
+public class TupleBatch
+{
+  /**
+   * The number of tuples of the batches returned by iterators
+   */
+  public static final int DEFAULT_CAPACITY = 1024;
+  
+  protected final Tuple[] m_tuples;
+  
+  /**
+   * The number of tuples in the array
+   */
+  protected int m_count;
+  
+  /**
+   * The positions of the selected tuples in the array; only
+   * meaningful if m_hasSelection is true
+   */
+  protected int[] m_selection;
+  
+  protected boolean m_hasSelection;
+  
+  /**
+   * The number of selected tuples, if m_hasSelection is true
+   */
+  protected int m_size;
+  
+  public TupleBatch()
+  {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * Creates an empty batch
+   * @param capacity The maximum number of tuples in the batch
+   */
+  public TupleBatch(int capacity)
+  {
+    super();
+    m_tuples = new Tuple[capacity];
+    clear();
+  }
+  
+  /**
+   * Empties the batch
+   */
+  public void clear()
+  {
+    m_count = 0;
+    m_size = 0;
+    m_hasSelection = false;
+  }
+  
+  /**
+   * Adds a tuple at the end of the batch. Tuples can only be added
+   * to a batch that has not been filtered.
+   * @param t The tuple
+   */
+  public void add(Tuple t)
+  {
+    assert !m_hasSelection;
+    m_tuples[m_count++] = t;
+  }
+  
+  /**
+   * Gives the number of tuples of the batch
+   * @return The number of tuples
+   */
+  public int size()
+  {
+    return m_hasSelection ? m_size : m_count;
+  }
+  
+  public boolean isEmpty()
+  {
+    return size() == 0;
+  }
+  
+  /**
+   * Determines if no more tuples can be added to the batch
+   * @return True if the batch is full, false otherwise
+   */
+  public boolean isFull()
+  {
+    return m_count == m_tuples.length;
+  }
+  
+  public int capacity()
+  {
+    return m_tuples.length;
+  }
+  
+  /**
+   * Gives a tuple of the batch
+   * @param i The tuple's position, between 0 and {@link #size()}
+   * @return The tuple
+   */
+  public Tuple get(int i)
+  {
+    if (m_hasSelection)
+      return m_tuples[m_selection[i]];
+    return m_tuples[i];
+  }
+  
+  /**
+   * Removes from the batch the tuples that do not satisfy a condition
+   * @param c The condition
+   * @return The number of tuples left
+   */
+  public int filter(Condition c)
+  {
+    int[] selection = selection();
+    int out = 0;
+    if (!m_hasSelection)
+    {
+      for (int i = 0; i < m_count; i++)
+      {
+        if (c.evaluate(m_tuples[i]))
+          selection[out++] = i;
+      }
+    }
+    else
+    {
+      // Positions are only moved backwards, so this can be done in place
+      for (int i = 0; i < m_size; i++)
+      {
+        int pos = selection[i];
+        if (c.evaluate(m_tuples[pos]))
+          selection[out++] = pos;
+      }
+    }
+    m_hasSelection = true;
+    m_size = out;
+    return out;
+  }
+  
+  /**
+   * Removes from the batch the tuples that are already in a set, and
+   * adds the other ones to the set. This is how duplicates are removed
+   * from an enumeration.
+   * @param seen The tuples seen so far
+   * @return The number of tuples left
+   */
+  public int retainNew(Set<Tuple> seen)
+  {
+    int[] selection = selection();
+    int out = 0;
+    int size = size();
+    for (int i = 0; i < size; i++)
+    {
+      int pos = m_hasSelection ? selection[i] : i;
+      if (seen.add(m_tuples[pos]))
+        selection[out++] = pos;
+    }
+    m_hasSelection = true;
+    m_size = out;
+    return out;
+  }
+  
+  /**
+   * Gives the array holding the selection vector, creating it if needed
+   */
+  protected int[] selection()
+  {
+    if (m_selection == null)
+      m_selection = new int[m_tuples.length];
+    return m_selection;
+  }
+}
@@ -0,0 +1,160 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.io.*;
+
+/**
+ * Compact binary encoding of values and tuples. Each value is written
+ * as a one-byte tag giving its {@link ValueType}, followed by its
+ * contents (e.g. four bytes for an int); a tuple is simply the
+ * sequence of its values, the schema being known to the reader.
+ * This is used to write tuples to temporary files, e.g. by the
+ * {@link TupleSorter}.
+ * @author sylvain
+ *
+ */
+public class TupleCodec
+{
+  /**
+   * Tag of a missing (<tt>null</tt>) value
+   */
+  protected static final byte TAG_NULL = -1;
+  
+  /**
+   * Utility class: no instances
+   */
+  private TupleCodec()
+  {
+    throw new UnsupportedOperationException("Cannot instantiate utility class TupleCodec");
+  }
+  
+  /**
+   * Writes a value
+   * @param out The output to write to
+   * @param v The value; may be <tt>null</tt>
+   * @throws IOException If the value cannot be written
+   */
+  public static void writeValue(DataOutput out, Value v) throws IOException
+  {
+    if (v == null)
+    {
+      out.writeByte(TAG_NULL);
+      return;
+    }
+    ValueType type = v.getType();
+    out.writeByte(type.ordinal());
+    switch (type)
+    {
+    case INT:
+      out.writeInt(((IntValue) v).intValue());
+      break;
+    case LONG:
+      out.writeLong(((LongValue) v).longValue());
+      break;
+    case DOUBLE:
+      out.writeDouble(((DoubleValue) v).doubleValue());
+      break;
+    case DATE:
+      out.writeLong(((DateValue) v).getTime());
+      break;
+    default:
+      writeString(out, v.toString());
+      break;
+    }
+  }
+  
+  /**
+   * Reads a value written by {@link #writeValue(DataOutput, Value)}
+   * @param in The input to read from
+   * @return The value; may be <tt>null</tt>
+   * @throws IOException If the value cannot be read
+   */
+  public static Value readValue(DataInput in) throws IOException
+  {
+    byte tag = in.readByte();
+    if (tag == TAG_NULL)
+      return null;
+    ValueType[] types = ValueType.values();
+    if (tag < 0 || tag >= types.length)
+      throw new IOException("Invalid value tag: " + tag);
+    switch (types[tag])
+    {
+    case INT:
+      return new IntValue(in.readInt());
+    case LONG:
+      return new LongValue(in.readLong());
+    case DOUBLE:
+      return new DoubleValue(in.readDouble());
+    case DATE:
+      return new DateValue(in.readLong());
+    default:
+      return new Value(readString(in));
+    }
+  }
+  
+  /**
+   * Writes the values of a tuple
+   * @param out The output to write to
+   * @param t The tuple
+   * @throws IOException If the tuple cannot be written
+   */
+  public static void writeTuple(DataOutput out, Tuple t) throws IOException
+  {
+    int size = t.size();
+    for (int i = 0; i < size; i++)
+      writeValue(out, t.get(i));
+  }
+  
+  /**
+   * Reads a tuple written by {@link #writeTuple(DataOutput, Tuple)}
+   * @param in The input to read from
+   * @param sch The schema of the tuple
+   * @return The tuple
+   * @throws IOException If the tuple cannot be read
+   */
+  public static Tuple readTuple(DataInput in, Schema sch) throws IOException
+  {
+    Value[] values = new Value[sch.size()];
+    for (int i = 0; i < values.length; i++)
+      values[i] = readValue(in);
+    return new Tuple(sch, values);
+  }
+  
+  /**
+   * Writes a string as its length followed by its UTF-8 bytes.
+   * Contrarily to {@link DataOutput#writeUTF(String)}, this
+   * works for strings of any length.
+   */
+  protected static void writeString(DataOutput out, String s) throws IOException
+  {
+    byte[] bytes = s.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+  
+  protected static String readString(DataInput in) throws IOException
+  {
+    int len = in.readInt();
+    if (len < 0)
+      throw new IOException("Invalid string length: " + len);
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,297 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts tuples using a bounded amount of memory. Tuples are
+ * accumulated in a buffer; whenever the buffer is full, it is sorted
+ * and written to a temporary file (a <em>run</em>). The sorted
+ * enumeration then merges all the runs, reading one tuple at a time
+ * from each of them. If all the tuples fit in the buffer, no file is
+ * ever written.
+ * <p>
+ * A sorter is used once: tuples are added with {@link #add(Tuple)},
+ * and then enumerated with {@link #iterator()}. Temporary files are
+ * deleted once the enumeration is over, or when calling
+ * {@link #close()}.
+ * @author sylvain
+ *
+ */
+public class TupleSorter
+{
+  /**
+   * The default number of tuples kept in memory
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 65536;
+  
+  protected final Comparator<Tuple> m_comparator;
+  
+  /**
+   * The maximum number of tuples kept in memory
+   */
+  protected final int m_bufferSize;
+  
+  protected List<Tuple> m_buffer;
+  
+  /**
+   * The files holding the sorted runs written so far
+   */
+  protected List<File> m_runs;
+  
+  /**
+   * The schema of the tuples, taken from the first tuple added
+   */
+  protected Schema m_schema;
+  
+  public TupleSorter(Comparator<Tuple> c)
+  {
+    this(c, DEFAULT_BUFFER_SIZE);
+  }
+  
+  /**
+   * Creates a sorter
+   * @param c The order in which to sort the tuples
+   * @param buffer_size The maximum number of tuples kept in memory
+   */
+  public TupleSorter(Comparator<Tuple> c, int buffer_size)
+  {
+    super();
+    assert buffer_size > 0;
+    m_comparator = c;
+    m_bufferSize = buffer_size;
+    m_buffer = new ArrayList<Tuple>();
+    m_runs = new LinkedList<File>();
+  }
+  
+  /**
+   * Adds a tuple to sort
+   * @param t The tuple
+   * @throws SortException If the buffer cannot be written to disk
+   */
+  public void add(Tuple t)
+  {
+    if (m_schema == null)
+      m_schema = t.getSchema();
+    m_buffer.add(t);
+    if (m_buffer.size() >= m_bufferSize)
+      writeRun();
+  }
+  
+  /**
+   * Determines if some tuples had to be written to disk
+   * @return True if at least one run was written, false otherwise
+   */
+  public boolean hasRuns()
+  {
+    return !m_runs.isEmpty();
+  }
+  
+  /**
+   * Sorts the buffer and writes it to a new run
+   */
+  protected void writeRun()
+  {
+    Collections.sort(m_buffer, m_comparator);
+    DataOutputStream out = null;
+    try
+    {
+      File f = File.createTempFile("turtledb", ".run");
+      f.deleteOnExit();
+      m_runs.add(f);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+      out.writeInt(m_buffer.size());
+      for (Tuple t : m_buffer)
+        TupleCodec.writeTuple(out, t);
+    }
+    catch (IOException e)
+    {
+      throw new SortException(e);
+    }
+    finally
+    {
+      closeQuietly(out);
+    }
+    m_buffer = new ArrayList<Tuple>();
+  }
+  
+  /**
+   * Enumerates the tuples in sorted order
+   * @return An iterator over the tuples
+   * @throws SortException If a run cannot be read
+   */
+  public Iterator<Tuple> iterator()
+  {
+    if (m_runs.isEmpty())
+    {
+      Collections.sort(m_buffer, m_comparator);
+      return m_buffer.iterator();
+    }
+    if (!m_buffer.isEmpty())
+      writeRun();
+    return new MergeIterator();
+  }
+  
+  /**
+   * Deletes the temporary files
+   */
+  public void close()
+  {
+    for (File f : m_runs)
+      f.delete();
+    m_runs.clear();
+    m_buffer.clear();
+  }
+  
+  protected static void closeQuietly(Closeable c)
+  {
+    if (c == null)
+      return;
+    try
+    {
+      c.close();
+    }
+    catch (IOException e)
+    {
+      // Nothing to do
+    }
+  }
+  
+  /**
+   * Reads the tuples of a run, one at a time
+   */
+  protected class RunReader
+  {
+    protected final DataInputStream m_in;
+    protected int m_remaining;
+    protected Tuple m_current;
+    
+    public RunReader(File f) throws IOException
+    {
+      super();
+      m_in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+      m_remaining = m_in.readInt();
+      advance();
+    }
+    
+    /**
+     * Reads the next tuple of the run into m_current, which
+     * becomes <tt>null</tt> at the end of the run
+     */
+    public void advance() throws IOException
+    {
+      if (m_remaining == 0)
+      {
+        m_current = null;
+        m_in.close();
+        return;
+      }
+      m_current = TupleCodec.readTuple(m_in, m_schema);
+      m_remaining--;
+    }
+  }
+  
+  /**
+   * Merges the runs, always returning the smallest of their
+   * current tuples
+   */
+  protected class MergeIterator implements Iterator<Tuple>
+  {
+    protected final PriorityQueue<RunReader> m_queue;
+    
+    public MergeIterator()
+    {
+      super();
+      m_queue = new PriorityQueue<RunReader>(m_runs.size(), new Comparator<RunReader>()
+      {
+        @Override
+        public int compare(RunReader r1, RunReader r2)
+        {
+          return m_comparator.compare(r1.m_current, r2.m_current);
+        }
+      });
+      try
+      {
+        for (File f : m_runs)
+        {
+          RunReader r = new RunReader(f);
+          if (r.m_current != null)
+            m_queue.add(r);
+        }
+      }
+      catch (IOException e)
+      {
+        close();
+        throw new SortException(e);
+      }
+      if (m_queue.isEmpty())
+        close();
+    }
+    
+    @Override
+    public boolean hasNext()
+    {
+      return !m_queue.isEmpty();
+    }
+    
+    @Override
+    public Tuple next()
+    {
+      RunReader r = m_queue.poll();
+      if (r == null)
+        throw new NoSuchElementException();
+      Tuple t = r.m_current;
+      try
+      {
+        r.advance();
+      }
+      catch (IOException e)
+      {
+        close();
+        throw new SortException(e);
+      }
+      if (r.m_current != null)
+        m_queue.add(r);
+      else if (m_queue.isEmpty())
+        close();
+      return t;
+    }
+    
+    @Override
+    public void remove()
+    {
+      // Not supported
+    }
+  }
+  
+  /**
+   * Exception thrown when the tuples written to disk cannot be
+   * written or read back
+   */
+  public static class SortException extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+    
+    public SortException(IOException cause)
+    {
+      super(cause);
+    }
+  }
+}
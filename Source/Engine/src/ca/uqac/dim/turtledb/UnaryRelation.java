@@ -32,13 +32,29 @@ public abstract class UnaryRelation extends Relation
     return m_relation.tupleCount();
   }
   
+  @Override
+  public boolean isDuplicateFree()
+  {
+    return m_relation != null && m_relation.isDuplicateFree();
+  }
+  
+  /**
+   * By default, a unary operator outputs its tuples in the order of its
+   * operand, with the same attributes at the same positions
+   */
+  @Override
+  public boolean isSortedOn(int[] positions)
+  {
+    return m_relation != null && m_relation.isSortedOn(positions);
+  }
+  
   protected abstract class UnaryRelationStreamIterator extends RelationStreamIterator
   {
     protected RelationIterator m_childIterator;
     
     public UnaryRelationStreamIterator()
     {
-      super();
+      super(!isDuplicateFree());
       m_childIterator = m_relation.streamIterator();
     }
     
@@ -54,13 +70,14 @@ public abstract class UnaryRelation extends Relation
   {
     protected void getIntermediateResult()
     {
-      Table tab_out = new Table(m_relation.getSchema());
+      Table tab_out = newIntermediateTable(m_relation.getSchema());
       RelationIterator it = m_relation.cacheIterator();
-      while (it.hasNext())
+      for (TupleBatch b = it.nextBatch(); b != null; b = it.nextBatch())
       {
-        Tuple t = it.next();
-        tab_out.put(t);
+        for (int i = 0; i < b.size(); i++)
+          tab_out.append(b.get(i));
       }
+      dispose(it);
       m_intermediateResult = tab_out;
     }
   }
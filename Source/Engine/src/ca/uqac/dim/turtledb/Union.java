@@ -35,26 +35,108 @@ public class Union extends NAryRelation
     v.visit(this);
   }
 
+  @Override
+  protected boolean mergesOperands()
+  {
+    return true;
+  }
+  
+  /**
+   * Merges the tuples of the operands, which are read a batch at
+   * a time
+   */
   protected class UnionStreamIterator extends NAryRelationStreamIterator
   {
+    /**
+     * The current batch of each operand, <tt>null</tt> once the
+     * operand is exhausted
+     */
+    protected TupleBatch[] m_batches;
+    
+    /**
+     * The position of the next tuple in each batch
+     */
+    protected int[] m_positions;
+    
     public UnionStreamIterator()
     {
       super();
     }
     
+    protected void initializeBatches()
+    {
+      m_first = false;
+      int len = m_iterators.size();
+      m_batches = new TupleBatch[len];
+      m_positions = new int[len];
+      for (int i = 0; i < len; i++)
+        m_batches[i] = m_iterators.get(i).nextBatch();
+    }
+    
+    /**
+     * Returns the smallest of the next tuples of the operands, and
+     * moves past it
+     * @return The tuple, or <tt>null</tt> if all operands are exhausted
+     */
+    protected Tuple takeSmallestTuple()
+    {
+      Tuple smallest_tuple = null;
+      int smallest_index = -1;
+      for (int i = m_batches.length - 1; i >= 0; i--)
+      {
+        TupleBatch b = m_batches[i];
+        if (b == null)
+          continue;
+        Tuple t = b.get(m_positions[i]);
+        if (smallest_tuple == null || smallest_tuple.compareTo(t) > 0)
+        {
+          smallest_tuple = t;
+          smallest_index = i;
+        }
+      }
+      if (smallest_index == -1)
+        return null;
+      if (++m_positions[smallest_index] == m_batches[smallest_index].size())
+      {
+        m_batches[smallest_index] = m_iterators.get(smallest_index).nextBatch();
+        m_positions[smallest_index] = 0;
+      }
+      return smallest_tuple;
+    }
+    
     @Override
     protected Tuple internalNext()
     {
-      super.initializeIteration();
-      Relation r = m_relations.get(0);
-      Schema sch = r.getSchema();
-      Tuple t = super.incrementSmallestTuple();
+      if (m_first)
+        initializeBatches();
+      Tuple t = takeSmallestTuple();
       if (t == null)
         return null;
       Tuple t2 = new Tuple(t);
-      t2.setSchema(sch);
+      t2.setSchema(m_relations.get(0).getSchema());
       return t2;
     }
+    
+    @Override
+    protected TupleBatch internalNextBatch()
+    {
+      if (m_first)
+        initializeBatches();
+      Schema sch = m_relations.get(0).getSchema();
+      TupleBatch out = getBatch();
+      while (!out.isFull())
+      {
+        Tuple t = takeSmallestTuple();
+        if (t == null)
+          break;
+        Tuple t2 = new Tuple(t);
+        t2.setSchema(sch);
+        out.add(t2);
+      }
+      if (out.isEmpty())
+        return null;
+      return out;
+    }
   }
 
   @Override
@@ -75,7 +157,7 @@ public class Union extends NAryRelation
     protected void getIntermediateResult()
     {
       Schema sch = getSchema();
-      Table tab = new Table(getSchema());
+      Table tab = newIntermediateTable(getSchema());
       for (Relation r : m_relations)
       {
         RelationIterator i = r.cacheIterator();
@@ -85,8 +167,9 @@ public class Union extends NAryRelation
           // Set schema of t to that of the current table
           Tuple t2 = new Tuple(t);
           t2.setSchema(sch);
-          tab.put(t2);
+          tab.append(t2);
         }
+        dispose(i);
       }
       m_intermediateResult = tab;
     }
@@ -17,6 +17,22 @@
  -------------------------------------------------------------------------*/
 package ca.uqac.dim.turtledb;
 
+/**
+ * A value held by an attribute of a tuple. Instances of this class
+ * are plain character strings; typed values (numbers, dates) are
+ * represented by subclasses, which are obtained by parsing a string
+ * with the {@link ValueType} of an attribute.
+ * <p>
+ * Values form a single total order. Values of different kinds are
+ * never equal: all numbers come first, then all dates, then all
+ * character strings. Numbers are compared numerically to each other,
+ * regardless of their actual type; dates are compared chronologically
+ * and strings lexicographically. A string that must be compared to
+ * values of another type is rather converted to that type first (see
+ * {@link ValueType#convert(Value)}).
+ * @author sylvain
+ *
+ */
 public class Value extends Literal
 {
   private String m_value;
@@ -26,6 +42,34 @@ public class Value extends Literal
     m_value = s;
   }
   
+  /**
+   * Empty constructor. Should only be called by typed subclasses,
+   * which hold their own representation of the value.
+   */
+  protected Value()
+  {
+    m_value = null;
+  }
+  
+  /**
+   * Gives the type of this value
+   * @return The type
+   */
+  public ValueType getType()
+  {
+    return ValueType.STRING;
+  }
+  
+  /**
+   * Gives the position of the kind of this value in the order
+   * between values of different kinds
+   * @return The rank
+   */
+  protected int getRank()
+  {
+    return 2;
+  }
+  
   @Override
   public String toString()
   {
@@ -46,7 +90,7 @@ public class Value extends Literal
   {
     if (v == null)
       return false;
-    return m_value.compareTo(v.m_value) == 0;
+    return compareTo(v) == 0;
   }
   
   @Override
@@ -66,7 +110,10 @@ public class Value extends Literal
   
   public int compareTo(Value o)
   {
-    int compare_value = m_value.compareTo(o.m_value);
+    int rank = getRank(), other_rank = o.getRank();
+    if (rank != other_rank)
+      return rank < other_rank ? -1 : 1;
+    int compare_value = toString().compareTo(o.toString());
     if (compare_value < 0)
       return -1;
     if (compare_value > 0)
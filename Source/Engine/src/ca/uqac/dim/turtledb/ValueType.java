@@ -0,0 +1,190 @@
+/*-------------------------------------------------------------------------
+    Simple distributed database engine
+    Copyright (C) 2012  Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ -------------------------------------------------------------------------*/
+package ca.uqac.dim.turtledb;
+
+/**
+ * The type of the values an {@link Attribute} can hold. The type of an
+ * attribute is declared in the relation's {@link Schema}, and is used
+ * to convert the character strings read from a file or a message into
+ * instances of the proper subclass of {@link Value}.
+ * <p>
+ * An attribute whose type is not declared is of type {@link #STRING};
+ * its values are plain instances of {@link Value}.
+ * @author sylvain
+ *
+ */
+public enum ValueType
+{
+  STRING("string")
+  {
+    @Override
+    public Value parse(String s)
+    {
+      return new Value(s);
+    }
+  },
+  INT("int")
+  {
+    @Override
+    public Value parse(String s)
+    {
+      return new IntValue(Integer.parseInt(s.trim()));
+    }
+  },
+  LONG("long")
+  {
+    @Override
+    public Value parse(String s)
+    {
+      return new LongValue(Long.parseLong(s.trim()));
+    }
+  },
+  DOUBLE("double")
+  {
+    @Override
+    public Value parse(String s)
+    {
+      return new DoubleValue(Double.parseDouble(s.trim()));
+    }
+  },
+  DATE("date")
+  {
+    @Override
+    public Value parse(String s)
+    {
+      return DateValue.parse(s.trim());
+    }
+  };
+
+  /**
+   * The name of the type, as it appears in schema declarations
+   */
+  private final String m_name;
+
+  private ValueType(String name)
+  {
+    m_name = name;
+  }
+
+  /**
+   * Converts a character string into a value of this type.
+   * @param s The string to convert
+   * @return The value
+   * @throws IllegalArgumentException If the string cannot be
+   *   converted into a value of this type
+   */
+  public abstract Value parse(String s);
+
+  /**
+   * Converts an arbitrary value into a value of this type. The value
+   * is returned as is if it already has the proper type.
+   * @param v The value to convert
+   * @return The converted value
+   * @throws IllegalArgumentException If the value cannot be
+   *   converted into a value of this type
+   */
+  public Value cast(Value v)
+  {
+    if (v == null || v.getType() == this)
+      return v;
+    return parse(v.toString());
+  }
+
+  /**
+   * Converts an arbitrary value into a value of this type, if it
+   * can be converted
+   * @param v The value to convert
+   * @return The converted value, or the value itself if it cannot
+   *   be converted into a value of this type
+   */
+  public Value convert(Value v)
+  {
+    try
+    {
+      return cast(v);
+    }
+    catch (IllegalArgumentException e)
+    {
+      return v;
+    }
+  }
+
+  /**
+   * Gives the type into which values of some type are converted before
+   * being compared for equality to values of another type. Values of
+   * different kinds are never equal (see {@link Value}); a string is
+   * therefore converted to the type of the values it is compared to,
+   * like a constant compared to an attribute is.
+   * @param from The type of the values to convert
+   * @param to The type of the values they are compared to
+   * @return The type to convert the values into, or <tt>null</tt>
+   *   if they are compared as is
+   */
+  public static ValueType conversion(ValueType from, ValueType to)
+  {
+    if (from == STRING && to != STRING)
+      return to;
+    return null;
+  }
+
+  /**
+   * Determines if values of this type are numbers
+   * @return True if the type is numeric, false otherwise
+   */
+  public boolean isNumeric()
+  {
+    return this == INT || this == LONG || this == DOUBLE;
+  }
+
+  /**
+   * Gives the name of the type, as it appears in schema declarations
+   * @return The name
+   */
+  public String getName()
+  {
+    return m_name;
+  }
+
+  @Override
+  public String toString()
+  {
+    return m_name;
+  }
+
+  /**
+   * Retrieves a type from its name. The comparison is case-insensitive;
+   * a <tt>null</tt> or empty name designates the {@link #STRING} type.
+   * @param name The type's name
+   * @return The type
+   * @throws IllegalArgumentException If no type has that name
+   */
+  public static ValueType forName(String name)
+  {
+    if (name == null)
+      return STRING;
+    name = name.trim();
+    if (name.isEmpty())
+      return STRING;
+    for (ValueType t : values())
+    {
+      if (t.m_name.compareToIgnoreCase(name) == 0)
+        return t;
+    }
+    throw new IllegalArgumentException("Unknown value type: " + name);
+  }
+}
@@ -189,9 +189,18 @@ public class VariableTable extends UnaryRelation
       return (m_iterator.next());
     }
     
+    @Override
+    protected TupleBatch internalNextBatch()
+    {
+      if (m_iterator == null)
+        return null;
+      return m_iterator.nextBatch();
+    }
+    
     @Override
     public void reset()
     {
+      super.reset();
       if (m_relation != null)
         m_iterator = m_relation.streamIterator();
     }
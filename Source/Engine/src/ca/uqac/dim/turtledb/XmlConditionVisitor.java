@@ -106,7 +106,13 @@ public class XmlConditionVisitor extends ConditionVisitor
       n.appendChild(n_t);
     }
     if (l instanceof Value)
-      n = m_doc.createElement("value");
+    {
+      Value v = (Value) l;
+      Element v_n = m_doc.createElement("value");
+      if (v.getType() != ValueType.STRING)
+        v_n.setAttribute("type", v.getType().getName());
+      n = v_n;
+    }
     n.setTextContent(l.toString());
     return n;
   }
@@ -18,6 +18,9 @@
 package ca.uqac.dim.turtledb;
 
 import java.io.StringWriter;
+import java.util.Collection;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
@@ -62,7 +65,56 @@ public class XmlQueryFormatter
    */
   public static String toXmlString(Relation q)
   {
-    Document doc = toXmlDocument(q);
+    return toXmlString(toXmlDocument(q));
+  }
+
+  /**
+   * Serializes a set of relations as a single DOM document, whose
+   * root is a <tt>batch</tt> element containing the representation
+   * of each relation.
+   * @param rels The relations to serialize
+   * @return The resulting XML document
+   */
+  public static Document toXmlDocument(Collection<Relation> rels)
+  {
+    Document doc;
+    try
+    {
+      doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    }
+    catch (ParserConfigurationException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+    Node batch = doc.createElement("batch");
+    doc.appendChild(batch);
+    for (Relation r : rels)
+    {
+      Document d = toXmlDocument(r);
+      batch.appendChild(doc.importNode(d.getDocumentElement(), true));
+    }
+    return doc;
+  }
+
+  /**
+   * Serializes a set of relations as a string containing a single XML
+   * document
+   * @param rels The relations to serialize
+   * @return A "stringified" XML document
+   */
+  public static String toXmlString(Collection<Relation> rels)
+  {
+    return toXmlString(toXmlDocument(rels));
+  }
+
+  /**
+   * Serializes a DOM document as a string
+   * @param doc The document
+   * @return The string
+   */
+  protected static String toXmlString(Document doc)
+  {
     try
     {
        DOMSource domSource = new DOMSource(doc);
@@ -70,6 +70,53 @@ public class XmlQueryParser
     return null;
   }
   
+  /**
+   * Builds a list of queries from a string. The string contains
+   * either the representation of a single query, or a <tt>batch</tt>
+   * element containing the representation of many queries, as
+   * produced by {@link XmlQueryFormatter#toXmlString(Collection)}.
+   * @param s A string containing an XML representation of the queries
+   * @return The queries, or null if the string is not valid XML
+   */
+  public static List<Relation> parseBatch(String s) throws XmlQueryParser.ParseException
+  {
+    DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+    Document document;
+    try
+    {
+      DocumentBuilder builder = builderFactory.newDocumentBuilder();
+      document = builder.parse(new InputSource(new StringReader(s)));
+    }
+    catch (ParserConfigurationException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+    catch (SAXException e)
+    {
+      return null;
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+    List<Relation> out = new LinkedList<Relation>();
+    Element root = document.getDocumentElement();
+    if (root.getTagName().compareToIgnoreCase("batch") != 0)
+    {
+      out.add(parse(root));
+      return out;
+    }
+    NodeList nl = root.getChildNodes();
+    for (int i = 0; i < nl.getLength(); i++)
+    {
+      Node n = nl.item(i);
+      if (n.getNodeType() == Node.ELEMENT_NODE)
+        out.add(parse(n));
+    }
+    return out;
+  }
+
   /**
    * Builds a query from a DOM document
    * @param s A DOM document containing an XML representation of the query
@@ -437,14 +484,24 @@ public class XmlQueryParser
   /**
    * Parse an attribute. XML syntax:
    * <pre>
-   * &lt;attribute&gt;<i>name</i>&lt;/attribute&gt;
+   * &lt;attribute&gt;
+   *   &lt;name&gt;<i>name</i>&lt;/name&gt;
+   *   &lt;table&gt;<i>table</i>&lt;/table&gt;
+   * &lt;/attribute&gt;
    * </pre>
+   * or, in short form:
+   * <pre>
+   * &lt;attribute&gt;[<i>table</i>.]<i>name</i>&lt;/attribute&gt;
+   * </pre>
+   * In both forms, the element can declare the type of the attribute's
+   * values with a <tt>type</tt> XML attribute (see {@link ValueType}).
    * @param e An XML DOM node
    * @return
    */
   protected static Attribute parseAttribute(Node e) throws XmlQueryParser.ParseException
   {
     Attribute a = new Attribute();
+    boolean long_form = false;
     NodeList nl = e.getChildNodes();
     for (int i = 0; i < nl.getLength(); i++)
     {
@@ -452,17 +509,46 @@ public class XmlQueryParser
       if (n.getNodeName().compareToIgnoreCase("name") == 0)
       {
         a.setName(n.getTextContent().trim());
+        long_form = true;
       }
       if (n.getNodeName().compareToIgnoreCase("table") == 0)
       {
         a.setTableName(n.getTextContent().trim());
+        long_form = true;
       }
     }
+    if (!long_form)
+    {
+      String text = e.getTextContent().trim();
+      if (!text.isEmpty())
+        a = new Attribute(text);
+    }
     if (a.getName().isEmpty())
       throw new XmlQueryParser.ParseException("Empty attribute name");
+    a.setType(parseType(e));
     return a;
   }
   
+  /**
+   * Reads the type declared by the <tt>type</tt> XML attribute
+   * of an element, if any.
+   * @param e An XML DOM node
+   * @return The type, {@link ValueType#STRING} if none is declared
+   */
+  protected static ValueType parseType(Node e) throws XmlQueryParser.ParseException
+  {
+    if (!(e instanceof Element))
+      return ValueType.STRING;
+    try
+    {
+      return ValueType.forName(((Element) e).getAttribute("type"));
+    }
+    catch (IllegalArgumentException ex)
+    {
+      throw new XmlQueryParser.ParseException(ex.getMessage());
+    }
+  }
+  
   /**
    * Parse a table. XML syntax:
    * <pre>
@@ -509,7 +595,7 @@ public class XmlQueryParser
   {
     Schema s = null;
     String table_name = "";
-    List<Tuple> tuples = new LinkedList<Tuple>();
+    List<Node> tuple_nodes = new LinkedList<Node>();
     NodeList nl = e.getChildNodes();
     for (int i = 0; i < nl.getLength(); i++)
     {
@@ -524,15 +610,22 @@ public class XmlQueryParser
       }
       if (n.getNodeName().compareToIgnoreCase("tuple") == 0)
       {
-        Tuple t = parseTuple(n);
-        tuples.add(t);
+        tuple_nodes.add(n);
       }
     }
+    if (s == null)
+      throw new XmlQueryParser.ParseException("Missing schema in projection");
+    // Tuples are parsed once the schema is known, so that their
+    // values get the type declared for their attribute
+    List<Tuple> tuples = new LinkedList<Tuple>();
+    for (Node n : tuple_nodes)
+    {
+      Tuple t = parseTuple(n, s);
+      tuples.add(t);
+    }
     Table tab = new Table(table_name);
     tab.setSchema(s);
     tab.putAll(tuples);
-    if (s == null)
-      throw new XmlQueryParser.ParseException("Missing schema in projection");
     return tab;
   }
   
@@ -541,6 +634,8 @@ public class XmlQueryParser
    * <pre>
    * &lt;value&gt;<i>name</i>&lt;/value&gt;
    * </pre>
+   * The element can declare the type of the value with a
+   * <tt>type</tt> XML attribute (see {@link ValueType}).
    * @param e An XML DOM node
    * @return
    */
@@ -550,7 +645,25 @@ public class XmlQueryParser
     if (nl.getLength() == 0)
       throw new XmlQueryParser.ParseException("Empty value");
     Node n = nl.item(0);
-    return new Value(n.getTextContent().trim());
+    return parseValue(parseType(e), n.getTextContent().trim());
+  }
+  
+  /**
+   * Converts a string into a value of a given type
+   * @param type The type
+   * @param s The string
+   * @return The value
+   */
+  protected static Value parseValue(ValueType type, String s) throws XmlQueryParser.ParseException
+  {
+    try
+    {
+      return type.parse(s);
+    }
+    catch (IllegalArgumentException ex)
+    {
+      throw new XmlQueryParser.ParseException("Invalid " + type + " value: " + s);
+    }
   }
   
   /**
@@ -562,12 +675,16 @@ public class XmlQueryParser
    *   &hellip;
    * &lt;/tuple&gt;
    * </pre>
+   * The attributes may appear in any order; the values of the
+   * resulting tuple are put in the order of the table's schema, and
+   * converted according to the type of their attribute.
    * @param e An XML DOM node
+   * @param sch The schema of the table the tuple belongs to
    * @return
    */
-  protected static Tuple parseTuple(Node e) throws XmlQueryParser.ParseException
+  protected static Tuple parseTuple(Node e, Schema sch) throws XmlQueryParser.ParseException
   {
-    Tuple t = new Tuple();
+    Value[] values = new Value[sch.size()];
     NodeList nl = e.getChildNodes();
     for (int i = 0; i < nl.getLength(); i++)
     {
@@ -576,14 +693,42 @@ public class XmlQueryParser
       {
         String name = n.getNodeName();
         String value = n.getTextContent().trim();
-        t.put(new Attribute(name), new Value(value));
+        int pos = findAttribute(sch, new Attribute(name));
+        if (pos < 0)
+          throw new XmlQueryParser.ParseException("Unknown attribute in tuple: " + name);
+        values[pos] = parseValue(sch.get(pos).getType(), value);
       }
     }
-    if (t.size() == 0)
-      throw new XmlQueryParser.ParseException("Empty tuple");
-    return t;
+    for (int i = 0; i < values.length; i++)
+    {
+      if (values[i] == null)
+        throw new XmlQueryParser.ParseException("Missing value in tuple for attribute " + sch.get(i));
+    }
+    return new Tuple(sch, values);
   }
 
+  /**
+   * Finds an attribute in a schema. The attribute matches an element
+   * of the schema if it has the same name and, when it has one, the
+   * same table name.
+   * @param sch The schema
+   * @param a The attribute
+   * @return The position of the attribute in the schema, -1 if
+   *   the attribute is not in the schema
+   */
+  protected static int findAttribute(Schema sch, Attribute a)
+  {
+    for (int i = 0; i < sch.size(); i++)
+    {
+      Attribute s_a = sch.get(i);
+      if (s_a.getName().compareTo(a.getName()) != 0)
+        continue;
+      if (a.getTableName().isEmpty() || s_a.getTableName().compareTo(a.getTableName()) == 0)
+        return i;
+    }
+    return -1;
+  }
+  
   /**
    * Parse a schema. XML syntax:
    * <pre>
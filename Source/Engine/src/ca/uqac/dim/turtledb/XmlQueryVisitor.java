@@ -126,6 +126,12 @@ import org.w3c.dom.*;
   public void visit(Table r)
   {
     Node n = m_doc.createElement("table");
+    if (!r.getName().isEmpty())
+    {
+      Node name = m_doc.createElement("name");
+      name.setTextContent(r.getName());
+      n.appendChild(name);
+    }
     Node schema = createSchemaNode(r.m_schema);
     n.appendChild(schema);
     RelationStreamIterator it = r.streamIterator();
@@ -180,8 +186,10 @@ import org.w3c.dom.*;
     Node n = m_doc.createElement("schema");
     for (Attribute a : sch)
     {
-      Node attnode = m_doc.createElement("attribute");
+      Element attnode = m_doc.createElement("attribute");
       attnode.setTextContent(a.toString());
+      if (a.getType() != ValueType.STRING)
+        attnode.setAttribute("type", a.getType().getName());
       n.appendChild(attnode);
     }
     return n;
@@ -218,10 +226,11 @@ import org.w3c.dom.*;
   protected Node createTupleNode(Tuple t)
   {
     Node tuple = m_doc.createElement("tuple");
-    for (Attribute a : t.keySet())
+    Schema sch = t.getSchema();
+    for (int i = 0; i < t.size(); i++)
     {
-      String a_name = a.toString();
-      String a_val = t.get(a).toString();
+      String a_name = sch.get(i).toString();
+      String a_val = t.get(i).toString();
       Node atval = m_doc.createElement(a_name);
       atval.setTextContent(a_val);
       tuple.appendChild(atval);